@@ -0,0 +1,25 @@
+#!/bin/sh
+########################################################################
+# Usage: bind-loader.sh \
+#        PRED_METHOD FILE_LIST
+########################################################################
+
+if [ $# -ne 2 ]
+then
+    echo "Usage: `basename $0` PRED_METHOD FILE_LIST"
+    exit 1
+fi
+
+if [ -z "${JAM_HOME}" ]
+then
+    echo "Environment variable JAM_HOME is not set; exiting."
+    exit 1
+fi
+
+if [ -z "${PEPMHC_HOME}" ]
+then
+    echo "Environment variable PEPMHC_HOME is not set; exiting."
+    exit 1
+fi
+
+${JAM_HOME}/bin/jam-run.sh $PEPMHC_HOME pepmhc.app.BindLoader "$@"
@@ -0,0 +1,28 @@
+#!/bin/sh
+########################################################################
+# Usage: matrix-benchmark.sh \
+#        PRED_METHOD ALLELE PEPTIDE_LENGTH [PEPTIDE_COUNT]
+########################################################################
+
+if [ $# -lt 3 ]
+then
+    echo "Usage: `basename $0` PRED_METHOD ALLELE PEPTIDE_LENGTH [PEPTIDE_COUNT]"
+    exit 1
+fi
+
+if [ -z "${JAM_HOME}" ]
+then
+    echo "Environment variable JAM_HOME is not set; exiting."
+    exit 1
+fi
+
+if [ -z "${PEPMHC_HOME}" ]
+then
+    echo "Environment variable PEPMHC_HOME is not set; exiting."
+    exit 1
+fi
+
+# Enables the Vector API kernel (when lib/pepmhc-vector.jar is built)...
+JVM_FLAGS="--add-modules jdk.incubator.vector"
+
+${JAM_HOME}/bin/jam-run.sh $PEPMHC_HOME $JVM_FLAGS pepmhc.app.MatrixBenchmark "$@"
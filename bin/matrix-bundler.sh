@@ -0,0 +1,25 @@
+#!/bin/sh
+########################################################################
+# Usage: matrix-bundler.sh \
+#        PRED_METHOD [PRED_METHOD ...]
+########################################################################
+
+if [ $# -lt 1 ]
+then
+    echo "Usage: `basename $0` PRED_METHOD [PRED_METHOD ...]"
+    exit 1
+fi
+
+if [ -z "${JAM_HOME}" ]
+then
+    echo "Environment variable JAM_HOME is not set; exiting."
+    exit 1
+fi
+
+if [ -z "${PEPMHC_HOME}" ]
+then
+    echo "Environment variable PEPMHC_HOME is not set; exiting."
+    exit 1
+fi
+
+${JAM_HOME}/bin/jam-run.sh $PEPMHC_HOME pepmhc.app.MatrixBundler "$@"
@@ -0,0 +1,83 @@
+
+package pepmhc.affy.smm;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Scores blocks of peptides against a flattened stabilized matrix
+ * with the JDK Vector API, one peptide per vector lane.
+ *
+ * <p>This class is compiled separately (with {@code --add-modules
+ * jdk.incubator.vector}) into {@code lib/pepmhc-vector.jar} by the
+ * {@code vector} build target, and is loaded reflectively by {@code
+ * MatrixKernel.VECTOR}, which falls back to the scalar kernel when the
+ * class or the incubator module is unavailable.
+ *
+ * <p>Each lane accumulates the intercept and then the matrix elements
+ * in position order, exactly as the scalar kernel does, so the scores
+ * are identical.
+ */
+public final class VectorKernel {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private VectorKernel() {}
+
+    /**
+     * Scores a block of peptides (see {@code MatrixKernel.score}).
+     *
+     * @param elements the flattened matrix elements.
+     *
+     * @param intercept the matrix intercept.
+     *
+     * @param length the peptide length covered by the matrix.
+     *
+     * @param codeCount the number of matrix elements per position.
+     *
+     * @param codes the peptide block (valid native residue codes).
+     *
+     * @param count the number of peptides in the block.
+     *
+     * @param result an array to hold the results.
+     */
+    public static void score(double[] elements, double intercept, int length, int codeCount,
+                             int[] codes, int count, double[] result) {
+        int laneCount = SPECIES.length();
+        int blocked = count - (count % laneCount);
+
+        //
+        // The residue codes of each group of peptides are transposed
+        // position-major, so that the codes at one position are
+        // contiguous and serve as the gather index map for the matrix
+        // row at that position...
+        //
+        int[] rowCodes = new int[laneCount * length];
+
+        for (int first = 0; first < blocked; first += laneCount) {
+            for (int lane = 0; lane < laneCount; ++lane) {
+                int base = (first + lane) * length;
+
+                for (int position = 0; position < length; ++position)
+                    rowCodes[position * laneCount + lane] = codes[base + position];
+            }
+
+            DoubleVector sum = DoubleVector.broadcast(SPECIES, intercept);
+
+            for (int position = 0; position < length; ++position)
+                sum = sum.add(DoubleVector.fromArray(SPECIES, elements, position * codeCount,
+                                                     rowCodes, position * laneCount));
+
+            sum.intoArray(result, first);
+        }
+
+        for (int index = blocked; index < count; ++index) {
+            int base = index * length;
+            double logsum = intercept;
+
+            for (int position = 0; position < length; ++position)
+                logsum += elements[position * codeCount + codes[base + position]];
+
+            result[index] = logsum;
+        }
+    }
+}
@@ -1,19 +1,30 @@
 
 package pepmhc.affy;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import jam.app.JamProperties;
-import jam.util.PairKeyTable;
+import jam.math.Percentile;
 
 import jene.hla.Allele;
+import jene.peptide.Peptide;
 
 import pepmhc.bind.BindCache;
+import pepmhc.bind.BindRegistry;
 
 /**
  * Maintains an in-memory cache of affinity records backed by a
  * persistent database store.
  */
 public final class AffinityCache extends BindCache<AffinityRecord> {
-    private static final PairKeyTable<AffinityMethod, Allele, AffinityCache> instances = PairKeyTable.hash();
+    private static final BindRegistry<AffinityMethod, AffinityCache> instances =
+        BindRegistry.create(AffinityCache::newInstance);
 
     private AffinityCache(AffinityTable table, AffinityPredictor predictor, Allele allele) {
         super(table, predictor, allele);
@@ -55,21 +66,174 @@ public final class AffinityCache extends BindCache<AffinityRecord> {
      * @return the affinity cache for the specified allele and
      * prediction method.
      */
-    public static synchronized AffinityCache instance(AffinityMethod method, Allele allele) {
-        AffinityCache instance = instances.get(method, allele);
+    public static AffinityCache instance(AffinityMethod method, Allele allele) {
+        return instances.instance(method, allele);
+    }
+
+    /**
+     * Returns the affinity records for a collection of peptides bound
+     * to several alleles.
+     *
+     * <p>Records are read from the columnar store for the prediction
+     * method (if one has been written) in a single pass for all alleles;
+     * alleles or peptides not covered by the columnar store fall back to
+     * the per-allele caches, which compute missing records on demand.
+     * When the predictor scores several alleles in one call (see {@link
+     * AffinityPredictor#isMultiAllele()}), the alleles whose caches are
+     * missing exactly the same peptides are predicted together, and the
+     * records are added to each cache.
+     *
+     * @param method the affinity prediction method.
+     *
+     * @param alleles the alleles of the binding MHC molecules.
+     *
+     * @param peptides the peptides of interest.
+     *
+     * @return a map from each allele to the affinity records for the
+     * specified peptides (in the order returned by the collection
+     * iterator).
+     */
+    public static Map<Allele, List<AffinityRecord>> require(AffinityMethod method,
+                                                            Collection<Allele> alleles,
+                                                            Collection<Peptide> peptides) {
+        List<Peptide> peptideList = new ArrayList<Peptide>(peptides);
+        Map<Allele, List<AffinityRecord>> result = new LinkedHashMap<Allele, List<AffinityRecord>>();
+
+        AffinityColumnStore columnStore = AffinityColumnStore.instance(method);
+        Map<Allele, List<AffinityRecord>> columnRecords = Map.of();
+
+        if (columnStore != null)
+            columnRecords = columnStore.lookup(alleles, peptideList);
+
+        if (method.getPredictor().isMultiAllele())
+            predictMissing(method, alleles, peptideList, columnRecords);
 
-        if (instance == null)
-            instance = newInstance(method, allele);
+        for (Allele allele : alleles) {
+            List<AffinityRecord> records = columnRecords.get(allele);
 
-        return instance;
+            if (records == null)
+                records = instance(method, allele).require(peptideList);
+            else
+                fillMissing(instance(method, allele), peptideList, records);
+
+            result.put(allele, records);
+        }
+
+        return result;
     }
 
-    private static AffinityCache newInstance(AffinityMethod method, Allele allele) {
-        AffinityCache instance =
-            new AffinityCache(AffinityTable.create(method, allele), method.getPredictor(), allele);
+    private static void predictMissing(AffinityMethod method,
+                                       Collection<Allele> alleles,
+                                       List<Peptide> peptides,
+                                       Map<Allele, List<AffinityRecord>> columnRecords) {
+        //
+        // Claim the peptides that each allele cache would have to
+        // compute (so that concurrent requests wait for them instead
+        // of predicting them again), then predict the alleles that are
+        // missing exactly the same peptides in one call.  Each allele
+        // is scored against its own missing peptides only; an allele
+        // whose missing peptides are unique computes them alone...
+        //
+        Map<Set<Peptide>, List<Allele>> groups = new LinkedHashMap<Set<Peptide>, List<Allele>>();
+
+        for (Allele allele : alleles) {
+            Set<Peptide> claimed =
+                instance(method, allele).claimMissing(uncovered(peptides, columnRecords.get(allele)));
+
+            if (!claimed.isEmpty())
+                groups.computeIfAbsent(claimed, key -> new ArrayList<Allele>()).add(allele);
+        }
 
-        instances.put(method, allele, instance);
-        return instance;
+        RuntimeException failure = null;
+
+        for (Map.Entry<Set<Peptide>, List<Allele>> entry : groups.entrySet()) {
+            try {
+                predictGroup(method, entry.getValue(), entry.getKey());
+            }
+            catch (RuntimeException ex) {
+                //
+                // Every group must be settled, so that no claimed
+                // peptide is left without a result...
+                //
+                if (failure == null)
+                    failure = ex;
+            }
+        }
+
+        if (failure != null)
+            throw failure;
+    }
+
+    private static void predictGroup(AffinityMethod method, List<Allele> alleles, Set<Peptide> claimed) {
+        if (alleles.size() == 1) {
+            instance(method, alleles.get(0)).resolve(claimed);
+            return;
+        }
+
+        Map<Allele, List<AffinityRecord>> predicted;
+
+        try {
+            predicted = method.getPredictor().predict(alleles, claimed);
+        }
+        catch (RuntimeException ex) {
+            for (Allele allele : alleles)
+                instance(method, allele).abandon(claimed, ex);
+
+            throw ex;
+        }
+
+        RuntimeException failure = null;
+
+        for (Allele allele : alleles) {
+            AffinityCache cache = instance(method, allele);
+
+            try {
+                cache.complete(claimed, predicted.get(allele));
+            }
+            catch (RuntimeException ex) {
+                cache.abandon(claimed, ex);
+
+                if (failure == null)
+                    failure = ex;
+            }
+        }
+
+        if (failure != null)
+            throw failure;
+    }
+
+    private static List<Peptide> uncovered(List<Peptide> peptides, List<AffinityRecord> columnRecords) {
+        if (columnRecords == null)
+            return peptides;
+
+        List<Peptide> uncovered = new ArrayList<Peptide>();
+
+        for (int index = 0; index < columnRecords.size(); ++index)
+            if (columnRecords.get(index) == null)
+                uncovered.add(peptides.get(index));
+
+        return uncovered;
+    }
+
+    private static void fillMissing(AffinityCache cache, List<Peptide> peptides, List<AffinityRecord> records) {
+        List<Peptide> missing = new ArrayList<Peptide>();
+
+        for (int index = 0; index < records.size(); ++index)
+            if (records.get(index) == null)
+                missing.add(peptides.get(index));
+
+        if (missing.isEmpty())
+            return;
+
+        Iterator<AffinityRecord> computed = cache.require(missing).iterator();
+
+        for (int index = 0; index < records.size(); ++index)
+            if (records.get(index) == null)
+                records.set(index, computed.next());
+    }
+
+    private static AffinityCache newInstance(AffinityMethod method, Allele allele) {
+        return new AffinityCache(AffinityTable.create(method, allele), method.getPredictor(), allele);
     }
 
     /**
@@ -79,15 +243,17 @@ public final class AffinityCache extends BindCache<AffinityRecord> {
     @Override public void clear() {
         super.clear();
 
-        synchronized (instances) {
-            instances.remove(getMethod(), getAllele());
-        }
+        instances.remove(getMethod(), getAllele(), this);
     }
 
     @Override public AffinityMethod getMethod() {
         return (AffinityMethod) super.getMethod();
     }
 
+    @Override protected AffinityRecord newRecord(Peptide peptide, double strength, Percentile percentile) {
+        return new AffinityRecord(peptide, Affinity.valueOf(strength), percentile);
+    }
+
     @Override public Class getRecordClass() {
         return AffinityRecord.class;
     }
@@ -0,0 +1,380 @@
+
+package pepmhc.affy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jam.io.FileUtil;
+import jam.lang.JamException;
+import jam.math.Percentile;
+
+import jene.hla.Allele;
+import jene.peptide.Peptide;
+
+import pepmhc.bind.PeptideKey;
+
+/**
+ * Provides read-only access to affinity records for many alleles and
+ * a single prediction method stored in one memory-mapped columnar
+ * file.
+ *
+ * <p>The file contains a sorted column of packed peptide keys (see
+ * {@link PeptideKey}) followed by one affinity column and one
+ * percentile column for each allele (written by {@link
+ * AffinityColumnWriter}).  The columns hold {@code double} values, so
+ * records read from this store are identical to those in the affinity
+ * cache.  Lookups for several alleles share a single
+ * forward pass over the peptide column, so a genotype-level query
+ * touches one file instead of one database per allele.
+ */
+public final class AffinityColumnStore {
+    private final File file;
+    private final AffinityMethod method;
+    private final List<Allele> alleles;
+    private final Map<Allele, Integer> alleleIndex;
+
+    private final int peptideCount;
+    private final LongBuffer keyColumn;
+    private final DoubleBuffer[] affinityColumns;
+    private final DoubleBuffer[] percentileColumns;
+
+    private static final Map<AffinityMethod, AffinityColumnStore> instances =
+        new EnumMap<AffinityMethod, AffinityColumnStore>(AffinityMethod.class);
+
+    /**
+     * Magic number identifying columnar affinity files.
+     */
+    static final int MAGIC = 0x50434f4c;
+
+    /**
+     * Version number of the columnar file layout.
+     */
+    static final int VERSION = 2;
+
+    /**
+     * Length of the fixed part of the file header in bytes.
+     */
+    static final int FIXED_HEADER_LENGTH = 20;
+
+    private AffinityColumnStore(File file, AffinityMethod method) throws IOException {
+        this.file = file;
+        this.method = method;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer fixed = channel.map(FileChannel.MapMode.READ_ONLY, 0, FIXED_HEADER_LENGTH);
+
+            if (fixed.getInt() != MAGIC)
+                throw JamException.runtime("File [%s] is not a columnar affinity file.", file);
+
+            if (fixed.getInt() != VERSION)
+                throw JamException.runtime("Unsupported columnar file version in [%s].", file);
+
+            int alleleCount  = fixed.getInt();
+            int headerLength = fixed.getInt();
+
+            this.peptideCount = fixed.getInt();
+            this.alleles = readAlleles(channel, alleleCount, headerLength);
+            this.alleleIndex = indexAlleles(alleles);
+
+            long keyBytes = 8L * peptideCount;
+            long colBytes = 8L * peptideCount;
+
+            this.keyColumn = channel.map(FileChannel.MapMode.READ_ONLY, headerLength, keyBytes).asLongBuffer();
+            this.affinityColumns = new DoubleBuffer[alleleCount];
+            this.percentileColumns = new DoubleBuffer[alleleCount];
+
+            for (int index = 0; index < alleleCount; ++index) {
+                long offset = headerLength + keyBytes + 2L * colBytes * index;
+
+                affinityColumns[index] =
+                    channel.map(FileChannel.MapMode.READ_ONLY, offset, colBytes).asDoubleBuffer();
+
+                percentileColumns[index] =
+                    channel.map(FileChannel.MapMode.READ_ONLY, offset + colBytes, colBytes).asDoubleBuffer();
+            }
+        }
+    }
+
+    private static List<Allele> readAlleles(FileChannel channel, int alleleCount, int headerLength) throws IOException {
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, headerLength);
+        header.position(FIXED_HEADER_LENGTH);
+
+        List<Allele> alleles = new ArrayList<Allele>(alleleCount);
+
+        for (int index = 0; index < alleleCount; ++index) {
+            byte[] bytes = new byte[header.getInt()];
+            header.get(bytes);
+            alleles.add(Allele.instance(new String(bytes, StandardCharsets.UTF_8)));
+        }
+
+        return Collections.unmodifiableList(alleles);
+    }
+
+    private static Map<Allele, Integer> indexAlleles(List<Allele> alleles) {
+        Map<Allele, Integer> index = new HashMap<Allele, Integer>();
+
+        for (int k = 0; k < alleles.size(); ++k)
+            index.put(alleles.get(k), k);
+
+        return index;
+    }
+
+    /**
+     * Returns the name of the columnar file for a given prediction
+     * method.
+     *
+     * @param method the affinity prediction method.
+     *
+     * @return the name of the columnar file for the specified method.
+     */
+    public static String fileName(AffinityMethod method) {
+        String cacheDir = AffinityCache.cacheDir();
+        FileUtil.ensureDir(cacheDir);
+
+        return FileUtil.join(cacheDir, method.name() + ".col");
+    }
+
+    /**
+     * Returns the columnar store for a given prediction method.
+     *
+     * @param method the affinity prediction method.
+     *
+     * @return the columnar store for the specified method, or
+     * {@code null} if no columnar file has been written.
+     *
+     * @throws RuntimeException if the file exists but cannot be
+     * mapped.
+     */
+    public static synchronized AffinityColumnStore instance(AffinityMethod method) {
+        AffinityColumnStore instance = instances.get(method);
+
+        if (instance == null) {
+            instance = open(method);
+
+            if (instance != null)
+                instances.put(method, instance);
+        }
+
+        return instance;
+    }
+
+    private static AffinityColumnStore open(AffinityMethod method) {
+        File file = new File(fileName(method));
+
+        if (!file.exists())
+            return null;
+
+        try {
+            return new AffinityColumnStore(file, method);
+        }
+        catch (IOException ioex) {
+            throw JamException.runtime(ioex);
+        }
+    }
+
+    /**
+     * Discards the mapped store for a given prediction method (e.g.,
+     * after the columnar file has been rewritten) so that the next
+     * call to {@link #instance(AffinityMethod)} maps the new file.
+     *
+     * @param method the affinity prediction method.
+     */
+    public static synchronized void reset(AffinityMethod method) {
+        instances.remove(method);
+    }
+
+    /**
+     * Identifies alleles covered by this store.
+     *
+     * @param allele the allele of interest.
+     *
+     * @return {@code true} iff this store contains affinity columns
+     * for the specified allele.
+     */
+    public boolean contains(Allele allele) {
+        return alleleIndex.containsKey(allele);
+    }
+
+    /**
+     * Returns the number of distinct peptides in this store.
+     *
+     * @return the number of distinct peptides in this store.
+     */
+    public int countPeptides() {
+        return peptideCount;
+    }
+
+    /**
+     * Returns the columnar file mapped by this store.
+     *
+     * @return the columnar file mapped by this store.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the prediction method for all records in this store.
+     *
+     * @return the prediction method for all records in this store.
+     */
+    public AffinityMethod getMethod() {
+        return method;
+    }
+
+    /**
+     * Returns a read-only view of the alleles covered by this store.
+     *
+     * @return a read-only view of the alleles covered by this store
+     * (in column order).
+     */
+    public List<Allele> viewAlleles() {
+        return alleles;
+    }
+
+    /**
+     * Retrieves affinity records for a collection of alleles and
+     * peptides in a single pass over the peptide column.
+     *
+     * @param alleles the alleles of interest; alleles not covered by
+     * this store are ignored.
+     *
+     * @param peptides the peptides of interest.
+     *
+     * @return a map from each covered allele to a list of records in
+     * the order of the peptide list, with {@code null} entries for
+     * peptides that are absent from this store.
+     */
+    public Map<Allele, List<AffinityRecord>> lookup(Collection<Allele> alleles, List<Peptide> peptides) {
+        int[] rows = locate(peptides);
+        Map<Allele, List<AffinityRecord>> result = new LinkedHashMap<Allele, List<AffinityRecord>>();
+
+        for (Allele allele : alleles) {
+            Integer column = alleleIndex.get(allele);
+
+            if (column != null && !result.containsKey(allele))
+                result.put(allele, materialize(column, peptides, rows));
+        }
+
+        return result;
+    }
+
+    private List<AffinityRecord> materialize(int column, List<Peptide> peptides, int[] rows) {
+        DoubleBuffer affinityColumn = affinityColumns[column];
+        DoubleBuffer percentileColumn = percentileColumns[column];
+
+        List<AffinityRecord> records = new ArrayList<AffinityRecord>(peptides.size());
+
+        for (int index = 0; index < rows.length; ++index) {
+            int row = rows[index];
+
+            if (row < 0) {
+                records.add(null);
+                continue;
+            }
+
+            double affinity = affinityColumn.get(row);
+            double percentile = percentileColumn.get(row);
+
+            if (Double.isNaN(affinity))
+                records.add(null);
+            else
+                records.add(new AffinityRecord(peptides.get(index),
+                                               Affinity.valueOf(affinity),
+                                               Double.isNaN(percentile) ? null : Percentile.valueOf(percentile)));
+        }
+
+        return records;
+    }
+
+    private int[] locate(List<Peptide> peptides) {
+        //
+        // Visit the query keys in ascending order so that the search
+        // only ever moves forward through the mapped peptide column;
+        // dense queries then degrade gracefully into a sequential
+        // scan rather than repeated random probes...
+        //
+        int count = peptides.size();
+        long[] keys = new long[count];
+
+        for (int index = 0; index < count; ++index)
+            keys[index] = PeptideKey.encodeOrNone(peptides.get(index));
+
+        long[] sorted = keys.clone();
+        Arrays.sort(sorted);
+
+        int[] sortedRows = new int[count];
+        int lower = 0;
+
+        for (int index = 0; index < count; ++index) {
+            if (sorted[index] == PeptideKey.NONE) {
+                sortedRows[index] = -1;
+                continue;
+            }
+
+            int row = gallop(sorted[index], lower);
+            sortedRows[index] = row;
+
+            if (row >= 0)
+                lower = row;
+            else
+                lower = -(row + 1);
+        }
+
+        int[] rows = new int[count];
+
+        for (int index = 0; index < count; ++index) {
+            int position = Arrays.binarySearch(sorted, keys[index]);
+            rows[index] = (keys[index] == PeptideKey.NONE) ? -1 : Math.max(-1, sortedRows[position]);
+        }
+
+        return rows;
+    }
+
+    private int gallop(long key, int lower) {
+        //
+        // Exponential search forward from the lower bound followed by
+        // a binary search within the bracketing interval; returns the
+        // row index, or (-(insertion point) - 1) if the key is absent.
+        //
+        int step = 1;
+        int upper = lower;
+
+        while (upper < peptideCount && keyColumn.get(upper) < key) {
+            lower = upper + 1;
+            upper = lower + step;
+            step <<= 1;
+        }
+
+        upper = Math.min(upper, peptideCount - 1);
+
+        while (lower <= upper) {
+            int mid = (lower + upper) >>> 1;
+            long midKey = keyColumn.get(mid);
+
+            if (midKey < key)
+                lower = mid + 1;
+            else if (midKey > key)
+                upper = mid - 1;
+            else
+                return mid;
+        }
+
+        return -(lower + 1);
+    }
+}
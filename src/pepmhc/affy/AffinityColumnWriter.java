@@ -0,0 +1,229 @@
+
+package pepmhc.affy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import jam.lang.JamException;
+
+import jene.hla.Allele;
+
+/**
+ * Writes the memory-mapped columnar files read by the
+ * {@link AffinityColumnStore}.
+ *
+ * <p>The peptide column and the allele list are fixed when the writer
+ * is opened; the affinity and percentile columns are then appended one
+ * allele at a time (in the order of the allele list), so that only one
+ * allele needs to be held in memory.  The file is written under a
+ * temporary name and renamed into place when the writer is closed.
+ */
+public final class AffinityColumnWriter {
+    private final File file;
+    private final File tempFile;
+    private final List<Allele> alleles;
+    private final FileChannel channel;
+    private final int peptideCount;
+
+    private int written = 0;
+
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private AffinityColumnWriter(File file, List<Allele> alleles, long[] keys) throws IOException {
+        this.file = file;
+        this.tempFile = new File(file.getPath() + ".tmp");
+        this.alleles = new ArrayList<Allele>(alleles);
+        this.peptideCount = keys.length;
+        this.channel = FileChannel.open(tempFile.toPath(),
+                                        StandardOpenOption.CREATE,
+                                        StandardOpenOption.TRUNCATE_EXISTING,
+                                        StandardOpenOption.WRITE);
+        writeHeader();
+        writeKeys(keys);
+    }
+
+    /**
+     * Opens a writer for the columnar file of a given prediction
+     * method.
+     *
+     * @param method the affinity prediction method.
+     *
+     * @param alleles the alleles whose columns will be written (in
+     * column order).
+     *
+     * @param keys the packed peptide keys, sorted in strictly
+     * ascending order.
+     *
+     * @return a writer positioned at the first allele column.
+     *
+     * @throws RuntimeException if the file cannot be opened or the
+     * peptide keys are not sorted.
+     */
+    public static AffinityColumnWriter open(AffinityMethod method, List<Allele> alleles, long[] keys) {
+        return open(new File(AffinityColumnStore.fileName(method)), alleles, keys);
+    }
+
+    /**
+     * Opens a writer for a columnar file.
+     *
+     * @param file the file to write.
+     *
+     * @param alleles the alleles whose columns will be written (in
+     * column order).
+     *
+     * @param keys the packed peptide keys, sorted in strictly
+     * ascending order.
+     *
+     * @return a writer positioned at the first allele column.
+     *
+     * @throws RuntimeException if the file cannot be opened or the
+     * peptide keys are not sorted.
+     */
+    public static AffinityColumnWriter open(File file, List<Allele> alleles, long[] keys) {
+        for (int index = 1; index < keys.length; ++index)
+            if (keys[index] <= keys[index - 1])
+                throw new IllegalArgumentException("Peptide keys must be unique and sorted.");
+
+        try {
+            return new AffinityColumnWriter(file, alleles, keys);
+        }
+        catch (IOException ioex) {
+            throw JamException.runtime(ioex);
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        List<byte[]> names = new ArrayList<byte[]>(alleles.size());
+        int headerLength = AffinityColumnStore.FIXED_HEADER_LENGTH;
+
+        for (Allele allele : alleles) {
+            byte[] name = allele.longKey().getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            headerLength += 4 + name.length;
+        }
+
+        // Align the peptide column on an eight-byte boundary...
+        headerLength = (headerLength + 7) & ~7;
+
+        ByteBuffer header = ByteBuffer.allocate(headerLength);
+
+        header.putInt(AffinityColumnStore.MAGIC);
+        header.putInt(AffinityColumnStore.VERSION);
+        header.putInt(alleles.size());
+        header.putInt(headerLength);
+        header.putInt(peptideCount);
+
+        for (byte[] name : names) {
+            header.putInt(name.length);
+            header.put(name);
+        }
+
+        header.position(0);
+        writeFully(header);
+    }
+
+    private void writeKeys(long[] keys) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+
+        for (long key : keys) {
+            if (buffer.remaining() < 8)
+                flush(buffer);
+
+            buffer.putLong(key);
+        }
+
+        flush(buffer);
+    }
+
+    private void writeColumn(double[] column) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+
+        for (double value : column) {
+            if (buffer.remaining() < 8)
+                flush(buffer);
+
+            buffer.putDouble(value);
+        }
+
+        flush(buffer);
+    }
+
+    private void flush(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * Appends the affinity and percentile columns for the next allele.
+     *
+     * @param allele the allele described by the columns, which must
+     * be the next allele in the list passed to the writer.
+     *
+     * @param affinity the affinity column, aligned with the peptide
+     * keys ({@code NaN} for missing values).
+     *
+     * @param percentile the percentile column, aligned with the
+     * peptide keys ({@code NaN} for missing values).
+     *
+     * @throws RuntimeException if the allele is out of order, the
+     * columns have the wrong length, or any I/O errors occur.
+     */
+    public void write(Allele allele, double[] affinity, double[] percentile) {
+        if (written >= alleles.size() || !alleles.get(written).equals(allele))
+            throw JamException.runtime("Allele [%s] is out of column order.", allele);
+
+        if (affinity.length != peptideCount || percentile.length != peptideCount)
+            throw new IllegalArgumentException("Column length does not match the peptide count.");
+
+        try {
+            writeColumn(affinity);
+            writeColumn(percentile);
+            ++written;
+        }
+        catch (IOException ioex) {
+            throw JamException.runtime(ioex);
+        }
+    }
+
+    /**
+     * Closes the writer and moves the completed file into place.
+     *
+     * @param method the prediction method whose mapped store should
+     * be refreshed ({@code null} if the file is not a method store).
+     *
+     * @throws RuntimeException unless every allele column has been
+     * written.
+     */
+    public void close(AffinityMethod method) {
+        try {
+            channel.close();
+
+            if (written != alleles.size())
+                throw JamException.runtime("Only [%d] of [%d] allele columns were written.", written, alleles.size());
+
+            Files.move(tempFile.toPath(), file.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException ioex) {
+            throw JamException.runtime(ioex);
+        }
+
+        if (method != null)
+            AffinityColumnStore.reset(method);
+    }
+}
@@ -1,6 +1,14 @@
 
 package pepmhc.affy;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jene.hla.Allele;
+import jene.peptide.Peptide;
+
 import pepmhc.bind.BindPredictor;
 
 /**
@@ -15,4 +23,40 @@ public abstract class AffinityPredictor extends BindPredictor<AffinityRecord> {
      * @return the enumerated prediction method.
      */
     @Override public abstract AffinityMethod getMethod();
+
+    /**
+     * Identifies predictors that score several alleles more
+     * efficiently in one call than in separate calls for each allele
+     * (for example, by running one external process for all of them).
+     *
+     * @return {@code true} iff this predictor has an efficient
+     * multi-allele implementation.
+     */
+    public boolean isMultiAllele() {
+        return false;
+    }
+
+    /**
+     * Computes binding records for a collection of peptides presented
+     * to several HLA alleles.
+     *
+     * <p>This default implementation predicts each allele separately;
+     * multi-allele predictors override it.
+     *
+     * @param alleles the receiving alleles.
+     *
+     * @param peptides the presented peptides.
+     *
+     * @return a map from each allele to the binding records for the
+     * presented peptides (in the order returned by the collection
+     * iterator).
+     */
+    public Map<Allele, List<AffinityRecord>> predict(Collection<Allele> alleles, Collection<Peptide> peptides) {
+        Map<Allele, List<AffinityRecord>> records = new LinkedHashMap<Allele, List<AffinityRecord>>();
+
+        for (Allele allele : alleles)
+            records.put(allele, predict(allele, peptides));
+
+        return records;
+    }
 }
@@ -1,4 +1,3 @@
-
 package pepmhc.affy;
 
 import jam.math.Percentile;
@@ -10,9 +9,18 @@ import pepmhc.bind.BindRecord;
 /**
  * Encapsulates the result of a peptide-MHC affinity measurement or
  * prediction.
+ *
+ * <p>Matrix predictors compute the base-10 logarithm of the IC50
+ * concentration; records created by {@link #log10(Peptide, double,
+ * Percentile)} keep that value and convert it to nanomolar units only
+ * when a caller asks for the {@link Affinity} or binding strength.
  */
 public final class AffinityRecord extends BindRecord {
-    private final Affinity affinity;
+    private final double log10Affinity;
+
+    // Created on demand for log-space records (the race to create
+    // it is benign, because affinities are immutable)...
+    private Affinity affinity;
 
     /**
      * Creates a new affinity record with a missing percentile rank.
@@ -39,8 +47,54 @@ public final class AffinityRecord extends BindRecord {
      * same allele).
      */
     public AffinityRecord(Peptide peptide, Affinity affinity, Percentile percentile) {
+        this(peptide, affinity, Double.NaN, percentile);
+    }
+
+    private AffinityRecord(Peptide peptide, Affinity affinity, double log10Affinity, Percentile percentile) {
         super(peptide, percentile);
         this.affinity = affinity;
+        this.log10Affinity = log10Affinity;
+    }
+
+    /**
+     * Creates a new affinity record from a log-space affinity.
+     *
+     * @param peptide the MHC-bound peptide.
+     *
+     * @param log10Affinity the base-10 logarithm of the binding
+     * affinity (the IC50 concentration in nanomolar units).
+     *
+     * @param percentile the percentile rank of the binding affinity
+     * (relative to other peptides of the same length binding to the
+     * same allele).
+     *
+     * @return a new affinity record with the specified attributes.
+     */
+    public static AffinityRecord log10(Peptide peptide, double log10Affinity, Percentile percentile) {
+        return new AffinityRecord(peptide, null, log10Affinity, percentile);
+    }
+
+    /**
+     * Identifies records that were created from a log-space affinity.
+     *
+     * @return {@code true} iff this record holds its affinity in log
+     * space.
+     */
+    public boolean isLogSpace() {
+        return !Double.isNaN(log10Affinity);
+    }
+
+    /**
+     * Returns the base-10 logarithm of the binding affinity.
+     *
+     * @return the base-10 logarithm of the binding affinity (the IC50
+     * concentration in nanomolar units).
+     */
+    public double getLog10Affinity() {
+        if (isLogSpace())
+            return log10Affinity;
+        else
+            return Math.log10(affinity.doubleValue());
     }
 
     /**
@@ -51,6 +105,9 @@ public final class AffinityRecord extends BindRecord {
      * in nanomolar units.
      */
     @Override public Affinity getAffinity() {
+        if (affinity == null)
+            affinity = Affinity.valueOf(Math.pow(10.0, log10Affinity));
+
         return affinity;
     }
 
@@ -60,6 +117,6 @@ public final class AffinityRecord extends BindRecord {
      * @return the binding strength (the affinity).
      */
     @Override public double getStrength() {
-        return affinity.doubleValue();
+        return getAffinity().doubleValue();
     }
 }
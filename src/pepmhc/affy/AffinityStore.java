@@ -1,10 +1,9 @@
 
 package pepmhc.affy;
 
-import jam.util.PairKeyTable;
-
 import jene.hla.Allele;
 
+import pepmhc.bind.BindRegistry;
 import pepmhc.bind.BindStore;
 
 /**
@@ -12,7 +11,8 @@ import pepmhc.bind.BindStore;
  * peptide-MHC affinity records.
  */
 public final class AffinityStore extends BindStore<AffinityRecord> {
-    private static final PairKeyTable<AffinityMethod, Allele, AffinityStore> instances = PairKeyTable.hash();
+    private static final BindRegistry<AffinityMethod, AffinityStore> instances =
+        BindRegistry.create(AffinityStore::newInstance);
 
     private AffinityStore(AffinityTable table, AffinityPredictor predictor, Allele allele) {
         super(table, predictor, allele);
@@ -29,21 +29,12 @@ public final class AffinityStore extends BindStore<AffinityRecord> {
      * @return the affinity store for the specified allele and
      * prediction method.
      */
-    public static synchronized AffinityStore instance(AffinityMethod method, Allele allele) {
-        AffinityStore instance = instances.get(method, allele);
-
-        if (instance == null)
-            instance = newInstance(method, allele);
-
-        return instance;
+    public static AffinityStore instance(AffinityMethod method, Allele allele) {
+        return instances.instance(method, allele);
     }
 
     private static AffinityStore newInstance(AffinityMethod method, Allele allele) {
-        AffinityStore instance =
-            new AffinityStore(AffinityTable.create(method, allele), method.getPredictor(), allele);
-
-        instances.put(method, allele, instance);
-        return instance;
+        return new AffinityStore(AffinityTable.create(method, allele), method.getPredictor(), allele);
     }
 
     @Override public AffinityMethod getMethod() {
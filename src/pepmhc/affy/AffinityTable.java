@@ -19,17 +19,28 @@ import pepmhc.bind.BindTable;
 
 /**
  * Maintains a persistent database table of peptide-MHC affinity
- * records indexed by peptide.
+ * records indexed by packed peptide key.
  */
 public final class AffinityTable extends BindTable<AffinityRecord> {
     private AffinityTable(SQLDb db) {
         super(db);
     }
 
+    private AffinityTable(SQLDb db, String dbFile) {
+        super(db, dbFile);
+    }
+
     /**
-     * The name of the {@code affinity} table.
+     * The name of the {@code affinity_key} table.
      */
-    public static final String TABLE_NAME = "affinity";
+    public static final String TABLE_NAME = "affinity_key";
+
+    /**
+     * The name of the {@code affinity} table written by earlier versions
+     * (indexed by peptide string), which is imported into the {@code
+     * affinity_key} table when a dedicated database is opened.
+     */
+    public static final String LEGACY_TABLE_NAME = "affinity";
 
     /**
      * The name of the {@code affinity} column.
@@ -47,7 +58,7 @@ public final class AffinityTable extends BindTable<AffinityRecord> {
      * Meta-data for the table columns.
      */
     public static final List<SQLColumn> COLUMN_LIST =
-        List.of(PEPTIDE_COLUMN, AFFINITY_COLUMN, PERCENTILE_COLUMN);
+        List.of(PEPTIDE_KEY_COLUMN, AFFINITY_COLUMN, PERCENTILE_COLUMN);
 
     /**
      * Creates a new affinity table in an existing database.
@@ -76,7 +87,10 @@ public final class AffinityTable extends BindTable<AffinityRecord> {
         String dbFile = dbFile(method, allele);
         SQLDb  sqlDb  = SQLiteDb.instance(dbFile);
 
-        return new AffinityTable(sqlDb);
+        AffinityTable table = new AffinityTable(sqlDb, dbFile);
+        table.importLegacy();
+
+        return table;
     }
 
     /**
@@ -104,6 +118,14 @@ public final class AffinityTable extends BindTable<AffinityRecord> {
     }
 
     @Override public AffinityRecord getRow(ResultSet resultSet) throws SQLException {
+        Peptide peptide = getPeptide(resultSet, 1);
+        Affinity affinity = Affinity.valueOf(getDouble(resultSet, 2));
+        Percentile percentile = Percentile.valueOf(getDouble(resultSet, 3));
+
+        return new AffinityRecord(peptide, affinity, percentile);
+    }
+
+    @Override protected AffinityRecord getTextRow(ResultSet resultSet) throws SQLException {
         Peptide peptide = Peptide.instance(resultSet.getString(1));
         Affinity affinity = Affinity.valueOf(getDouble(resultSet, 2));
         Percentile percentile = Percentile.valueOf(getDouble(resultSet, 3));
@@ -111,6 +133,10 @@ public final class AffinityTable extends BindTable<AffinityRecord> {
         return new AffinityRecord(peptide, affinity, percentile);
     }
 
+    @Override protected String getLegacyTableName() {
+        return LEGACY_TABLE_NAME;
+    }
+
     @Override public String getTableName() {
         return TABLE_NAME;
     }
@@ -118,8 +144,8 @@ public final class AffinityTable extends BindTable<AffinityRecord> {
     @Override public void prepareColumn(PreparedStatement statement, int index,
                                         AffinityRecord record, String columnName) throws SQLException {
         switch (columnName) {
-        case PEPTIDE_NAME:
-            statement.setString(index, record.getPeptide().formatString());
+        case PEPTIDE_KEY_NAME:
+            statement.setLong(index, getKey(record));
             break;
 
         case AFFINITY_NAME:
@@ -10,22 +10,36 @@ import jam.math.Percentile;
 
 import jene.peptide.Peptide;
 
+import pepmhc.bind.BindFilter;
+
 /**
  * Defines a threshold for peptide-MHC binding in terms of absolute
  * affinity, percentile rank, or both.
  */
-public final class AffinityThreshold {
+public final class AffinityThreshold implements BindFilter {
     private Affinity affinityThreshold;
     private Percentile percentileThreshold;
 
+    // The affinity threshold in log space, so that log-space records
+    // are compared without converting them to nanomolar units...
+    private double log10AffinityThreshold;
+
     private static AffinityThreshold global = null;
 
     private AffinityThreshold(Affinity affinityThreshold, Percentile percentileThreshold) {
         this.affinityThreshold = affinityThreshold;
         this.percentileThreshold = percentileThreshold;
+        this.log10AffinityThreshold = resolveLog10(affinityThreshold);
         validate();
     }
 
+    private static double resolveLog10(Affinity affinityThreshold) {
+        if (affinityThreshold != null)
+            return Math.log10(affinityThreshold.doubleValue());
+        else
+            return Double.NaN;
+    }
+
     private void validate() {
         if (!isAffinityThresholdSet() && !isPercentileThresholdSet())
             throw new IllegalStateException("At least one threshold must be set.");
@@ -124,6 +138,23 @@ public final class AffinityThreshold {
         return result;
     }
 
+    /**
+     * Counts the number of peptides that bind to an MHC molecule by
+     * metrics of this threshold, using the primitive attributes held
+     * by an affinity cache (no record objects are created for cached
+     * peptides).
+     *
+     * @param cache the affinity cache for the MHC molecule.
+     *
+     * @param peptides the peptides to examine.
+     *
+     * @return the number of peptides from the input collection that
+     * are bound by the metrics of this threshold.
+     */
+    public int countBinders(AffinityCache cache, Collection<Peptide> peptides) {
+        return cache.count(peptides, this);
+    }
+
     /**
      * Finds the peptides that bind to an MHC molecule by metrics of
      * this threshold.
@@ -154,6 +185,9 @@ public final class AffinityThreshold {
      * this threshold.
      */
     public boolean isBound(AffinityRecord record) {
+        if (record.isLogSpace())
+            return isBoundLog10(record.getLog10Affinity(), record.hasPercentile() ? record.getPercentile().doubleValue() : Double.NaN);
+
         if (isAffinityThresholdSet()
             && record.getAffinity().LE(affinityThreshold))
             return true;
@@ -166,6 +200,60 @@ public final class AffinityThreshold {
         return false;
     }
 
+    /**
+     * Determines whether a peptide is bound to an MHC molecule by the
+     * metrics of this threshold.
+     *
+     * @param affinity the binding affinity expressed as an IC50
+     * concentration in nanomolar units.
+     *
+     * @param percentile the percentile rank of the binding affinity,
+     * or {@code Double.NaN} if the rank is unknown.
+     *
+     * @return {@code true} iff the peptide is bound by the metrics of
+     * this threshold.
+     */
+    public boolean isBound(double affinity, double percentile) {
+        if (isAffinityThresholdSet()
+            && affinity <= affinityThreshold.doubleValue())
+            return true;
+
+        if (isPercentileThresholdSet()
+            && percentile <= percentileThreshold.doubleValue())
+            return true;
+
+        return false;
+    }
+
+    /**
+     * Determines whether a peptide is bound to an MHC molecule by the
+     * metrics of this threshold, comparing the affinity in log space.
+     *
+     * @param log10Affinity the base-10 logarithm of the binding
+     * affinity (the IC50 concentration in nanomolar units).
+     *
+     * @param percentile the percentile rank of the binding affinity,
+     * or {@code Double.NaN} if the rank is unknown.
+     *
+     * @return {@code true} iff the peptide is bound by the metrics of
+     * this threshold.
+     */
+    public boolean isBoundLog10(double log10Affinity, double percentile) {
+        if (isAffinityThresholdSet()
+            && log10Affinity <= log10AffinityThreshold)
+            return true;
+
+        if (isPercentileThresholdSet()
+            && percentile <= percentileThreshold.doubleValue())
+            return true;
+
+        return false;
+    }
+
+    @Override public boolean accept(double strength, double percentile) {
+        return isBound(strength, percentile);
+    }
+
     /**
      * Returns the absolute affinity threshold.
      *
@@ -175,6 +263,16 @@ public final class AffinityThreshold {
         return affinityThreshold;
     }
 
+    /**
+     * Returns the base-10 logarithm of the absolute affinity threshold.
+     *
+     * @return the base-10 logarithm of the absolute affinity threshold
+     * ({@code Double.NaN} if the affinity threshold is not set).
+     */
+    public double getLog10AffinityThreshold() {
+        return log10AffinityThreshold;
+    }
+
     /**
      * Returns the percentile rank threshold.
      *
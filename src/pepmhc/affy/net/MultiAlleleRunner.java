@@ -0,0 +1,168 @@
+
+package pepmhc.affy.net;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+import jam.app.JamLogger;
+import jam.lang.JamException;
+
+import jene.hla.Allele;
+import jene.peptide.Peptide;
+
+import pepmhc.affy.AffinityRecord;
+import pepmhc.metrics.BindMetrics;
+import pepmhc.proc.ProcessInput;
+import pepmhc.proc.Subprocess;
+
+/**
+ * Base class wrapper around a command-line program that accepts a
+ * list of alleles and scores every allele in one process, loading the
+ * program only once; the output is demultiplexed by its allele column.
+ */
+public abstract class MultiAlleleRunner extends NetRunner {
+    private final List<Allele> alleles;
+
+    /**
+     * Creates a new runner for an allele and target peptides.
+     *
+     * @param allele the binding MHC allele.
+     *
+     * @param peptides the peptide targets.
+     */
+    protected MultiAlleleRunner(Allele allele, Collection<Peptide> peptides) {
+        this(List.of(allele), peptides);
+    }
+
+    /**
+     * Creates a new runner for several alleles and target peptides.
+     *
+     * @param alleles the binding MHC alleles.
+     *
+     * @param peptides the peptide targets.
+     */
+    protected MultiAlleleRunner(List<Allele> alleles, Collection<Peptide> peptides) {
+        super(alleles.get(0), peptides);
+        this.alleles = alleles;
+    }
+
+    /**
+     * Predicts affinities for a peptide collection and several alleles
+     * by running one or more concurrent command-line processes, each
+     * of which scores every allele.
+     *
+     * @param alleles the binding MHC alleles.
+     *
+     * @param peptides the peptide targets.
+     *
+     * @param factory a function that creates the runner for one chunk
+     * of peptides.
+     *
+     * @return a map from each allele to the affinity records for the
+     * peptides (in the order returned by the collection iterator).
+     */
+    protected static Map<Allele, List<AffinityRecord>> execute(List<Allele> alleles,
+                                                               Collection<Peptide> peptides,
+                                                               BiFunction<List<Allele>, Collection<Peptide>, MultiAlleleRunner> factory) {
+        List<List<Peptide>> chunks = shard(peptides);
+
+        if (chunks.size() <= 1)
+            return factory.apply(alleles, peptides).runAlleles();
+
+        List<Future<Map<Allele, List<AffinityRecord>>>> futures =
+            new ArrayList<Future<Map<Allele, List<AffinityRecord>>>>(chunks.size());
+
+        for (List<Peptide> chunk : chunks)
+            futures.add(executor().submit(() -> factory.apply(alleles, chunk).runAlleles()));
+
+        Map<Allele, List<AffinityRecord>> records = newRecordMap(alleles, peptides.size());
+
+        awaitEach(futures, chunkRecords -> {
+                for (Allele allele : alleles)
+                    records.get(allele).addAll(chunkRecords.get(allele));
+            });
+
+        return records;
+    }
+
+    private static Map<Allele, List<AffinityRecord>> newRecordMap(List<Allele> alleles, int size) {
+        Map<Allele, List<AffinityRecord>> records = new LinkedHashMap<Allele, List<AffinityRecord>>();
+
+        for (Allele allele : alleles)
+            records.put(allele, new ArrayList<AffinityRecord>(size));
+
+        return records;
+    }
+
+    /**
+     * Generates the command-line request that scores several alleles
+     * in one process.
+     *
+     * @param alleles the binding MHC alleles.
+     *
+     * @param peptideFile the input file containing the target peptides.
+     *
+     * @return the exact and complete command-line request to pass
+     * to the underlying {@code ProcessBuilder}.
+     */
+    protected abstract List<String> formatCommand(List<Allele> alleles, File peptideFile);
+
+    /**
+     * Parses the output written by the command-line program for
+     * several alleles and passes each affinity record to a consumer,
+     * together with the allele named on its output line.
+     *
+     * @param reader a reader for the command-line output stream.
+     *
+     * @param sink the consumer of the alleles and affinity records.
+     */
+    protected abstract void parseOutput(BufferedReader reader, BiConsumer<Allele, AffinityRecord> sink);
+
+    /**
+     * Executes one command-line process that scores every allele
+     * assigned to this runner.
+     *
+     * @return a map from each allele to its affinity records (in the
+     * order of the peptide collection).
+     */
+    protected Map<Allele, List<AffinityRecord>> runAlleles() {
+        Collection<Peptide> peptides = getPeptides();
+        JamLogger.info("Predicting binding affinity for [%d] peptides to alleles %s...", peptides.size(), alleles);
+
+        Map<Allele, List<AffinityRecord>> records = newRecordMap(alleles, peptides.size());
+
+        long start = BindMetrics.start();
+        ProcessInput input = ProcessInput.open("NetRunner", peptides, Peptide::formatString);
+
+        try {
+            Subprocess.run(getMethod().name(), formatCommand(alleles, input.getFile()), input,
+                           reader -> parseOutput(reader, (allele, record) -> {
+                                   List<AffinityRecord> alleleRecords = records.get(allele);
+
+                                   if (alleleRecords == null)
+                                       throw JamException.runtime("Unexpected allele [%s] in prediction output.", allele);
+
+                                   alleleRecords.add(record);
+                               }));
+        }
+        finally {
+            // The process time is charged to every allele it served...
+            for (Allele allele : alleles)
+                BindMetrics.instance(allele + ":" + getMethod()).process(start);
+        }
+
+        for (Allele allele : alleles)
+            if (records.get(allele).size() != peptides.size())
+                throw JamException.runtime("Affinity prediction failed for allele [%s]!", allele);
+
+        return records;
+    }
+}
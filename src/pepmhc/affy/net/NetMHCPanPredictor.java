@@ -2,8 +2,12 @@
 package pepmhc.affy.net;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 import jam.app.JamProperties;
 
@@ -62,7 +66,30 @@ public final class NetMHCPanPredictor extends AffinityPredictor {
         return resolveExecutableFile().canExecute();
     }
 
+    @Override public boolean isExternal() {
+        return true;
+    }
+
+    @Override public boolean isMultiAllele() {
+        return true;
+    }
+
+    @Override public Map<Allele, List<AffinityRecord>> predict(Collection<Allele> alleles, Collection<Peptide> peptides) {
+        if (alleles.isEmpty())
+            return Map.of();
+
+        return NetMHCPanRunner.run(new ArrayList<Allele>(new LinkedHashSet<Allele>(alleles)), peptides);
+    }
+
     @Override public List<AffinityRecord> predict(Allele allele, Collection<Peptide> peptides) {
         return NetMHCPanRunner.run(allele, peptides);
     }
+
+    @Override public void predict(Allele allele, Collection<Peptide> peptides, Consumer<? super AffinityRecord> consumer) {
+        NetMHCPanRunner.run(allele, peptides, consumer::accept);
+    }
+
+    @Override public void scan(Allele allele, Collection<Peptide> proteins, int[] lengths, Consumer<? super AffinityRecord> consumer) {
+        NetMHCPanScanner.scan(List.of(allele), proteins, lengths, (scanned, record) -> consumer.accept(record));
+    }
 }
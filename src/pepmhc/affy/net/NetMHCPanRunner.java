@@ -5,33 +5,78 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import jene.hla.Allele;
 import jene.peptide.Peptide;
 
+import pepmhc.affy.AffinityMethod;
 import pepmhc.affy.AffinityRecord;
 
 /**
  * Executes {@code netMHCpan} command-line processes.
  */
-public final class NetMHCPanRunner extends NetRunner {
+public final class NetMHCPanRunner extends MultiAlleleRunner {
     private NetMHCPanRunner(Allele allele, Collection<Peptide> peptides) {
         super(allele, peptides);
     }
 
+    private NetMHCPanRunner(List<Allele> alleles, Collection<Peptide> peptides) {
+        super(alleles, peptides);
+    }
+
     /**
-     * Executes a {@code netMHCpan} command-line process.
+     * Executes one or more concurrent {@code netMHCpan} command-line
+     * processes (see {@link NetRunner#processCount()}).
      *
      * @param allele the string code for the binding MHC allele.
      *
      * @param peptides the peptide targets.
      *
      * @return the affinity records generated by the command-line
-     * prediction process.
+     * prediction processes (in input order).
      */
     public static List<AffinityRecord> run(Allele allele, Collection<Peptide> peptides) {
-        NetMHCPanRunner runner = new NetMHCPanRunner(allele, peptides);
-        return runner.run();
+        return execute(allele, peptides, NetMHCPanRunner::new);
+    }
+
+    /**
+     * Executes one or more concurrent {@code netMHCpan} command-line
+     * processes and passes each affinity record to a consumer in
+     * input order.
+     *
+     * @param allele the string code for the binding MHC allele.
+     *
+     * @param peptides the peptide targets.
+     *
+     * @param consumer the consumer of the affinity records.
+     */
+    public static void run(Allele allele, Collection<Peptide> peptides, Consumer<AffinityRecord> consumer) {
+        execute(allele, peptides, NetMHCPanRunner::new, consumer);
+    }
+
+    /**
+     * Executes one or more concurrent {@code netMHCpan} command-line
+     * processes, each of which scores every allele in a list (so that
+     * the program and its network weights are loaded only once per
+     * chunk of peptides, not once per allele).
+     *
+     * @param alleles the binding MHC alleles.
+     *
+     * @param peptides the peptide targets.
+     *
+     * @return a map from each allele to the affinity records generated
+     * by the command-line prediction processes (in input order).
+     */
+    public static Map<Allele, List<AffinityRecord>> run(List<Allele> alleles, Collection<Peptide> peptides) {
+        return execute(alleles, peptides, NetMHCPanRunner::new);
+    }
+
+    @Override protected AffinityMethod getMethod() {
+        return AffinityMethod.NET_MHC_PAN;
     }
 
     @Override protected List<String>formatCommand(Allele allele, File peptideFile) {
@@ -40,11 +85,21 @@ public final class NetMHCPanRunner extends NetRunner {
                        "-BA", "-p", peptideFile.getAbsolutePath());
     }
 
-    private static String formatAllele(Allele allele) {
+    @Override protected List<String> formatCommand(List<Allele> alleles, File peptideFile) {
+        return List.of(NetMHCPanPredictor.resolveExecutableName(),
+                       "-a", alleles.stream().map(NetMHCPanRunner::formatAllele).collect(Collectors.joining(",")),
+                       "-BA", "-p", peptideFile.getAbsolutePath());
+    }
+
+    static String formatAllele(Allele allele) {
         return allele.longKey().replace("*", "");
     }
 
-    @Override protected List<AffinityRecord> parseOutput(BufferedReader reader) {
-        return NetMHCParser.parse(reader);
+    @Override protected void parseOutput(BufferedReader reader, Consumer<AffinityRecord> consumer) {
+        NetMHCParser.stream(reader, consumer);
+    }
+
+    @Override protected void parseOutput(BufferedReader reader, BiConsumer<Allele, AffinityRecord> sink) {
+        NetMHCParser.parse(reader, sink);
     }
 }
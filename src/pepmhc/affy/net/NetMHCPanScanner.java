@@ -0,0 +1,183 @@
+
+package pepmhc.affy.net;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+import jam.app.JamLogger;
+import jam.lang.JamException;
+
+import jene.hla.Allele;
+import jene.peptide.Peptide;
+
+import pepmhc.affy.AffinityMethod;
+import pepmhc.affy.AffinityRecord;
+import pepmhc.bind.BindPredictor;
+import pepmhc.metrics.BindMetrics;
+import pepmhc.proc.ProcessInput;
+import pepmhc.proc.Subprocess;
+
+/**
+ * Scans protein sequences with {@code netMHCpan}.
+ *
+ * <p>The proteins are written in FASTA format and the program cuts
+ * them into every window of the requested lengths itself (the {@code
+ * -l} option), so the fragments are never enumerated in Java and
+ * written to the process input one line at a time.  Large protein
+ * collections are split into chunks that are scanned by concurrent
+ * processes in the pool shared with {@link NetRunner}.
+ */
+public final class NetMHCPanScanner {
+    private final List<Allele> alleles;
+    private final List<Peptide> proteins;
+    private final int[] lengths;
+    private final BiConsumer<Allele, AffinityRecord> sink;
+
+    private NetMHCPanScanner(List<Allele> alleles,
+                             List<Peptide> proteins,
+                             int[] lengths,
+                             BiConsumer<Allele, AffinityRecord> sink) {
+        this.alleles = alleles;
+        this.proteins = proteins;
+        this.lengths = lengths;
+        this.sink = sink;
+    }
+
+    /**
+     * Predicts the binding affinity of every window of a collection
+     * of proteins.
+     *
+     * @param alleles the binding MHC alleles.
+     *
+     * @param proteins the protein sequences to scan.
+     *
+     * @param lengths the window lengths to scan.
+     *
+     * @param sink the consumer of the allele and affinity record for
+     * each native window (called one record at a time, in no particular
+     * order; a window that occurs more than once is passed more than
+     * once).
+     *
+     * @throws RuntimeException unless every window is scored for every
+     * allele.
+     */
+    public static void scan(List<Allele> alleles,
+                            Collection<Peptide> proteins,
+                            int[] lengths,
+                            BiConsumer<Allele, AffinityRecord> sink) {
+        if (alleles.isEmpty() || proteins.isEmpty())
+            return;
+
+        List<List<Peptide>> chunks = shard(proteins, lengths);
+
+        if (chunks.size() == 1) {
+            new NetMHCPanScanner(alleles, chunks.get(0), lengths, sink).run();
+            return;
+        }
+
+        // Chunks are parsed concurrently, but the sink sees one record
+        // at a time...
+        Object lock = new Object();
+        BiConsumer<Allele, AffinityRecord> serial = (allele, record) -> {
+            synchronized (lock) {
+                sink.accept(allele, record);
+            }
+        };
+
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(chunks.size());
+
+        for (List<Peptide> chunk : chunks)
+            futures.add(NetRunner.executor().submit(() -> {
+                        new NetMHCPanScanner(alleles, chunk, lengths, serial).run();
+                        return Boolean.TRUE;
+                    }));
+
+        NetRunner.awaitEach(futures, done -> {});
+    }
+
+    private static List<List<Peptide>> shard(Collection<Peptide> proteins, int[] lengths) {
+        long windows = BindPredictor.countWindows(proteins, lengths);
+        long chunkLimit = Math.min(windows / NetRunner.minChunkSize(), proteins.size());
+        int chunkCount = (int) Math.min(NetRunner.processCount(), chunkLimit);
+
+        List<Peptide> list = new ArrayList<Peptide>(proteins);
+
+        if (chunkCount <= 1)
+            return List.of(list);
+
+        int total = list.size();
+        List<List<Peptide>> chunks = new ArrayList<List<Peptide>>(chunkCount);
+
+        for (int chunk = 0; chunk < chunkCount; ++chunk)
+            chunks.add(list.subList((int) ((long) chunk * total / chunkCount),
+                                    (int) ((long) (chunk + 1) * total / chunkCount)));
+
+        return chunks;
+    }
+
+    private void run() {
+        JamLogger.info("Scanning [%d] proteins for binding to alleles %s...", proteins.size(), alleles);
+
+        long expected = BindPredictor.countWindows(proteins, lengths);
+        Map<Allele, long[]> counts = new LinkedHashMap<Allele, long[]>();
+
+        for (Allele allele : alleles)
+            counts.put(allele, new long[1]);
+
+        long start = BindMetrics.start();
+        ProcessInput input = ProcessInput.fasta("NetMHCPanScanner", proteins);
+
+        try {
+            Subprocess.run(AffinityMethod.NET_MHC_PAN.name(), formatCommand(input.getFile()), input,
+                           reader -> NetMHCParser.parse(reader, (allele, record) -> {
+                                   long[] count = counts.get(allele);
+
+                                   if (count == null)
+                                       throw JamException.runtime("Unexpected allele [%s] in scan output.", allele);
+
+                                   ++count[0];
+
+                                   // Windows that span non-native residues
+                                   // are scored but not reported...
+                                   if (record.getPeptide().isNative())
+                                       sink.accept(allele, record);
+                               }));
+        }
+        finally {
+            // The process time is charged to every allele it served...
+            for (Allele allele : alleles)
+                BindMetrics.instance(allele + ":" + AffinityMethod.NET_MHC_PAN).process(start);
+        }
+
+        for (Allele allele : alleles)
+            if (counts.get(allele)[0] != expected)
+                throw JamException.runtime("Protein scan failed for allele [%s]!", allele);
+    }
+
+    private List<String> formatCommand(File fastaFile) {
+        return List.of(NetMHCPanPredictor.resolveExecutableName(),
+                       "-a", alleles.stream().map(NetMHCPanRunner::formatAllele).collect(Collectors.joining(",")),
+                       "-BA", "-l", formatLengths(lengths),
+                       "-f", fastaFile.getAbsolutePath());
+    }
+
+    private static String formatLengths(int[] lengths) {
+        StringBuilder builder = new StringBuilder();
+
+        for (int length : lengths) {
+            if (builder.length() > 0)
+                builder.append(",");
+
+            builder.append(length);
+        }
+
+        return builder.toString();
+    }
+}
@@ -4,9 +4,13 @@ package pepmhc.affy.net;
 import java.io.BufferedReader;
 import java.io.File;
 import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import jam.io.IOUtil;
 
+import jene.hla.Allele;
+
 import pepmhc.affy.AffinityRecord;
 
 /**
@@ -58,6 +62,37 @@ public final class NetMHCParser extends NetParser {
         return parser.parse();
     }
 
+    /**
+     * Parses an output stream written by {@code netMHC} or {@code
+     * netMHCpan} and passes each record to a consumer as it is read.
+     *
+     * @param reader a reader attached to the output stream.
+     *
+     * @param sink the consumer of the allele and affinity record
+     * parsed from each data line.
+     *
+     * @throws RuntimeException if any I/O errors occur.
+     */
+    public static void parse(BufferedReader reader, BiConsumer<Allele, AffinityRecord> sink) {
+        NetParser parser = new NetMHCParser(reader);
+        parser.parse(sink);
+    }
+
+    /**
+     * Parses an output stream written by {@code netMHC} or {@code
+     * netMHCpan} and passes each record to a consumer as it is read.
+     *
+     * @param reader a reader attached to the output stream.
+     *
+     * @param consumer the consumer of the affinity records.
+     *
+     * @throws RuntimeException if any I/O errors occur.
+     */
+    public static void stream(BufferedReader reader, Consumer<AffinityRecord> consumer) {
+        NetParser parser = new NetMHCParser(reader);
+        parser.stream(consumer);
+    }
+
     @Override public int getPeptideFieldIndex() {
         return 2;
     }
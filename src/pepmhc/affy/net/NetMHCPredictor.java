@@ -4,6 +4,7 @@ package pepmhc.affy.net;
 import java.io.File;
 import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
 
 import jam.app.JamProperties;
 
@@ -62,7 +63,15 @@ public final class NetMHCPredictor extends AffinityPredictor {
         return resolveExecutableFile().canExecute();
     }
 
+    @Override public boolean isExternal() {
+        return true;
+    }
+
     @Override public List<AffinityRecord> predict(Allele allele, Collection<Peptide> peptides) {
         return NetMHCRunner.run(allele, peptides);
     }
+
+    @Override public void predict(Allele allele, Collection<Peptide> peptides, Consumer<? super AffinityRecord> consumer) {
+        NetMHCRunner.run(allele, peptides, consumer::accept);
+    }
 }
@@ -5,10 +5,12 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
 
 import jene.hla.Allele;
 import jene.peptide.Peptide;
 
+import pepmhc.affy.AffinityMethod;
 import pepmhc.affy.AffinityRecord;
 
 /**
@@ -20,18 +22,37 @@ public final class NetMHCRunner extends NetRunner {
     }
 
     /**
-     * Executes a {@code netMHC} command-line process.
+     * Executes one or more concurrent {@code netMHC} command-line
+     * processes (see {@link NetRunner#processCount()}).
      *
      * @param allele the string code for the binding MHC allele.
      *
      * @param peptides the peptide targets.
      *
      * @return the affinity records generated by the command-line
-     * prediction process.
+     * prediction processes (in input order).
      */
     public static List<AffinityRecord> run(Allele allele, Collection<Peptide> peptides) {
-        NetMHCRunner runner = new NetMHCRunner(allele, peptides);
-        return runner.run();
+        return execute(allele, peptides, NetMHCRunner::new);
+    }
+
+    /**
+     * Executes one or more concurrent {@code netMHC} command-line
+     * processes and passes each affinity record to a consumer in
+     * input order.
+     *
+     * @param allele the string code for the binding MHC allele.
+     *
+     * @param peptides the peptide targets.
+     *
+     * @param consumer the consumer of the affinity records.
+     */
+    public static void run(Allele allele, Collection<Peptide> peptides, Consumer<AffinityRecord> consumer) {
+        execute(allele, peptides, NetMHCRunner::new, consumer);
+    }
+
+    @Override protected AffinityMethod getMethod() {
+        return AffinityMethod.NET_MHC;
     }
 
     @Override protected List<String> formatCommand(Allele allele, File peptideFile) {
@@ -44,7 +65,7 @@ public final class NetMHCRunner extends NetRunner {
         return allele.longKey().replace("*", "").replace(":", "");
     }
 
-    @Override protected List<AffinityRecord> parseOutput(BufferedReader reader) {
-        return NetMHCParser.parse(reader);
+    @Override protected void parseOutput(BufferedReader reader, Consumer<AffinityRecord> consumer) {
+        NetMHCParser.stream(reader, consumer);
     }
 }
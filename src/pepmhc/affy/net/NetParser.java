@@ -2,20 +2,19 @@
 package pepmhc.affy.net;
 
 import java.io.BufferedReader;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
-import jam.io.IOUtil;
-import jam.lang.JamException;
 import jam.math.Percentile;
-import jam.util.RegexUtil;
 
+import jene.hla.Allele;
 import jene.peptide.Peptide;
 
 import pepmhc.affy.Affinity;
 import pepmhc.affy.AffinityRecord;
+import pepmhc.proc.NetOutputReader;
 
 /**
  * Parses output written by the {@code netMHC}, {@code netMHCpan}, and
@@ -23,11 +22,6 @@ import pepmhc.affy.AffinityRecord;
  */
 public abstract class NetParser {
     private final BufferedReader reader;
-    private final List<AffinityRecord> records = new ArrayList<AffinityRecord>();
-
-    private static final String DASHED_LINE_MATCH = "----------";
-
-    private static final Pattern DATA_LINE_DELIM = RegexUtil.MULTI_WHITE_SPACE;
 
     /**
      * Wraps a parser around an open stream reader.
@@ -40,6 +34,17 @@ public abstract class NetParser {
         this.reader = reader;
     }
 
+    /**
+     * Returns the zero-offset index of the field containing the
+     * allele name.
+     *
+     * @return the zero-offset index of the field containing the
+     * allele name.
+     */
+    public int getAlleleFieldIndex() {
+        return 1;
+    }
+
     /**
      * Returns the zero-offset index of the field containing the
      * peptide structure.
@@ -75,66 +80,54 @@ public abstract class NetParser {
      * @throws RuntimeException if any I/O errors occur.
      */
     public List<AffinityRecord> parse() {
-        try {
-            skipHeader();
-            parseData();
-        }
-        catch (IOException ioex) {
-            throw JamException.runtime(ioex);
-        }
-        finally {
-            IOUtil.close(reader);
-        }
-
+        List<AffinityRecord> records = new ArrayList<AffinityRecord>();
+        parse((allele, record) -> records.add(record), false);
         return records;
     }
 
-    private void skipHeader() throws IOException {
-        //
-        // The header contains two dashed lines; the data begins
-        // immediately after the second dashed line...
-        //
-        readToDashedLine();
-        readToDashedLine();
+    /**
+     * Parses the file opened by the constructor and passes each record
+     * to a consumer as soon as it is read (without collecting the
+     * records in memory).  Every data block is parsed, so the output
+     * of a multi-allele run is demultiplexed by the allele column.
+     *
+     * @param sink the consumer of the allele named on each data line
+     * and the affinity record parsed from that line.
+     *
+     * @throws RuntimeException if any I/O errors occur.
+     */
+    public void parse(BiConsumer<Allele, AffinityRecord> sink) {
+        parse(sink, true);
     }
 
-    private void readToDashedLine() throws IOException {
-        while (true) {
-            String line = reader.readLine();
-
-            if (line == null || isDashedLine(line))
-                return;
-        }
+    /**
+     * Parses the file opened by the constructor and passes each record
+     * to a consumer as soon as it is read (without parsing the allele
+     * names).
+     *
+     * @param consumer the consumer of the affinity records.
+     *
+     * @throws RuntimeException if any I/O errors occur.
+     */
+    public void stream(Consumer<AffinityRecord> consumer) {
+        parse((allele, record) -> consumer.accept(record), false);
     }
 
-    private static boolean isDashedLine(String line) {
-        return line != null && line.startsWith(DASHED_LINE_MATCH);
-    }
+    private void parse(BiConsumer<Allele, AffinityRecord> sink, boolean allBlocks) {
+        NetOutputReader output =
+            NetOutputReader.create(reader, getAlleleFieldIndex(), getPercentileFieldIndex() + 1);
 
-    private void parseData() throws IOException {
-        //
-        // The data section ends with a dashed line...
-        //
-        while (true) {
-            String line = reader.readLine();
-
-            if (line == null || isDashedLine(line))
-                return;
-            else
-                parseLine(line);
-        }
+        if (allBlocks)
+            output.readBlocks(fields -> sink.accept(output.parseAllele(fields), parseRecord(fields)));
+        else
+            output.readBlock(fields -> sink.accept(null, parseRecord(fields)));
     }
 
-    private void parseLine(String line) {
-        String[] fields = DATA_LINE_DELIM.split(line.trim());
-
-        if (fields.length <= getPercentileFieldIndex())
-            throw JamException.runtime("Invalid data line [%s].", line);
-
+    private AffinityRecord parseRecord(String[] fields) {
         Peptide peptide = Peptide.instance(fields[getPeptideFieldIndex()]);
         Affinity affinity = Affinity.parse(fields[getAffinityFieldIndex()]);
         Percentile percentile = Percentile.parse(fields[getPercentileFieldIndex()]);
 
-        records.add(new AffinityRecord(peptide, affinity, percentile));
+        return new AffinityRecord(peptide, affinity, percentile);
     }
 }
@@ -3,30 +3,73 @@ package pepmhc.affy.net;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.IOException;
-import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 
 import jam.app.JamLogger;
-import jam.io.IOUtil;
+import jam.app.JamProperties;
 import jam.lang.JamException;
 
 import jene.hla.Allele;
 import jene.peptide.Peptide;
 
+import pepmhc.affy.AffinityMethod;
 import pepmhc.affy.AffinityRecord;
+import pepmhc.metrics.BindMetrics;
+import pepmhc.proc.ExecPolicy;
+import pepmhc.proc.ProcessInput;
+import pepmhc.proc.Subprocess;
 
 /**
  * Base class wrapper around a {@code netMHC} or {@code netMHCpan}
  * command-line process.
+ *
+ * <p>Large peptide collections are split into chunks that are run by
+ * concurrent processes (at most {@link #processCount()} at a time,
+ * across all callers); the records from each chunk are parsed
+ * independently and reassembled in input order.
+ *
+ * <p>A failed process is not retried here: retries, timeouts and the
+ * isolation of failing peptides are applied once, by the caller,
+ * through the global {@link ExecPolicy}.
+ *
+ * <p>Programs that accept a list of alleles extend {@link
+ * MultiAlleleRunner}, which scores several alleles in one process.
  */
 public abstract class NetRunner {
     private final Allele allele;
     private final Collection<Peptide> peptides;
 
-    private File peptideFile;
-    private List<AffinityRecord> records;
+    private int recordCount;
+
+    private static ExecutorService executor = null;
+
+    /**
+     * Name of the system property that specifies the maximum number
+     * of concurrent prediction processes (the number of available
+     * processors by default).
+     */
+    public static final String PROCESS_COUNT_PROPERTY = "pepmhc.netProcessCount";
+
+    /**
+     * Name of the system property that specifies the smallest chunk
+     * of peptides assigned to one prediction process.
+     */
+    public static final String MIN_CHUNK_SIZE_PROPERTY = "pepmhc.netMinChunkSize";
+
+    /**
+     * Default smallest chunk of peptides assigned to one prediction
+     * process (small enough to use every process for a moderate
+     * batch, large enough to amortize the start-up cost).
+     */
+    public static final int MIN_CHUNK_SIZE_DEFAULT = 1000;
 
     /**
      * Creates a new runner for an allele and target peptides.
@@ -40,6 +83,166 @@ public abstract class NetRunner {
         this.peptides = peptides;
     }
 
+    /**
+     * Returns the maximum number of concurrent prediction processes.
+     *
+     * @return the maximum number of concurrent prediction processes.
+     */
+    public static int processCount() {
+        if (JamProperties.isSet(PROCESS_COUNT_PROPERTY))
+            return JamProperties.getRequiredInt(PROCESS_COUNT_PROPERTY);
+        else
+            return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Returns the smallest chunk of peptides assigned to one
+     * prediction process.
+     *
+     * @return the smallest chunk of peptides assigned to one
+     * prediction process.
+     */
+    public static int minChunkSize() {
+        if (JamProperties.isSet(MIN_CHUNK_SIZE_PROPERTY))
+            return JamProperties.getRequiredInt(MIN_CHUNK_SIZE_PROPERTY);
+        else
+            return MIN_CHUNK_SIZE_DEFAULT;
+    }
+
+    static synchronized ExecutorService executor() {
+        if (executor == null)
+            executor = Executors.newFixedThreadPool(processCount(), runnable -> {
+                    Thread thread = new Thread(runnable, "NetRunner");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        return executor;
+    }
+
+    /**
+     * Predicts affinities for a peptide collection by running one or
+     * more concurrent command-line processes.
+     *
+     * @param allele the binding MHC allele.
+     *
+     * @param peptides the peptide targets.
+     *
+     * @param factory a function that creates the runner for one chunk
+     * of peptides.
+     *
+     * @return the affinity records for the peptides (in the order
+     * returned by the collection iterator).
+     */
+    protected static List<AffinityRecord> execute(Allele allele,
+                                                  Collection<Peptide> peptides,
+                                                  BiFunction<Allele, Collection<Peptide>, NetRunner> factory) {
+        List<List<Peptide>> chunks = shard(peptides);
+
+        if (chunks.size() <= 1)
+            return factory.apply(allele, peptides).run();
+
+        List<AffinityRecord> records = new ArrayList<AffinityRecord>(peptides.size());
+        awaitEach(submit(allele, chunks, factory), records::addAll);
+
+        return records;
+    }
+
+    /**
+     * Predicts affinities for a peptide collection by running one or
+     * more concurrent command-line processes and passes the records
+     * to a consumer (one at a time, in input order).
+     *
+     * @param allele the binding MHC allele.
+     *
+     * @param peptides the peptide targets.
+     *
+     * @param factory a function that creates the runner for one chunk
+     * of peptides.
+     *
+     * @param consumer the consumer of the affinity records.
+     */
+    protected static void execute(Allele allele,
+                                  Collection<Peptide> peptides,
+                                  BiFunction<Allele, Collection<Peptide>, NetRunner> factory,
+                                  Consumer<AffinityRecord> consumer) {
+        List<List<Peptide>> chunks = shard(peptides);
+
+        if (chunks.size() <= 1) {
+            factory.apply(allele, peptides).run(consumer);
+            return;
+        }
+
+        awaitEach(submit(allele, chunks, factory), records -> records.forEach(consumer));
+    }
+
+    private static List<Future<List<AffinityRecord>>> submit(Allele allele,
+                                                             List<List<Peptide>> chunks,
+                                                             BiFunction<Allele, Collection<Peptide>, NetRunner> factory) {
+        List<Future<List<AffinityRecord>>> futures =
+            new ArrayList<Future<List<AffinityRecord>>>(chunks.size());
+
+        for (List<Peptide> chunk : chunks)
+            futures.add(executor().submit(() -> factory.apply(allele, chunk).run()));
+
+        return futures;
+    }
+
+    static <T> void awaitEach(List<Future<T>> futures, Consumer<T> action) {
+        try {
+            for (Future<T> future : futures)
+                action.accept(future.get());
+        }
+        catch (InterruptedException ex) {
+            cancel(futures);
+            Thread.currentThread().interrupt();
+            throw JamException.runtime(ex);
+        }
+        catch (ExecutionException ex) {
+            cancel(futures);
+
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            else
+                throw JamException.runtime(ex);
+        }
+    }
+
+    static List<List<Peptide>> shard(Collection<Peptide> peptides) {
+        int total = peptides.size();
+        int chunkCount = Math.min(processCount(), total / minChunkSize());
+
+        if (chunkCount <= 1)
+            return List.of(new ArrayList<Peptide>(peptides));
+
+        List<Peptide> list = new ArrayList<Peptide>(peptides);
+        List<List<Peptide>> chunks = new ArrayList<List<Peptide>>(chunkCount);
+
+        for (int chunk = 0; chunk < chunkCount; ++chunk)
+            chunks.add(list.subList((int) ((long) chunk * total / chunkCount),
+                                    (int) ((long) (chunk + 1) * total / chunkCount)));
+
+        return chunks;
+    }
+
+    private static void cancel(List<? extends Future<?>> futures) {
+        //
+        // Chunks that have not started are abandoned; running processes
+        // finish on their own...
+        //
+        for (Future<?> future : futures)
+            future.cancel(false);
+    }
+
+    /**
+     * Returns the prediction method implemented by the command-line
+     * program.
+     *
+     * @return the prediction method implemented by the command-line
+     * program.
+     */
+    protected abstract AffinityMethod getMethod();
+
     /**
      * Generates the exact and complete command-line request to pass
      * to the underlying {@code ProcessBuilder}.
@@ -54,14 +257,23 @@ public abstract class NetRunner {
     protected abstract List<String> formatCommand(Allele allele, File peptideFile);
 
     /**
-     * Parses the output written by the command-line program.
+     * Parses the output written by the command-line program and passes
+     * each affinity record to a consumer as soon as it is read.
      *
      * @param reader a reader for the command-line output stream.
      *
-     * @return a list containing the affinity records generated by the
-     * command-line program.
+     * @param consumer the consumer of the affinity records.
+     */
+    protected abstract void parseOutput(BufferedReader reader, Consumer<AffinityRecord> consumer);
+
+    /**
+     * Returns the peptide targets assigned to this runner.
+     *
+     * @return the peptide targets assigned to this runner.
      */
-    protected abstract List<AffinityRecord> parseOutput(BufferedReader reader);
+    protected Collection<Peptide> getPeptides() {
+        return peptides;
+    }
 
     /**
      * Executes the command-line prediction process.
@@ -70,50 +282,42 @@ public abstract class NetRunner {
      * prediction process.
      */
     protected List<AffinityRecord> run() {
-        JamLogger.info("Predicting binding affinity for [%d] peptides to allele [%s]...", peptides.size(), allele);
-
-        try {
-            initPeptideFile();
-            writePeptideFile();
-            launchProcess();
-        }
-        catch (IOException ioex) {
-            JamLogger.error(ioex);
-            throw JamException.runtime(ioex);
-        }
-        finally {
-            peptideFile.delete();
-        }
-
+        List<AffinityRecord> records = new ArrayList<AffinityRecord>(peptides.size());
+        run(records::add);
         return records;
     }
 
-    private void initPeptideFile() throws IOException {
-        peptideFile = File.createTempFile("NetRunner", ".pep");
-    }
-        
-    private void writePeptideFile() throws IOException {
-        PrintWriter writer = new PrintWriter(peptideFile);
-
-        for (Peptide peptide : peptides)
-            writer.println(peptide.formatString());
-
-        writer.close();
-    }
+    /**
+     * Executes the command-line prediction process and passes each
+     * affinity record to a consumer as soon as it is parsed from the
+     * process output (so the records are never held in memory here).
+     *
+     * @param consumer the consumer of the affinity records (called
+     * from the thread that parses the process output, one record at
+     * a time).
+     */
+    protected void run(Consumer<AffinityRecord> consumer) {
+        JamLogger.info("Predicting binding affinity for [%d] peptides to allele [%s]...", peptides.size(), allele);
 
-    private void launchProcess() throws IOException {
-        ProcessBuilder builder = new ProcessBuilder(formatCommand(allele, peptideFile));
-        Process        process = builder.start();
-        BufferedReader reader  = IOUtil.openReader(process.getInputStream());
+        long start = BindMetrics.start();
+        ProcessInput input = ProcessInput.open("NetRunner", peptides, Peptide::formatString);
 
         try {
-            records = parseOutput(reader);
+            recordCount = 0;
 
-            if (records.size() != peptides.size())
-                throw JamException.runtime("Affinity prediction failed for allele [%s]!", allele);
+            // The records are parsed and passed on while the process
+            // is still running...
+            Subprocess.run(getMethod().name(), formatCommand(allele, input.getFile()), input,
+                           reader -> parseOutput(reader, record -> {
+                                   ++recordCount;
+                                   consumer.accept(record);
+                               }));
         }
         finally {
-            reader.close();
+            BindMetrics.instance(allele + ":" + getMethod()).process(start);
         }
+
+        if (recordCount != peptides.size())
+            throw JamException.runtime("Affinity prediction failed for allele [%s]!", allele);
     }
 }
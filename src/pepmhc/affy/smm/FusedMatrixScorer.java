@@ -0,0 +1,148 @@
+
+package pepmhc.affy.smm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import jene.hla.Allele;
+import jene.peptide.Peptide;
+
+import pepmhc.bind.PeptideKey;
+
+/**
+ * Scores peptides of one length against the stabilized matrices for
+ * many alleles in a single pass.
+ *
+ * <p>The matrices are stacked allele-minor: the elements for every
+ * allele at one position and residue are contiguous.  Each peptide is
+ * decoded once, and each of its residues then adds one contiguous
+ * row to the vector of allele scores, so the stacked block (a few
+ * kilobytes per allele) stays cache-resident for the whole scan.
+ */
+public final class FusedMatrixScorer {
+    private final int length;
+    private final List<Allele> alleles;
+    private final double[] intercepts;
+    private final double[] stacked;
+
+    private static final int CODE_COUNT = PeptideKey.CODE_COUNT;
+
+    private FusedMatrixScorer(List<Allele> alleles, List<StabilizedMatrix> matrices, int length) {
+        int alleleCount = alleles.size();
+
+        this.length = length;
+        this.alleles = Collections.unmodifiableList(new ArrayList<Allele>(alleles));
+        this.intercepts = new double[alleleCount];
+        this.stacked = new double[length * CODE_COUNT * alleleCount];
+
+        for (int allele = 0; allele < alleleCount; ++allele) {
+            StabilizedMatrix matrix = matrices.get(allele);
+            double[] elements = matrix.viewElements();
+
+            intercepts[allele] = matrix.getIntercept();
+
+            for (int element = 0; element < elements.length; ++element)
+                stacked[element * alleleCount + allele] = elements[element];
+        }
+    }
+
+    /**
+     * Creates a fused scorer for a list of alleles and one peptide
+     * length.
+     *
+     * @param predictor the matrix predictor that supplies the matrices.
+     *
+     * @param alleles the alleles to score (in score block order).
+     *
+     * @param length the peptide length.
+     *
+     * @return a fused scorer for the specified alleles and length.
+     */
+    public static FusedMatrixScorer instance(MatrixPredictor predictor, List<Allele> alleles, int length) {
+        List<StabilizedMatrix> matrices = new ArrayList<StabilizedMatrix>(alleles.size());
+
+        for (Allele allele : alleles)
+            matrices.add(predictor.getMatrix(allele, length));
+
+        return new FusedMatrixScorer(alleles, matrices, length);
+    }
+
+    /**
+     * Returns the number of alleles scored by this scorer.
+     *
+     * @return the number of alleles scored by this scorer.
+     */
+    public int countAlleles() {
+        return intercepts.length;
+    }
+
+    /**
+     * Returns the peptide length covered by this scorer.
+     *
+     * @return the peptide length covered by this scorer.
+     */
+    public int getPeptideLength() {
+        return length;
+    }
+
+    /**
+     * Returns a read-only view of the alleles scored by this scorer.
+     *
+     * @return a read-only view of the alleles scored by this scorer
+     * (in score block order).
+     */
+    public List<Allele> viewAlleles() {
+        return alleles;
+    }
+
+    /**
+     * Scores a list of peptides against every allele.
+     *
+     * @param peptides the peptides to score.
+     *
+     * @return the allele-by-peptide score block: element {@code
+     * [a][k]} contains the base-10 logarithm of the predicted IC50
+     * for allele {@code a} and peptide {@code k}.
+     *
+     * @throws IllegalArgumentException unless each peptide has the
+     * length covered by this scorer and contains only native residues.
+     */
+    public double[][] score(List<Peptide> peptides) {
+        double[][] block = new double[countAlleles()][peptides.size()];
+        score(StabilizedMatrix.encode(peptides, length), peptides.size(), block);
+        return block;
+    }
+
+    /**
+     * Scores a block of residue-coded peptides (see {@link
+     * MatrixKernel}) against every allele.
+     *
+     * @param codes the peptide block.
+     *
+     * @param count the number of peptides in the block.
+     *
+     * @param block an array to hold the allele-by-peptide scores:
+     * on return, element {@code [a][k]} contains the base-10 logarithm
+     * of the predicted IC50 for allele {@code a} and peptide {@code k}.
+     */
+    public void score(int[] codes, int count, double[][] block) {
+        int alleleCount = countAlleles();
+        double[] logsum = new double[alleleCount];
+
+        for (int peptide = 0; peptide < count; ++peptide) {
+            int base = peptide * length;
+            System.arraycopy(intercepts, 0, logsum, 0, alleleCount);
+
+            for (int position = 0; position < length; ++position) {
+                int row = (position * CODE_COUNT + codes[base + position]) * alleleCount;
+
+                for (int allele = 0; allele < alleleCount; ++allele)
+                    logsum[allele] += stacked[row + allele];
+            }
+
+            for (int allele = 0; allele < alleleCount; ++allele)
+                block[allele][peptide] = logsum[allele];
+        }
+    }
+}
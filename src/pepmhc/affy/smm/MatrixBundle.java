@@ -0,0 +1,327 @@
+
+package pepmhc.affy.smm;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jam.app.JamLogger;
+import jam.lang.JamException;
+
+import jene.hla.Allele;
+
+import pepmhc.affy.AffinityMethod;
+import pepmhc.bind.PeptideKey;
+
+/**
+ * Provides every stabilized matrix for one prediction method from a
+ * single indexed binary file, which is memory-mapped when first used.
+ *
+ * <p>The bundle replaces the per-(allele, length) text files in the
+ * {@code data/smm} and {@code data/smm_pmbec} directories: a job reads
+ * one small index instead of parsing a text file for every matrix.
+ * The file starts with a header (magic number, version, and entry
+ * count) and an index of entries (the matrix name, which is the text
+ * file name without its suffix, the peptide length, the intercept, and
+ * the offset of the elements), followed by the flattened matrix elements, {@code
+ * CODE_COUNT} doubles per position, in residue code order.  Bundles
+ * are written by {@link #write(AffinityMethod)} (or the {@code
+ * pepmhc.app.MatrixBundler} application).
+ */
+public final class MatrixBundle {
+    private final File file;
+    private final ByteBuffer buffer;
+    private final Map<String, Entry> index;
+
+    private static final Map<AffinityMethod, MatrixBundle> instances =
+        new EnumMap<AffinityMethod, MatrixBundle>(AffinityMethod.class);
+
+    private static final int MAGIC = 0x534d4d42;
+    private static final int VERSION = 1;
+
+    private static final String TEXT_SUFFIX = StabilizedMatrix.TEXT_SUFFIX;
+    private static final String BUNDLE_SUFFIX = ".bundle";
+
+    private static final class Entry {
+        private final int length;
+        private final double intercept;
+        private final long offset;
+
+        private Entry(int length, double intercept, long offset) {
+            this.length = length;
+            this.intercept = intercept;
+            this.offset = offset;
+        }
+    }
+
+    private MatrixBundle(File file) throws IOException {
+        this.file = file;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.getInt(0) != MAGIC)
+            throw JamException.runtime("File [%s] is not a matrix bundle.", file);
+
+        if (buffer.getInt(4) != VERSION)
+            throw JamException.runtime("Unsupported matrix bundle version in [%s].", file);
+
+        this.index = readIndex();
+    }
+
+    private Map<String, Entry> readIndex() {
+        ByteBuffer header = buffer.duplicate();
+        header.position(8);
+
+        int count = header.getInt();
+        Map<String, Entry> entries = new HashMap<String, Entry>(2 * count);
+
+        for (int k = 0; k < count; ++k) {
+            byte[] bytes = new byte[header.getInt()];
+            header.get(bytes);
+
+            int length = header.getInt();
+            double intercept = header.getDouble();
+            long offset = header.getLong();
+
+            entries.put(new String(bytes, StandardCharsets.UTF_8), new Entry(length, intercept, offset));
+        }
+
+        return entries;
+    }
+
+    /**
+     * Returns the name of the bundle file for a given prediction
+     * method.
+     *
+     * @param method the matrix prediction method.
+     *
+     * @return the name of the bundle file for the specified method
+     * (next to the directory of text files).
+     */
+    public static String fileName(AffinityMethod method) {
+        return StabilizedMatrix.dirName(method) + BUNDLE_SUFFIX;
+    }
+
+    /**
+     * Returns the bundle for a given prediction method.
+     *
+     * @param method the matrix prediction method.
+     *
+     * @return the bundle for the specified method, or {@code null} if
+     * no bundle has been written.
+     *
+     * @throws RuntimeException if the bundle exists but cannot be
+     * mapped.
+     */
+    public static synchronized MatrixBundle instance(AffinityMethod method) {
+        if (instances.containsKey(method))
+            return instances.get(method);
+
+        MatrixBundle bundle = open(method);
+        instances.put(method, bundle);
+
+        return bundle;
+    }
+
+    private static MatrixBundle open(AffinityMethod method) {
+        File file = new File(fileName(method));
+
+        if (!file.exists())
+            return null;
+
+        try {
+            return new MatrixBundle(file);
+        }
+        catch (IOException ioex) {
+            throw JamException.runtime(ioex);
+        }
+    }
+
+    /**
+     * Discards the mapped bundle for a given prediction method (e.g.,
+     * after the bundle file has been removed) so that the next call to
+     * {@link #instance(AffinityMethod)} opens the file again.
+     *
+     * @param method the matrix prediction method.
+     */
+    public static synchronized void reset(AffinityMethod method) {
+        instances.remove(method);
+    }
+
+    /**
+     * Packs every text matrix file for a prediction method into its
+     * bundle file (replacing any existing bundle).
+     *
+     * @param method the matrix prediction method.
+     *
+     * @return the bundle file.
+     */
+    public static File write(AffinityMethod method) {
+        File dir = new File(StabilizedMatrix.dirName(method));
+        File[] textFiles = dir.listFiles((parent, name) -> name.endsWith(TEXT_SUFFIX));
+
+        if (textFiles == null)
+            throw JamException.runtime("Matrix directory [%s] does not exist.", dir);
+
+        Arrays.sort(textFiles);
+
+        List<String> names = new ArrayList<String>(textFiles.length);
+        List<StabilizedMatrix> matrices = new ArrayList<StabilizedMatrix>(textFiles.length);
+
+        for (File textFile : textFiles) {
+            String name = textFile.getName();
+
+            names.add(name.substring(0, name.length() - TEXT_SUFFIX.length()));
+            matrices.add(StabilizedMatrix.load(textFile.getPath()));
+        }
+
+        File file = new File(fileName(method));
+        write(file, names, matrices);
+        reset(method);
+
+        JamLogger.info("Wrote [%d] matrices to [%s].", matrices.size(), file);
+        return file;
+    }
+
+    private static void write(File file, List<String> names, List<StabilizedMatrix> matrices) {
+        List<byte[]> nameBytes = new ArrayList<byte[]>(names.size());
+        long headerLength = 12;
+
+        for (String name : names) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+
+            nameBytes.add(bytes);
+            headerLength += 4 + bytes.length + 4 + 8 + 8;
+        }
+
+        // Align the elements on eight-byte boundaries...
+        long dataOffset = (headerLength + 7) & ~7L;
+
+        // Write under a unique temporary name and move into place...
+        Path tempFile = null;
+
+        try {
+            tempFile = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(), file.getName(), ".tmp");
+
+            try (DataOutputStream output =
+                 new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeInt(matrices.size());
+
+                long offset = dataOffset;
+
+                for (int k = 0; k < matrices.size(); ++k) {
+                    StabilizedMatrix matrix = matrices.get(k);
+
+                    output.writeInt(nameBytes.get(k).length);
+                    output.write(nameBytes.get(k));
+                    output.writeInt(matrix.getPeptideLength());
+                    output.writeDouble(matrix.getIntercept());
+                    output.writeLong(offset);
+
+                    offset += 8L * matrix.viewElements().length;
+                }
+
+                for (long pad = headerLength; pad < dataOffset; ++pad)
+                    output.writeByte(0);
+
+                for (StabilizedMatrix matrix : matrices)
+                    for (double element : matrix.viewElements())
+                        output.writeDouble(element);
+            }
+
+            Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException ioex) {
+            deleteQuietly(tempFile);
+            throw JamException.runtime(ioex);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            if (path != null)
+                Files.deleteIfExists(path);
+        }
+        catch (IOException ioex) {
+            // Nothing more to do...
+        }
+    }
+
+    /**
+     * Returns a matrix from this bundle.
+     *
+     * @param allele the MHC allele of interest.
+     *
+     * @param length the peptide length of interest.
+     *
+     * @return the matrix for the specified allele and length, or
+     * {@code null} if this bundle does not contain it.
+     */
+    public StabilizedMatrix get(Allele allele, int length) {
+        return get(StabilizedMatrix.matrixName(allele, length));
+    }
+
+    /**
+     * Returns a matrix from this bundle.
+     *
+     * @param name the name of the text file for the matrix, without
+     * its suffix (e.g., {@code HLA-A-02:01-9}).
+     *
+     * @return the matrix with the specified name, or {@code null} if
+     * this bundle does not contain it.
+     */
+    public StabilizedMatrix get(String name) {
+        Entry entry = index.get(name);
+
+        if (entry == null)
+            return null;
+
+        //
+        // The scoring kernels index a heap array, so the (small)
+        // element block is copied out of the mapping in one bulk read...
+        //
+        double[] elements = new double[entry.length * PeptideKey.CODE_COUNT];
+
+        DoubleBuffer view = buffer.duplicate().position((int) entry.offset).slice().asDoubleBuffer();
+        view.get(elements);
+
+        return new StabilizedMatrix(elements, entry.length, entry.intercept);
+    }
+
+    /**
+     * Returns the number of matrices in this bundle.
+     *
+     * @return the number of matrices in this bundle.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Returns the bundle file mapped by this object.
+     *
+     * @return the bundle file mapped by this object.
+     */
+    public File getFile() {
+        return file;
+    }
+}
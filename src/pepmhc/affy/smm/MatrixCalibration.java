@@ -0,0 +1,311 @@
+
+package pepmhc.affy.smm;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import jam.app.JamLogger;
+import jam.app.JamProperties;
+import jam.io.FileUtil;
+import jam.lang.JamException;
+import jam.math.Percentile;
+
+import jene.hla.Allele;
+
+import pepmhc.affy.AffinityCache;
+import pepmhc.affy.AffinityMethod;
+import pepmhc.bind.BindTable;
+
+/**
+ * Assigns percentile ranks to stabilized matrix predictions.
+ *
+ * <p>Each calibration scores a fixed background of random peptides
+ * (drawn with a fixed seed from the natural residue frequencies) with
+ * the matrix for one allele and peptide length and keeps the sorted
+ * {@code log10(IC50)} scores.  The percentile rank of a prediction is
+ * the percentage of background peptides that bind at least as
+ * strongly, found by binary search, so that (as for {@code netMHCpan})
+ * rank zero is the strongest binding.
+ *
+ * <p>When an affinity cache directory is configured, the sorted
+ * background is persisted there as a compact binary array and is
+ * computed only once per allele and length.  The file header records
+ * a hash of the matrix elements and intercept, so a calibration is
+ * recomputed whenever the matrix file changes.
+ */
+public final class MatrixCalibration {
+    private final float[] background;
+
+    /**
+     * Name of the system property that specifies the number of random
+     * peptides in the calibration background.
+     */
+    public static final String BACKGROUND_SIZE_PROPERTY = "pepmhc.smmBackgroundSize";
+
+    /**
+     * Default number of random peptides in the calibration background.
+     */
+    public static final int BACKGROUND_SIZE_DEFAULT = 100000;
+
+    /**
+     * Seed for the random background (fixed so that every calibration
+     * of the same matrix is identical).
+     */
+    public static final long BACKGROUND_SEED = 20190601L;
+
+    private static final int MAGIC = 0x534d4d43;
+    private static final int VERSION = 2;
+    private static final int HEADER_LENGTH = 28;
+
+    // Natural residue frequencies (UniProtKB/Swiss-Prot, in percent)
+    // in the order of the peptide key residue codes "ACDEFGHIKLMNPQRSTVWY"...
+    private static final double[] NATURAL_FREQUENCIES = {
+        8.25, 1.38, 5.46, 6.72, 3.86, 7.07, 2.27, 5.91, 5.80, 9.64,
+        2.41, 4.06, 4.74, 3.93, 5.53, 6.63, 5.35, 6.86, 1.10, 2.92
+    };
+
+    private MatrixCalibration(float[] background) {
+        this.background = background;
+    }
+
+    /**
+     * Returns the calibration for a stabilized matrix, loading it from
+     * the cache directory or computing (and persisting) it as needed.
+     *
+     * @param method the matrix prediction method.
+     *
+     * @param allele the allele described by the matrix.
+     *
+     * @param matrix the stabilized matrix to calibrate.
+     *
+     * @return the calibration for the specified matrix.
+     */
+    public static MatrixCalibration instance(AffinityMethod method, Allele allele, StabilizedMatrix matrix) {
+        int size = resolveBackgroundSize();
+        File file = resolveFile(method, allele, matrix.getPeptideLength());
+
+        if (file != null && file.exists()) {
+            float[] background = load(file, size, matrix.fingerprint());
+
+            if (background != null)
+                return new MatrixCalibration(background);
+        }
+
+        JamLogger.info("Calibrating [%s] matrix for allele [%s] and length [%d]...",
+                       method, allele, matrix.getPeptideLength());
+
+        MatrixCalibration calibration = calibrate(matrix, size);
+
+        if (file != null)
+            calibration.save(file, matrix.fingerprint());
+
+        return calibration;
+    }
+
+    /**
+     * Computes the calibration for a stabilized matrix (without
+     * persisting it).
+     *
+     * @param matrix the stabilized matrix to calibrate.
+     *
+     * @param size the number of random peptides in the background.
+     *
+     * @return the calibration for the specified matrix.
+     */
+    public static MatrixCalibration calibrate(StabilizedMatrix matrix, int size) {
+        int length = matrix.getPeptideLength();
+        int[] codes = new int[length];
+        double[] cumulative = cumulativeFrequencies();
+
+        Random random = new Random(BACKGROUND_SEED);
+        float[] background = new float[size];
+
+        for (int index = 0; index < size; ++index) {
+            for (int position = 0; position < length; ++position)
+                codes[position] = sampleCode(random, cumulative);
+
+            background[index] = (float) matrix.computeLog10IC50(codes, 0);
+        }
+
+        Arrays.sort(background);
+        return new MatrixCalibration(background);
+    }
+
+    private static int resolveBackgroundSize() {
+        if (JamProperties.isSet(BACKGROUND_SIZE_PROPERTY))
+            return JamProperties.getRequiredInt(BACKGROUND_SIZE_PROPERTY);
+        else
+            return BACKGROUND_SIZE_DEFAULT;
+    }
+
+    private static File resolveFile(AffinityMethod method, Allele allele, int length) {
+        String cacheDir = AffinityCache.cacheDir();
+
+        if (cacheDir == null)
+            return null;
+
+        String calibDir = FileUtil.join(cacheDir, "calibration", method.name());
+        FileUtil.ensureDir(calibDir);
+
+        return new File(FileUtil.join(calibDir, String.format("%s-%d.cal", BindTable.formatAllele(allele), length)));
+    }
+
+    private static double[] cumulativeFrequencies() {
+        double[] cumulative = new double[NATURAL_FREQUENCIES.length];
+        double total = 0.0;
+
+        for (int code = 0; code < cumulative.length; ++code) {
+            total += NATURAL_FREQUENCIES[code];
+            cumulative[code] = total;
+        }
+
+        for (int code = 0; code < cumulative.length; ++code)
+            cumulative[code] /= total;
+
+        return cumulative;
+    }
+
+    private static int sampleCode(Random random, double[] cumulative) {
+        double draw = random.nextDouble();
+
+        for (int code = 0; code < cumulative.length - 1; ++code)
+            if (draw < cumulative[code])
+                return code;
+
+        return cumulative.length - 1;
+    }
+
+    private static float[] load(File file, int size, long fingerprint) {
+        //
+        // Returns null if the file is unreadable or was written with
+        // a different background or matrix, so that it will be
+        // recomputed...
+        //
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() != HEADER_LENGTH + 4L * size)
+                return null;
+
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                return null;
+
+            if (buffer.getLong() != BACKGROUND_SEED || buffer.getInt() != size)
+                return null;
+
+            if (buffer.getLong() != fingerprint)
+                return null;
+
+            float[] background = new float[size];
+            buffer.asFloatBuffer().get(background);
+
+            return background;
+        }
+        catch (IOException ioex) {
+            JamLogger.warn("Could not read calibration file [%s]: %s", file, ioex.getMessage());
+            return null;
+        }
+    }
+
+    private void save(File file, long fingerprint) {
+        //
+        // Write under a unique temporary name in the same directory
+        // and move into place, so that concurrent calibrations never
+        // interleave...
+        //
+        Path tempFile = null;
+
+        try {
+            tempFile = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(), file.getName(), ".tmp");
+
+            try (DataOutputStream output =
+                 new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeLong(BACKGROUND_SEED);
+                output.writeInt(background.length);
+                output.writeLong(fingerprint);
+
+                for (float score : background)
+                    output.writeFloat(score);
+            }
+
+            Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException ioex) {
+            deleteQuietly(tempFile);
+            throw JamException.runtime(ioex);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            if (path != null)
+                Files.deleteIfExists(path);
+        }
+        catch (IOException ioex) {
+            // Nothing more to do...
+        }
+    }
+
+    /**
+     * Returns the number of peptides in the calibration background.
+     *
+     * @return the number of peptides in the calibration background.
+     */
+    public int size() {
+        return background.length;
+    }
+
+    /**
+     * Computes the percentile rank of a predicted binding affinity.
+     *
+     * @param log10IC50 the base-10 logarithm of the predicted IC50
+     * concentration.
+     *
+     * @return the percentage of background peptides with an IC50 no
+     * larger than the specified value, in {@code [0, 100]}.
+     */
+    public double rank(double log10IC50) {
+        //
+        // Binary search for the number of background scores that are
+        // less than or equal to the query (the upper bound)...
+        //
+        float score = (float) log10IC50;
+        int lower = 0;
+        int upper = background.length;
+
+        while (lower < upper) {
+            int mid = (lower + upper) >>> 1;
+
+            if (background[mid] <= score)
+                lower = mid + 1;
+            else
+                upper = mid;
+        }
+
+        return 100.0 * lower / background.length;
+    }
+
+    /**
+     * Computes the percentile rank of a predicted binding affinity.
+     *
+     * @param log10IC50 the base-10 logarithm of the predicted IC50
+     * concentration.
+     *
+     * @return the percentile rank of the specified affinity.
+     */
+    public Percentile percentile(double log10IC50) {
+        return Percentile.valueOf(rank(log10IC50));
+    }
+}
@@ -0,0 +1,161 @@
+
+package pepmhc.affy.smm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import jam.app.JamLogger;
+import jam.app.JamProperties;
+import jam.lang.JamException;
+
+import pepmhc.bind.PeptideKey;
+
+/**
+ * Enumerates the kernels that score blocks of peptides against a
+ * flattened stabilized matrix.
+ *
+ * <p>A peptide block is an array of residue codes (see {@link
+ * PeptideKey#code}) holding {@code count} peptides of one length,
+ * peptide-major: the residues of peptide {@code k} occupy elements
+ * {@code [k * length, (k + 1) * length)}.  Matrix elements are
+ * indexed by {@code position * CODE_COUNT + code}.
+ */
+public enum MatrixKernel {
+    /**
+     * Scores one peptide at a time.
+     */
+    SCALAR {
+        @Override public void score(double[] elements, double intercept, int length,
+                                    int[] codes, int count, double[] result) {
+            scalar(elements, intercept, length, codes, count, result);
+        }
+    },
+
+    /**
+     * Scores peptides with the JDK Vector API, one peptide per vector
+     * lane (see {@code VectorKernel}).  This kernel requires the
+     * separately compiled {@code lib/pepmhc-vector.jar} on the class
+     * path and the JVM option {@code --add-modules
+     * jdk.incubator.vector}; without them it falls back to the scalar
+     * kernel.
+     */
+    VECTOR {
+        @Override public boolean isAvailable() {
+            return VectorBackend.HANDLE != null;
+        }
+
+        @Override public void score(double[] elements, double intercept, int length,
+                                    int[] codes, int count, double[] result) {
+            if (VectorBackend.HANDLE == null) {
+                scalar(elements, intercept, length, codes, count, result);
+                return;
+            }
+
+            try {
+                VectorBackend.HANDLE.invokeExact(elements, intercept, length, CODE_COUNT, codes, count, result);
+            }
+            catch (RuntimeException | Error ex) {
+                throw ex;
+            }
+            catch (Throwable ex) {
+                throw JamException.runtime(ex);
+            }
+        }
+    };
+
+    private static MatrixKernel global = null;
+
+    private static final int CODE_COUNT = PeptideKey.CODE_COUNT;
+
+    /**
+     * Name of the system property that selects the global kernel.
+     */
+    public static final String KERNEL_PROPERTY = "pepmhc.matrixKernel";
+
+    /**
+     * Returns the global kernel specified through system properties
+     * ({@code SCALAR} by default).
+     *
+     * @return the global matrix kernel.
+     */
+    public static MatrixKernel global() {
+        if (global == null)
+            global = resolveGlobal();
+
+        return global;
+    }
+
+    private static MatrixKernel resolveGlobal() {
+        if (JamProperties.isSet(KERNEL_PROPERTY))
+            return JamProperties.getRequiredEnum(KERNEL_PROPERTY, MatrixKernel.class);
+        else
+            return SCALAR;
+    }
+
+    //
+    // Resolves the Vector API kernel on first use; the handle is null
+    // if the kernel class or the incubator module is missing...
+    //
+    private static final class VectorBackend {
+        private static final String CLASS_NAME = "pepmhc.affy.smm.VectorKernel";
+        private static final MethodHandle HANDLE = resolve();
+
+        private static MethodHandle resolve() {
+            MethodType type =
+                MethodType.methodType(void.class, double[].class, double.class, int.class,
+                                      int.class, int[].class, int.class, double[].class);
+            try {
+                return MethodHandles.lookup().findStatic(Class.forName(CLASS_NAME), "score", type);
+            }
+            catch (ReflectiveOperationException | LinkageError ex) {
+                JamLogger.info("Vector matrix kernel is unavailable (%s); using the scalar kernel.", ex);
+                return null;
+            }
+        }
+    }
+
+    private static void scalar(double[] elements, double intercept, int length,
+                               int[] codes, int count, double[] result) {
+        for (int index = 0; index < count; ++index) {
+            int base = index * length;
+            double logsum = intercept;
+
+            for (int position = 0; position < length; ++position)
+                logsum += elements[position * CODE_COUNT + codes[base + position]];
+
+            result[index] = logsum;
+        }
+    }
+
+    /**
+     * Identifies kernels that can run in this JVM (rather than falling
+     * back to the scalar kernel).
+     *
+     * @return {@code true} unless this kernel depends on an optional
+     * component that is missing.
+     */
+    public boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * Scores a block of peptides.
+     *
+     * @param elements the flattened matrix elements.
+     *
+     * @param intercept the matrix intercept.
+     *
+     * @param length the peptide length covered by the matrix.
+     *
+     * @param codes the peptide block (valid native residue codes).
+     *
+     * @param count the number of peptides in the block.
+     *
+     * @param result an array to hold the results: on return, element
+     * {@code k} contains the base-10 logarithm of the predicted IC50
+     * for peptide {@code k}.
+     */
+    public abstract void score(double[] elements, double intercept, int length,
+                               int[] codes, int count, double[] result);
+}
@@ -2,22 +2,95 @@
 package pepmhc.affy.smm;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
-import jam.util.PairKeyTable;
+import jam.app.JamProperties;
 
 import jene.hla.Allele;
 import jene.peptide.Peptide;
 
 import pepmhc.affy.AffinityPredictor;
 import pepmhc.affy.AffinityRecord;
+import pepmhc.bind.PeptideKey;
+import pepmhc.bind.TopBinders;
 
 public abstract class MatrixPredictor extends AffinityPredictor {
-    private final PairKeyTable<Allele, Integer, StabilizedMatrix> table;
+    // Matrices and calibrations indexed by allele and peptide length;
+    // concurrent maps allow lock-free lookups from many threads...
+    private final ConcurrentMap<Allele, ConcurrentMap<Integer, StabilizedMatrix>> matrices =
+        new ConcurrentHashMap<Allele, ConcurrentMap<Integer, StabilizedMatrix>>();
 
-    protected MatrixPredictor() {
-        this.table = PairKeyTable.hash();
+    private final ConcurrentMap<Allele, ConcurrentMap<Integer, MatrixCalibration>> calibrations =
+        new ConcurrentHashMap<Allele, ConcurrentMap<Integer, MatrixCalibration>>();
+
+    private static ForkJoinPool pool = null;
+    private static int parallelThreshold = -1;
+
+    /**
+     * Name of the system property that specifies the smallest batch
+     * that is scored in parallel.
+     */
+    public static final String PARALLEL_THRESHOLD_PROPERTY = "pepmhc.matrixParallelThreshold";
+
+    /**
+     * Default smallest batch that is scored in parallel.
+     */
+    public static final int PARALLEL_THRESHOLD_DEFAULT = 20000;
+
+    /**
+     * Name of the system property that specifies the number of threads
+     * used for parallel scoring (the common fork/join pool is used if
+     * the property is not set).
+     */
+    public static final String PARALLELISM_PROPERTY = "pepmhc.matrixParallelism";
+
+    // Parallel tasks are never split below this size...
+    private static final int MIN_LEAF_SIZE = 2048;
+
+    protected MatrixPredictor() {}
+
+    /**
+     * Returns the fork/join pool used for parallel batch prediction.
+     *
+     * @return the fork/join pool used for parallel batch prediction.
+     */
+    public static synchronized ForkJoinPool pool() {
+        if (pool == null)
+            pool = resolvePool();
+
+        return pool;
+    }
+
+    private static ForkJoinPool resolvePool() {
+        if (JamProperties.isSet(PARALLELISM_PROPERTY))
+            return new ForkJoinPool(JamProperties.getRequiredInt(PARALLELISM_PROPERTY));
+        else
+            return ForkJoinPool.commonPool();
+    }
+
+    /**
+     * Returns the smallest batch that is scored in parallel.
+     *
+     * @return the smallest batch that is scored in parallel.
+     */
+    public static synchronized int parallelThreshold() {
+        if (parallelThreshold < 0)
+            parallelThreshold = resolveParallelThreshold();
+
+        return parallelThreshold;
+    }
+
+    private static int resolveParallelThreshold() {
+        if (JamProperties.isSet(PARALLEL_THRESHOLD_PROPERTY))
+            return JamProperties.getRequiredInt(PARALLEL_THRESHOLD_PROPERTY);
+        else
+            return PARALLEL_THRESHOLD_DEFAULT;
     }
 
     @Override public boolean isInstalled() {
@@ -26,26 +99,246 @@ public abstract class MatrixPredictor extends AffinityPredictor {
 
     @Override public AffinityRecord predict(Allele allele, Peptide peptide) {
         StabilizedMatrix matrix = getMatrix(allele, peptide.length());
-        return new AffinityRecord(peptide, matrix.computeIC50(peptide));
+        MatrixCalibration calibration = getCalibration(allele, peptide.length());
+
+        double log10IC50 = matrix.computeLog10IC50(peptide);
+
+        return AffinityRecord.log10(peptide, log10IC50, calibration.percentile(log10IC50));
     }
 
+    /**
+     * Computes binding records for a collection of peptides.  Batches
+     * at least as large as the {@link #parallelThreshold()} are split
+     * across the tasks of the {@link #pool()}; smaller batches are
+     * scored on the calling thread.
+     *
+     * @param allele the allele of the binding MHC molecule.
+     *
+     * @param peptides the peptides to score.
+     *
+     * @return the binding records for the specified peptides (in the
+     * order returned by the collection iterator).
+     */
     @Override public List<AffinityRecord> predict(Allele allele, Collection<Peptide> peptides) {
+        if (peptides.size() >= parallelThreshold())
+            return predictParallel(allele, new ArrayList<Peptide>(peptides));
+        else
+            return predictSerial(allele, peptides);
+    }
+
+    private List<AffinityRecord> predictParallel(Allele allele, List<Peptide> peptides) {
+        ForkJoinPool pool = pool();
+        AffinityRecord[] records = new AffinityRecord[peptides.size()];
+        int leafSize = Math.max(MIN_LEAF_SIZE, peptides.size() / (4 * pool.getParallelism()));
+
+        pool.invoke(new PredictTask(allele, peptides, records, 0, peptides.size(), leafSize));
+        return new ArrayList<AffinityRecord>(Arrays.asList(records));
+    }
+
+    private final class PredictTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Allele allele;
+        private final List<Peptide> peptides;
+        private final AffinityRecord[] records;
+        private final int lower;
+        private final int upper;
+        private final int leafSize;
+
+        private PredictTask(Allele allele, List<Peptide> peptides, AffinityRecord[] records,
+                            int lower, int upper, int leafSize) {
+            this.allele = allele;
+            this.peptides = peptides;
+            this.records = records;
+            this.lower = lower;
+            this.upper = upper;
+            this.leafSize = leafSize;
+        }
+
+        @Override protected void compute() {
+            if (upper - lower <= leafSize) {
+                //
+                // Each leaf writes its own index range, so the output
+                // order matches the input order...
+                //
+                List<AffinityRecord> leaf = predictSerial(allele, peptides.subList(lower, upper));
+
+                for (int index = lower; index < upper; ++index)
+                    records[index] = leaf.get(index - lower);
+            }
+            else {
+                int mid = (lower + upper) >>> 1;
+
+                invokeAll(new PredictTask(allele, peptides, records, lower, mid, leafSize),
+                          new PredictTask(allele, peptides, records, mid, upper, leafSize));
+            }
+        }
+    }
+
+    private List<AffinityRecord> predictSerial(Allele allele, Collection<Peptide> peptides) {
         List<AffinityRecord> records = new ArrayList<AffinityRecord>(peptides.size());
+        List<Peptide> run = new ArrayList<Peptide>();
+
+        for (Peptide peptide : peptides) {
+            //
+            // Batches are almost always of uniform length, so each run
+            // of equal lengths is scored as one block...
+            //
+            if (!run.isEmpty() && run.get(0).length() != peptide.length()) {
+                predictRun(allele, run, records);
+                run.clear();
+            }
 
-        for (Peptide peptide : peptides)
-            records.add(predict(allele, peptide));
+            run.add(peptide);
+        }
+
+        if (!run.isEmpty())
+            predictRun(allele, run, records);
 
         return records;
     }
 
-    private StabilizedMatrix getMatrix(Allele allele, Integer length) {
-        StabilizedMatrix matrix = table.get(allele, length);
+    private void predictRun(Allele allele, List<Peptide> run, List<AffinityRecord> records) {
+        StabilizedMatrix matrix = getMatrix(allele, run.get(0).length());
+        MatrixCalibration calibration = getCalibration(allele, run.get(0).length());
+
+        double[] log10IC50 = new double[run.size()];
+        matrix.computeLog10IC50(run, log10IC50);
+
+        for (int index = 0; index < log10IC50.length; ++index)
+            records.add(AffinityRecord.log10(run.get(index), log10IC50[index], calibration.percentile(log10IC50[index])));
+    }
+
+    /**
+     * Scores every window of every requested length in a protein
+     * sequence, in one pass over its residues and without creating
+     * peptide objects for the windows.  Windows containing non-native
+     * residues are skipped.
+     *
+     * @param allele the allele of the binding MHC molecule.
+     *
+     * @param protein the protein sequence to scan.
+     *
+     * @param lengths the window (peptide) lengths to score.
+     *
+     * @param consumer the consumer that receives the window scores,
+     * ordered by offset and then by the order of the lengths.
+     */
+    public void scan(Allele allele, Peptide protein, int[] lengths, ScanConsumer consumer) {
+        scan(allele, PeptideKey.codes(protein), lengths, consumer);
+    }
+
+    /**
+     * Scores every window of every requested length in a sequence of
+     * residue codes.
+     *
+     * @param allele the allele of the binding MHC molecule.
+     *
+     * @param codes the residue codes of the protein (see {@link
+     * PeptideKey#codes(Peptide)}).
+     *
+     * @param lengths the window (peptide) lengths to score.
+     *
+     * @param consumer the consumer that receives the window scores,
+     * ordered by offset and then by the order of the lengths.
+     */
+    public void scan(Allele allele, int[] codes, int[] lengths, ScanConsumer consumer) {
+        if (lengths.length == 1) {
+            getMatrix(allele, lengths[0]).scan(codes, consumer);
+            return;
+        }
+
+        StabilizedMatrix[] matrices = new StabilizedMatrix[lengths.length];
+
+        for (int k = 0; k < lengths.length; ++k)
+            matrices[k] = getMatrix(allele, lengths[k]);
 
-        if (matrix == null) {
-            matrix = StabilizedMatrix.instance(getMethod(), allele, length);
-            table.put(allele, length, matrix);
+        //
+        // nativeRun[i] is the number of consecutive native residues
+        // starting at index i, so a window is valid iff the run at
+        // its offset covers the window length...
+        //
+        int[] nativeRun = new int[codes.length + 1];
+
+        for (int index = codes.length - 1; index >= 0; --index)
+            nativeRun[index] = (codes[index] < 0) ? 0 : nativeRun[index + 1] + 1;
+
+        for (int offset = 0; offset < codes.length; ++offset)
+            for (int k = 0; k < lengths.length; ++k)
+                if (nativeRun[offset] >= lengths[k])
+                    consumer.accept(offset, lengths[k], matrices[k].computeLog10IC50(codes, offset));
+    }
+
+    /**
+     * Offers the strongest binding windows of one length from a stream
+     * of protein sequences to a top-binder heap.
+     *
+     * <p>Once the heap is full, the score of its weakest record is the
+     * binding threshold for the next protein: proteins that cannot
+     * contain a stronger window (by the bounds of the matrix) are not
+     * scored at all, and peptide objects and records are created only
+     * for windows that enter the heap.
+     *
+     * @param allele the allele of the binding MHC molecule.
+     *
+     * @param length the window (peptide) length.
+     *
+     * @param proteins the protein sequences to scan.
+     *
+     * @param top a heap created by {@link TopBinders#affinity(int)}
+     * (scoring records by their negative {@code log10(IC50)}).
+     */
+    public void topBinders(Allele allele, int length, Iterable<Peptide> proteins, TopBinders<AffinityRecord> top) {
+        StabilizedMatrix matrix = getMatrix(allele, length);
+        MatrixCalibration calibration = getCalibration(allele, length);
+
+        for (Peptide protein : proteins) {
+            int[] codes = PeptideKey.codes(protein);
+
+            //
+            // The heap scores records by -log10(IC50), so its threshold
+            // is the negative of the weakest retained log10(IC50)...
+            //
+            matrix.enumerateBinders(codes, -top.threshold(), (offset, windowLength, log10IC50) -> {
+                    if (top.admits(-log10IC50))
+                        top.offer(AffinityRecord.log10(PeptideKey.decode(codes, offset, windowLength),
+                                                       log10IC50, calibration.percentile(log10IC50)),
+                                  -log10IC50);
+                });
         }
+    }
+
+    /**
+     * Returns the stabilized matrix for a given allele and peptide
+     * length (loading it on first use).
+     *
+     * @param allele the allele of the binding MHC molecule.
+     *
+     * @param length the peptide length.
+     *
+     * @return the stabilized matrix for the specified allele and
+     * length.
+     */
+    public StabilizedMatrix getMatrix(Allele allele, int length) {
+        return matrices
+            .computeIfAbsent(allele, key -> new ConcurrentHashMap<Integer, StabilizedMatrix>())
+            .computeIfAbsent(length, key -> StabilizedMatrix.instance(getMethod(), allele, length));
+    }
 
-        return matrix;
+    /**
+     * Returns the percentile calibration for a given allele and
+     * peptide length (loading or computing it on first use).
+     *
+     * @param allele the allele of the binding MHC molecule.
+     *
+     * @param length the peptide length.
+     *
+     * @return the percentile calibration for the specified allele
+     * and length.
+     */
+    public MatrixCalibration getCalibration(Allele allele, int length) {
+        return calibrations
+            .computeIfAbsent(allele, key -> new ConcurrentHashMap<Integer, MatrixCalibration>())
+            .computeIfAbsent(length, key -> MatrixCalibration.instance(getMethod(), allele, getMatrix(allele, length)));
     }
 }
@@ -0,0 +1,22 @@
+
+package pepmhc.affy.smm;
+
+/**
+ * Receives the scores computed by a sliding-window scan of a protein
+ * sequence.
+ */
+@FunctionalInterface
+public interface ScanConsumer {
+    /**
+     * Accepts the score for one window of the scanned sequence.
+     *
+     * @param offset the zero-based index of the first residue in the
+     * window.
+     *
+     * @param length the number of residues in the window.
+     *
+     * @param log10IC50 the base-10 logarithm of the predicted IC50
+     * concentration for the peptide in the window.
+     */
+    void accept(int offset, int length, double log10IC50);
+}
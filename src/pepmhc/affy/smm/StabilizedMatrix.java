@@ -1,6 +1,7 @@
 
 package pepmhc.affy.smm;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -14,18 +15,82 @@ import jene.peptide.Residue;
 
 import pepmhc.affy.Affinity;
 import pepmhc.affy.AffinityMethod;
+import pepmhc.bind.PeptideKey;
 
 /**
  * Implements a <em>stabilized matrix</em> for predicting peptide-MHC
  * binding affinities.
+ *
+ * <p>The matrix elements are held in one flat array, {@code
+ * CODE_COUNT} elements per binding position, indexed by the native
+ * residue codes of {@link PeptideKey}.  The scoring kernels therefore
+ * perform one array read per position, with no map lookups, boxing,
+ * or object creation.
  */
 public final class StabilizedMatrix {
+    private final int length;
     private final double intercept;
-    private final List<Map<Residue, Double>> elements;
+    private final double[] elements;
 
-    StabilizedMatrix(List<Map<Residue, Double>> elements, double intercept) {
-        this.elements = elements;
+    // The smallest and largest possible scores of any peptide...
+    private final double minScore;
+    private final double maxScore;
+
+    private static final int CODE_COUNT = PeptideKey.CODE_COUNT;
+
+    /**
+     * The suffix of the text files that contain matrix parameters.
+     */
+    static final String TEXT_SUFFIX = ".txt";
+
+    StabilizedMatrix(List<Map<Residue, Double>> elementMaps, double intercept) {
+        this(flatten(elementMaps), elementMaps.size(), intercept);
+    }
+
+    StabilizedMatrix(double[] elements, int length, double intercept) {
+        this.length = length;
         this.intercept = intercept;
+        this.elements = elements;
+
+        double minSum = intercept;
+        double maxSum = intercept;
+
+        for (int position = 0; position < length; ++position) {
+            minSum += minElement(position);
+            maxSum += maxElement(position);
+        }
+
+        this.minScore = minSum;
+        this.maxScore = maxSum;
+    }
+
+    private static double[] flatten(List<Map<Residue, Double>> elementMaps) {
+        double[] elements = new double[elementMaps.size() * CODE_COUNT];
+
+        for (int position = 0; position < elementMaps.size(); ++position)
+            for (int code = 0; code < CODE_COUNT; ++code)
+                elements[position * CODE_COUNT + code] =
+                    elementMaps.get(position).get(PeptideKey.residue(code));
+
+        return elements;
+    }
+
+    private double minElement(int position) {
+        double result = Double.POSITIVE_INFINITY;
+
+        for (int code = 0; code < CODE_COUNT; ++code)
+            result = Math.min(result, elements[position * CODE_COUNT + code]);
+
+        return result;
+    }
+
+    private double maxElement(int position) {
+        double result = Double.NEGATIVE_INFINITY;
+
+        for (int code = 0; code < CODE_COUNT; ++code)
+            result = Math.max(result, elements[position * CODE_COUNT + code]);
+
+        return result;
     }
 
     /**
@@ -42,6 +107,19 @@ public final class StabilizedMatrix {
      * allele.
      */
     public static StabilizedMatrix instance(AffinityMethod method, Allele allele, int length) {
+        //
+        // Prefer the binary bundle (if one has been written) over
+        // parsing the individual text file...
+        //
+        MatrixBundle bundle = MatrixBundle.instance(method);
+
+        if (bundle != null) {
+            StabilizedMatrix matrix = bundle.get(allele, length);
+
+            if (matrix != null)
+                return matrix;
+        }
+
         return load(resolveFileName(method, allele, length));
     }
 
@@ -58,10 +136,10 @@ public final class StabilizedMatrix {
     }
 
     private static String resolveFileName(AffinityMethod method, Allele allele, int length) {
-        return FileUtil.join(dirName(method), baseName(allele, length));
+        return FileUtil.join(dirName(method), matrixName(allele, length) + TEXT_SUFFIX);
     }
 
-    private static String dirName(AffinityMethod method) {
+    static String dirName(AffinityMethod method) {
         String homeDir = JamEnv.getRequired("PEPMHC_HOME");
 
         switch (method) {
@@ -76,8 +154,19 @@ public final class StabilizedMatrix {
         }
     }
 
-    private static String baseName(Allele allele, int length) {
-        return String.format("%s-%d.txt", allele.longKey().replace('*', '-'), length);
+    /**
+     * Returns the name of the matrix for a given allele and peptide
+     * length: the name of its text file without the suffix, and its
+     * key in the binary bundle (see {@link MatrixBundle}).
+     *
+     * @param allele the MHC allele of interest.
+     *
+     * @param length the peptide length of interest.
+     *
+     * @return the name of the matrix (e.g., {@code HLA-A-02:01-9}).
+     */
+    static String matrixName(Allele allele, int length) {
+        return String.format("%s-%d", allele.longKey().replace('*', '-'), length);
     }
 
     /**
@@ -88,15 +177,275 @@ public final class StabilizedMatrix {
      * @return the predicted binding affinity for the given peptide.
      */
     public Affinity computeIC50(Peptide peptide) {
-        if (peptide.length() != elements.size())
+        return Affinity.valueOf(Math.pow(10.0, computeLog10IC50(peptide)));
+    }
+
+    /**
+     * Computes the base-10 logarithm of the predicted IC50
+     * concentration for a given peptide.
+     *
+     * @param peptide the peptide of interest.
+     *
+     * @return the base-10 logarithm of the predicted IC50
+     * concentration for the given peptide.
+     *
+     * @throws IllegalArgumentException unless the peptide has the
+     * length covered by this matrix and contains only native
+     * residues.
+     */
+    public double computeLog10IC50(Peptide peptide) {
+        if (peptide.length() != length)
             throw new IllegalArgumentException("Invalid peptide length.");
 
         double logsum = intercept;
 
-        for (int index = 0; index < peptide.length(); ++index)
-            logsum += elements.get(index).get(peptide.get(index));
+        for (int position = 0; position < length; ++position)
+            logsum += elements[position * CODE_COUNT + residueCode(peptide, position)];
+
+        return logsum;
+    }
+
+    /**
+     * Computes the base-10 logarithm of the predicted IC50
+     * concentrations for a list of peptides with the global {@link
+     * MatrixKernel}.
+     *
+     * @param peptides the peptides of interest.
+     *
+     * @param log10IC50 an array to hold the results: on return,
+     * element {@code k} contains the result for peptide {@code k}.
+     *
+     * @throws IllegalArgumentException unless each peptide has the
+     * length covered by this matrix and contains only native
+     * residues, and the result array is large enough.
+     */
+    public void computeLog10IC50(List<Peptide> peptides, double[] log10IC50) {
+        computeLog10IC50(encode(peptides), peptides.size(), log10IC50, MatrixKernel.global());
+    }
+
+    /**
+     * Computes the base-10 logarithm of the predicted IC50
+     * concentrations for a block of peptides.
+     *
+     * @param codes a peptide block (see {@link MatrixKernel}) created
+     * by {@link #encode(List)}.
+     *
+     * @param count the number of peptides in the block.
+     *
+     * @param log10IC50 an array to hold the results: on return,
+     * element {@code k} contains the result for peptide {@code k}.
+     *
+     * @param kernel the scoring kernel to apply.
+     *
+     * @throws IllegalArgumentException unless the block and result
+     * array are large enough.
+     */
+    public void computeLog10IC50(int[] codes, int count, double[] log10IC50, MatrixKernel kernel) {
+        if (codes.length < count * length || log10IC50.length < count)
+            throw new IllegalArgumentException("Array is too small.");
+
+        kernel.score(elements, intercept, length, codes, count, log10IC50);
+    }
 
-        return Affinity.valueOf(Math.pow(10.0, logsum));
+    /**
+     * Encodes a list of peptides as a peptide block for the scoring
+     * kernels.
+     *
+     * @param peptides the peptides to encode.
+     *
+     * @return the peptide block (see {@link MatrixKernel}).
+     *
+     * @throws IllegalArgumentException unless each peptide has the
+     * length covered by this matrix and contains only native
+     * residues.
+     */
+    public int[] encode(List<Peptide> peptides) {
+        return encode(peptides, length);
+    }
+
+    static int[] encode(List<Peptide> peptides, int length) {
+        int[] codes = new int[peptides.size() * length];
+        int index = 0;
+
+        for (Peptide peptide : peptides) {
+            if (peptide.length() != length)
+                throw new IllegalArgumentException("Invalid peptide length.");
+
+            for (int position = 0; position < length; ++position)
+                codes[index++] = residueCode(peptide, position);
+        }
+
+        return codes;
+    }
+
+    /**
+     * Computes the base-10 logarithm of the predicted IC50
+     * concentration for a peptide given by its residue codes (see
+     * {@link PeptideKey#code(Residue)}).
+     *
+     * @param codes an array of residue codes.
+     *
+     * @param offset the index of the first residue of the peptide.
+     *
+     * @return the base-10 logarithm of the predicted IC50
+     * concentration for the peptide occupying elements {@code
+     * [offset, offset + length)} of the code array.
+     */
+    public double computeLog10IC50(int[] codes, int offset) {
+        double logsum = intercept;
+
+        for (int position = 0; position < length; ++position)
+            logsum += elements[position * CODE_COUNT + codes[offset + position]];
+
+        return logsum;
+    }
+
+    /**
+     * Scores every window of a protein sequence that has the length
+     * covered by this matrix, in one pass over the residue codes.
+     * Windows containing non-native residues are skipped.
+     *
+     * @param codes the residue codes of the protein (see {@link
+     * PeptideKey#codes(Peptide)}).
+     *
+     * @param consumer the consumer that receives the window scores.
+     */
+    public void scan(int[] codes, ScanConsumer consumer) {
+        int valid = 0;
+
+        for (int index = 0; index < codes.length; ++index) {
+            //
+            // Count the native residues ending at this index; a full
+            // window of them ends here once the count reaches the
+            // matrix length...
+            //
+            if (codes[index] < 0)
+                valid = 0;
+            else
+                ++valid;
+
+            if (valid >= length) {
+                int offset = index - length + 1;
+                consumer.accept(offset, length, computeLog10IC50(codes, offset));
+            }
+        }
+    }
+
+    /**
+     * Finds every peptide in a protein sequence that binds with an
+     * IC50 no greater than a threshold.
+     *
+     * @param protein the protein sequence to scan.
+     *
+     * @param threshold the binding threshold.
+     *
+     * @return the binding peptides, in the order of their positions in
+     * the protein (including duplicates).
+     */
+    public List<Peptide> enumerateBinders(Peptide protein, Affinity threshold) {
+        int[] codes = PeptideKey.codes(protein);
+        List<Peptide> binders = new ArrayList<Peptide>();
+
+        enumerateBinders(codes, Math.log10(threshold.doubleValue()),
+                         (offset, length, log10IC50) -> binders.add(PeptideKey.decode(codes, offset, length)));
+
+        return binders;
+    }
+
+    /**
+     * Finds every window of a sequence of residue codes that binds with
+     * an IC50 no greater than a threshold.  Windows that contain
+     * non-native residues are skipped.
+     *
+     * <p>The bounds on the score of any peptide are checked first, so
+     * no window is scored when the threshold is outside of them.
+     *
+     * @param codes the residue codes of the protein (see {@link
+     * PeptideKey#codes(Peptide)}).
+     *
+     * @param log10Threshold the base-10 logarithm of the binding
+     * threshold (IC50 concentration).
+     *
+     * @param consumer the consumer that receives the scores of the
+     * binding windows (in order of offset).
+     */
+    public void enumerateBinders(int[] codes, double log10Threshold, ScanConsumer consumer) {
+        if (minScore > log10Threshold)
+            return;
+
+        if (maxScore <= log10Threshold) {
+            scan(codes, consumer);
+            return;
+        }
+
+        scan(codes, (offset, length, log10IC50) -> {
+                if (log10IC50 <= log10Threshold)
+                    consumer.accept(offset, length, log10IC50);
+            });
+    }
+
+    /**
+     * Counts the windows of a sequence of residue codes that bind with
+     * an IC50 no greater than a threshold.
+     *
+     * @param codes the residue codes of the protein (see {@link
+     * PeptideKey#codes(Peptide)}).
+     *
+     * @param log10Threshold the base-10 logarithm of the binding
+     * threshold (IC50 concentration).
+     *
+     * @return the number of binding windows (including duplicate
+     * peptides).
+     */
+    public int countBinders(int[] codes, double log10Threshold) {
+        if (minScore > log10Threshold)
+            return 0;
+
+        int valid = 0;
+        int count = 0;
+
+        for (int index = 0; index < codes.length; ++index) {
+            if (codes[index] < 0)
+                valid = 0;
+            else
+                ++valid;
+
+            if (valid >= length && computeLog10IC50(codes, index - length + 1) <= log10Threshold)
+                ++count;
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns the smallest possible score of any peptide (the score of
+     * the strongest possible binder).
+     *
+     * @return the smallest possible base-10 logarithm of the predicted
+     * IC50 concentration.
+     */
+    public double getMinLog10IC50() {
+        return minScore;
+    }
+
+    /**
+     * Returns the largest possible score of any peptide (the score of
+     * the weakest possible binder).
+     *
+     * @return the largest possible base-10 logarithm of the predicted
+     * IC50 concentration.
+     */
+    public double getMaxLog10IC50() {
+        return maxScore;
+    }
+
+    private static int residueCode(Peptide peptide, int position) {
+        int code = PeptideKey.code(peptide.get(position));
+
+        if (code < 0)
+            throw new IllegalArgumentException("Non-native residue in peptide.");
+
+        return code;
     }
 
     /**
@@ -111,7 +460,39 @@ public final class StabilizedMatrix {
      * residue and binding position.
      */
     public double getElement(Residue residue, int position) {
-        return elements.get(position).get(residue);
+        return elements[position * CODE_COUNT + PeptideKey.code(residue)];
+    }
+
+    /**
+     * Returns the flattened matrix elements (indexed by {@code position
+     * * CODE_COUNT + code}) without copying them.
+     *
+     * @return the flattened matrix elements.
+     */
+    double[] viewElements() {
+        return elements;
+    }
+
+    /**
+     * Computes a 64-bit hash of the peptide length, matrix elements,
+     * and intercept, which identifies the exact parameters of this
+     * matrix in derived files (calibrations, for example).
+     *
+     * @return a hash of the parameters of this matrix.
+     */
+    long fingerprint() {
+        long hash = length;
+
+        for (double element : elements)
+            hash = 31L * hash + Double.doubleToLongBits(element);
+
+        hash = 31L * hash + Double.doubleToLongBits(intercept);
+
+        // The SplitMix64 finalizer spreads the polynomial hash...
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+
+        return hash ^ (hash >>> 31);
     }
 
     /**
@@ -129,6 +510,6 @@ public final class StabilizedMatrix {
      * @return the peptide length covered by this stabilized matrix.
      */
     public int getPeptideLength() {
-        return elements.size();
+        return length;
     }
 }
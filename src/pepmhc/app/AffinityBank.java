@@ -15,6 +15,9 @@ import jene.peptide.Peptide;
 
 import pepmhc.affy.AffinityCache;
 import pepmhc.affy.AffinityMethod;
+import pepmhc.bind.BindTable;
+import pepmhc.proc.ExecPolicy;
+import pepmhc.proc.Quarantine;
 
 public final class AffinityBank {
     private final String alleleFile;
@@ -70,12 +73,24 @@ public final class AffinityBank {
     private void processAllele(Allele allele) {
         //
         // Just get the results from the affinity cache, to enforce
-        // calculation on demand, but ignore the returned records...
+        // calculation on demand, but ignore the returned records.
+        // Failed batches are bisected, so that only the peptides that
+        // cause the failure are lost...
         //
+        String name = predMethod + ":" + allele;
+
         List<List<Peptide>> subLists = ListUtil.split(peptides, BATCH_SIZE);
+        AffinityCache cache = AffinityCache.instance(predMethod, allele);
 
         for (List<Peptide> subList : subLists)
-            AffinityCache.instance(predMethod, allele).require(subList);
+            ExecPolicy.global().bisect(name, subList, cache::require);
+
+        BindTable.saveFilters();
+
+        int quarantined = Quarantine.get(name).size();
+
+        if (quarantined > 0)
+            JamLogger.warn("Quarantined [%d] peptides for allele [%s].", quarantined, allele);
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,139 @@
+
+package pepmhc.app;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+
+import jam.app.JamLogger;
+import jam.io.LineReader;
+import jam.math.Percentile;
+import jam.util.ListUtil;
+
+import jene.hla.Allele;
+import jene.hugo.HugoPeptideTable;
+import jene.peptide.Peptide;
+
+import pepmhc.affy.AffinityCache;
+import pepmhc.affy.AffinityColumnWriter;
+import pepmhc.affy.AffinityMethod;
+import pepmhc.affy.AffinityRecord;
+import pepmhc.bind.PeptideKey;
+
+/**
+ * Writes the columnar affinity file for a prediction method, covering
+ * every allele and peptide in a pair of input files.  Records are
+ * taken from (or computed on demand by) the per-allele affinity
+ * caches.
+ */
+public final class AffinityColumnBank {
+    private final String alleleFile;
+    private final String peptideFile;
+    private final AffinityMethod predMethod;
+
+    private final List<Allele> alleles = new ArrayList<Allele>();
+    private final List<Peptide> peptides = new ArrayList<Peptide>();
+
+    private long[] keys;
+    private AffinityColumnWriter writer;
+
+    private final static int BATCH_SIZE = 100000;
+
+    private AffinityColumnBank(String[] args) {
+        validate(args);
+
+        this.alleleFile  = args[0];
+        this.peptideFile = args[1];
+        this.predMethod  = AffinityMethod.valueOf(args[2]);
+    }
+
+    private static void validate(String[] args) {
+        if (args.length != 3) {
+            System.err.println("Usage: pepmhc.app.AffinityColumnBank ALLELE_FILE PEPTIDE_FILE PREDICTION_METHOD");
+            System.exit(1);
+        }
+    }
+
+    private void run() {
+        loadAlleles();
+        loadPeptides();
+        sortPeptides();
+
+        writer = AffinityColumnWriter.open(predMethod, alleles, keys);
+
+        processAlleles();
+        writer.close(predMethod);
+
+        JamLogger.info("DONE!");
+    }
+
+    private void loadAlleles() {
+        LineReader reader = LineReader.open(alleleFile);
+
+        for (String line : reader)
+            alleles.add(Allele.instance(line));
+
+        reader.close();
+    }
+
+    private void loadPeptides() {
+        HugoPeptideTable table = HugoPeptideTable.load(peptideFile);
+        peptides.addAll(new HashSet<Peptide>(table.viewPeptides()));
+    }
+
+    private void sortPeptides() {
+        //
+        // The peptide column is sorted by packed key; peptides
+        // that cannot be packed are served by the per-allele caches...
+        //
+        peptides.removeIf(peptide -> !PeptideKey.isEncodable(peptide));
+        peptides.sort(Comparator.comparingLong(PeptideKey::encode));
+
+        keys = new long[peptides.size()];
+
+        for (int index = 0; index < keys.length; ++index)
+            keys[index] = PeptideKey.encode(peptides.get(index));
+
+        JamLogger.info("Writing [%d] peptides for [%d] alleles...", keys.length, alleles.size());
+    }
+
+    private void processAlleles() {
+        for (Allele allele : alleles)
+            processAllele(allele);
+    }
+
+    private void processAllele(Allele allele) {
+        double[] affinity = new double[keys.length];
+        double[] percentile = new double[keys.length];
+
+        AffinityCache cache = AffinityCache.instance(predMethod, allele);
+        List<List<Peptide>> subLists = ListUtil.split(peptides, BATCH_SIZE);
+
+        int index = 0;
+
+        for (List<Peptide> subList : subLists) {
+            for (AffinityRecord record : cache.require(subList)) {
+                Percentile rank = record.getPercentile();
+
+                affinity[index] = record.getAffinity().doubleValue();
+                percentile[index] = (rank != null) ? rank.doubleValue() : Double.NaN;
+
+                ++index;
+            }
+        }
+
+        writer.write(allele, affinity, percentile);
+
+        //
+        // The records are now in the columnar file, so release the
+        // in-memory copies before moving on to the next allele...
+        //
+        cache.clear();
+    }
+
+    public static void main(String[] args) {
+        AffinityColumnBank bank = new AffinityColumnBank(args);
+        bank.run();
+    }
+}
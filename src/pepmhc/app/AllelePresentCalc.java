@@ -2,7 +2,9 @@
 package pepmhc.app;
 
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import jam.app.JamLogger;
@@ -14,8 +16,13 @@ import jene.fasta.FastaPeptideRecord;
 import jene.hla.Allele;
 import jene.peptide.Peptide;
 
+import pepmhc.affy.AffinityCache;
 import pepmhc.affy.AffinityMethod;
 import pepmhc.affy.AffinityPredictor;
+import pepmhc.affy.AffinityRecord;
+import pepmhc.affy.smm.MatrixPredictor;
+import pepmhc.bind.PeptideKey;
+import pepmhc.bind.PeptideKeyMap;
 
 public final class AllelePresentCalc {
     private final int pepLen;
@@ -27,8 +34,15 @@ public final class AllelePresentCalc {
     private FastaPeptideReader fastaReader;
     private PrintWriter reportWriter;
     private Set<Peptide> pepFragments;
+    private List<Peptide> proteins;
     private int binderCount;
 
+    // Scanning state for matrix predictors: the fragments seen so far
+    // are tracked by packed key, and no fragment peptides are created...
+    private MatrixPredictor scanner;
+    private PeptideKeyMap<Boolean> scanFragments;
+    private int[] scanCodes;
+
     private AllelePresentCalc(String fastIn, AffinityMethod method, Allele allele, int pepLen) {
         this.fastIn = fastIn;
         this.method = method;
@@ -55,41 +69,101 @@ public final class AllelePresentCalc {
      */
     public static final double BINDING_THRESHOLD = 500.0;
 
+    private static final double LOG10_BINDING_THRESHOLD = Math.log10(BINDING_THRESHOLD);
+
     private void run() {
         predictor    = method.getPredictor();
         fastaReader  = FastaPeptideReader.open(fastIn);
         pepFragments = new HashSet<Peptide>();
+        proteins     = new ArrayList<Peptide>();
         binderCount  = 0;
 
+        if (predictor instanceof MatrixPredictor && pepLen <= PeptideKey.MAX_LENGTH) {
+            scanner = (MatrixPredictor) predictor;
+            scanFragments = new PeptideKeyMap<Boolean>();
+        }
+
         for (FastaPeptideRecord record : fastaReader)
             processPeptide(record.getPeptide());
 
+        if (scanner == null)
+            processProteins();
+
         reportWriter = IOUtil.openWriter(outputFile());
         reportWriter.println("method,allele,pepLen,fragmentCount,binderFrac");
         reportWriter.println(String.format("%s,%s,%d,%d,%8.6f",
                                            method,
                                            allele,
                                            pepLen,
-                                           pepFragments.size(),
-                                           DoubleUtil.ratio(binderCount, pepFragments.size())));
+                                           fragmentCount(),
+                                           DoubleUtil.ratio(binderCount, fragmentCount())));
 
         fastaReader.close();
         reportWriter.close();
     }
 
+    private int fragmentCount() {
+        return (scanner != null) ? scanFragments.size() : pepFragments.size();
+    }
+
     private void processPeptide(Peptide peptide) {
-        for (Peptide fragment : peptide.nativeFragments(pepLen))
-            processFragment(fragment);
+        if (scanner != null) {
+            scanPeptide(peptide);
+            return;
+        }
+
+        proteins.add(peptide);
+    }
+
+    private void processProteins() {
+        //
+        // Other predictors scan the whole protein collection at once
+        // (external programs cut the sequences into fragments themselves)
+        // and the records are stored in the affinity cache if one has
+        // been configured...
+        //
+        if (AffinityCache.cacheDir() != null) {
+            for (AffinityRecord record : AffinityCache.instance(method, allele).scan(proteins, pepLen))
+                processRecord(record);
+        }
+        else {
+            predictor.scan(allele, proteins, new int[] { pepLen }, this::processRecord);
+        }
+    }
+
+    private void scanPeptide(Peptide peptide) {
+        scanCodes = PeptideKey.codes(peptide);
+        scanner.scan(allele, scanCodes, new int[] { pepLen }, this::processWindow);
     }
 
-    private void processFragment(Peptide fragment) {
+    private void processWindow(int offset, int length, double log10IC50) {
         //
         // Do not double-count any duplicate fragments...
         //
+        long key = PeptideKey.encodeOrNone(scanCodes, offset, length);
+
+        if (scanFragments.containsKey(key))
+            return;
+
+        if (log10IC50 < LOG10_BINDING_THRESHOLD)
+            ++binderCount;
+
+        scanFragments.put(key, Boolean.TRUE);
+
+        if (scanFragments.size() % LOG_INTERVAL == 0)
+            JamLogger.info("Processed [%d] peptide fragments...", scanFragments.size());
+    }
+
+    private void processRecord(AffinityRecord record) {
+        //
+        // Do not double-count any duplicate fragments...
+        //
+        Peptide fragment = record.getPeptide();
+
         if (pepFragments.contains(fragment))
             return;
 
-        double ic50 = predictor.predict(allele, fragment).getAffinity().doubleValue();
+        double ic50 = record.getAffinity().doubleValue();
 
         if (ic50 < BINDING_THRESHOLD)
             ++binderCount;
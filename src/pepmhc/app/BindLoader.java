@@ -0,0 +1,265 @@
+
+package pepmhc.app;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jam.app.JamLogger;
+import jam.io.IOUtil;
+import jam.io.LineReader;
+import jam.lang.JamException;
+
+import jene.hla.Allele;
+import jene.peptide.Peptide;
+
+import pepmhc.affy.AffinityMethod;
+import pepmhc.affy.AffinityTable;
+import pepmhc.affy.net.NetMHCParser;
+import pepmhc.bind.BindRecord;
+import pepmhc.bind.BindTable;
+import pepmhc.bind.PeptideKey;
+import pepmhc.bind.PeptideKeyMap;
+import pepmhc.stab.StabilityMethod;
+import pepmhc.stab.StabilityTable;
+import pepmhc.stab.net.NetStabParser;
+
+/**
+ * Loads existing {@code netMHC}, {@code netMHCpan}, or {@code
+ * netMHCstabpan} output files into the persistent binding tables
+ * without running any predictions.
+ *
+ * <p>Output files are streamed row by row and the records are routed
+ * to the table for the allele named on each row.  Records accumulate
+ * in chunks, which are de-duplicated against the tables and stored
+ * with one call per allele.  After each chunk the number of committed
+ * rows in the current file is written to a checkpoint file (the file
+ * list name with suffix {@code .checkpoint}), so an interrupted load
+ * resumes where it stopped.  Records for peptides that cannot be
+ * packed into peptide keys are stored in the companion tables indexed
+ * by peptide string.
+ */
+public final class BindLoader {
+    private final String methodName;
+    private final String fileListName;
+    private final File checkpointFile;
+
+    private final Map<String, Long> checkpoint = new LinkedHashMap<String, Long>();
+    private final Map<Allele, BindTable<BindRecord>> tables = new HashMap<Allele, BindTable<BindRecord>>();
+    private final Map<Allele, Map<Long, BindRecord>> chunk = new LinkedHashMap<Allele, Map<Long, BindRecord>>();
+    private final Map<Allele, Map<Peptide, BindRecord>> textChunk = new LinkedHashMap<Allele, Map<Peptide, BindRecord>>();
+
+    private String currentFile;
+    private long currentRow;
+    private long committedRows;
+    private int chunkRows;
+
+    private long totalRead = 0;
+    private long totalStored = 0;
+    private long totalUnkeyed = 0;
+    private long startTime;
+
+    private static final int CHUNK_SIZE = 500000;
+    private static final long COMPLETE = -1L;
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    private BindLoader(String[] args) {
+        validate(args);
+
+        this.methodName = args[0];
+        this.fileListName = args[1];
+        this.checkpointFile = new File(fileListName + CHECKPOINT_SUFFIX);
+    }
+
+    private static void validate(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: pepmhc.app.BindLoader PREDICTION_METHOD FILE_LIST");
+            System.exit(1);
+        }
+    }
+
+    private void run() {
+        startTime = System.currentTimeMillis();
+
+        loadCheckpoint();
+
+        for (String fileName : loadFileList())
+            processFile(fileName);
+
+        JamLogger.info("Read [%d] rows, stored [%d] records ([%d] for unencodable peptides).",
+                       totalRead, totalStored, totalUnkeyed);
+        JamLogger.info("DONE!");
+    }
+
+    private List<String> loadFileList() {
+        List<String> fileNames = new ArrayList<String>();
+        LineReader reader = LineReader.open(fileListName);
+
+        for (String line : reader)
+            if (!line.trim().isEmpty())
+                fileNames.add(line.trim());
+
+        reader.close();
+        return fileNames;
+    }
+
+    private void loadCheckpoint() {
+        if (!checkpointFile.exists())
+            return;
+
+        LineReader reader = LineReader.open(checkpointFile);
+
+        for (String line : reader) {
+            String[] fields = line.split("\t");
+            checkpoint.put(fields[0], Long.parseLong(fields[1]));
+        }
+
+        reader.close();
+    }
+
+    private void saveCheckpoint() {
+        File tempFile = new File(checkpointFile.getPath() + ".tmp");
+        PrintWriter writer = IOUtil.openWriter(tempFile);
+
+        for (Map.Entry<String, Long> entry : checkpoint.entrySet())
+            writer.println(entry.getKey() + "\t" + entry.getValue());
+
+        writer.close();
+
+        try {
+            Files.move(tempFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (Exception ex) {
+            throw JamException.runtime(ex);
+        }
+    }
+
+    private void processFile(String fileName) {
+        long committed = checkpoint.getOrDefault(fileName, 0L);
+
+        if (committed == COMPLETE) {
+            JamLogger.info("Skipping completed file [%s]...", fileName);
+            return;
+        }
+
+        JamLogger.info("Loading [%s]...", fileName);
+
+        currentFile = fileName;
+        currentRow = 0;
+        committedRows = committed;
+
+        parseFile(IOUtil.openReader(fileName));
+        storeChunk();
+        BindTable.saveFilters();
+
+        checkpoint.put(fileName, COMPLETE);
+        saveCheckpoint();
+    }
+
+    private void parseFile(BufferedReader reader) {
+        if (methodName.equals(StabilityMethod.NET_MHC_STAB_PAN.name()))
+            NetStabParser.parse(reader, this::accept);
+        else if (methodName.equals(AffinityMethod.NET_MHC.name()) || methodName.equals(AffinityMethod.NET_MHC_PAN.name()))
+            NetMHCParser.parse(reader, this::accept);
+        else
+            throw JamException.runtime("Unsupported prediction method [%s].", methodName);
+    }
+
+    private void accept(Allele allele, BindRecord record) {
+        ++currentRow;
+
+        //
+        // Rows up to the checkpoint were committed by an earlier
+        // run...
+        //
+        if (currentRow <= committedRows)
+            return;
+
+        ++totalRead;
+        long key = PeptideKey.encodeOrNone(record.getPeptide());
+
+        if (key == PeptideKey.NONE)
+            textChunk.computeIfAbsent(allele, a -> new HashMap<Peptide, BindRecord>()).put(record.getPeptide(), record);
+        else
+            chunk.computeIfAbsent(allele, a -> new HashMap<Long, BindRecord>()).put(key, record);
+
+        if (++chunkRows >= CHUNK_SIZE)
+            storeChunk();
+    }
+
+    private void storeChunk() {
+        for (Map.Entry<Allele, Map<Long, BindRecord>> entry : chunk.entrySet())
+            storeRecords(getTable(entry.getKey()), entry.getValue());
+
+        for (Map.Entry<Allele, Map<Peptide, BindRecord>> entry : textChunk.entrySet())
+            storeText(getTable(entry.getKey()), entry.getValue());
+
+        chunk.clear();
+        textChunk.clear();
+        chunkRows = 0;
+
+        checkpoint.put(currentFile, currentRow);
+        saveCheckpoint();
+
+        double hours = (System.currentTimeMillis() - startTime) / 3600000.0;
+        JamLogger.info("Committed [%d] rows of [%s]; [%.0f] rows per hour.",
+                       currentRow, currentFile, totalRead / Math.max(hours, 1.0E-9));
+    }
+
+    private void storeRecords(BindTable<BindRecord> table, Map<Long, BindRecord> records) {
+        //
+        // Skip peptides already present in the table (the presence
+        // filter answers most of these queries without the database)...
+        //
+        PeptideKeyMap<BindRecord> existing = table.lookup(records.keySet());
+        List<BindRecord> fresh = new ArrayList<BindRecord>(records.size());
+
+        for (Map.Entry<Long, BindRecord> entry : records.entrySet())
+            if (!existing.containsKey(entry.getKey()))
+                fresh.add(entry.getValue());
+
+        table.store(fresh);
+        totalStored += fresh.size();
+    }
+
+    private void storeText(BindTable<BindRecord> table, Map<Peptide, BindRecord> records) {
+        Map<Peptide, BindRecord> existing = table.lookupText(records.keySet());
+        List<BindRecord> fresh = new ArrayList<BindRecord>(records.size());
+
+        for (Map.Entry<Peptide, BindRecord> entry : records.entrySet())
+            if (!existing.containsKey(entry.getKey()))
+                fresh.add(entry.getValue());
+
+        table.storeText(fresh);
+        totalStored += fresh.size();
+        totalUnkeyed += fresh.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private BindTable<BindRecord> getTable(Allele allele) {
+        BindTable<BindRecord> table = tables.get(allele);
+
+        if (table == null) {
+            if (methodName.equals(StabilityMethod.NET_MHC_STAB_PAN.name()))
+                table = (BindTable<BindRecord>) (BindTable<?>) StabilityTable.create(StabilityMethod.NET_MHC_STAB_PAN, allele);
+            else
+                table = (BindTable<BindRecord>) (BindTable<?>) AffinityTable.create(AffinityMethod.valueOf(methodName), allele);
+
+            tables.put(allele, table);
+        }
+
+        return table;
+    }
+
+    public static void main(String[] args) {
+        BindLoader loader = new BindLoader(args);
+        loader.run();
+    }
+}
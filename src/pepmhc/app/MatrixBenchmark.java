@@ -0,0 +1,121 @@
+
+package pepmhc.app;
+
+import java.util.Random;
+
+import jam.app.JamLogger;
+
+import jene.hla.Allele;
+
+import pepmhc.affy.AffinityMethod;
+import pepmhc.affy.smm.MatrixKernel;
+import pepmhc.affy.smm.StabilizedMatrix;
+import pepmhc.bind.PeptideKey;
+
+/**
+ * Measures the throughput of each stabilized matrix scoring kernel on
+ * random peptides.
+ */
+public final class MatrixBenchmark {
+    private final AffinityMethod method;
+    private final Allele allele;
+    private final int pepLen;
+    private final long pepCount;
+
+    private StabilizedMatrix matrix;
+    private int[] codes;
+    private double[] scores;
+
+    private static final int BLOCK_SIZE = 1000000;
+    private static final long RANDOM_SEED = 20190601L;
+
+    private MatrixBenchmark(AffinityMethod method, Allele allele, int pepLen, long pepCount) {
+        this.method = method;
+        this.allele = allele;
+        this.pepLen = pepLen;
+        this.pepCount = pepCount;
+    }
+
+    private void run() {
+        matrix = StabilizedMatrix.instance(method, allele, pepLen);
+        codes  = randomBlock();
+        scores = new double[BLOCK_SIZE];
+
+        //
+        // Warm up every kernel before timing any of them...
+        //
+        for (MatrixKernel kernel : MatrixKernel.values())
+            if (kernel.isAvailable())
+                time(kernel, 10L * BLOCK_SIZE);
+
+        double baseline = 0.0;
+
+        for (MatrixKernel kernel : MatrixKernel.values()) {
+            if (!kernel.isAvailable()) {
+                JamLogger.info("%-8s unavailable", kernel);
+                continue;
+            }
+
+            double rate = pepCount / time(kernel, pepCount);
+
+            if (kernel == MatrixKernel.SCALAR)
+                baseline = rate;
+
+            JamLogger.info("%-8s %12.4g peptides/sec (%.2fx)", kernel, rate, rate / baseline);
+        }
+    }
+
+    private int[] randomBlock() {
+        Random random = new Random(RANDOM_SEED);
+        int[] block = new int[BLOCK_SIZE * pepLen];
+
+        for (int index = 0; index < block.length; ++index)
+            block[index] = random.nextInt(PeptideKey.CODE_COUNT);
+
+        return block;
+    }
+
+    private double time(MatrixKernel kernel, long count) {
+        //
+        // Score the random block repeatedly; the checksum keeps the
+        // scores live...
+        //
+        double checksum = 0.0;
+        long remaining = count;
+        long start = System.nanoTime();
+
+        while (remaining > 0) {
+            int blockCount = (int) Math.min(remaining, BLOCK_SIZE);
+
+            matrix.computeLog10IC50(codes, blockCount, scores, kernel);
+            checksum += scores[blockCount - 1];
+            remaining -= blockCount;
+        }
+
+        double seconds = 1.0E-9 * (System.nanoTime() - start);
+
+        if (Double.isNaN(checksum))
+            JamLogger.warn("Invalid checksum.");
+
+        return seconds;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java pepmhc.app.MatrixBenchmark "
+                           + "PREDICTION_METHOD ALLELE_CODE PEPTIDE_LENGTH [PEPTIDE_COUNT]");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 3 && args.length != 4)
+            usage();
+
+        AffinityMethod method = AffinityMethod.valueOf(args[0].toUpperCase());
+        Allele allele = Allele.instance(args[1]);
+        int pepLen = Integer.parseInt(args[2]);
+        long pepCount = (args.length == 4) ? Long.parseLong(args[3]) : 100000000L;
+
+        MatrixBenchmark benchmark = new MatrixBenchmark(method, allele, pepLen, pepCount);
+        benchmark.run();
+    }
+}
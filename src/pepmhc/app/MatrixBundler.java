@@ -0,0 +1,24 @@
+
+package pepmhc.app;
+
+import pepmhc.affy.AffinityMethod;
+import pepmhc.affy.smm.MatrixBundle;
+
+/**
+ * Packs the stabilized matrix text files for one or more prediction
+ * methods into their binary bundles.
+ */
+public final class MatrixBundler {
+    private static void usage() {
+        System.err.println("Usage: java pepmhc.app.MatrixBundler PREDICTION_METHOD [PREDICTION_METHOD ...]");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1)
+            usage();
+
+        for (String arg : args)
+            MatrixBundle.write(AffinityMethod.valueOf(arg.toUpperCase()));
+    }
+}
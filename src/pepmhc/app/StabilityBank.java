@@ -9,6 +9,9 @@ import jam.util.ListUtil;
 import jene.hla.Allele;
 import jene.peptide.Peptide;
 
+import pepmhc.bind.BindTable;
+import pepmhc.proc.ExecPolicy;
+import pepmhc.proc.Quarantine;
 import pepmhc.stab.StabilityMethod;
 import pepmhc.stab.StabilityStore;
 
@@ -65,18 +68,30 @@ public final class StabilityBank {
     private void processAllele(Allele allele) {
         //
         // Just get the results from the stability store, to enforce
-        // calculation on demand, but ignore the returned records...
+        // calculation on demand, but ignore the returned records.
+        // Failed batches are bisected, so that only the peptides that
+        // cause the failure are lost...
         //
+        String name = method + ":" + allele;
+
         try {
             List<List<Peptide>> subLists = ListUtil.split(peptides, BATCH_SIZE);
+            StabilityStore store = StabilityStore.instance(method, allele);
 
             for (List<Peptide> subList : subLists)
-                StabilityStore.instance(method, allele).get(subList);
+                ExecPolicy.global().bisect(name, subList, store::get);
+
+            BindTable.saveFilters();
         }
         catch (Exception ex) {
             JamLogger.error("Stability calculation failed for allele [%s].", allele);
             JamLogger.error(ex.getMessage());
         }
+
+        int quarantined = Quarantine.get(name).size();
+
+        if (quarantined > 0)
+            JamLogger.warn("Quarantined [%d] peptides for allele [%s].", quarantined, allele);
     }
 
     public static void main(String[] args) {
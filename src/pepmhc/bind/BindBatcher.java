@@ -0,0 +1,416 @@
+
+package pepmhc.bind;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import jam.app.JamLogger;
+import jam.app.JamProperties;
+import jam.lang.JamException;
+
+import jene.hla.Allele;
+import jene.peptide.Peptide;
+
+/**
+ * Coalesces concurrent prediction requests for one predictor and
+ * allele into fewer, larger predictor calls.
+ *
+ * <p>External predictors (see {@link BindPredictor#isExternal()})
+ * pay the start-up cost of a command-line program on every call, so
+ * many small concurrent calls (one per tumor, for example) spend most
+ * of their time starting processes.  A batcher holds each request
+ * for a short window (or until the pending peptides reach a size
+ * threshold), predicts the distinct peptides from every pending
+ * request in one call, and completes each request with its own
+ * records.  If the batch prediction fails, each request is predicted
+ * on its own, so that one bad peptide fails only the requests that
+ * contain it.
+ *
+ * <p>Batching is disabled by default.  The window and size threshold
+ * are specified by the system properties {@code pepmhc.batchWindow}
+ * (in milliseconds) and {@code pepmhc.batchSize}; a positive window
+ * enables batching.  Batches are predicted by at most {@code
+ * pepmhc.batchThreads} threads at a time.
+ *
+ * @param <R> the type of binding record (affinity or stability)
+ * produced by the predictor.
+ */
+public final class BindBatcher<R extends BindRecord> {
+    private final BindPredictor<R> predictor;
+    private final Allele allele;
+    private final long window;
+    private final int batchSize;
+
+    // The batch accepting new requests, if any...
+    private Batch open = null;
+
+    private static final ConcurrentMap<Enum<?>, ConcurrentMap<Allele, BindBatcher<?>>> instances =
+        new ConcurrentHashMap<Enum<?>, ConcurrentMap<Allele, BindBatcher<?>>>();
+
+    private static ScheduledExecutorService timer = null;
+    private static ExecutorService executor = null;
+
+    /**
+     * Name of the system property that specifies how long the first
+     * request in a batch waits for others, in milliseconds.
+     */
+    public static final String WINDOW_PROPERTY = "pepmhc.batchWindow";
+
+    /**
+     * Name of the system property that specifies the number of
+     * distinct pending peptides that triggers a predictor call before
+     * the window expires.
+     */
+    public static final String BATCH_SIZE_PROPERTY = "pepmhc.batchSize";
+
+    /**
+     * Name of the system property that specifies the maximum number
+     * of batches predicted concurrently.
+     */
+    public static final String THREADS_PROPERTY = "pepmhc.batchThreads";
+
+    /**
+     * Default batching window in milliseconds (batching is disabled
+     * unless a positive window is specified).
+     */
+    public static final long WINDOW_DEFAULT = 0L;
+
+    /**
+     * Default number of distinct pending peptides that triggers a
+     * predictor call before the window expires.
+     */
+    public static final int BATCH_SIZE_DEFAULT = 50000;
+
+    private BindBatcher(BindPredictor<R> predictor, Allele allele, long window, int batchSize) {
+        if (window <= 0)
+            throw JamException.runtime("Batching window must be positive.");
+
+        if (batchSize < 1)
+            throw JamException.runtime("Batch size must be positive.");
+
+        this.predictor = predictor;
+        this.allele = allele;
+        this.window = window;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Creates a new batcher with explicit settings (independent of the
+     * shared instances returned by {@link #instance(BindPredictor,
+     * Allele)}).
+     *
+     * @param <R> the type of binding record produced by the predictor.
+     *
+     * @param predictor the predictor to call.
+     *
+     * @param allele the allele for every request.
+     *
+     * @param window the batching window in milliseconds.
+     *
+     * @param batchSize the number of distinct pending peptides that
+     * triggers a predictor call before the window expires.
+     *
+     * @return the new batcher.
+     */
+    public static <R extends BindRecord> BindBatcher<R> create(BindPredictor<R> predictor,
+                                                               Allele allele,
+                                                               long window,
+                                                               int batchSize) {
+        return new BindBatcher<R>(predictor, allele, window, batchSize);
+    }
+
+    /**
+     * Returns the shared batcher for a predictor and allele, creating
+     * it with the global settings if necessary.
+     *
+     * @param <R> the type of binding record produced by the predictor.
+     *
+     * @param predictor the predictor to call.
+     *
+     * @param allele the allele for every request.
+     *
+     * @return the shared batcher for the specified predictor and allele.
+     *
+     * @throws RuntimeException if batching is disabled.
+     */
+    @SuppressWarnings("unchecked")
+    public static <R extends BindRecord> BindBatcher<R> instance(BindPredictor<R> predictor, Allele allele) {
+        ConcurrentMap<Allele, BindBatcher<?>> alleleMap =
+            instances.computeIfAbsent(predictor.getMethod(), method -> new ConcurrentHashMap<Allele, BindBatcher<?>>());
+
+        return (BindBatcher<R>) alleleMap.computeIfAbsent(allele, key -> create(predictor, key, window(), batchSize()));
+    }
+
+    /**
+     * Computes binding records through the shared batcher for external
+     * predictors (when batching is enabled) or directly otherwise.
+     *
+     * @param <R> the type of binding record produced by the predictor.
+     *
+     * @param predictor the predictor to call.
+     *
+     * @param allele the receiving allele.
+     *
+     * @param peptides the presented peptides.
+     *
+     * @return the binding records for the presented peptides (in the
+     * order returned by the collection iterator).
+     */
+    public static <R extends BindRecord> List<R> predict(BindPredictor<R> predictor,
+                                                         Allele allele,
+                                                         Collection<Peptide> peptides) {
+        if (predictor.isExternal() && window() > 0)
+            return instance(predictor, allele).predict(peptides);
+        else
+            return predictor.predict(allele, peptides);
+    }
+
+    /**
+     * Returns the global batching window.
+     *
+     * @return the global batching window in milliseconds ({@code 0}
+     * if batching is disabled).
+     */
+    public static long window() {
+        if (JamProperties.isSet(WINDOW_PROPERTY))
+            return JamProperties.getRequiredInt(WINDOW_PROPERTY);
+        else
+            return WINDOW_DEFAULT;
+    }
+
+    /**
+     * Returns the global batch size threshold.
+     *
+     * @return the number of distinct pending peptides that triggers a
+     * predictor call before the window expires.
+     */
+    public static int batchSize() {
+        if (JamProperties.isSet(BATCH_SIZE_PROPERTY))
+            return JamProperties.getRequiredInt(BATCH_SIZE_PROPERTY);
+        else
+            return BATCH_SIZE_DEFAULT;
+    }
+
+    /**
+     * Returns the maximum number of batches predicted concurrently.
+     *
+     * @return the maximum number of batches predicted concurrently.
+     */
+    public static int threadCount() {
+        if (JamProperties.isSet(THREADS_PROPERTY))
+            return JamProperties.getRequiredInt(THREADS_PROPERTY);
+        else
+            return Runtime.getRuntime().availableProcessors();
+    }
+
+    private static synchronized ScheduledExecutorService timer() {
+        if (timer == null)
+            timer = Executors.newSingleThreadScheduledExecutor(runnable -> daemon(runnable, "BindBatcher-timer"));
+
+        return timer;
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (executor == null)
+            executor = Executors.newFixedThreadPool(threadCount(), runnable -> daemon(runnable, "BindBatcher"));
+
+        return executor;
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Computes binding records for a collection of peptides, waiting
+     * for the batch that contains them to be predicted.
+     *
+     * @param peptides the presented peptides.
+     *
+     * @return the binding records for the presented peptides (in the
+     * order returned by the collection iterator).
+     *
+     * @throws RuntimeException if the batch prediction fails.
+     */
+    public List<R> predict(Collection<Peptide> peptides) {
+        try {
+            return submit(peptides).join();
+        }
+        catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            else
+                throw JamException.runtime(ex.getCause());
+        }
+    }
+
+    /**
+     * Submits a prediction request.
+     *
+     * @param peptides the presented peptides.
+     *
+     * @return a future that is completed with the binding records for
+     * the presented peptides (in the order returned by the collection
+     * iterator) or with the failure of the batch prediction.
+     */
+    public CompletableFuture<List<R>> submit(Collection<Peptide> peptides) {
+        Request request = new Request(peptides);
+
+        if (request.peptides.isEmpty()) {
+            request.future.complete(List.of());
+            return request.future;
+        }
+
+        Batch full = null;
+
+        synchronized (this) {
+            if (open == null) {
+                Batch batch = new Batch();
+                open = batch;
+                timer().schedule(() -> expire(batch), window, TimeUnit.MILLISECONDS);
+            }
+
+            open.add(request);
+
+            if (open.peptides.size() >= batchSize) {
+                full = open;
+                open = null;
+            }
+        }
+
+        if (full != null)
+            dispatch(full);
+
+        return request.future;
+    }
+
+    private void expire(Batch batch) {
+        synchronized (this) {
+            //
+            // The batch may have been dispatched early when it reached
+            // the size threshold...
+            //
+            if (open != batch)
+                return;
+
+            open = null;
+        }
+
+        dispatch(batch);
+    }
+
+    private void dispatch(Batch batch) {
+        executor().execute(() -> batch.run());
+    }
+
+    private final class Request {
+        private final List<Peptide> peptides;
+        private final CompletableFuture<List<R>> future;
+
+        private Request(Collection<Peptide> peptides) {
+            this.peptides = new ArrayList<Peptide>(peptides);
+            this.future = new CompletableFuture<List<R>>();
+        }
+
+        private void complete(Map<Peptide, R> recordMap) {
+            List<R> records = new ArrayList<R>(peptides.size());
+
+            for (Peptide peptide : peptides) {
+                R record = recordMap.get(peptide);
+
+                if (record == null) {
+                    future.completeExceptionally(JamException.runtime("Binding prediction failed for allele [%s].", allele));
+                    return;
+                }
+
+                records.add(record);
+            }
+
+            future.complete(records);
+        }
+    }
+
+    private final class Batch {
+        private final List<Request> requests = new ArrayList<Request>();
+        private final Set<Peptide> peptides = new LinkedHashSet<Peptide>();
+
+        private void add(Request request) {
+            requests.add(request);
+            peptides.addAll(request.peptides);
+        }
+
+        private void run() {
+            JamLogger.info("Predicting [%d] peptides from [%d] requests for allele [%s]...",
+                           peptides.size(), requests.size(), allele);
+
+            Map<Peptide, R> recordMap = new HashMap<Peptide, R>(2 * peptides.size());
+
+            try {
+                for (R record : predictor.predict(allele, new ArrayList<Peptide>(peptides)))
+                    recordMap.put(record.getPeptide(), record);
+            }
+            catch (RuntimeException ex) {
+                if (requests.size() == 1) {
+                    requests.get(0).future.completeExceptionally(ex);
+                    return;
+                }
+
+                JamLogger.warn("Batch prediction of [%d] requests failed for allele [%s]: %s; predicting each request separately...",
+                               requests.size(), allele, ex.getMessage());
+
+                for (Request request : requests)
+                    runAlone(request, recordMap);
+
+                return;
+            }
+            catch (Error error) {
+                for (Request request : requests)
+                    request.future.completeExceptionally(error);
+
+                return;
+            }
+
+            for (Request request : requests)
+                request.complete(recordMap);
+        }
+
+        private void runAlone(Request request, Map<Peptide, R> recordMap) {
+            //
+            // Peptides already predicted for an earlier request in the
+            // batch are not predicted again...
+            //
+            Set<Peptide> missing = new LinkedHashSet<Peptide>();
+
+            for (Peptide peptide : request.peptides)
+                if (!recordMap.containsKey(peptide))
+                    missing.add(peptide);
+
+            try {
+                if (!missing.isEmpty())
+                    for (R record : predictor.predict(allele, new ArrayList<Peptide>(missing)))
+                        recordMap.put(record.getPeptide(), record);
+            }
+            catch (RuntimeException | Error ex) {
+                request.future.completeExceptionally(ex);
+                return;
+            }
+
+            request.complete(recordMap);
+        }
+    }
+}
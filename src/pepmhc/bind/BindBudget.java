@@ -0,0 +1,115 @@
+
+package pepmhc.bind;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jam.app.JamLogger;
+import jam.app.JamProperties;
+
+/**
+ * Enforces one global limit on the number of binding records held in
+ * memory by all binding caches.
+ *
+ * <p>Every {@link BindCache} registers itself here and reports the
+ * records that it adds and removes.  When the total exceeds the
+ * capacity (the system property {@code pepmhc.cacheCapacity}; zero,
+ * the default, means unlimited), each cache sheds its least recently
+ * used records, in proportion to its size, until the total falls to
+ * ninety percent of the capacity.  Evicted records remain available
+ * from the persistent tables.
+ */
+public final class BindBudget {
+    private BindBudget() {}
+
+    private static final long capacity = resolveCapacity();
+    private static final AtomicLong size = new AtomicLong();
+
+    private static final Set<BindCache<?>> caches =
+        Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<BindCache<?>, Boolean>()));
+
+    private static final Object evictionLock = new Object();
+
+    /**
+     * Name of the system property that specifies the maximum number
+     * of binding records held in memory by all caches.
+     */
+    public static final String CAPACITY_PROPERTY = "pepmhc.cacheCapacity";
+
+    /**
+     * Fraction of the capacity to which the total is reduced when the
+     * capacity is exceeded.
+     */
+    public static final double LOW_WATER_FRACTION = 0.9;
+
+    private static long resolveCapacity() {
+        if (JamProperties.isSet(CAPACITY_PROPERTY))
+            return Long.parseLong(JamProperties.getRequired(CAPACITY_PROPERTY));
+        else
+            return 0L;
+    }
+
+    /**
+     * Returns the maximum number of records held in memory by all
+     * caches.
+     *
+     * @return the maximum number of records held in memory by all
+     * caches ({@code 0} if unlimited).
+     */
+    public static long capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of records held in memory by all caches.
+     *
+     * @return the number of records held in memory by all caches.
+     */
+    public static long size() {
+        return size.get();
+    }
+
+    static void register(BindCache<?> cache) {
+        caches.add(cache);
+    }
+
+    static void add(long delta) {
+        size.addAndGet(delta);
+    }
+
+    /**
+     * Evicts records from the registered caches if the total exceeds
+     * the capacity.  Callers must not hold the lock of any cache.
+     */
+    public static void enforce() {
+        if (capacity <= 0 || size.get() <= capacity)
+            return;
+
+        synchronized (evictionLock) {
+            long total = size.get();
+
+            if (total <= capacity)
+                return;
+
+            long excess = total - (long) (LOW_WATER_FRACTION * capacity);
+            JamLogger.info("Evicting [%d] cached binding records...", excess);
+
+            for (BindCache<?> cache : snapshot()) {
+                long share = (long) Math.ceil((double) excess * cache.size() / total);
+
+                if (share > 0)
+                    cache.evict((int) Math.min(share, Integer.MAX_VALUE));
+            }
+        }
+    }
+
+    private static List<BindCache<?>> snapshot() {
+        synchronized (caches) {
+            return new ArrayList<BindCache<?>>(caches);
+        }
+    }
+}
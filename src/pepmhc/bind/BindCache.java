@@ -1,11 +1,22 @@
 
 package pepmhc.bind;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
-import jam.sql.SQLCache;
-import jam.sql.SQLKeyTable;
+import jam.app.JamProperties;
+import jam.lang.JamException;
+import jam.math.Percentile;
 
 import jene.hla.Allele;
 import jene.peptide.Peptide;
@@ -14,19 +25,43 @@ import jene.peptide.Peptide;
  * Provides a compute-on-demand service, in-memory caching, and
  * persistent storage for peptide-MHC binding records.
  *
+ * <p>Cached records are indexed by packed peptide key (see {@link
+ * PeptideKey}) so that cache hits never hash or compare whole peptide
+ * objects.  By default the records themselves are held on the heap;
+ * if the system property {@code pepmhc.offHeapCache} is {@code true},
+ * only their primitive attributes are held, in native memory (see
+ * {@link OffHeapRecordMap}), and record objects are created only when
+ * callers request them.  Threshold tests through {@link
+ * #count(Collection, BindFilter)} never create record objects.
+ *
+ * <p>All caches share one memory budget (see {@link BindBudget}):
+ * when it is exceeded, the least recently used records are evicted
+ * from memory and are read again from the persistent table on demand.
+ *
+ * <p>Concurrent requests that miss on the same peptide share a single
+ * retrieval (and prediction), and no lock is held while records are
+ * read from the database or computed.
+ *
  * @param <R> the type of binding record (affinity or stability)
  * to cache.
  */
-public abstract class BindCache<R extends BindRecord> extends SQLCache<Peptide, R> {
-    /**
-     * The allele served by this cache.
-     */
-    protected final Allele allele;
+public abstract class BindCache<R extends BindRecord> extends BindStore<R> {
+    // Exactly one of the keyed tiers is in use...
+    private final PeptideKeyMap<R> heapTier;
+    private final OffHeapRecordMap offHeapTier;
+
+    // Records for the (rare) peptides that cannot be packed into keys,
+    // in access order...
+    private final Map<Peptide, R> unkeyed = new LinkedHashMap<Peptide, R>(16, 0.75F, true);
+
+    // Retrievals in progress, shared by concurrent requests...
+    private final Map<Peptide, CompletableFuture<R>> inFlight = new HashMap<Peptide, CompletableFuture<R>>();
 
     /**
-     * The predictor serving this cache.
+     * Name of the system property that selects the off-heap cache
+     * tier.
      */
-    protected final BindPredictor<R> predictor;
+    public static final String OFF_HEAP_PROPERTY = "pepmhc.offHeapCache";
 
     /**
      * Creates a new record cache for a given allele and predictor.
@@ -37,53 +72,543 @@ public abstract class BindCache<R extends BindRecord> extends SQLCache<Peptide,
      *
      * @param allele the allele served by this cache.
      */
-    protected BindCache(SQLKeyTable<Peptide, R> table, BindPredictor<R> predictor, Allele allele) {
-        super(table);
+    protected BindCache(BindTable<R> table, BindPredictor<R> predictor, Allele allele) {
+        super(table, predictor, allele);
+
+        if (isOffHeap()) {
+            this.heapTier = null;
+            this.offHeapTier = new OffHeapRecordMap();
+        }
+        else {
+            this.heapTier = new PeptideKeyMap<R>();
+            this.offHeapTier = null;
+        }
+
+        BindBudget.register(this);
+    }
+
+    /**
+     * Determines whether new caches hold their records off the heap.
+     *
+     * @return {@code true} iff new caches hold their records off the
+     * heap.
+     */
+    public static boolean isOffHeap() {
+        return JamProperties.getOptionalBoolean(OFF_HEAP_PROPERTY, false);
+    }
+
+    /**
+     * Creates a binding record from its primitive attributes (when
+     * materializing records held off the heap).
+     *
+     * @param peptide the peptide described by the record.
+     *
+     * @param strength the binding strength (affinity or stability
+     * metric).
+     *
+     * @param percentile the percentile rank of the binding strength
+     * ({@code null} if the rank is unknown).
+     *
+     * @return a new binding record with the specified attributes.
+     */
+    protected abstract R newRecord(Peptide peptide, double strength, Percentile percentile);
+
+    /**
+     * Returns the runtime class of the cached records.
+     *
+     * @return the runtime class of the cached records.
+     */
+    public abstract Class getRecordClass();
+
+    /**
+     * Removes all records from memory (but retains all persistent
+     * records).
+     */
+    public synchronized void clear() {
+        BindBudget.add(-size());
+
+        if (offHeapTier != null)
+            offHeapTier.clear();
+        else
+            heapTier.clear();
+
+        unkeyed.clear();
+    }
+
+    /**
+     * Evicts the least recently used records from memory.
+     *
+     * @param count the number of records to evict.
+     *
+     * @return the number of records evicted.
+     */
+    public synchronized int evict(int count) {
+        int evicted;
+
+        if (offHeapTier != null)
+            evicted = offHeapTier.evict(count);
+        else
+            evicted = heapTier.evict(count);
+
+        // Records for unencodable peptides go last, least recently
+        // used first...
+        Iterator<R> iterator = unkeyed.values().iterator();
+
+        while (evicted < count && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            ++evicted;
+        }
+
+        BindBudget.add(-evicted);
+        return evicted;
+    }
+
+    private int keyedSize() {
+        if (offHeapTier != null)
+            return offHeapTier.size();
+        else
+            return heapTier.size();
+    }
+
+    /**
+     * Returns the number of records held in memory.
+     *
+     * @return the number of records held in memory.
+     */
+    public synchronized int size() {
+        return keyedSize() + unkeyed.size();
+    }
+
+    /**
+     * Counts the peptides whose binding records pass a filter, without
+     * creating record objects for cached peptides.
+     *
+     * @param peptides the peptides to examine (missing records are
+     * retrieved or computed and cached).
+     *
+     * @param filter the filter to apply.
+     *
+     * @return the number of peptides in the input collection (counting
+     * duplicates) whose binding records pass the filter.
+     */
+    public int count(Collection<Peptide> peptides, BindFilter filter) {
+        int result = 0;
+        List<Peptide> missing = new ArrayList<Peptide>();
+
+        synchronized (this) {
+            for (Peptide peptide : peptides) {
+                Boolean accepted = accept(peptide, filter);
+
+                if (accepted == null)
+                    missing.add(peptide);
+                else if (accepted)
+                    ++result;
+            }
+        }
+
+        metrics.hits(peptides.size() - missing.size());
+        metrics.misses(missing.size());
+
+        if (!missing.isEmpty())
+            for (R record : require(missing))
+                if (accept(record, filter))
+                    ++result;
+
+        return result;
+    }
+
+    private Boolean accept(Peptide peptide, BindFilter filter) {
+        long key = PeptideKey.encodeOrNone(peptide);
+
+        if (key != PeptideKey.NONE && offHeapTier != null) {
+            int slot = offHeapTier.find(key);
+
+            if (slot < 0)
+                return null;
+            else
+                return filter.accept(offHeapTier.strength(slot), offHeapTier.percentile(slot));
+        }
+
+        R record = (key != PeptideKey.NONE) ? heapTier.get(key) : unkeyed.get(peptide);
+
+        if (record == null)
+            return null;
+        else
+            return accept(record, filter);
+    }
+
+    private static boolean accept(BindRecord record, BindFilter filter) {
+        double percentile = record.hasPercentile() ? record.getPercentile().doubleValue() : Double.NaN;
+        return filter.accept(record.getStrength(), percentile);
+    }
+
+    /**
+     * Claims the retrieval of the peptides whose binding records are
+     * neither in memory, nor in persistent storage, nor already being
+     * retrieved by another thread.  Stored records found along the way
+     * are loaded into memory.
+     *
+     * <p>Other threads that request a claimed peptide wait for its
+     * record, so the caller must settle every claimed peptide by
+     * calling {@link #complete(Set, Collection)} (with records that it
+     * computed itself), {@link #resolve(Set)}, or {@link #abandon(Set,
+     * RuntimeException)}.
+     *
+     * @param peptides the peptides of interest.
+     *
+     * @return the distinct claimed peptides (in the order returned by
+     * the collection iterator).
+     */
+    public Set<Peptide> claimMissing(Collection<Peptide> peptides) {
+        Map<Peptide, CompletableFuture<R>> owned = new LinkedHashMap<Peptide, CompletableFuture<R>>();
+
+        synchronized (this) {
+            for (Peptide peptide : peptides) {
+                if (owned.containsKey(peptide) || inFlight.containsKey(peptide) || lookup(peptide) != null)
+                    continue;
+
+                CompletableFuture<R> future = new CompletableFuture<R>();
+
+                inFlight.put(peptide, future);
+                owned.put(peptide, future);
+            }
+        }
+
+        if (owned.isEmpty())
+            return new LinkedHashSet<Peptide>();
+
+        List<R> found;
+
+        try {
+            found = findStored(owned.keySet());
+        }
+        catch (RuntimeException ex) {
+            abandon(owned.keySet(), ex);
+            throw ex;
+        }
+
+        addAll(found);
+        settle(found);
+
+        for (R record : found)
+            owned.remove(record.getPeptide());
+
+        return new LinkedHashSet<Peptide>(owned.keySet());
+    }
+
+    /**
+     * Adds records that were computed outside of this cache for
+     * claimed peptides (see {@link #claimMissing(Collection)}) to
+     * memory and to the persistent store, and passes them to the
+     * threads waiting for them.
+     *
+     * @param claimed the claimed peptides.
+     *
+     * @param records the computed records for the claimed peptides.
+     *
+     * @throws RuntimeException unless there is a record for every
+     * claimed peptide (in which case the peptides without records are
+     * abandoned).
+     */
+    public void complete(Set<Peptide> claimed, Collection<R> records) {
+        add(records);
+        settle(records);
+
+        Set<Peptide> unsettled = new LinkedHashSet<Peptide>(claimed);
+
+        for (R record : records)
+            unsettled.remove(record.getPeptide());
+
+        if (!unsettled.isEmpty()) {
+            RuntimeException ex =
+                JamException.runtime("No records computed for [%d] peptides and allele [%s].", unsettled.size(), allele);
+
+            abandon(unsettled, ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Computes the records for claimed peptides (see {@link
+     * #claimMissing(Collection)}) with the predictor serving this
+     * cache, and passes them to the threads waiting for them.
+     *
+     * @param claimed the claimed peptides.
+     *
+     * @throws RuntimeException if the records cannot be computed (in
+     * which case the claimed peptides are abandoned).
+     */
+    public void resolve(Set<Peptide> claimed) {
+        Map<Peptide, CompletableFuture<R>> owned = new LinkedHashMap<Peptide, CompletableFuture<R>>();
+
+        synchronized (this) {
+            for (Peptide peptide : claimed)
+                owned.put(peptide, inFlight.get(peptide));
+        }
+
+        resolve(owned);
+    }
+
+    /**
+     * Releases claimed peptides (see {@link #claimMissing(Collection)})
+     * without computing their records: the threads waiting for them
+     * fail with an exception.
+     *
+     * @param claimed the claimed peptides.
+     *
+     * @param cause the reason that the records were not computed.
+     */
+    public synchronized void abandon(Set<Peptide> claimed, RuntimeException cause) {
+        for (Peptide peptide : claimed) {
+            CompletableFuture<R> future = inFlight.remove(peptide);
+
+            if (future != null)
+                future.completeExceptionally(cause);
+        }
+    }
+
+    private synchronized void settle(Collection<R> records) {
+        for (R record : records) {
+            CompletableFuture<R> future = inFlight.remove(record.getPeptide());
 
-        this.allele = allele;
-        this.predictor = predictor;
+            if (future != null)
+                future.complete(record);
+        }
+    }
+
+    /**
+     * Adds records that were computed outside of this cache (for
+     * example, by a multi-allele prediction) to memory and to the
+     * persistent store.
+     *
+     * @param records the computed records to add.
+     */
+    public void add(Collection<R> records) {
+        persist(records);
+        addAll(records);
     }
 
     /**
-     * Returns the HLA allele served by this cache.
+     * Retrieves the binding records for every native fragment of a
+     * collection of proteins.  Fragments without stored records are
+     * computed by a single protein scan (see {@link
+     * BindPredictor#scan(Allele, Collection, int[], java.util.function.Consumer)})
+     * over the proteins that contain them, so predictors that window
+     * protein sequences themselves never receive the fragments one
+     * line at a time; the computed records are stored in memory and
+     * in the persistent store.  The missing fragments are claimed (see
+     * {@link #claimMissing(Collection)}) for the duration of the scan,
+     * so concurrent requests for them wait for its records.
+     *
+     * @param proteins the protein sequences to scan.
+     *
+     * @param lengths the fragment lengths to scan.
+     *
+     * @return the binding records for the distinct native fragments
+     * of the specified lengths (in order of first occurrence).
      *
-     * @return the HLA allele served by this cache.
+     * @throws RuntimeException if the protein scan does not cover
+     * every missing fragment.
      */
-    public Allele getAllele() {
-        return allele;
+    public List<R> scan(Collection<Peptide> proteins, int... lengths) {
+        Set<Peptide> fragments = BindPredictor.fragments(proteins, lengths);
+        Set<Peptide> claimed = claimMissing(fragments);
+
+        if (!claimed.isEmpty()) {
+            Set<Peptide> missing = new HashSet<Peptide>(claimed);
+            List<Peptide> targets = new ArrayList<Peptide>();
+
+            for (Peptide protein : proteins)
+                if (containsAny(protein, lengths, missing))
+                    targets.add(protein);
+
+            List<R> computed = new ArrayList<R>(missing.size());
+
+            try {
+                predictor.scan(allele, targets, lengths, record -> {
+                        if (missing.remove(record.getPeptide()))
+                            computed.add(record);
+                    });
+            }
+            catch (RuntimeException ex) {
+                abandon(claimed, ex);
+                throw ex;
+            }
+
+            // Fragments that the scan did not cover are abandoned...
+            complete(claimed, computed);
+        }
+
+        return require(fragments);
+    }
+
+    private static boolean containsAny(Peptide protein, int[] lengths, Set<Peptide> fragments) {
+        for (int length : lengths)
+            for (Peptide fragment : protein.nativeFragments(length))
+                if (fragments.contains(fragment))
+                    return true;
+
+        return false;
+    }
+
+    private void addAll(Collection<R> records) {
+        synchronized (this) {
+            int initialSize = size();
+
+            for (R record : records)
+                cache(record);
+
+            BindBudget.add(size() - initialSize);
+        }
+
+        BindBudget.enforce();
     }
 
     /**
-     * Returns the prediction method used to compute new records.
+     * Retrieves the binding record for a peptide from memory, from
+     * persistent storage, or by computing it (in that order).
+     *
+     * @param peptide the peptide of interest.
      *
-     * @return the predictor method used to compute new records.
+     * @return the binding record for the specified peptide.
      */
-    public Enum getMethod() {
-        return predictor.getMethod();
+    public R require(Peptide peptide) {
+        return require(List.of(peptide)).get(0);
     }
 
     /**
-     * Returns the predictor used to compute new records.
+     * Retrieves the binding records for a collection of peptides from
+     * memory, from persistent storage, or by computing them (in that
+     * order).
      *
-     * @return the predictor used to compute new records.
+     * <p>The cache is locked only while memory is examined or updated.
+     * Peptides that are already being retrieved by another thread are
+     * not retrieved again: this thread waits for the result instead.
+     *
+     * @param peptides the peptides of interest.
+     *
+     * @return the binding records for the specified peptides (in the
+     * order returned by the collection iterator).
      */
-    public BindPredictor<R> getPredictor() {
-        return predictor;
+    public List<R> require(Collection<Peptide> peptides) {
+        List<R> records = new ArrayList<R>(peptides.size());
+        List<CompletableFuture<R>> pending = new ArrayList<CompletableFuture<R>>(peptides.size());
+        Map<Peptide, CompletableFuture<R>> owned = new LinkedHashMap<Peptide, CompletableFuture<R>>();
+
+        int misses = 0;
+
+        synchronized (this) {
+            for (Peptide peptide : peptides) {
+                R record = lookup(peptide);
+                CompletableFuture<R> future = null;
+
+                if (record == null) {
+                    ++misses;
+                    future = inFlight.get(peptide);
+
+                    if (future == null) {
+                        future = new CompletableFuture<R>();
+                        inFlight.put(peptide, future);
+                        owned.put(peptide, future);
+                    }
+                }
+
+                records.add(record);
+                pending.add(future);
+            }
+        }
+
+        metrics.hits(records.size() - misses);
+        metrics.misses(misses);
+
+        if (!owned.isEmpty())
+            resolve(owned);
+
+        for (int index = 0; index < records.size(); ++index)
+            if (pending.get(index) != null)
+                records.set(index, await(pending.get(index)));
+
+        return records;
     }
 
-    @Override public String getName() {
-        return getAllele() + ":" + getMethod();
+    private void resolve(Map<Peptide, CompletableFuture<R>> owned) {
+        List<R> computed;
+
+        try {
+            computed = get(owned.keySet());
+        }
+        catch (RuntimeException ex) {
+            synchronized (this) {
+                for (Map.Entry<Peptide, CompletableFuture<R>> entry : owned.entrySet()) {
+                    inFlight.remove(entry.getKey());
+                    entry.getValue().completeExceptionally(ex);
+                }
+            }
+
+            throw ex;
+        }
+
+        synchronized (this) {
+            int initialSize = size();
+            Iterator<R> iterator = computed.iterator();
+
+            for (Map.Entry<Peptide, CompletableFuture<R>> entry : owned.entrySet()) {
+                R record = iterator.next();
+
+                cache(record);
+                inFlight.remove(entry.getKey());
+                entry.getValue().complete(record);
+            }
+
+            BindBudget.add(size() - initialSize);
+        }
+
+        BindBudget.enforce();
     }
 
-    @Override protected R compute(Peptide peptide) {
-        return compute(List.of(peptide)).get(0);
+    private static <R> R await(CompletableFuture<R> future) {
+        try {
+            return future.join();
+        }
+        catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            else
+                throw JamException.runtime(ex.getCause());
+        }
     }
 
-    @Override protected List<R> compute(Collection<Peptide> peptides) {
-        return predictor.predict(allele, peptides);
+    private R lookup(Peptide peptide) {
+        long key = PeptideKey.encodeOrNone(peptide);
+
+        if (key == PeptideKey.NONE)
+            return unkeyed.get(peptide);
+
+        if (offHeapTier == null)
+            return heapTier.get(key);
+
+        int slot = offHeapTier.find(key);
+
+        if (slot < 0)
+            return null;
+
+        double percentile = offHeapTier.percentile(slot);
+
+        return newRecord(peptide,
+                         offHeapTier.strength(slot),
+                         Double.isNaN(percentile) ? null : Percentile.valueOf(percentile));
     }
 
-    @Override public Class getKeyClass() {
-        return Peptide.class;
+    private void cache(R record) {
+        long key = PeptideKey.encodeOrNone(record.getPeptide());
+
+        if (key == PeptideKey.NONE)
+            unkeyed.put(record.getPeptide(), record);
+        else if (offHeapTier != null)
+            offHeapTier.put(key, record.getStrength(),
+                            record.hasPercentile() ? record.getPercentile().doubleValue() : Double.NaN);
+        else
+            heapTier.put(key, record);
     }
 }
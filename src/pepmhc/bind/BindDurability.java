@@ -0,0 +1,55 @@
+package pepmhc.bind;
+
+import jam.app.JamProperties;
+
+/**
+ * Enumerates the policies for persisting newly computed binding
+ * records.
+ */
+public enum BindDurability {
+    /**
+     * Records are written to the database on the calling thread
+     * before they are returned.
+     */
+    SYNCHRONOUS,
+
+    /**
+     * Records are returned immediately and written to the database
+     * in large batches by a background thread (see {@link
+     * BindWriter}); pending records are flushed when the JVM shuts
+     * down normally, but may be lost if it is killed.
+     */
+    WRITE_BEHIND,
+
+    /**
+     * Records are never written to the database.
+     */
+    NONE;
+
+    private static BindDurability global = null;
+
+    /**
+     * System property that specifies the global durability policy.
+     */
+    public static final String DURABILITY_PROPERTY = "pepmhc.bindDurability";
+
+    /**
+     * Returns the global durability policy specified through system
+     * properties ({@code SYNCHRONOUS} by default).
+     *
+     * @return the global durability policy.
+     */
+    public static BindDurability global() {
+        if (global == null)
+            global = resolveGlobal();
+
+        return global;
+    }
+
+    private static BindDurability resolveGlobal() {
+        if (JamProperties.isSet(DURABILITY_PROPERTY))
+            return JamProperties.getRequiredEnum(DURABILITY_PROPERTY, BindDurability.class);
+        else
+            return SYNCHRONOUS;
+    }
+}
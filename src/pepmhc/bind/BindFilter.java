@@ -0,0 +1,23 @@
+
+package pepmhc.bind;
+
+/**
+ * Selects binding records by their primitive attributes, so that
+ * threshold tests can be applied to cached data without creating
+ * record objects.
+ */
+public interface BindFilter {
+    /**
+     * Determines whether a binding record passes this filter.
+     *
+     * @param strength the binding strength (affinity or stability
+     * metric) of the record.
+     *
+     * @param percentile the percentile rank of the binding strength,
+     * or {@code Double.NaN} if the rank is unknown.
+     *
+     * @return {@code true} iff a record with the specified attributes
+     * passes this filter.
+     */
+    boolean accept(double strength, double percentile);
+}
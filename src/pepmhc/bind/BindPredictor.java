@@ -2,7 +2,10 @@
 package pepmhc.bind;
 
 import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import jene.hla.Allele;
 import jene.peptide.Peptide;
@@ -31,6 +34,19 @@ public abstract class BindPredictor<R extends BindRecord> {
      */
     public abstract boolean isInstalled();
 
+    /**
+     * Determines whether this predictor runs an external command-line
+     * program, so that every call pays the start-up cost of a process.
+     * Concurrent requests to external predictors may be coalesced by
+     * a {@link BindBatcher}.
+     *
+     * @return {@code true} iff this predictor runs an external
+     * command-line program.
+     */
+    public boolean isExternal() {
+        return false;
+    }
+
     /**
      * Computes the binding record for a single peptide presented to
      * an HLA allele.
@@ -45,6 +61,92 @@ public abstract class BindPredictor<R extends BindRecord> {
         return predict(allele, List.of(peptide)).get(0);
      }
 
+    /**
+     * Computes binding records for a collection of peptides presented
+     * to an HLA allele and passes each record to a consumer.
+     *
+     * <p>This default implementation computes the full record list
+     * first; predictors that can deliver records as they are produced
+     * (for example, while parsing the output of a command-line
+     * program) override this method.
+     *
+     * @param allele the receiving allele.
+     *
+     * @param peptides the presented peptides.
+     *
+     * @param consumer the consumer of the binding records (called in
+     * the order returned by the collection iterator).
+     */
+    public void predict(Allele allele, Collection<Peptide> peptides, Consumer<? super R> consumer) {
+        for (R record : predict(allele, peptides))
+            consumer.accept(record);
+    }
+
+    /**
+     * Computes binding records for every native fragment of a
+     * collection of proteins and passes each record to a consumer.
+     *
+     * <p>This default implementation cuts the proteins into their
+     * distinct native fragments and predicts them as one peptide
+     * collection; predictors backed by programs that window protein
+     * sequences themselves override this method and pass the proteins
+     * to the program directly.
+     *
+     * @param allele the receiving allele.
+     *
+     * @param proteins the protein sequences to scan.
+     *
+     * @param lengths the fragment lengths to scan.
+     *
+     * @param consumer the consumer of the binding records (called one
+     * record at a time, in no particular order; a fragment that occurs
+     * more than once may be passed more than once).
+     */
+    public void scan(Allele allele, Collection<Peptide> proteins, int[] lengths, Consumer<? super R> consumer) {
+        predict(allele, fragments(proteins, lengths), consumer);
+    }
+
+    /**
+     * Cuts a collection of proteins into their distinct native
+     * fragments.
+     *
+     * @param proteins the protein sequences to cut.
+     *
+     * @param lengths the fragment lengths.
+     *
+     * @return the distinct native fragments of the specified lengths
+     * (in order of first occurrence).
+     */
+    public static Set<Peptide> fragments(Collection<Peptide> proteins, int[] lengths) {
+        Set<Peptide> fragments = new LinkedHashSet<Peptide>();
+
+        for (Peptide protein : proteins)
+            for (int length : lengths)
+                fragments.addAll(protein.nativeFragments(length));
+
+        return fragments;
+    }
+
+    /**
+     * Counts the fragments (windows) of a collection of proteins.
+     *
+     * @param proteins the protein sequences to cut.
+     *
+     * @param lengths the fragment lengths.
+     *
+     * @return the total number of fragments of the specified lengths,
+     * including duplicate and non-native fragments.
+     */
+    public static long countWindows(Collection<Peptide> proteins, int[] lengths) {
+        long count = 0;
+
+        for (Peptide protein : proteins)
+            for (int length : lengths)
+                count += Math.max(0, protein.length() - length + 1);
+
+        return count;
+    }
+
     /**
      * Computes binding records for a collection of peptides presented
      * to an HLA allele.
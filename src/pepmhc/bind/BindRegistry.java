@@ -0,0 +1,161 @@
+
+package pepmhc.bind;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
+
+import jam.lang.JamException;
+
+import jene.hla.Allele;
+
+/**
+ * Maintains the unique instances of a binding service (a cache or
+ * store) indexed by prediction method and allele.
+ *
+ * <p>Instances are created on first request with compute-if-absent
+ * semantics: concurrent requests for the same method and allele
+ * receive the same instance, and requests for different keys never
+ * block one another.  The registry holds a future for each instance
+ * and the instance is created outside of any map lock, so a slow
+ * factory (one that opens a database, for example) delays only the
+ * requests for its own key.  If the factory fails, every waiting
+ * request fails and the next request tries again.
+ *
+ * @param <M> the enumerated type of prediction methods.
+ *
+ * @param <V> the type of registered service.
+ */
+public final class BindRegistry<M extends Enum<M>, V> {
+    private final BiFunction<M, Allele, V> factory;
+    private final ConcurrentMap<M, ConcurrentMap<Allele, CompletableFuture<V>>> instances;
+
+    private BindRegistry(BiFunction<M, Allele, V> factory) {
+        this.factory = factory;
+        this.instances = new ConcurrentHashMap<M, ConcurrentMap<Allele, CompletableFuture<V>>>();
+    }
+
+    /**
+     * Creates a new empty registry.
+     *
+     * @param <M> the enumerated type of prediction methods.
+     *
+     * @param <V> the type of registered service.
+     *
+     * @param factory the function that creates new instances.
+     *
+     * @return a new empty registry that creates instances with the
+     * specified factory.
+     */
+    public static <M extends Enum<M>, V> BindRegistry<M, V> create(BiFunction<M, Allele, V> factory) {
+        return new BindRegistry<M, V>(factory);
+    }
+
+    private ConcurrentMap<Allele, CompletableFuture<V>> methodMap(M method) {
+        return instances.computeIfAbsent(method, m -> new ConcurrentHashMap<Allele, CompletableFuture<V>>());
+    }
+
+    private static <V> V valueOf(CompletableFuture<V> future) {
+        //
+        // Instances that are still being created, or whose creation
+        // failed, are not visible...
+        //
+        if (future != null && future.isDone() && !future.isCompletedExceptionally())
+            return future.join();
+        else
+            return null;
+    }
+
+    /**
+     * Returns the instance for a given method and allele, creating it
+     * if necessary.
+     *
+     * @param method the prediction method.
+     *
+     * @param allele the allele of the binding MHC molecule.
+     *
+     * @return the instance for the specified method and allele.
+     */
+    public V instance(M method, Allele allele) {
+        ConcurrentMap<Allele, CompletableFuture<V>> methodMap = methodMap(method);
+        CompletableFuture<V> future = methodMap.get(allele);
+
+        if (future == null) {
+            CompletableFuture<V> created = new CompletableFuture<V>();
+            future = methodMap.putIfAbsent(allele, created);
+
+            if (future == null) {
+                future = created;
+
+                try {
+                    created.complete(factory.apply(method, allele));
+                }
+                catch (RuntimeException | Error ex) {
+                    methodMap.remove(allele, created);
+                    created.completeExceptionally(ex);
+                    throw ex;
+                }
+            }
+        }
+
+        try {
+            return future.join();
+        }
+        catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            else
+                throw JamException.runtime(ex.getCause());
+        }
+    }
+
+    /**
+     * Returns the instance for a given method and allele, if one has
+     * been created.
+     *
+     * @param method the prediction method.
+     *
+     * @param allele the allele of the binding MHC molecule.
+     *
+     * @return the instance for the specified method and allele, or
+     * {@code null} if none has been created (or if it is still being
+     * created).
+     */
+    public V get(M method, Allele allele) {
+        return valueOf(methodMap(method).get(allele));
+    }
+
+    /**
+     * Removes the instance for a given method and allele.
+     *
+     * @param method the prediction method.
+     *
+     * @param allele the allele of the binding MHC molecule.
+     *
+     * @return the removed instance, or {@code null} if there was none.
+     */
+    public V remove(M method, Allele allele) {
+        return valueOf(methodMap(method).remove(allele));
+    }
+
+    /**
+     * Removes a specific instance from this registry (leaving any
+     * newer instance for the same method and allele in place).
+     *
+     * @param method the prediction method.
+     *
+     * @param allele the allele of the binding MHC molecule.
+     *
+     * @param instance the instance to remove.
+     *
+     * @return {@code true} iff the instance was removed.
+     */
+    public boolean remove(M method, Allele allele, V instance) {
+        ConcurrentMap<Allele, CompletableFuture<V>> methodMap = methodMap(method);
+        CompletableFuture<V> future = methodMap.get(allele);
+
+        return future != null && valueOf(future) == instance && methodMap.remove(allele, future);
+    }
+}
@@ -1,23 +1,43 @@
 
 package pepmhc.bind;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-import jam.sql.SQLKeyTable;
-import jam.sql.SQLStore;
+import jam.lang.JamException;
 
 import jene.hla.Allele;
 import jene.peptide.Peptide;
 
+import pepmhc.metrics.BindMetrics;
+
 /**
  * Provides a compute-on-demand service and persistent storage for
  * peptide-MHC binding records.
  *
+ * <p>Records for encodable peptides (see {@link PeptideKey}) are read
+ * from and written to the underlying table by packed key; records for
+ * the (rare) peptides that cannot be packed are read from and written
+ * to the companion table indexed by peptide string.  New records are
+ * persisted according to the global {@link BindDurability} policy,
+ * except that records for unencodable peptides are never written
+ * behind.  Database and predictor activity is
+ * recorded in the {@link BindMetrics} named by {@link #getName()}.
+ *
  * @param <R> the type of binding record (affinity or stability)
  * produced by the predictor.
  */
-public abstract class BindStore<R extends BindRecord> extends SQLStore<Peptide, R> {
+public abstract class BindStore<R extends BindRecord> {
+    /**
+     * The database table providing persistent storage.
+     */
+    protected final BindTable<R> table;
+
     /**
      * The allele served by this store.
      */
@@ -28,6 +48,16 @@ public abstract class BindStore<R extends BindRecord> extends SQLStore<Peptide,
      */
     protected final BindPredictor<R> predictor;
 
+    /**
+     * The policy for persisting newly computed records.
+     */
+    protected final BindDurability durability;
+
+    /**
+     * The metrics for this allele and prediction method.
+     */
+    protected final BindMetrics metrics;
+
     /**
      * Creates a new record store for a given allele and predictor.
      *
@@ -37,11 +67,12 @@ public abstract class BindStore<R extends BindRecord> extends SQLStore<Peptide,
      *
      * @param allele the allele served by this store.
      */
-    protected BindStore(SQLKeyTable<Peptide, R> table, BindPredictor<R> predictor, Allele allele) {
-        super(table);
-
+    protected BindStore(BindTable<R> table, BindPredictor<R> predictor, Allele allele) {
+        this.table = table;
         this.allele = allele;
         this.predictor = predictor;
+        this.durability = BindDurability.global();
+        this.metrics = BindMetrics.instance(getName());
     }
 
     /**
@@ -62,6 +93,24 @@ public abstract class BindStore<R extends BindRecord> extends SQLStore<Peptide,
         return predictor.getMethod();
     }
 
+    /**
+     * Returns a descriptive name for this store.
+     *
+     * @return a descriptive name for this store.
+     */
+    public String getName() {
+        return getAllele() + ":" + getMethod();
+    }
+
+    /**
+     * Returns the metrics for this allele and prediction method.
+     *
+     * @return the metrics for this allele and prediction method.
+     */
+    public BindMetrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * Returns the predictor used to compute new records.
      *
@@ -71,11 +120,251 @@ public abstract class BindStore<R extends BindRecord> extends SQLStore<Peptide,
         return predictor;
     }
 
-    @Override protected R compute(Peptide peptide) {
-        return compute(List.of(peptide)).get(0);
+    /**
+     * Returns the database table providing persistent storage.
+     *
+     * @return the database table providing persistent storage.
+     */
+    public BindTable<R> getTable() {
+        return table;
     }
 
-    @Override protected List<R> compute(Collection<Peptide> peptides) {
-        return predictor.predict(allele, peptides);
+    /**
+     * Retrieves the binding record for a peptide, computing and
+     * storing it if necessary.
+     *
+     * @param peptide the peptide of interest.
+     *
+     * @return the binding record for the specified peptide.
+     */
+    public R get(Peptide peptide) {
+        return get(List.of(peptide)).get(0);
+    }
+
+    /**
+     * Retrieves the binding records for a collection of peptides,
+     * computing and storing missing records in a single batch.
+     *
+     * @param peptides the peptides of interest.
+     *
+     * @return the binding records for the specified peptides (in the
+     * order returned by the collection iterator).
+     */
+    public List<R> get(Collection<Peptide> peptides) {
+        Set<Long> keys = new HashSet<Long>(peptides.size());
+        Set<Peptide> unkeyed = new HashSet<Peptide>();
+
+        for (Peptide peptide : peptides) {
+            long key = PeptideKey.encodeOrNone(peptide);
+
+            if (key != PeptideKey.NONE)
+                keys.add(key);
+            else
+                unkeyed.add(peptide);
+        }
+
+        PeptideKeyMap<R> stored = lookupStored(keys);
+        Map<Peptide, R> storedText = lookupText(unkeyed);
+        Map<Peptide, R> computed = computeMissing(peptides, stored, storedText);
+
+        List<R> records = new ArrayList<R>(peptides.size());
+
+        for (Peptide peptide : peptides) {
+            R record = stored(peptide, stored, storedText);
+
+            if (record == null)
+                record = computed.get(peptide);
+
+            records.add(record);
+        }
+
+        return records;
+    }
+
+    private static <R> R stored(Peptide peptide, PeptideKeyMap<R> stored, Map<Peptide, R> storedText) {
+        long key = PeptideKey.encodeOrNone(peptide);
+
+        if (key != PeptideKey.NONE)
+            return stored.get(key);
+        else
+            return storedText.get(peptide);
+    }
+
+    /**
+     * Retrieves the persistent records for a collection of peptides,
+     * whether or not they can be packed into keys.
+     *
+     * @param peptides the peptides of interest.
+     *
+     * @return the stored records for the specified peptides (peptides
+     * without stored records are omitted).
+     */
+    protected List<R> findStored(Collection<Peptide> peptides) {
+        Set<Long> keys = new HashSet<Long>(peptides.size());
+        Set<Peptide> unkeyed = new HashSet<Peptide>();
+
+        for (Peptide peptide : peptides) {
+            long key = PeptideKey.encodeOrNone(peptide);
+
+            if (key != PeptideKey.NONE)
+                keys.add(key);
+            else
+                unkeyed.add(peptide);
+        }
+
+        List<R> found = new ArrayList<R>();
+
+        if (!keys.isEmpty())
+            found.addAll(lookupStored(keys).values());
+
+        found.addAll(lookupText(unkeyed).values());
+        return found;
+    }
+
+    /**
+     * Retrieves the persistent records for a set of peptide keys
+     * (including records that are waiting to be written behind).
+     *
+     * @param keys the packed keys of the peptides of interest.
+     *
+     * @return the stored records for the specified keys (keys without
+     * stored records are absent from the map).
+     */
+    protected PeptideKeyMap<R> lookupStored(Set<Long> keys) {
+        long start = BindMetrics.start();
+        PeptideKeyMap<R> stored = table.lookup(keys);
+        metrics.dbRead(start, keys.size());
+
+        if (durability == BindDurability.WRITE_BEHIND)
+            addPending(keys, stored);
+
+        return stored;
+    }
+
+    /**
+     * Retrieves the persistent records for peptides that cannot be
+     * packed into keys.
+     *
+     * @param peptides the (unencodable) peptides of interest.
+     *
+     * @return the stored records for the specified peptides (peptides
+     * without stored records are absent from the map).
+     */
+    protected Map<Peptide, R> lookupText(Set<Peptide> peptides) {
+        if (peptides.isEmpty())
+            return Map.of();
+
+        long start = BindMetrics.start();
+        Map<Peptide, R> stored = table.lookupText(peptides);
+        metrics.dbRead(start, peptides.size());
+
+        return stored;
+    }
+
+    private void addPending(Collection<Long> keys, PeptideKeyMap<R> stored) {
+        if (stored.size() == keys.size())
+            return;
+
+        BindWriter writer = BindWriter.global();
+
+        for (Long key : keys) {
+            if (!stored.containsKey(key)) {
+                R record = writer.pending(table, key);
+
+                if (record != null)
+                    stored.put(key, record);
+            }
+        }
+    }
+
+    private Map<Peptide, R> computeMissing(Collection<Peptide> peptides,
+                                           PeptideKeyMap<R> stored,
+                                           Map<Peptide, R> storedText) {
+        Set<Peptide> missing = new HashSet<Peptide>();
+
+        for (Peptide peptide : peptides)
+            if (stored(peptide, stored, storedText) == null)
+                missing.add(peptide);
+
+        if (missing.isEmpty())
+            return Map.of();
+
+        long start = BindMetrics.start();
+        List<R> records = compute(missing);
+        metrics.predict(start, missing.size());
+
+        Map<Peptide, R> computed = new LinkedHashMap<Peptide, R>(records.size());
+
+        if (records.size() != missing.size())
+            throw JamException.runtime("Binding prediction failed for allele [%s].", allele);
+
+        for (R record : records)
+            computed.put(record.getPeptide(), record);
+
+        persist(records);
+        return computed;
+    }
+
+    /**
+     * Writes computed records to the persistent store according to
+     * the durability policy.
+     *
+     * @param records the records to persist.
+     */
+    protected void persist(Collection<R> records) {
+        if (durability == BindDurability.NONE)
+            return;
+
+        List<R> keyed = new ArrayList<R>(records.size());
+        List<R> unkeyed = new ArrayList<R>();
+
+        for (R record : records) {
+            if (PeptideKey.isEncodable(record.getPeptide()))
+                keyed.add(record);
+            else
+                unkeyed.add(record);
+        }
+
+        if (!unkeyed.isEmpty()) {
+            //
+            // The write-behind queue is indexed by packed key, so the
+            // (rare) unencodable records are always written directly...
+            //
+            long start = BindMetrics.start();
+            table.storeText(unkeyed);
+            metrics.dbWrite(start, unkeyed.size());
+        }
+
+        switch (durability) {
+        case SYNCHRONOUS:
+            long start = BindMetrics.start();
+            table.store(keyed);
+            metrics.dbWrite(start, keyed.size());
+            break;
+
+        case WRITE_BEHIND:
+            BindWriter.global().submit(table, keyed, metrics);
+            break;
+
+        case NONE:
+            break;
+
+        default:
+            throw JamException.runtime("Unknown durability policy [%s].", durability);
+        }
+    }
+
+    /**
+     * Computes binding records for peptides that are not present in
+     * the persistent store.  When batching is enabled, requests to
+     * external predictors are coalesced with concurrent requests from
+     * other callers (see {@link BindBatcher}).
+     *
+     * @param peptides the peptides to process.
+     *
+     * @return the binding records for the specified peptides.
+     */
+    protected List<R> compute(Collection<Peptide> peptides) {
+        return BindBatcher.predict(predictor, allele, peptides);
     }
 }
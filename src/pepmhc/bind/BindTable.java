@@ -1,10 +1,21 @@
 
 package pepmhc.bind;
 
+import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import jam.app.JamLogger;
+import jam.lang.JamException;
 import jam.sql.SQLColumn;
 import jam.sql.SQLDb;
 import jam.sql.SQLKeyTable;
@@ -14,34 +25,123 @@ import jene.peptide.Peptide;
 
 /**
  * Provides a base class for persistent database tables of binding
- * records indexed by peptide.
+ * records indexed by packed peptide key.
+ *
+ * <p>Peptides are stored as the {@code long} values assigned by the
+ * {@link PeptideKey} codec in an {@code integer} primary key column,
+ * which SQLite uses directly as the row identifier.  Records for the
+ * (rare) peptides that cannot be packed into keys, such as long
+ * peptides or peptides with non-native residues, are kept in a
+ * companion table indexed by peptide string (with the suffix {@code
+ * _text}; see {@link #lookupText(Collection)} and {@link
+ * #storeText(Collection)}).
+ *
+ * <p>Tables that reside in a dedicated database file keep a {@link
+ * PeptideBloomFilter} of their keys in a companion file (with suffix
+ * {@code .bloom}).  The filter is loaded (or rebuilt from the table
+ * keys if it is missing or stale) when first needed and is updated
+ * whenever records are stored through this class, so that lookups for
+ * keys that are definitely absent never reach the database.  The
+ * filter is saved by {@link #saveFilters()} and when the JVM exits,
+ * and is abandoned if another process writes to the same database
+ * file.
+ *
+ * <p>Dedicated database files written by earlier versions hold a
+ * table indexed by peptide string; its records are imported into the
+ * keyed table the first time the file is opened (see {@link
+ * #importLegacy()}).
  *
  * @param <R> the type of binding record (affinity or stability)
  * stored in the table.
  */
-public abstract class BindTable<R extends BindRecord> extends SQLKeyTable<Peptide, R> {
+public abstract class BindTable<R extends BindRecord> extends SQLKeyTable<Long, R> {
+    private final String dbFile;
+
+    // Tables backed by the same database file share one filter...
+    private final PresenceFilter presence;
+
+    // Records for peptides that cannot be packed into keys...
+    private final TextTable text;
+
     /**
      * Creates a new binding record table with a fixed database
-     * manager.
+     * manager and no presence filter.
      *
      * @param db the database manager.
      */
     protected BindTable(SQLDb db) {
+        this(db, null);
+    }
+
+    /**
+     * Creates a new binding record table with a fixed database
+     * manager and a presence filter stored beside the database file.
+     *
+     * @param db the database manager.
+     *
+     * @param dbFile the name of the dedicated database file ({@code
+     * null} for tables without a presence filter).
+     */
+    protected BindTable(SQLDb db, String dbFile) {
         super(db);
+        this.dbFile = dbFile;
+        this.presence = (dbFile != null) ? PresenceFilter.instance(dbFile, this) : null;
+        this.text = new TextTable(db);
+    }
+
+    /**
+     * Saves the presence filter of every table whose filter has
+     * changed since it was last saved.  (Filters are also saved when
+     * the JVM exits normally.)
+     */
+    public static void saveFilters() {
+        PresenceFilter.saveAll();
     }
 
     /**
-     * The name of the {@code peptide} column.
+     * The number of records read from a legacy table and stored in
+     * this table at one time.
+     */
+    public static final int LEGACY_IMPORT_CHUNK = 100000;
+
+    /**
+     * The suffix appended to database file names to create the name
+     * of the presence filter file.
+     */
+    public static final String FILTER_SUFFIX = ".bloom";
+
+    /**
+     * The suffix appended to table names to create the name of the
+     * table of records for unencodable peptides.
+     */
+    public static final String TEXT_TABLE_SUFFIX = "_text";
+
+    /**
+     * The name of the {@code peptide} column (in tables indexed by
+     * peptide string).
      */
     public static final String PEPTIDE_NAME = "peptide";
 
+    /**
+     * The name of the {@code peptide_key} column.
+     */
+    public static final String PEPTIDE_KEY_NAME = "peptide_key";
+
     /**
      * The name of the {@code percentile} column.
      */
     public static final String PERCENTILE_NAME = "percentile";
 
     /**
-     * Meta-data for the {@code peptide} column.
+     * Meta-data for the {@code peptide_key} column.
+     */
+    public static final SQLColumn PEPTIDE_KEY_COLUMN =
+        SQLColumn.create(PEPTIDE_KEY_NAME, "integer")
+        .primaryKey();
+
+    /**
+     * Meta-data for the {@code peptide} column (in tables indexed by
+     * peptide string).
      */
     public static final SQLColumn PEPTIDE_COLUMN =
         SQLColumn.create(PEPTIDE_NAME, "string")
@@ -65,15 +165,337 @@ public abstract class BindTable<R extends BindRecord> extends SQLKeyTable<Peptid
         return allele.longKey().replace("*", "-").replace(":", "-");
     }
 
-    @Override public Peptide getKey(R record) {
-        return record.getPeptide();
+    /**
+     * Reads the peptide stored in the key column of a result set.
+     *
+     * @param resultSet a result set positioned at a table row.
+     *
+     * @param columnIndex the index of the key column.
+     *
+     * @return the peptide stored in the specified row.
+     *
+     * @throws SQLException if a database error occurs.
+     */
+    protected static Peptide getPeptide(ResultSet resultSet, int columnIndex) throws SQLException {
+        return PeptideKey.decode(resultSet.getLong(columnIndex));
+    }
+
+    /**
+     * Returns the name of the table written by earlier versions, which
+     * indexed records by peptide string.
+     *
+     * @return the name of the legacy table.
+     */
+    protected abstract String getLegacyTableName();
+
+    /**
+     * Creates a binding record from a row of a table indexed by
+     * peptide string (the legacy table or the table of records for
+     * unencodable peptides), whose remaining columns are those of this
+     * table.
+     *
+     * @param resultSet a result set positioned at a table row.
+     *
+     * @return the binding record stored in the specified row.
+     *
+     * @throws SQLException if a database error occurs.
+     */
+    protected abstract R getTextRow(ResultSet resultSet) throws SQLException;
+
+    /**
+     * Imports the records from the legacy table (indexed by peptide
+     * string) in the dedicated database file, if one is present, and
+     * then drops the legacy table so that the import runs only once.
+     *
+     * <p>Records are copied in chunks; peptides already present (from
+     * an interrupted import) are skipped.  Records for peptides that
+     * cannot be packed into keys are copied into the table indexed by
+     * peptide string.  The legacy table is dropped only if every row
+     * was migrated; otherwise it is retained (and the import resumes
+     * the next time the file is opened).
+     *
+     * @throws RuntimeException if a database error occurs.
+     */
+    protected void importLegacy() {
+        if (dbFile == null || !new File(dbFile).exists())
+            return;
+
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbFile)) {
+            if (!legacyTableExists(connection))
+                return;
+
+            if (!importLegacy(connection)) {
+                JamLogger.warn("Retaining legacy table [%s] in [%s].", getLegacyTableName(), dbFile);
+                return;
+            }
+
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("drop table " + getLegacyTableName());
+            }
+
+            // The drop changed the file outside of a filtered store...
+            if (presence != null)
+                presence.resync();
+        }
+        catch (SQLException ex) {
+            throw JamException.runtime(ex);
+        }
+    }
+
+    private boolean legacyTableExists(Connection connection) throws SQLException {
+        String query = "select name from sqlite_master where type = 'table' and name = ?";
+
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+            statement.setString(1, getLegacyTableName());
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next();
+            }
+        }
+    }
+
+    private boolean importLegacy(Connection connection) throws SQLException {
+        JamLogger.info("Importing legacy table [%s] from [%s]...", getLegacyTableName(), dbFile);
+
+        boolean resume = count() > 0 || text.count() > 0;
+
+        List<R> keyedChunk = new ArrayList<R>(LEGACY_IMPORT_CHUNK);
+        List<R> textChunk = new ArrayList<R>();
+
+        int keyed = 0;
+        int unkeyed = 0;
+        int failed = 0;
+
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select * from " + getLegacyTableName())) {
+            while (resultSet.next()) {
+                R record;
+
+                try {
+                    record = getTextRow(resultSet);
+                }
+                catch (RuntimeException ex) {
+                    JamLogger.warn("Invalid legacy row in [%s]: %s", dbFile, ex.getMessage());
+                    ++failed;
+                    continue;
+                }
+
+                if (PeptideKey.isEncodable(record.getPeptide()))
+                    keyedChunk.add(record);
+                else
+                    textChunk.add(record);
+
+                if (keyedChunk.size() >= LEGACY_IMPORT_CHUNK) {
+                    keyed += importKeyed(keyedChunk, resume);
+                    keyedChunk.clear();
+                }
+
+                if (textChunk.size() >= LEGACY_IMPORT_CHUNK) {
+                    unkeyed += importText(textChunk, resume);
+                    textChunk.clear();
+                }
+            }
+        }
+
+        keyed += importKeyed(keyedChunk, resume);
+        unkeyed += importText(textChunk, resume);
+
+        JamLogger.info("Imported [%d] keyed and [%d] unencodable records; [%d] rows failed.", keyed, unkeyed, failed);
+        return failed == 0;
+    }
+
+    private int importKeyed(List<R> chunk, boolean resume) {
+        List<R> records = chunk;
+
+        if (resume) {
+            PeptideKeyMap<R> present = lookup(keys(chunk));
+            records = new ArrayList<R>(chunk.size());
+
+            for (R record : chunk)
+                if (!present.containsKey(getKey(record)))
+                    records.add(record);
+        }
+
+        store(records);
+        return records.size();
+    }
+
+    private int importText(List<R> chunk, boolean resume) {
+        List<R> records = chunk;
+
+        if (resume) {
+            List<Peptide> peptides = new ArrayList<Peptide>(chunk.size());
+
+            for (R record : chunk)
+                peptides.add(record.getPeptide());
+
+            Map<Peptide, R> present = lookupText(peptides);
+            records = new ArrayList<R>(chunk.size());
+
+            for (R record : chunk)
+                if (!present.containsKey(record.getPeptide()))
+                    records.add(record);
+        }
+
+        storeText(records);
+        return records.size();
+    }
+
+    private List<Long> keys(Collection<R> records) {
+        List<Long> keys = new ArrayList<Long>(records.size());
+
+        for (R record : records)
+            keys.add(getKey(record));
+
+        return keys;
+    }
+
+    /**
+     * Retrieves the records for a collection of peptide keys.  Keys
+     * rejected by the presence filter are not sent to the database.
+     *
+     * @param keys the keys of interest.
+     *
+     * @return a map containing the records present in this table.
+     */
+    public PeptideKeyMap<R> lookup(Collection<Long> keys) {
+        List<Long> candidates = new ArrayList<Long>(keys.size());
+
+        if (presence != null)
+            presence.select(keys, candidates);
+        else
+            candidates.addAll(keys);
+
+        if (candidates.isEmpty())
+            return new PeptideKeyMap<R>();
+
+        List<R> records = fetch(candidates);
+        PeptideKeyMap<R> result = new PeptideKeyMap<R>(records.size());
+
+        for (R record : records)
+            result.put(PeptideKey.encode(record.getPeptide()), record);
+
+        return result;
+    }
+
+    /**
+     * Retrieves the records for peptides that cannot be packed into
+     * keys from the table indexed by peptide string.
+     *
+     * @param peptides the (unencodable) peptides of interest.
+     *
+     * @return a map containing the records present in the table.
+     */
+    public Map<Peptide, R> lookupText(Collection<Peptide> peptides) {
+        if (peptides.isEmpty())
+            return new HashMap<Peptide, R>();
+
+        List<String> keys = new ArrayList<String>(peptides.size());
+
+        for (Peptide peptide : peptides)
+            keys.add(peptide.formatString());
+
+        List<R> records = text.fetch(keys);
+        Map<Peptide, R> result = new HashMap<Peptide, R>(2 * records.size());
+
+        for (R record : records)
+            result.put(record.getPeptide(), record);
+
+        return result;
     }
 
-    @Override public Peptide getKey(ResultSet resultSet, String columnLabel) throws SQLException {
-        return Peptide.instance(resultSet.getString(columnLabel));
+    /**
+     * Stores the records for peptides that cannot be packed into keys
+     * in the table indexed by peptide string.
+     *
+     * @param records the records to store (for unencodable peptides).
+     */
+    public void storeText(Collection<R> records) {
+        if (!records.isEmpty())
+            text.store(records);
     }
 
-    @Override public void prepareKey(PreparedStatement statement, int index, Peptide peptide) throws SQLException {
-        statement.setString(index, peptide.formatString());
+    /**
+     * Stores binding records and adds their keys to the presence
+     * filter.
+     *
+     * @param records the records to store.
+     */
+    @Override public void store(Collection<R> records) {
+        if (records.isEmpty())
+            return;
+
+        if (presence == null) {
+            super.store(records);
+            return;
+        }
+
+        presence.beginStore();
+
+        try {
+            super.store(records);
+        }
+        finally {
+            presence.endStore(keys(records));
+        }
+    }
+
+    @Override public Long getKey(R record) {
+        return PeptideKey.encode(record.getPeptide());
+    }
+
+    @Override public Long getKey(ResultSet resultSet, String columnLabel) throws SQLException {
+        return resultSet.getLong(columnLabel);
+    }
+
+    @Override public void prepareKey(PreparedStatement statement, int index, Long key) throws SQLException {
+        statement.setLong(index, key);
+    }
+
+    private final class TextTable extends SQLKeyTable<String, R> {
+        private TextTable(SQLDb db) {
+            super(db);
+        }
+
+        @Override public List<SQLColumn> getColumns() {
+            //
+            // The peptide string replaces the key in the first column...
+            //
+            List<SQLColumn> keyColumns = BindTable.this.getColumns();
+            List<SQLColumn> textColumns = new ArrayList<SQLColumn>(keyColumns.size());
+
+            textColumns.add(PEPTIDE_COLUMN);
+            textColumns.addAll(keyColumns.subList(1, keyColumns.size()));
+
+            return textColumns;
+        }
+
+        @Override public R getRow(ResultSet resultSet) throws SQLException {
+            return getTextRow(resultSet);
+        }
+
+        @Override public String getTableName() {
+            return BindTable.this.getTableName() + TEXT_TABLE_SUFFIX;
+        }
+
+        @Override public void prepareColumn(PreparedStatement statement, int index,
+                                            R record, String columnName) throws SQLException {
+            if (columnName.equals(PEPTIDE_NAME))
+                statement.setString(index, getKey(record));
+            else
+                BindTable.this.prepareColumn(statement, index, record, columnName);
+        }
+
+        @Override public String getKey(R record) {
+            return record.getPeptide().formatString();
+        }
+
+        @Override public String getKey(ResultSet resultSet, String columnLabel) throws SQLException {
+            return resultSet.getString(columnLabel);
+        }
+
+        @Override public void prepareKey(PreparedStatement statement, int index, String key) throws SQLException {
+            statement.setString(index, key);
+        }
     }
 }
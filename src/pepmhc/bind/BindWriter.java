@@ -0,0 +1,347 @@
+package pepmhc.bind;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import jam.app.JamLogger;
+import jam.app.JamProperties;
+import jam.lang.JamException;
+
+import pepmhc.metrics.BindMetrics;
+
+/**
+ * Writes newly computed binding records to their database tables on
+ * a background thread (the {@code WRITE_BEHIND} durability policy).
+ *
+ * <p>Submitted batches wait in a queue bounded by the total number of
+ * records that have been submitted but not yet written; callers block
+ * when the bound is reached, so memory use stays bounded when the
+ * database falls behind.  The writer drains every waiting batch at
+ * once and stores the records for each table in a single call.
+ * Records remain visible through {@link #pending(BindTable, long)}
+ * until they have been written (or the write has failed), and the
+ * queue is flushed by a shutdown hook when the JVM exits normally.
+ *
+ * <p>A failed write affects only the batches for the table that
+ * failed: their futures (returned by {@link #submit(BindTable,
+ * Collection, BindMetrics)}) complete exceptionally and the next call
+ * to {@link #flush()} reports the failure.  Later submissions are
+ * unaffected, and the records that were not written are simply
+ * recomputed when they are next requested.
+ */
+public final class BindWriter {
+    private final int capacity;
+    private final Deque<Batch<?>> queue = new ArrayDeque<Batch<?>>();
+    private final Map<BindTable<?>, PeptideKeyMap<BindRecord>> pending =
+        new IdentityHashMap<BindTable<?>, PeptideKeyMap<BindRecord>>();
+
+    // Records submitted but not yet written (or failed)...
+    private long unwritten = 0;
+
+    // The first failure since the last flush...
+    private RuntimeException failure = null;
+
+    private static BindWriter global = null;
+
+    /**
+     * Name of the system property that specifies the maximum number
+     * of records waiting to be written.
+     */
+    public static final String QUEUE_CAPACITY_PROPERTY = "pepmhc.writeBehindCapacity";
+
+    /**
+     * Default maximum number of records waiting to be written.
+     */
+    public static final int QUEUE_CAPACITY_DEFAULT = 1000000;
+
+    private static final class Batch<R extends BindRecord> {
+        private final BindTable<R> table;
+        private final List<R> records;
+        private final BindMetrics metrics;
+        private final CompletableFuture<Void> future;
+
+        private Batch(BindTable<R> table, Collection<R> records, BindMetrics metrics) {
+            this.table = table;
+            this.records = new ArrayList<R>(records);
+            this.metrics = metrics;
+            this.future = new CompletableFuture<Void>();
+        }
+    }
+
+    private BindWriter(int capacity, boolean shutdownHook) {
+        if (capacity < 1)
+            throw JamException.runtime("Write-behind capacity must be positive.");
+
+        this.capacity = capacity;
+
+        Thread writer = new Thread(this::drain, "BindWriter");
+        writer.setDaemon(true);
+        writer.start();
+
+        if (shutdownHook)
+            Runtime.getRuntime().addShutdownHook(new Thread(this::flushOnExit, "BindWriterShutdown"));
+    }
+
+    /**
+     * Creates a new background writer with an explicit capacity
+     * (independent of the global writer returned by {@link
+     * #global()}).  The new writer is not flushed when the JVM exits.
+     *
+     * @param capacity the maximum number of records waiting to be
+     * written.
+     *
+     * @return the new background writer.
+     */
+    public static BindWriter create(int capacity) {
+        return new BindWriter(capacity, false);
+    }
+
+    /**
+     * Returns the global background writer.
+     *
+     * @return the global background writer.
+     */
+    public static synchronized BindWriter global() {
+        if (global == null)
+            global = new BindWriter(resolveCapacity(), true);
+
+        return global;
+    }
+
+    private static int resolveCapacity() {
+        if (JamProperties.isSet(QUEUE_CAPACITY_PROPERTY))
+            return JamProperties.getRequiredInt(QUEUE_CAPACITY_PROPERTY);
+        else
+            return QUEUE_CAPACITY_DEFAULT;
+    }
+
+    /**
+     * Queues records to be written to a table, blocking while the
+     * number of unwritten records would exceed the capacity.  (A
+     * batch larger than the capacity is accepted when nothing else
+     * is waiting.)
+     *
+     * @param <R> the runtime record type.
+     *
+     * @param table the table that will store the records.
+     *
+     * @param records the records to write.
+     *
+     * @param metrics the metrics that record the database write.
+     *
+     * @return a future that completes when the records have been
+     * written, or exceptionally if the write fails.
+     *
+     * @throws RuntimeException if the calling thread is interrupted.
+     */
+    public synchronized <R extends BindRecord> CompletableFuture<Void> submit(BindTable<R> table,
+                                                                           Collection<R> records,
+                                                                           BindMetrics metrics) {
+        if (records.isEmpty())
+            return CompletableFuture.completedFuture(null);
+
+        try {
+            while (unwritten > 0 && unwritten + records.size() > capacity)
+                wait();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw JamException.runtime(ex);
+        }
+
+        Batch<R> batch = new Batch<R>(table, records, metrics);
+        PeptideKeyMap<BindRecord> tableMap = pending.get(table);
+
+        if (tableMap == null) {
+            tableMap = new PeptideKeyMap<BindRecord>();
+            pending.put(table, tableMap);
+        }
+
+        for (R record : batch.records)
+            tableMap.put(table.getKey(record), record);
+
+        unwritten += batch.records.size();
+        queue.addLast(batch);
+        notifyAll();
+
+        return batch.future;
+    }
+
+    /**
+     * Returns a record that has been submitted but not yet written.
+     *
+     * @param <R> the runtime record type.
+     *
+     * @param table the table that will store the record.
+     *
+     * @param key the packed key of the peptide of interest.
+     *
+     * @return the pending record for the specified table and key, or
+     * {@code null} if there is no such record.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <R extends BindRecord> R pending(BindTable<R> table, long key) {
+        PeptideKeyMap<BindRecord> tableMap = pending.get(table);
+
+        if (tableMap != null)
+            return (R) tableMap.get(key);
+        else
+            return null;
+    }
+
+    /**
+     * Returns the number of records that have been submitted but not
+     * yet written.
+     *
+     * @return the number of records that have been submitted but not
+     * yet written.
+     */
+    public synchronized long countUnwritten() {
+        return unwritten;
+    }
+
+    /**
+     * Blocks until every submitted record has been written (or has
+     * failed to be written).
+     *
+     * @throws RuntimeException if any records could not be written
+     * since the last flush (the failure is reported once), or if the
+     * calling thread is interrupted.
+     */
+    public void flush() {
+        synchronized (this) {
+            try {
+                while (unwritten > 0)
+                    wait();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw JamException.runtime(ex);
+            }
+
+            if (failure != null) {
+                RuntimeException result = failure;
+                failure = null;
+                throw result;
+            }
+        }
+
+        BindTable.saveFilters();
+    }
+
+    private void flushOnExit() {
+        try {
+            flush();
+        }
+        catch (RuntimeException ex) {
+            JamLogger.error(ex);
+        }
+    }
+
+    private void drain() {
+        List<Batch<?>> batches = new ArrayList<Batch<?>>();
+
+        while (true) {
+            synchronized (this) {
+                try {
+                    while (queue.isEmpty())
+                        wait();
+                }
+                catch (InterruptedException ex) {
+                    return;
+                }
+
+                batches.addAll(queue);
+                queue.clear();
+            }
+
+            write(batches);
+            batches.clear();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void write(List<Batch<?>> batches) {
+        //
+        // Merge the batches for each table so that every table is
+        // written in one (large) transaction; a failure for one table
+        // fails only the batches for that table...
+        //
+        Map<BindTable<?>, List<Batch<?>>> merged = new LinkedHashMap<BindTable<?>, List<Batch<?>>>();
+
+        for (Batch<?> batch : batches)
+            merged.computeIfAbsent(batch.table, table -> new ArrayList<Batch<?>>()).add(batch);
+
+        for (Map.Entry<BindTable<?>, List<Batch<?>>> entry : merged.entrySet()) {
+            BindTable<BindRecord> table = (BindTable<BindRecord>) entry.getKey();
+            List<Batch<?>> tableBatches = entry.getValue();
+            RuntimeException tableFailure = null;
+
+            try {
+                store(table, tableBatches);
+            }
+            catch (RuntimeException ex) {
+                JamLogger.error(ex);
+                tableFailure = ex;
+            }
+            finally {
+                release(table, tableBatches, tableFailure);
+            }
+        }
+    }
+
+    private static void store(BindTable<BindRecord> table, List<Batch<?>> batches) {
+        List<BindRecord> records = new ArrayList<BindRecord>();
+
+        for (Batch<?> batch : batches)
+            records.addAll(batch.records);
+
+        long start = BindMetrics.start();
+        table.store(records);
+        batches.get(0).metrics.dbWrite(start, records.size());
+    }
+
+    private void release(BindTable<BindRecord> table, List<Batch<?>> batches, RuntimeException tableFailure) {
+        synchronized (this) {
+            PeptideKeyMap<BindRecord> tableMap = pending.get(table);
+
+            for (Batch<?> batch : batches) {
+                for (BindRecord record : batch.records) {
+                    //
+                    // Remove only the record written by this batch; a
+                    // newer record for the same peptide may have been
+                    // submitted since...
+                    //
+                    long key = table.getKey(record);
+
+                    if (tableMap != null && tableMap.get(key) == record)
+                        tableMap.remove(key);
+                }
+
+                unwritten -= batch.records.size();
+            }
+
+            if (tableMap != null && tableMap.isEmpty())
+                pending.remove(table);
+
+            if (tableFailure != null && failure == null)
+                failure = tableFailure;
+
+            for (Batch<?> batch : batches) {
+                if (tableFailure == null)
+                    batch.future.complete(null);
+                else
+                    batch.future.completeExceptionally(tableFailure);
+            }
+
+            notifyAll();
+        }
+    }
+}
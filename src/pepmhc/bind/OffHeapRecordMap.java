@@ -0,0 +1,286 @@
+
+package pepmhc.bind;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
+
+/**
+ * Stores the primitive attributes of binding records (the strength
+ * and percentile rank as {@code double} values) outside the Java
+ * heap, indexed by packed peptide key.  The attributes are stored at
+ * full precision, so records created from this map are identical to
+ * the records that were stored.
+ *
+ * <p>Each entry occupies twenty-four bytes of a direct buffer (an
+ * eight-byte key followed by two eight-byte doubles) in an
+ * open-addressing table with linear probing, so twenty million
+ * entries need roughly 800 MB of native memory and no heap objects at
+ * all.  The amount of
+ * native memory available is limited by the JVM option {@code
+ * -XX:MaxDirectMemorySize}.
+ *
+ * <p>Like {@link PeptideKeyMap}, each entry carries a reference bit
+ * (held on the heap, one bit per slot) that is set when the entry is
+ * found and consumed by the CLOCK sweep in {@link #evict(int)}.  This
+ * class is not thread-safe.
+ */
+public final class OffHeapRecordMap {
+    private ByteBuffer buffer;
+    private BitSet referenced;
+    private int mask;
+    private int size;
+    private int hand;
+
+    private static final long EMPTY = 0L;
+    private static final int ENTRY_BYTES = 24;
+    private static final int STRENGTH_OFFSET = 8;
+    private static final int PERCENTILE_OFFSET = 16;
+
+    private static final int MIN_CAPACITY = 1024;
+    // A single direct buffer is limited to 2 GB...
+    private static final int MAX_CAPACITY = 1 << 26;
+    private static final double LOAD_FACTOR = 0.75;
+
+    /**
+     * Creates a new empty map with the default initial capacity.
+     */
+    public OffHeapRecordMap() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        buffer = ByteBuffer.allocateDirect(capacity * ENTRY_BYTES).order(ByteOrder.nativeOrder());
+        referenced = new BitSet(capacity);
+        mask = capacity - 1;
+        hand = 0;
+    }
+
+    private int capacity() {
+        return mask + 1;
+    }
+
+    private static int offset(int slot) {
+        return slot * ENTRY_BYTES;
+    }
+
+    private long keyAt(int slot) {
+        return buffer.getLong(offset(slot));
+    }
+
+    private int home(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    /**
+     * Locates the entry for a peptide key (and marks the entry as
+     * recently used).
+     *
+     * @param key the peptide key of interest.
+     *
+     * @return the slot holding the entry for the specified key, or
+     * a negative value if this map does not contain the key.
+     */
+    public int find(long key) {
+        if (key <= EMPTY)
+            return -1;
+
+        int slot = home(key);
+
+        while (true) {
+            long probe = keyAt(slot);
+
+            if (probe == key) {
+                referenced.set(slot);
+                return slot;
+            }
+
+            if (probe == EMPTY)
+                return -(slot + 1);
+
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Identifies keys contained in this map.
+     *
+     * @param key the peptide key of interest.
+     *
+     * @return {@code true} iff this map contains the specified key.
+     */
+    public boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Returns the binding strength stored in an occupied slot.
+     *
+     * @param slot a slot returned by {@link #find(long)}.
+     *
+     * @return the binding strength stored in the specified slot.
+     */
+    public double strength(int slot) {
+        return buffer.getDouble(offset(slot) + STRENGTH_OFFSET);
+    }
+
+    /**
+     * Returns the percentile rank stored in an occupied slot.
+     *
+     * @param slot a slot returned by {@link #find(long)}.
+     *
+     * @return the percentile rank stored in the specified slot
+     * ({@code Double.NaN} if the rank is unknown).
+     */
+    public double percentile(int slot) {
+        return buffer.getDouble(offset(slot) + PERCENTILE_OFFSET);
+    }
+
+    /**
+     * Stores the attributes of a binding record.
+     *
+     * @param key a valid peptide key.
+     *
+     * @param strength the binding strength.
+     *
+     * @param percentile the percentile rank ({@code Double.NaN} if the
+     * rank is unknown).
+     *
+     * @throws IllegalArgumentException unless the key is valid.
+     *
+     * @throws IllegalStateException if the map cannot grow further.
+     */
+    public void put(long key, double strength, double percentile) {
+        if (key <= EMPTY)
+            throw new IllegalArgumentException(String.format("Invalid peptide key [%d].", key));
+
+        int slot = find(key);
+
+        if (slot < 0) {
+            slot = -(slot + 1);
+            referenced.clear(slot);
+            ++size;
+        }
+
+        write(slot, key, strength, percentile);
+
+        if (size > LOAD_FACTOR * capacity())
+            rehash();
+    }
+
+    private void write(int slot, long key, double strength, double percentile) {
+        int offset = offset(slot);
+
+        buffer.putLong(offset, key);
+        buffer.putDouble(offset + STRENGTH_OFFSET, strength);
+        buffer.putDouble(offset + PERCENTILE_OFFSET, percentile);
+    }
+
+    private void rehash() {
+        if (capacity() >= MAX_CAPACITY)
+            throw new IllegalStateException("Off-heap record map capacity exceeded.");
+
+        ByteBuffer oldBuffer = buffer;
+        BitSet oldReferenced = referenced;
+        int oldCapacity = capacity();
+
+        allocate(oldCapacity << 1);
+
+        for (int slot = 0; slot < oldCapacity; ++slot) {
+            int offset = offset(slot);
+            long key = oldBuffer.getLong(offset);
+
+            if (key != EMPTY) {
+                int newSlot = -(find(key) + 1);
+
+                write(newSlot, key,
+                      oldBuffer.getDouble(offset + STRENGTH_OFFSET),
+                      oldBuffer.getDouble(offset + PERCENTILE_OFFSET));
+
+                referenced.set(newSlot, oldReferenced.get(slot));
+            }
+        }
+    }
+
+    private void shiftBack(int hole) {
+        //
+        // Backward-shift deletion, as in PeptideKeyMap...
+        //
+        int next = (hole + 1) & mask;
+
+        while (keyAt(next) != EMPTY) {
+            long key = keyAt(next);
+
+            if (((next - home(key)) & mask) >= ((next - hole) & mask)) {
+                write(hole, key, strength(next), percentile(next));
+                referenced.set(hole, referenced.get(next));
+                hole = next;
+            }
+
+            next = (next + 1) & mask;
+        }
+
+        write(hole, EMPTY, 0.0, 0.0);
+        referenced.clear(hole);
+    }
+
+    /**
+     * Removes entries that have not been found recently, using the
+     * CLOCK algorithm (see {@link PeptideKeyMap#evict(int)}).
+     *
+     * @param count the number of entries to remove.
+     *
+     * @return the number of entries removed (which is smaller than the
+     * requested count only if this map becomes empty).
+     */
+    public int evict(int count) {
+        int evicted = 0;
+        long remaining = 2L * capacity() + count;
+
+        while (evicted < count && size > 0 && remaining-- > 0) {
+            int slot = hand;
+
+            if (keyAt(slot) == EMPTY) {
+                hand = (slot + 1) & mask;
+            }
+            else if (referenced.get(slot)) {
+                referenced.clear(slot);
+                hand = (slot + 1) & mask;
+            }
+            else {
+                shiftBack(slot);
+                --size;
+                ++evicted;
+            }
+        }
+
+        return evicted;
+    }
+
+    /**
+     * Removes all entries and releases the native memory (beyond the
+     * minimum capacity) held by this map.
+     */
+    public void clear() {
+        allocate(MIN_CAPACITY);
+        size = 0;
+    }
+
+    /**
+     * Returns the number of entries in this map.
+     *
+     * @return the number of entries in this map.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of bytes of native memory held by this map.
+     *
+     * @return the number of bytes of native memory held by this map.
+     */
+    public long byteSize() {
+        return (long) capacity() * ENTRY_BYTES;
+    }
+}
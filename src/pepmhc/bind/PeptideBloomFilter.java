@@ -0,0 +1,255 @@
+
+package pepmhc.bind;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import jam.lang.JamException;
+
+/**
+ * Records the set of packed peptide keys present in a binding table
+ * in a Bloom filter, so that peptides that are definitely absent from
+ * the table can be sent straight to the predictor without a database
+ * query.
+ *
+ * <p>The filter is sized for a fixed number of keys at a false
+ * positive rate of about one percent (ten bits and seven hash probes
+ * per key); it never produces false negatives.  Filters may be saved
+ * to and loaded from binary files along with the number of table rows
+ * that they summarize, so that a stale filter can be detected when it
+ * is loaded.  This class is not thread-safe.
+ */
+public final class PeptideBloomFilter {
+    private final long[] words;
+    private final long bitMask;
+    private final int capacity;
+    private final long rowCount;
+    private long count;
+
+    private static final int MAGIC = 0x50424c4d;
+    private static final int VERSION = 2;
+
+    private static final int HASH_COUNT = 7;
+    private static final int BITS_PER_KEY = 10;
+    private static final int MIN_CAPACITY = 1 << 16;
+
+    private PeptideBloomFilter(int capacity, long[] words, long count, long rowCount) {
+        this.words = words;
+        this.count = count;
+        this.capacity = capacity;
+        this.rowCount = rowCount;
+        this.bitMask = 64L * words.length - 1;
+    }
+
+    /**
+     * Creates a new empty filter.
+     *
+     * @param capacity the number of keys that the filter must hold
+     * at the nominal false positive rate.
+     *
+     * @return a new empty filter with the specified capacity.
+     */
+    public static PeptideBloomFilter create(int capacity) {
+        capacity = Math.max(capacity, MIN_CAPACITY);
+
+        long bits = Long.highestOneBit((long) BITS_PER_KEY * capacity - 1) << 1;
+        return new PeptideBloomFilter(capacity, new long[(int) Math.max(1, bits / 64)], 0, -1);
+    }
+
+    /**
+     * Loads a filter from a binary file.
+     *
+     * @param file the file to read.
+     *
+     * @return the filter stored in the file, or {@code null} if the
+     * file does not exist or is not a valid filter file.
+     */
+    public static PeptideBloomFilter load(File file) {
+        if (!file.exists())
+            return null;
+
+        try (DataInputStream input =
+             new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION)
+                return null;
+
+            long count = input.readLong();
+            long rowCount = input.readLong();
+            int capacity = input.readInt();
+            long[] words = new long[input.readInt()];
+
+            for (int index = 0; index < words.length; ++index)
+                words[index] = input.readLong();
+
+            return new PeptideBloomFilter(capacity, words, count, rowCount);
+        }
+        catch (IOException ioex) {
+            return null;
+        }
+    }
+
+    /**
+     * Saves this filter in a binary file (written under a unique
+     * temporary name in the same directory and moved into place, so
+     * that concurrent writers never interleave).
+     *
+     * @param file the file to write.
+     *
+     * @param rowCount the number of table rows summarized by this
+     * filter.
+     *
+     * @throws RuntimeException if any I/O errors occur.
+     */
+    public void save(File file, long rowCount) {
+        Path tempFile = null;
+
+        try {
+            tempFile = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(), file.getName(), ".tmp");
+
+            try (DataOutputStream output =
+                 new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeLong(count);
+                output.writeLong(rowCount);
+                output.writeInt(capacity);
+                output.writeInt(words.length);
+
+                for (long word : words)
+                    output.writeLong(word);
+            }
+
+            Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException ioex) {
+            deleteQuietly(tempFile);
+            throw JamException.runtime(ioex);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            if (path != null)
+                Files.deleteIfExists(path);
+        }
+        catch (IOException ioex) {
+            // Nothing more to do...
+        }
+    }
+
+    private static long mix(long key) {
+        //
+        // The finalizer of the SplitMix64 generator: a cheap
+        // bijection that spreads every input bit over the output...
+        //
+        key = (key ^ (key >>> 30)) * 0xbf58476d1ce4e5b9L;
+        key = (key ^ (key >>> 27)) * 0x94d049bb133111ebL;
+        return key ^ (key >>> 31);
+    }
+
+    /**
+     * Adds a key to this filter.
+     *
+     * @param key the peptide key to add.
+     *
+     * @return {@code true} if the key was new to this filter, {@code
+     * false} if it (probably) had been added before.
+     */
+    public boolean add(long key) {
+        long hash = mix(key);
+        long step = (hash >>> 32) | 1L;
+        boolean added = false;
+
+        for (int probe = 0; probe < HASH_COUNT; ++probe, hash += step) {
+            long bit = hash & bitMask;
+            int index = (int) (bit >>> 6);
+            long word = words[index] | (1L << bit);
+
+            if (word != words[index]) {
+                words[index] = word;
+                added = true;
+            }
+        }
+
+        if (added)
+            ++count;
+
+        return added;
+    }
+
+    /**
+     * Identifies keys that may have been added to this filter.
+     *
+     * @param key the peptide key of interest.
+     *
+     * @return {@code false} if the key has definitely not been added
+     * to this filter, {@code true} if it probably has.
+     */
+    public boolean mightContain(long key) {
+        long hash = mix(key);
+        long step = (hash >>> 32) | 1L;
+
+        for (int probe = 0; probe < HASH_COUNT; ++probe, hash += step) {
+            long bit = hash & bitMask;
+
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the number of keys that this filter holds at the nominal
+     * false positive rate.
+     *
+     * @return the number of keys that this filter holds at the nominal
+     * false positive rate.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of distinct keys that have been added to this
+     * filter.  Repeated additions are not counted; neither are the
+     * (rare) new keys that were already reported as present, so the
+     * count may fall slightly short of the true number.
+     *
+     * @return the number of distinct keys that have been added to this
+     * filter.
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * Returns the number of table rows summarized by this filter when
+     * it was saved.
+     *
+     * @return the number of table rows summarized by this filter when
+     * it was saved, or {@code -1} for filters that were created rather
+     * than loaded.
+     */
+    public long rowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Identifies filters holding more keys than their capacity, whose
+     * false positive rate exceeds the nominal rate.
+     *
+     * @return {@code true} iff this filter is over capacity.
+     */
+    public boolean isSaturated() {
+        return count > capacity;
+    }
+}
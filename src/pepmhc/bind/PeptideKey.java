@@ -0,0 +1,271 @@
+
+package pepmhc.bind;
+
+import java.util.Arrays;
+
+import jene.peptide.Peptide;
+import jene.peptide.Residue;
+
+/**
+ * Packs short native peptides losslessly into primitive {@code long}
+ * keys.
+ *
+ * <p>Each of the twenty native residues is assigned a five-bit code;
+ * the key holds the peptide length in the lowest four bits and the
+ * residue codes above it, first residue lowest.  Peptides of up to
+ * {@link #MAX_LENGTH} residues (all MHC class I ligands) therefore fit
+ * in 59 bits, every valid key is strictly positive, and two keys are
+ * equal if and only if the peptides are equal.
+ */
+public final class PeptideKey {
+    private PeptideKey() {}
+
+    /**
+     * The maximum peptide length that can be packed into a key.
+     */
+    public static final int MAX_LENGTH = 11;
+
+    /**
+     * The number of distinct residue codes (the native residues).
+     */
+    public static final int CODE_COUNT = 20;
+
+    /**
+     * Sentinel value that is never a valid key.
+     */
+    public static final long NONE = -1L;
+
+    private static final int LENGTH_BITS = 4;
+    private static final int RESIDUE_BITS = 5;
+    private static final long LENGTH_MASK = (1L << LENGTH_BITS) - 1;
+    private static final long RESIDUE_MASK = (1L << RESIDUE_BITS) - 1;
+
+    private static final String NATIVE_CODES = "ACDEFGHIKLMNPQRSTVWY";
+
+    private static final int[] RESIDUE_CODES = residueCodes();
+    private static final Residue[] CODE_RESIDUES = codeResidues();
+
+    private static int[] residueCodes() {
+        int[] codes = new int[Residue.values().length];
+        Arrays.fill(codes, -1);
+
+        for (int code = 0; code < CODE_COUNT; ++code)
+            codes[Residue.valueOfCode1(NATIVE_CODES.charAt(code)).ordinal()] = code;
+
+        return codes;
+    }
+
+    private static Residue[] codeResidues() {
+        Residue[] residues = new Residue[CODE_COUNT];
+
+        for (int code = 0; code < CODE_COUNT; ++code)
+            residues[code] = Residue.valueOfCode1(NATIVE_CODES.charAt(code));
+
+        return residues;
+    }
+
+    /**
+     * Returns the code assigned to a residue.
+     *
+     * @param residue the residue of interest.
+     *
+     * @return the code in {@code [0, CODE_COUNT)} assigned to the
+     * residue, or {@code -1} if the residue is not native.
+     */
+    public static int code(Residue residue) {
+        return RESIDUE_CODES[residue.ordinal()];
+    }
+
+    /**
+     * Returns the residue assigned to a code.
+     *
+     * @param code the residue code.
+     *
+     * @return the native residue with the specified code.
+     *
+     * @throws IndexOutOfBoundsException unless the code is valid.
+     */
+    public static Residue residue(int code) {
+        return CODE_RESIDUES[code];
+    }
+
+    /**
+     * Returns the residue codes for every residue in a peptide.
+     *
+     * @param peptide the peptide (or protein) of interest.
+     *
+     * @return an array containing the code for each residue in the
+     * peptide, with {@code -1} for non-native residues.
+     */
+    public static int[] codes(Peptide peptide) {
+        int[] codes = new int[peptide.length()];
+
+        for (int index = 0; index < codes.length; ++index)
+            codes[index] = RESIDUE_CODES[peptide.get(index).ordinal()];
+
+        return codes;
+    }
+
+    /**
+     * Determines whether a peptide can be packed into a key.
+     *
+     * @param peptide the peptide of interest.
+     *
+     * @return {@code true} iff the peptide is non-empty, no longer
+     * than {@code MAX_LENGTH}, and composed of native residues.
+     */
+    public static boolean isEncodable(Peptide peptide) {
+        return encodeOrNone(peptide) != NONE;
+    }
+
+    /**
+     * Packs a peptide into a key.
+     *
+     * @param peptide the peptide to encode.
+     *
+     * @return the key for the peptide.
+     *
+     * @throws IllegalArgumentException unless the peptide can be
+     * encoded.
+     */
+    public static long encode(Peptide peptide) {
+        long key = encodeOrNone(peptide);
+
+        if (key == NONE)
+            throw new IllegalArgumentException(String.format("Peptide [%s] cannot be packed into a key.",
+                                                             peptide.formatString()));
+        return key;
+    }
+
+    /**
+     * Packs a peptide into a key.
+     *
+     * @param peptide the peptide to encode.
+     *
+     * @return the key for the peptide, or {@code NONE} if the peptide
+     * cannot be encoded.
+     */
+    public static long encodeOrNone(Peptide peptide) {
+        int length = peptide.length();
+
+        if (length < 1 || length > MAX_LENGTH)
+            return NONE;
+
+        long key = length;
+
+        for (int index = 0; index < length; ++index) {
+            int code = RESIDUE_CODES[peptide.get(index).ordinal()];
+
+            if (code < 0)
+                return NONE;
+
+            key |= ((long) code) << shift(index);
+        }
+
+        return key;
+    }
+
+    /**
+     * Packs a run of residue codes into a key.
+     *
+     * @param codes an array of residue codes.
+     *
+     * @param offset the index of the first residue of the peptide.
+     *
+     * @param length the number of residues in the peptide.
+     *
+     * @return the key for the peptide occupying elements {@code
+     * [offset, offset + length)} of the code array, or {@code NONE}
+     * if the peptide cannot be encoded.
+     */
+    public static long encodeOrNone(int[] codes, int offset, int length) {
+        if (length < 1 || length > MAX_LENGTH)
+            return NONE;
+
+        long key = length;
+
+        for (int index = 0; index < length; ++index) {
+            int code = codes[offset + index];
+
+            if (code < 0)
+                return NONE;
+
+            key |= ((long) code) << shift(index);
+        }
+
+        return key;
+    }
+
+    /**
+     * Unpacks a key into its peptide.
+     *
+     * @param key a key created by {@link #encode(Peptide)}.
+     *
+     * @return the peptide encoded by the key.
+     *
+     * @throws IllegalArgumentException unless the key is valid.
+     */
+    public static Peptide decode(long key) {
+        int length = length(key);
+
+        if (key <= 0 || length < 1 || length > MAX_LENGTH)
+            throw new IllegalArgumentException(String.format("Invalid peptide key [%d].", key));
+
+        char[] chars = new char[length];
+
+        for (int index = 0; index < length; ++index)
+            chars[index] = NATIVE_CODES.charAt(codeAt(key, index));
+
+        return Peptide.instance(new String(chars));
+    }
+
+    /**
+     * Creates the peptide described by a run of residue codes.
+     *
+     * @param codes an array of valid residue codes.
+     *
+     * @param offset the index of the first residue of the peptide.
+     *
+     * @param length the number of residues in the peptide.
+     *
+     * @return the peptide occupying elements {@code [offset, offset +
+     * length)} of the code array.
+     */
+    public static Peptide decode(int[] codes, int offset, int length) {
+        char[] chars = new char[length];
+
+        for (int index = 0; index < length; ++index)
+            chars[index] = NATIVE_CODES.charAt(codes[offset + index]);
+
+        return Peptide.instance(new String(chars));
+    }
+
+    /**
+     * Returns the length of the peptide encoded by a key.
+     *
+     * @param key a valid peptide key.
+     *
+     * @return the length of the encoded peptide.
+     */
+    public static int length(long key) {
+        return (int) (key & LENGTH_MASK);
+    }
+
+    /**
+     * Returns the residue code at a given position of an encoded
+     * peptide.
+     *
+     * @param key a valid peptide key.
+     *
+     * @param index the zero-based residue position.
+     *
+     * @return the residue code at the specified position.
+     */
+    public static int codeAt(long key, int index) {
+        return (int) ((key >>> shift(index)) & RESIDUE_MASK);
+    }
+
+    private static int shift(int index) {
+        return LENGTH_BITS + RESIDUE_BITS * index;
+    }
+}
@@ -0,0 +1,322 @@
+
+package pepmhc.bind;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Maps packed peptide keys to objects with an open-addressing hash
+ * table over primitive {@code long} keys.
+ *
+ * <p>Keys are stored unboxed in a flat array and probed linearly, so
+ * a lookup costs one multiplicative hash and (usually) one array read
+ * instead of hashing and comparing a full {@code Peptide} object.
+ * Only valid peptide keys (strictly positive values) may be stored.
+ *
+ * <p>Each entry carries a reference bit, which is set when the entry
+ * is retrieved (or replaced) and consumed by {@link #evict(int)}, so
+ * that the map can shed its least recently used entries by the CLOCK
+ * (second chance) algorithm.  New entries start with a clear bit, so
+ * records that are never requested again (e.g., from a one-pass scan)
+ * are evicted before records that have been reused.  This class is
+ * not thread-safe.
+ *
+ * @param <V> the type of mapped values.
+ */
+public final class PeptideKeyMap<V> {
+    private long[] keys;
+    private Object[] values;
+    private BitSet referenced;
+    private int mask;
+    private int size;
+    private int hand;
+
+    private static final long EMPTY = 0L;
+    private static final int MIN_CAPACITY = 16;
+    private static final double LOAD_FACTOR = 0.75;
+
+    /**
+     * Creates a new empty map with the default initial capacity.
+     */
+    public PeptideKeyMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Creates a new empty map that can hold a given number of entries
+     * without resizing.
+     *
+     * @param expected the expected number of entries.
+     */
+    public PeptideKeyMap(int expected) {
+        allocate(capacityFor(expected));
+    }
+
+    private static int capacityFor(int expected) {
+        long required = (long) Math.ceil(Math.max(expected, 1) / LOAD_FACTOR);
+        long capacity = MIN_CAPACITY;
+
+        while (capacity < required)
+            capacity <<= 1;
+
+        if (capacity > (1 << 30))
+            throw new IllegalArgumentException("Peptide key map capacity exceeded.");
+
+        return (int) capacity;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        referenced = new BitSet(capacity);
+        mask = capacity - 1;
+        hand = 0;
+    }
+
+    private static void validate(long key) {
+        if (key <= EMPTY)
+            throw new IllegalArgumentException(String.format("Invalid peptide key [%d].", key));
+    }
+
+    private int slot(long key) {
+        //
+        // Fibonacci hashing spreads the packed residue bits (which
+        // vary slowly in the high positions) across the table...
+        //
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    private int find(long key) {
+        int slot = slot(key);
+
+        while (true) {
+            long probe = keys[slot];
+
+            if (probe == key)
+                return slot;
+
+            if (probe == EMPTY)
+                return -(slot + 1);
+
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Removes all entries from this map (retaining its capacity).
+     */
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        Arrays.fill(values, null);
+        referenced.clear();
+        size = 0;
+    }
+
+    /**
+     * Identifies keys contained in this map.
+     *
+     * @param key the peptide key of interest.
+     *
+     * @return {@code true} iff this map contains the specified key.
+     */
+    public boolean containsKey(long key) {
+        return key > EMPTY && find(key) >= 0;
+    }
+
+    /**
+     * Returns the value mapped to a key.
+     *
+     * @param key the peptide key of interest.
+     *
+     * @return the value mapped to the specified key ({@code null} if
+     * there is no mapping).
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        if (key <= EMPTY)
+            return null;
+
+        int slot = find(key);
+
+        if (slot < 0)
+            return null;
+
+        referenced.set(slot);
+        return (V) values[slot];
+    }
+
+    /**
+     * Maps a key to a value.
+     *
+     * @param key a valid peptide key.
+     *
+     * @param value the value to map.
+     *
+     * @return the value previously mapped to the key ({@code null}
+     * if there was no mapping).
+     *
+     * @throws IllegalArgumentException unless the key is valid.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        validate(key);
+        int slot = find(key);
+
+        if (slot >= 0) {
+            V previous = (V) values[slot];
+            values[slot] = value;
+            referenced.set(slot);
+            return previous;
+        }
+
+        slot = -(slot + 1);
+        keys[slot] = key;
+        values[slot] = value;
+
+        if (++size > LOAD_FACTOR * keys.length)
+            rehash(keys.length << 1);
+
+        return null;
+    }
+
+    /**
+     * Removes the mapping for a key.
+     *
+     * @param key the peptide key of interest.
+     *
+     * @return the value previously mapped to the key ({@code null}
+     * if there was no mapping).
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        if (key <= EMPTY)
+            return null;
+
+        int slot = find(key);
+
+        if (slot < 0)
+            return null;
+
+        V previous = (V) values[slot];
+        shiftBack(slot);
+        --size;
+
+        return previous;
+    }
+
+    private void shiftBack(int hole) {
+        //
+        // Backward-shift deletion: move later members of the probe
+        // sequence into the hole so that no tombstones are needed...
+        //
+        int next = (hole + 1) & mask;
+
+        while (keys[next] != EMPTY) {
+            int home = slot(keys[next]);
+
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                referenced.set(hole, referenced.get(next));
+                hole = next;
+            }
+
+            next = (next + 1) & mask;
+        }
+
+        keys[hole] = EMPTY;
+        values[hole] = null;
+        referenced.clear(hole);
+    }
+
+    /**
+     * Removes entries that have not been retrieved recently, using the
+     * CLOCK algorithm: a hand sweeps the table, clearing the reference
+     * bits that are set and removing the entries whose bits are clear.
+     *
+     * @param count the number of entries to remove.
+     *
+     * @return the number of entries removed (which is smaller than the
+     * requested count only if this map becomes empty).
+     */
+    public int evict(int count) {
+        int evicted = 0;
+        long remaining = 2L * keys.length + count;
+
+        while (evicted < count && size > 0 && remaining-- > 0) {
+            int slot = hand;
+
+            if (keys[slot] == EMPTY) {
+                hand = (slot + 1) & mask;
+            }
+            else if (referenced.get(slot)) {
+                referenced.clear(slot);
+                hand = (slot + 1) & mask;
+            }
+            else {
+                //
+                // Backward-shift deletion may move an unvisited entry
+                // into this slot, so the hand stays put...
+                //
+                shiftBack(slot);
+                --size;
+                ++evicted;
+            }
+        }
+
+        return evicted;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        BitSet oldReferenced = referenced;
+
+        allocate(capacity);
+
+        for (int index = 0; index < oldKeys.length; ++index) {
+            if (oldKeys[index] != EMPTY) {
+                int slot = -(find(oldKeys[index]) + 1);
+                keys[slot] = oldKeys[index];
+                values[slot] = oldValues[index];
+                referenced.set(slot, oldReferenced.get(index));
+            }
+        }
+    }
+
+    /**
+     * Returns the number of entries in this map.
+     *
+     * @return the number of entries in this map.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Identifies empty maps.
+     *
+     * @return {@code true} iff this map has no entries.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the mapped values in an unspecified order.
+     *
+     * @return a new list containing the mapped values.
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> result = new ArrayList<V>(size);
+
+        for (int index = 0; index < keys.length; ++index)
+            if (keys[index] != EMPTY)
+                result.add((V) values[index]);
+
+        return result;
+    }
+}
@@ -0,0 +1,218 @@
+
+package pepmhc.bind;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import jam.app.JamLogger;
+
+/**
+ * Maintains the {@link PeptideBloomFilter} of the keys stored in one
+ * dedicated database file, shared by every table object backed by
+ * that file.
+ *
+ * <p>Each filter has its own lock, so lookups and stores for
+ * different tables never contend.  The filter is saved beside the
+ * database file (with the number of table rows that it summarizes)
+ * only when it is flushed (see {@link BindTable#saveFilters()}) and
+ * when the JVM exits normally, not after every insert.
+ *
+ * <p>Another process may write to the same database file (in a
+ * shared cache directory, for example).  The modification time and
+ * length of the database file (and of its write-ahead log) are
+ * recorded after every store through this process; if they change
+ * when no store is in progress, another process has written to the
+ * file, and the filter is abandoned for the life of this process so
+ * that it never reports a stored key as absent.
+ */
+final class PresenceFilter {
+    private final File dbFile;
+    private final File walFile;
+    private final File filterFile;
+    private final BindTable<?> table;
+
+    private PeptideBloomFilter filter = null;
+    private boolean opened = false;
+    private boolean disabled = false;
+    private boolean dirty = false;
+    private int writers = 0;
+    private long fingerprint = 0L;
+
+    private static final ConcurrentMap<File, PresenceFilter> instances =
+        new ConcurrentHashMap<File, PresenceFilter>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(PresenceFilter::saveOnExit, "PresenceFilterShutdown"));
+    }
+
+    private PresenceFilter(File dbFile, BindTable<?> table) {
+        this.dbFile = dbFile;
+        this.walFile = new File(dbFile.getPath() + "-wal");
+        this.filterFile = new File(dbFile.getPath() + BindTable.FILTER_SUFFIX);
+        this.table = table;
+    }
+
+    /**
+     * Returns the filter shared by all tables in a database file.
+     *
+     * @param dbFile the name of the dedicated database file.
+     *
+     * @param table a table stored in the database file (used to count
+     * and read the keys when the filter must be built).
+     *
+     * @return the filter shared by all tables in the database file.
+     */
+    static PresenceFilter instance(String dbFile, BindTable<?> table) {
+        File file = new File(dbFile).getAbsoluteFile();
+        return instances.computeIfAbsent(file, key -> new PresenceFilter(key, table));
+    }
+
+    /**
+     * Saves every filter that has changed since it was last saved.
+     */
+    static void saveAll() {
+        for (PresenceFilter instance : instances.values())
+            instance.save();
+    }
+
+    private static void saveOnExit() {
+        try {
+            saveAll();
+        }
+        catch (RuntimeException ex) {
+            JamLogger.error(ex);
+        }
+    }
+
+    /**
+     * Selects the keys that may be present in the database.
+     *
+     * @param keys the keys of interest.
+     *
+     * @param candidates the collection that receives the keys that
+     * may be present (every key if the filter is unavailable).
+     */
+    synchronized void select(Collection<Long> keys, Collection<Long> candidates) {
+        PeptideBloomFilter current = current();
+
+        for (Long key : keys)
+            if (current == null || current.mightContain(key))
+                candidates.add(key);
+    }
+
+    /**
+     * Notifies this filter that records are about to be stored.
+     */
+    synchronized void beginStore() {
+        current();
+        ++writers;
+    }
+
+    /**
+     * Notifies this filter that records have been stored (or that the
+     * attempt to store them has failed).
+     *
+     * @param keys the keys of the stored records.
+     */
+    synchronized void endStore(Collection<Long> keys) {
+        --writers;
+
+        if (filter != null && !disabled) {
+            for (Long key : keys)
+                filter.add(key);
+
+            if (filter.isSaturated())
+                filter = build();
+
+            dirty = true;
+        }
+
+        if (writers == 0)
+            fingerprint = fingerprint();
+    }
+
+    /**
+     * Records the current state of the database file after it has
+     * been changed outside of {@link #beginStore()} and {@link
+     * #endStore(Collection)} by this process.
+     */
+    synchronized void resync() {
+        if (writers == 0)
+            fingerprint = fingerprint();
+    }
+
+    /**
+     * Saves this filter if it has changed since it was last saved.
+     */
+    synchronized void save() {
+        if (filter == null || disabled || !dirty || writers > 0)
+            return;
+
+        if (isForeign())
+            return;
+
+        filter.save(filterFile, table.count());
+        dirty = false;
+    }
+
+    private PeptideBloomFilter current() {
+        if (disabled)
+            return null;
+
+        if (!opened)
+            open();
+        else if (isForeign())
+            return null;
+
+        return filter;
+    }
+
+    private boolean isForeign() {
+        if (writers > 0 || fingerprint == fingerprint())
+            return false;
+
+        JamLogger.warn("Database [%s] was changed by another process; disabling its presence filter.", dbFile);
+
+        filter = null;
+        disabled = true;
+
+        return true;
+    }
+
+    private void open() {
+        opened = true;
+        fingerprint = fingerprint();
+
+        PeptideBloomFilter loaded = PeptideBloomFilter.load(filterFile);
+
+        if (loaded != null && !loaded.isSaturated() && loaded.rowCount() == table.count()) {
+            filter = loaded;
+        }
+        else {
+            filter = build();
+            dirty = true;
+        }
+    }
+
+    private PeptideBloomFilter build() {
+        JamLogger.info("Building presence filter [%s]...", filterFile);
+
+        Collection<Long> keys = table.getKeys();
+        PeptideBloomFilter result = PeptideBloomFilter.create(2 * keys.size());
+
+        for (Long key : keys)
+            result.add(key);
+
+        return result;
+    }
+
+    private long fingerprint() {
+        return 31L * stamp(dbFile) + stamp(walFile);
+    }
+
+    private static long stamp(File file) {
+        return 31L * file.lastModified() + file.length();
+    }
+}
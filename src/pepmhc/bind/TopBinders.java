@@ -0,0 +1,316 @@
+
+package pepmhc.bind;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.ToDoubleFunction;
+
+import jam.app.JamProperties;
+import jam.lang.JamException;
+
+import jene.hla.Allele;
+import jene.peptide.Peptide;
+
+import pepmhc.affy.AffinityRecord;
+import pepmhc.stab.StabilityRecord;
+
+/**
+ * Retains the {@code K} strongest binding records from a stream of
+ * predictions, in memory proportional to {@code K}.
+ *
+ * <p>Each record is assigned a primitive score that increases with
+ * binding strength (the negative {@code log10(IC50)} for affinities,
+ * the half-life for stabilities).  The retained records are kept in a
+ * bounded binary min-heap on that score, so the weakest retained
+ * record is at the root and each new record is compared against it
+ * in constant time.  A peptide is retained at most once.
+ *
+ * <p>Instances are not thread-safe.
+ *
+ * @param <R> the type of binding record retained.
+ */
+public final class TopBinders<R extends BindRecord> {
+    private final int capacity;
+    private final ToDoubleFunction<? super R> scorer;
+
+    private final double[] scores;
+    private final Object[] records;
+    private final Set<Peptide> peptides;
+
+    private int size = 0;
+
+    /**
+     * Name of the system property that specifies the number of
+     * peptides passed to the predictor in each streaming batch.
+     */
+    public static final String BATCH_SIZE_PROPERTY = "pepmhc.topBatchSize";
+
+    /**
+     * Default number of peptides passed to the predictor in each
+     * streaming batch.
+     */
+    public static final int BATCH_SIZE_DEFAULT = 10000;
+
+    private TopBinders(int capacity, ToDoubleFunction<? super R> scorer) {
+        if (capacity < 1)
+            throw JamException.runtime("Top-binder capacity must be positive.");
+
+        this.capacity = capacity;
+        this.scorer = scorer;
+        this.scores = new double[capacity];
+        this.records = new Object[capacity];
+        this.peptides = new HashSet<Peptide>(2 * capacity);
+    }
+
+    /**
+     * Creates an empty top-binder heap with a custom scoring function.
+     *
+     * @param <R> the type of binding record retained.
+     *
+     * @param capacity the maximum number of records to retain.
+     *
+     * @param scorer a function that assigns larger scores to more
+     * strongly binding records.
+     *
+     * @return an empty top-binder heap with the specified capacity.
+     */
+    public static <R extends BindRecord> TopBinders<R> instance(int capacity, ToDoubleFunction<? super R> scorer) {
+        return new TopBinders<R>(capacity, scorer);
+    }
+
+    /**
+     * Creates an empty heap that retains the records with the lowest
+     * IC50 concentrations.  Records are compared in log space, so the
+     * log-space records created by matrix predictors are never
+     * converted to nanomolar units.
+     *
+     * @param capacity the maximum number of records to retain.
+     *
+     * @return an empty top-binder heap with the specified capacity.
+     */
+    public static TopBinders<AffinityRecord> affinity(int capacity) {
+        return new TopBinders<AffinityRecord>(capacity, record -> -record.getLog10Affinity());
+    }
+
+    /**
+     * Creates an empty heap that retains the stability records with
+     * the longest half-lives.
+     *
+     * @param capacity the maximum number of records to retain.
+     *
+     * @return an empty top-binder heap with the specified capacity.
+     */
+    public static TopBinders<StabilityRecord> stability(int capacity) {
+        return new TopBinders<StabilityRecord>(capacity, record -> record.getStrength());
+    }
+
+    /**
+     * Returns the number of peptides passed to the predictor in each
+     * streaming batch.
+     *
+     * @return the number of peptides passed to the predictor in each
+     * streaming batch.
+     */
+    public static int batchSize() {
+        if (JamProperties.isSet(BATCH_SIZE_PROPERTY))
+            return JamProperties.getRequiredInt(BATCH_SIZE_PROPERTY);
+        else
+            return BATCH_SIZE_DEFAULT;
+    }
+
+    /**
+     * Predicts binding records for a stream of peptides and offers
+     * each record to this heap as soon as it is available.  Peptides
+     * are passed to the predictor in batches of {@link #batchSize()},
+     * so memory usage is bounded by the batch size and the heap
+     * capacity, not by the length of the stream.
+     *
+     * @param predictor the binding predictor.
+     *
+     * @param allele the receiving allele.
+     *
+     * @param peptides the presented peptides.
+     */
+    public void predict(BindPredictor<R> predictor, Allele allele, Iterable<Peptide> peptides) {
+        int batchSize = batchSize();
+        List<Peptide> batch = new ArrayList<Peptide>(batchSize);
+        Iterator<Peptide> iterator = peptides.iterator();
+
+        while (iterator.hasNext()) {
+            batch.add(iterator.next());
+
+            if (batch.size() == batchSize || !iterator.hasNext()) {
+                predictor.predict(allele, batch, this::offer);
+                batch = new ArrayList<Peptide>(batchSize);
+            }
+        }
+    }
+
+    /**
+     * Offers every record in a collection to this heap.
+     *
+     * @param records the records to offer.
+     */
+    public void offerAll(Collection<? extends R> records) {
+        for (R record : records)
+            offer(record);
+    }
+
+    /**
+     * Offers a record to this heap.
+     *
+     * @param record the record to offer.
+     *
+     * @return {@code true} iff the record was retained.
+     */
+    public boolean offer(R record) {
+        return offer(record, scorer.applyAsDouble(record));
+    }
+
+    /**
+     * Offers a record with a precomputed score to this heap.
+     *
+     * @param record the record to offer.
+     *
+     * @param score the score of the record (computed by the scoring
+     * function for this heap).
+     *
+     * @return {@code true} iff the record was retained.
+     */
+    public boolean offer(R record, double score) {
+        if (!admits(score) || peptides.contains(record.getPeptide()))
+            return false;
+
+        if (size < capacity) {
+            scores[size] = score;
+            records[size] = record;
+            siftUp(size++);
+        }
+        else {
+            peptides.remove(recordAt(0).getPeptide());
+            scores[0] = score;
+            records[0] = record;
+            siftDown(0);
+        }
+
+        peptides.add(record.getPeptide());
+        return true;
+    }
+
+    /**
+     * Determines whether a record with a given score would displace
+     * a retained record (or fill an empty slot), so that callers can
+     * skip creating records that would be rejected.
+     *
+     * @param score the score of a candidate record.
+     *
+     * @return {@code true} iff a record with the specified score (and
+     * a peptide that is not already retained) would be retained.
+     */
+    public boolean admits(double score) {
+        return size < capacity || score > scores[0];
+    }
+
+    /**
+     * Returns the score that a new record must exceed to be retained.
+     *
+     * @return the score of the weakest retained record if this heap
+     * is full, {@code Double.NEGATIVE_INFINITY} otherwise.
+     */
+    public double threshold() {
+        if (size < capacity)
+            return Double.NEGATIVE_INFINITY;
+        else
+            return scores[0];
+    }
+
+    /**
+     * Returns the maximum number of records retained.
+     *
+     * @return the maximum number of records retained.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of records currently retained.
+     *
+     * @return the number of records currently retained.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the retained records ordered from strongest to weakest.
+     *
+     * @return a new list containing the retained records ordered from
+     * strongest to weakest.
+     */
+    public List<R> toList() {
+        Integer[] order = new Integer[size];
+
+        for (int index = 0; index < size; ++index)
+            order[index] = index;
+
+        Arrays.sort(order, (i, j) -> Double.compare(scores[j], scores[i]));
+
+        List<R> list = new ArrayList<R>(size);
+
+        for (Integer index : order)
+            list.add(recordAt(index));
+
+        return list;
+    }
+
+    @SuppressWarnings("unchecked")
+    private R recordAt(int index) {
+        return (R) records[index];
+    }
+
+    private void siftUp(int child) {
+        while (child > 0) {
+            int parent = (child - 1) >>> 1;
+
+            if (scores[parent] <= scores[child])
+                return;
+
+            swap(parent, child);
+            child = parent;
+        }
+    }
+
+    private void siftDown(int parent) {
+        while (true) {
+            int child = 2 * parent + 1;
+
+            if (child >= size)
+                return;
+
+            if (child + 1 < size && scores[child + 1] < scores[child])
+                ++child;
+
+            if (scores[parent] <= scores[child])
+                return;
+
+            swap(parent, child);
+            parent = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        double score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+
+        Object record = records[i];
+        records[i] = records[j];
+        records[j] = record;
+    }
+}
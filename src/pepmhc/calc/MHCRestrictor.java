@@ -3,6 +3,8 @@ package pepmhc.calc;
 
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 
 import jene.hla.Allele;
 import jene.hla.Genotype;
@@ -73,8 +75,11 @@ public final class MHCRestrictor {
         //
         Collection<Peptide> binders = new HashSet<Peptide>();
 
-        for (Allele allele : genotype)
-            binders.addAll(threshold.getBinders(AffinityCache.instance(method, allele).require(peptides)));
+        Map<Allele, List<AffinityRecord>> alleleRecords =
+            AffinityCache.require(method, genotype.viewUniqueAlleles(), peptides);
+
+        for (List<AffinityRecord> records : alleleRecords.values())
+            binders.addAll(threshold.getBinders(records));
         
         return Peptidome.create(binders);
     }
@@ -1,8 +1,13 @@
 
 package pepmhc.calc;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 
 import jam.math.DoubleUtil;
 
@@ -14,6 +19,9 @@ import pepmhc.affy.AffinityCache;
 import pepmhc.affy.AffinityMethod;
 import pepmhc.affy.AffinityRecord;
 import pepmhc.affy.AffinityThreshold;
+import pepmhc.affy.smm.FusedMatrixScorer;
+import pepmhc.affy.smm.MatrixCalibration;
+import pepmhc.affy.smm.MatrixPredictor;
 
 /**
  * Computes presentation rates for MHC alleles and genotypes.
@@ -107,9 +115,7 @@ public final class PresentationRateCalculator {
      * allele.
      */
     public double compute(Allele allele) {
-        Collection<AffinityRecord> records = AffinityCache.instance(method, allele).require(peptides);
-
-        int bound = threshold.countBinders(records);
+        int bound = threshold.countBinders(AffinityCache.instance(method, allele), peptides);
         int total = peptides.size();
 
         return DoubleUtil.ratio(bound, total);
@@ -125,6 +131,9 @@ public final class PresentationRateCalculator {
      * genotype.
      */
     public double compute(Genotype genotype) {
+        if (method.getPredictor() instanceof MatrixPredictor)
+            return computeFused(genotype);
+
         //
         // A peptide may bind to multiple alleles, so to avoid
         // over-counting, collect the binder peptides from each
@@ -132,8 +141,11 @@ public final class PresentationRateCalculator {
         //
         Collection<Peptide> binders = new HashSet<Peptide>();
 
-        for (Allele allele : genotype.viewUniqueAlleles())
-            binders.addAll(threshold.getBinders(AffinityCache.instance(method, allele).require(peptides)));
+        Map<Allele, List<AffinityRecord>> alleleRecords =
+            AffinityCache.require(method, genotype.viewUniqueAlleles(), peptides);
+
+        for (List<AffinityRecord> records : alleleRecords.values())
+            binders.addAll(threshold.getBinders(records));
         
         int bound = binders.size();
         int total = peptides.size();
@@ -141,6 +153,67 @@ public final class PresentationRateCalculator {
         return DoubleUtil.ratio(bound, total);
     }
 
+    private double computeFused(Genotype genotype) {
+        //
+        // Matrix predictions are cheaper to compute than to look up,
+        // so score every allele in one pass over the distinct peptides
+        // of each length and count the peptides bound by any allele...
+        //
+        MatrixPredictor predictor = (MatrixPredictor) method.getPredictor();
+        List<Allele> alleles = new ArrayList<Allele>(genotype.viewUniqueAlleles());
+
+        int bound = 0;
+
+        for (Map.Entry<Integer, List<Peptide>> entry : groupByLength().entrySet()) {
+            int length = entry.getKey();
+            List<Peptide> group = entry.getValue();
+
+            FusedMatrixScorer scorer = FusedMatrixScorer.instance(predictor, alleles, length);
+            MatrixCalibration[] calibrations = calibrate(predictor, alleles, length);
+
+            double[][] scores = scorer.score(group);
+
+            for (int peptide = 0; peptide < group.size(); ++peptide)
+                if (isBound(scores, calibrations, peptide))
+                    ++bound;
+        }
+
+        return DoubleUtil.ratio(bound, peptides.size());
+    }
+
+    private Map<Integer, List<Peptide>> groupByLength() {
+        Map<Integer, List<Peptide>> groups = new LinkedHashMap<Integer, List<Peptide>>();
+
+        for (Peptide peptide : new LinkedHashSet<Peptide>(peptides))
+            groups.computeIfAbsent(peptide.length(), length -> new ArrayList<Peptide>()).add(peptide);
+
+        return groups;
+    }
+
+    private MatrixCalibration[] calibrate(MatrixPredictor predictor, List<Allele> alleles, int length) {
+        if (!threshold.isPercentileThresholdSet())
+            return null;
+
+        MatrixCalibration[] calibrations = new MatrixCalibration[alleles.size()];
+
+        for (int index = 0; index < calibrations.length; ++index)
+            calibrations[index] = predictor.getCalibration(alleles.get(index), length);
+
+        return calibrations;
+    }
+
+    private boolean isBound(double[][] scores, MatrixCalibration[] calibrations, int peptide) {
+        for (int allele = 0; allele < scores.length; ++allele) {
+            double log10IC50 = scores[allele][peptide];
+            double percentile = (calibrations != null) ? calibrations[allele].rank(log10IC50) : Double.NaN;
+
+            if (threshold.isBoundLog10(log10IC50, percentile))
+                return true;
+        }
+
+        return false;
+    }
+
     /**
      * Computes the <em>ideal binding fraction</em> for a genotype:
      * the binding fraction the genotype would have if there was no
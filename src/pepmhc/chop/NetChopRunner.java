@@ -1,30 +1,29 @@
 
 package pepmhc.chop;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.IOException;
-import java.io.PrintWriter;
 
 import java.util.List;
 
-import jam.app.JamLogger;
-import jam.io.IOUtil;
-import jam.lang.JamException;
 import jam.math.Probability;
 
 import jene.fasta.FastaPeptideRecord;
 import jene.peptide.Peptide;
 
+import pepmhc.metrics.BindMetrics;
+import pepmhc.proc.ProcessInput;
+import pepmhc.proc.Subprocess;
+
 /**
  * Runs the {@code netchop} executable for a single peptide.
  */
 public final class NetChopRunner {
     private final Peptide peptide;
 
-    private File peptideFile;
     private List<Probability> cleavageScores;
 
+    private static final BindMetrics METRICS = BindMetrics.instance("netchop");
+
     private NetChopRunner(Peptide peptide) {
         this.peptide = peptide;
     }
@@ -44,32 +43,22 @@ public final class NetChopRunner {
     }
 
     private List<Probability> score() {
+        long start = BindMetrics.start();
+        ProcessInput input = ProcessInput.open("NetChopRunner", List.of(peptide), NetChopRunner::formatRecord);
+
         try {
-            initPeptideFile();
-            writePeptideFile();
-            launchProcess();
-        }
-        catch (IOException ioex) {
-            JamLogger.error(ioex);
-            throw JamException.runtime(ioex);
+            Subprocess.run("netchop", formatCommand(input.getFile()), input,
+                           reader -> cleavageScores = NetChopParser.parse(reader));
         }
         finally {
-            peptideFile.delete();
+            METRICS.process(start);
         }
 
         return cleavageScores;
     }
 
-    private void initPeptideFile() throws IOException {
-        peptideFile = File.createTempFile("NetChopRunner", ".pep");
-    }
-        
-    private void writePeptideFile() throws IOException {
-        PrintWriter writer = new PrintWriter(peptideFile);
-        FastaPeptideRecord record = new FastaPeptideRecord(peptideKey(), fastaComment(), peptide);
-
-        writer.println(record.format());
-        writer.close();
+    private static String formatRecord(Peptide peptide) {
+        return new FastaPeptideRecord(peptideKey(), fastaComment(), peptide).format();
     }
 
     private static String peptideKey() {
@@ -80,15 +69,7 @@ public final class NetChopRunner {
         return "";
     }
 
-    private void launchProcess() throws IOException {
-        ProcessBuilder builder = new ProcessBuilder(formatCommand());
-        Process        process = builder.start();
-        BufferedReader reader  = IOUtil.openReader(process.getInputStream());
-
-        cleavageScores = NetChopParser.parse(reader);
-    }
-
-    private List<String> formatCommand() {
+    private List<String> formatCommand(File peptideFile) {
         return List.of(NetChop.resolveExecutableName(), peptideFile.getAbsolutePath());
     }
 }
@@ -2,6 +2,11 @@
 package pepmhc.junit;
 
 import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.List;
 
 import jene.hla.Allele;
 import jene.peptide.Peptide;
@@ -11,6 +16,7 @@ import pepmhc.affy.AffinityMethod;
 import pepmhc.affy.AffinityPredictor;
 import pepmhc.affy.AffinityRecord;
 import pepmhc.affy.AffinityTable;
+import pepmhc.bind.PeptideKey;
 
 import org.junit.*;
 import static org.junit.Assert.*;
@@ -37,6 +43,58 @@ public class AffinityCacheTest {
 
         if (file.exists())
             file.delete();
+
+        File filterFile = new File(AffinityTable.dbFile(method, allele) + AffinityTable.FILTER_SUFFIX);
+
+        if (filterFile.exists())
+            filterFile.delete();
+    }
+
+    @Test public void testLegacyImport() throws Exception {
+        String dbFile = AffinityTable.dbFile(method, allele);
+
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbFile)) {
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("create table affinity (peptide string primary key, "
+                                        + "affinity double not null, percentile double)");
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement("insert into affinity values (?, ?, ?)")) {
+                insertLegacy(statement, "AEFGPWQTV", 12.5, 0.5);
+                insertLegacy(statement, "KLNEPVLLL", 250.0, 2.0);
+                insertLegacy(statement, "AEFGPWQTVAEF", 5000.0, 50.0);
+            }
+        }
+
+        AffinityTable table = AffinityTable.create(method, allele);
+        List<AffinityRecord> records =
+            table.fetch(List.of(key("AEFGPWQTV"), key("KLNEPVLLL")));
+
+        assertEquals(2, table.count());
+        assertEquals(2, records.size());
+
+        for (AffinityRecord record : records) {
+            if (record.getPeptide().equals(Peptide.instance("AEFGPWQTV")))
+                assertEquals(12.5, record.getAffinity().doubleValue(), 1.0E-12);
+            else
+                assertEquals(250.0, record.getAffinity().doubleValue(), 1.0E-12);
+        }
+
+        // The legacy table is dropped, so reopening does not import
+        // the records again...
+        assertEquals(2, AffinityTable.create(method, allele).count());
+    }
+
+    private static void insertLegacy(PreparedStatement statement, String peptide,
+                                     double affinity, double percentile) throws Exception {
+        statement.setString(1, peptide);
+        statement.setDouble(2, affinity);
+        statement.setDouble(3, percentile);
+        statement.executeUpdate();
+    }
+
+    private static Long key(String peptide) {
+        return PeptideKey.encode(Peptide.instance(peptide));
     }
 
     @Test public void testNetMHC() {
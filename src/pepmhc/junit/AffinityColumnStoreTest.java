@@ -0,0 +1,182 @@
+
+package pepmhc.junit;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import jene.hla.Allele;
+import jene.peptide.Peptide;
+
+import pepmhc.affy.AffinityCache;
+import pepmhc.affy.AffinityColumnStore;
+import pepmhc.affy.AffinityColumnWriter;
+import pepmhc.affy.AffinityMethod;
+import pepmhc.affy.AffinityRecord;
+import pepmhc.bind.PeptideKey;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class AffinityColumnStoreTest {
+    static {
+        System.setProperty(AffinityCache.CACHE_DIRECTORY_PROPERTY, "data/cache");
+    }
+
+    private static final AffinityMethod method = AffinityMethod.NET_MHC_PAN;
+
+    private static final Allele A0101 = Allele.instance("HLA-A*01:01");
+    private static final Allele A0201 = Allele.instance("HLA-A*02:01");
+    private static final Allele B0702 = Allele.instance("HLA-B*07:02");
+
+    private static final Peptide P1 = Peptide.instance("AEFGPWQTV");
+    private static final Peptide P2 = Peptide.instance("KLNEPVLLL");
+    private static final Peptide P3 = Peptide.instance("SIINFEKL");
+    private static final Peptide P4 = Peptide.instance("YYYYYYYYY");
+
+    // Absent from the store (the second is too long to encode)...
+    private static final Peptide MISSING = Peptide.instance("AAAAAAAAA");
+    private static final Peptide LONG = Peptide.instance("AEFGPWQTVAEF");
+
+    @Before public void setUp() {
+        deleteColumnFile();
+    }
+
+    @AfterClass public static void tearDownClass() {
+        deleteColumnFile();
+    }
+
+    private static void deleteColumnFile() {
+        File file = new File(AffinityColumnStore.fileName(method));
+
+        if (file.exists())
+            file.delete();
+
+        AffinityColumnStore.reset(method);
+    }
+
+    private static void writeStore() {
+        // The writer requires the keys in ascending order...
+        Peptide[] peptides = new Peptide[] { P1, P2, P3, P4 };
+        long[] keys = new long[peptides.length];
+
+        for (int index = 0; index < peptides.length; ++index)
+            keys[index] = PeptideKey.encode(peptides[index]);
+
+        Arrays.sort(keys);
+
+        double[] affinity1 = new double[keys.length];
+        double[] percentile1 = new double[keys.length];
+        double[] affinity2 = new double[keys.length];
+        double[] percentile2 = new double[keys.length];
+
+        for (int row = 0; row < keys.length; ++row) {
+            Peptide peptide = PeptideKey.decode(keys[row]);
+
+            affinity1[row] = affinity1(peptide);
+            percentile1[row] = 0.123456789012345;
+
+            // Allele B*07:02 has no prediction for P3...
+            affinity2[row] = peptide.equals(P3) ? Double.NaN : 2.0 * affinity1(peptide);
+            percentile2[row] = Double.NaN;
+        }
+
+        AffinityColumnWriter writer = AffinityColumnWriter.open(method, List.of(A0201, B0702), keys);
+        writer.write(A0201, affinity1, percentile1);
+        writer.write(B0702, affinity2, percentile2);
+        writer.close(method);
+    }
+
+    // Values that are not exactly representable as floats...
+    private static double affinity1(Peptide peptide) {
+        if (peptide.equals(P1))
+            return 12.345678901234;
+        else if (peptide.equals(P2))
+            return 250.1;
+        else if (peptide.equals(P3))
+            return 4000.000000001;
+        else
+            return 37.3;
+    }
+
+    @Test public void testMissingFile() {
+        assertNull(AffinityColumnStore.instance(method));
+    }
+
+    @Test public void testLookup() {
+        writeStore();
+
+        AffinityColumnStore store = AffinityColumnStore.instance(method);
+
+        assertNotNull(store);
+        assertEquals(4, store.countPeptides());
+        assertEquals(List.of(A0201, B0702), store.viewAlleles());
+        assertTrue(store.contains(A0201));
+        assertFalse(store.contains(A0101));
+
+        // Unsorted queries with duplicates and absent peptides...
+        List<Peptide> peptides = List.of(P4, MISSING, P1, LONG, P3, P1, P2);
+        Map<Allele, List<AffinityRecord>> result = store.lookup(List.of(A0101, B0702, A0201), peptides);
+
+        assertEquals(2, result.size());
+        assertFalse(result.containsKey(A0101));
+
+        List<AffinityRecord> records1 = result.get(A0201);
+        List<AffinityRecord> records2 = result.get(B0702);
+
+        assertEquals(peptides.size(), records1.size());
+        assertEquals(peptides.size(), records2.size());
+
+        for (int index = 0; index < peptides.size(); ++index) {
+            Peptide peptide = peptides.get(index);
+
+            if (peptide.equals(MISSING) || peptide.equals(LONG)) {
+                assertNull(records1.get(index));
+                assertNull(records2.get(index));
+                continue;
+            }
+
+            AffinityRecord record1 = records1.get(index);
+
+            assertEquals(peptide, record1.getPeptide());
+            // The stored values are exact...
+            assertEquals(affinity1(peptide), record1.getAffinity().doubleValue(), 0.0);
+            assertEquals(0.123456789012345, record1.getPercentile().doubleValue(), 0.0);
+
+            AffinityRecord record2 = records2.get(index);
+
+            if (peptide.equals(P3)) {
+                assertNull(record2);
+            }
+            else {
+                assertEquals(peptide, record2.getPeptide());
+                assertEquals(2.0 * affinity1(peptide), record2.getAffinity().doubleValue(), 0.0);
+                assertFalse(record2.hasPercentile());
+            }
+        }
+    }
+
+    @Test public void testAbsentKeys() {
+        writeStore();
+
+        // Only peptides that fall before, between, and after the
+        // stored keys...
+        List<Peptide> peptides = List.of(MISSING, Peptide.instance("WWWWWWWWWWW"), Peptide.instance("A"));
+        List<AffinityRecord> records = AffinityColumnStore.instance(method).lookup(List.of(A0201), peptides).get(A0201);
+
+        assertEquals(3, records.size());
+
+        for (AffinityRecord record : records)
+            assertNull(record);
+    }
+
+    @Test public void testEmptyQuery() {
+        writeStore();
+        assertTrue(AffinityColumnStore.instance(method).lookup(List.of(A0201), List.of()).get(A0201).isEmpty());
+    }
+
+    public static void main(String[] args) {
+        org.junit.runner.JUnitCore.main("pepmhc.junit.AffinityColumnStoreTest");
+    }
+}
@@ -58,6 +58,38 @@ public class AffinityThresholdTest {
         assertFalse(threshold.isBound(nonBinder));
     }
 
+    @Test public void testPrimitive() {
+        AffinityThreshold threshold = AffinityThreshold.STANDARD;
+
+        assertTrue(threshold.isBound(10.0, 99.9));
+        assertTrue(threshold.isBound(10000.0, 0.1));
+        assertTrue(threshold.isBound(10.0, Double.NaN));
+        assertFalse(threshold.isBound(10000.0, 99.9));
+        assertFalse(threshold.isBound(10000.0, Double.NaN));
+    }
+
+    @Test public void testLog10() {
+        AffinityThreshold threshold = AffinityThreshold.STANDARD;
+
+        assertTrue(threshold.isBoundLog10(1.0, 99.9));
+        assertTrue(threshold.isBoundLog10(4.0, 0.1));
+        assertFalse(threshold.isBoundLog10(4.0, 99.9));
+        assertFalse(threshold.isBoundLog10(4.0, Double.NaN));
+
+        AffinityRecord logAffinity = AffinityRecord.log10(peptide, 1.0, Percentile.valueOf(99.9));
+        AffinityRecord logNonBinder = AffinityRecord.log10(peptide, 4.0, Percentile.valueOf(99.9));
+
+        assertTrue(logAffinity.isLogSpace());
+        assertFalse(lowAffinity.isLogSpace());
+
+        assertEquals(1.0, lowAffinity.getLog10Affinity(), 1.0E-12);
+        assertEquals(10.0, logAffinity.getAffinity().doubleValue(), 1.0E-12);
+        assertEquals(10000.0, logNonBinder.getStrength(), 1.0E-9);
+
+        assertTrue(threshold.isBound(logAffinity));
+        assertFalse(threshold.isBound(logNonBinder));
+    }
+
     public static void main(String[] args) {
         org.junit.runner.JUnitCore.main("pepmhc.junit.AffinityThresholdTest");
     }
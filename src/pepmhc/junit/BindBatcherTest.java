@@ -0,0 +1,163 @@
+
+package pepmhc.junit;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jene.hla.Allele;
+import jene.peptide.Peptide;
+
+import pepmhc.affy.Affinity;
+import pepmhc.affy.AffinityMethod;
+import pepmhc.affy.AffinityPredictor;
+import pepmhc.affy.AffinityRecord;
+import pepmhc.bind.BindBatcher;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class BindBatcherTest {
+    private static final Allele allele = Allele.instance("HLA-A*02:01");
+    private static final List<Peptide> peptides = Peptide.newNative(9, 100);
+
+    private static final class CountingPredictor extends AffinityPredictor {
+        private final boolean fail;
+        private final Peptide poison;
+        private final AtomicInteger callCount = new AtomicInteger();
+        private final AtomicInteger peptideCount = new AtomicInteger();
+
+        private CountingPredictor(boolean fail) {
+            this.fail = fail;
+            this.poison = null;
+        }
+
+        // Fails every call that includes the poison peptide...
+        private CountingPredictor(Peptide poison) {
+            this.fail = false;
+            this.poison = poison;
+        }
+
+        @Override public AffinityMethod getMethod() {
+            return AffinityMethod.NET_MHC_PAN;
+        }
+
+        @Override public boolean isInstalled() {
+            return true;
+        }
+
+        @Override public List<AffinityRecord> predict(Allele allele, Collection<Peptide> peptides) {
+            callCount.incrementAndGet();
+            peptideCount.addAndGet(peptides.size());
+
+            if (fail || (poison != null && peptides.contains(poison)))
+                throw new IllegalStateException("Prediction failed.");
+
+            List<AffinityRecord> records = new ArrayList<AffinityRecord>(peptides.size());
+
+            for (Peptide peptide : peptides)
+                records.add(new AffinityRecord(peptide, Affinity.valueOf(100.0)));
+
+            return records;
+        }
+    }
+
+    private static void assertSlice(List<AffinityRecord> records, int start, int end) {
+        assertEquals(end - start, records.size());
+
+        for (int index = start; index < end; ++index)
+            assertEquals(peptides.get(index), records.get(index - start).getPeptide());
+    }
+
+    @Test public void testCoalesce() throws Exception {
+        CountingPredictor predictor = new CountingPredictor(false);
+        BindBatcher<AffinityRecord> batcher = BindBatcher.create(predictor, allele, 200, 1000000);
+
+        List<CompletableFuture<List<AffinityRecord>>> futures =
+            new ArrayList<CompletableFuture<List<AffinityRecord>>>();
+
+        // Overlapping requests: peptides [5k, 5k + 50) for k = 0..9...
+        for (int k = 0; k < 10; ++k)
+            futures.add(batcher.submit(peptides.subList(5 * k, 5 * k + 50)));
+
+        for (int k = 0; k < 10; ++k)
+            assertSlice(futures.get(k).get(), 5 * k, 5 * k + 50);
+
+        assertEquals(1, predictor.callCount.get());
+        assertEquals(95, predictor.peptideCount.get());
+    }
+
+    @Test public void testBatchSize() throws Exception {
+        CountingPredictor predictor = new CountingPredictor(false);
+        BindBatcher<AffinityRecord> batcher = BindBatcher.create(predictor, allele, 60000, 60);
+
+        CompletableFuture<List<AffinityRecord>> future1 = batcher.submit(peptides.subList(0, 50));
+        CompletableFuture<List<AffinityRecord>> future2 = batcher.submit(peptides.subList(50, 100));
+
+        // The size threshold dispatches the batch long before the
+        // window expires...
+        assertSlice(future1.get(10, TimeUnit.SECONDS), 0, 50);
+        assertSlice(future2.get(10, TimeUnit.SECONDS), 50, 100);
+
+        assertEquals(1, predictor.callCount.get());
+    }
+
+    @Test public void testFailure() throws Exception {
+        CountingPredictor predictor = new CountingPredictor(true);
+        BindBatcher<AffinityRecord> batcher = BindBatcher.create(predictor, allele, 50, 1000000);
+
+        CompletableFuture<List<AffinityRecord>> future = batcher.submit(peptides.subList(0, 10));
+
+        try {
+            batcher.predict(peptides.subList(10, 20));
+            fail("Expected a failure.");
+        }
+        catch (IllegalStateException ex) {
+            // Expected...
+        }
+
+        try {
+            future.get();
+            fail("Expected a failure.");
+        }
+        catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+
+        // One batch call, then one call for each request...
+        assertEquals(3, predictor.callCount.get());
+    }
+
+    @Test public void testIsolation() throws Exception {
+        CountingPredictor predictor = new CountingPredictor(peptides.get(15));
+        BindBatcher<AffinityRecord> batcher = BindBatcher.create(predictor, allele, 200, 1000000);
+
+        CompletableFuture<List<AffinityRecord>> future1 = batcher.submit(peptides.subList(0, 10));
+        CompletableFuture<List<AffinityRecord>> future2 = batcher.submit(peptides.subList(10, 20));
+        CompletableFuture<List<AffinityRecord>> future3 = batcher.submit(peptides.subList(5, 10));
+
+        // Only the request with the bad peptide fails...
+        assertSlice(future1.get(10, TimeUnit.SECONDS), 0, 10);
+        assertSlice(future3.get(10, TimeUnit.SECONDS), 5, 10);
+
+        try {
+            future2.get(10, TimeUnit.SECONDS);
+            fail("Expected a failure.");
+        }
+        catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+
+        // The third request is covered by the records of the first...
+        assertEquals(3, predictor.callCount.get());
+        assertEquals(40, predictor.peptideCount.get());
+    }
+
+    public static void main(String[] args) {
+        org.junit.runner.JUnitCore.main("pepmhc.junit.BindBatcherTest");
+    }
+}
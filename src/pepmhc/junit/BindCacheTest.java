@@ -0,0 +1,432 @@
+
+package pepmhc.junit;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jam.math.Percentile;
+import jam.sql.SQLColumn;
+
+import jene.hla.Allele;
+import jene.peptide.Peptide;
+
+import pepmhc.affy.Affinity;
+import pepmhc.affy.AffinityMethod;
+import pepmhc.affy.AffinityPredictor;
+import pepmhc.affy.AffinityRecord;
+import pepmhc.affy.AffinityTable;
+import pepmhc.bind.BindCache;
+import pepmhc.bind.BindTable;
+import pepmhc.bind.PeptideKeyMap;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class BindCacheTest {
+    private static final Allele allele = Allele.instance("HLA-A*02:01");
+    private static final List<Peptide> peptides = Peptide.newNative(9, 100);
+
+    //
+    // A predictor that counts its calls and holds every call until
+    // released...
+    //
+    private static final class BlockingPredictor extends AffinityPredictor {
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicInteger callCount = new AtomicInteger();
+        private final AtomicInteger peptideCount = new AtomicInteger();
+
+        @Override public AffinityMethod getMethod() {
+            return AffinityMethod.NET_MHC_PAN;
+        }
+
+        @Override public boolean isInstalled() {
+            return true;
+        }
+
+        @Override public List<AffinityRecord> predict(Allele allele, Collection<Peptide> peptides) {
+            callCount.incrementAndGet();
+            peptideCount.addAndGet(peptides.size());
+            entered.countDown();
+
+            try {
+                release.await();
+            }
+            catch (InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+
+            List<AffinityRecord> records = new ArrayList<AffinityRecord>(peptides.size());
+
+            for (Peptide peptide : peptides)
+                records.add(new AffinityRecord(peptide, Affinity.valueOf(100.0)));
+
+            return records;
+        }
+    }
+
+    // A table that never holds any records...
+    private static class EmptyTable extends BindTable<AffinityRecord> {
+        private EmptyTable() {
+            super(null);
+        }
+
+        @Override public PeptideKeyMap<AffinityRecord> lookup(Collection<Long> keys) {
+            return new PeptideKeyMap<AffinityRecord>();
+        }
+
+        @Override public void store(Collection<AffinityRecord> records) {
+        }
+
+        @Override public List<SQLColumn> getColumns() {
+            return AffinityTable.COLUMN_LIST;
+        }
+
+        @Override public AffinityRecord getRow(ResultSet resultSet) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override protected AffinityRecord getTextRow(ResultSet resultSet) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override protected String getLegacyTableName() {
+            return AffinityTable.LEGACY_TABLE_NAME;
+        }
+
+        @Override public String getTableName() {
+            return AffinityTable.TABLE_NAME;
+        }
+
+        @Override public void prepareColumn(PreparedStatement statement, int index,
+                                            AffinityRecord record, String columnName) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // A table that holds only the records for unencodable peptides...
+    private static final class TextTable extends EmptyTable {
+        private final Map<Peptide, AffinityRecord> textRecords = new HashMap<Peptide, AffinityRecord>();
+
+        @Override public Map<Peptide, AffinityRecord> lookupText(Collection<Peptide> peptides) {
+            Map<Peptide, AffinityRecord> result = new HashMap<Peptide, AffinityRecord>();
+
+            for (Peptide peptide : peptides)
+                if (textRecords.containsKey(peptide))
+                    result.put(peptide, textRecords.get(peptide));
+
+            return result;
+        }
+
+        @Override public void storeText(Collection<AffinityRecord> records) {
+            for (AffinityRecord record : records)
+                textRecords.put(record.getPeptide(), record);
+        }
+    }
+
+    private static final class TestCache extends BindCache<AffinityRecord> {
+        private TestCache(BlockingPredictor predictor) {
+            this(new EmptyTable(), predictor);
+        }
+
+        private TestCache(BindTable<AffinityRecord> table, BlockingPredictor predictor) {
+            super(table, predictor, BindCacheTest.allele);
+        }
+
+        @Override protected AffinityRecord newRecord(Peptide peptide, double strength, Percentile percentile) {
+            return new AffinityRecord(peptide, Affinity.valueOf(strength), percentile);
+        }
+
+        @Override public Class getRecordClass() {
+            return AffinityRecord.class;
+        }
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        //
+        // The second requester parks while it waits for the
+        // retrieval started by the first...
+        //
+        while (thread.getState() != Thread.State.WAITING)
+            Thread.sleep(1);
+    }
+
+    @Test public void testSingleFlight() throws Exception {
+        BlockingPredictor predictor = new BlockingPredictor();
+        TestCache cache = new TestCache(predictor);
+        List<Peptide> request = peptides.subList(0, 10);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        AtomicReference<Thread> second = new AtomicReference<Thread>();
+
+        try {
+            Future<List<AffinityRecord>> future1 = executor.submit(() -> cache.require(request));
+            assertTrue(predictor.entered.await(10, TimeUnit.SECONDS));
+
+            Future<List<AffinityRecord>> future2 = executor.submit(() -> {
+                    second.set(Thread.currentThread());
+                    return cache.require(request);
+                });
+
+            while (second.get() == null)
+                Thread.sleep(1);
+
+            awaitWaiting(second.get());
+            predictor.release.countDown();
+
+            List<AffinityRecord> records1 = future1.get(10, TimeUnit.SECONDS);
+            List<AffinityRecord> records2 = future2.get(10, TimeUnit.SECONDS);
+
+            assertEquals(1, predictor.callCount.get());
+            assertEquals(10, predictor.peptideCount.get());
+
+            // Both requests receive the same record objects...
+            for (int index = 0; index < request.size(); ++index) {
+                assertEquals(request.get(index), records1.get(index).getPeptide());
+                assertSame(records1.get(index), records2.get(index));
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test public void testOverlap() throws Exception {
+        BlockingPredictor predictor = new BlockingPredictor();
+        TestCache cache = new TestCache(predictor);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            Future<List<AffinityRecord>> future1 = executor.submit(() -> cache.require(peptides.subList(0, 10)));
+            assertTrue(predictor.entered.await(10, TimeUnit.SECONDS));
+
+            // Only the five peptides that are not already in flight
+            // are predicted for the second request...
+            Future<List<AffinityRecord>> future2 = executor.submit(() -> cache.require(peptides.subList(5, 15)));
+
+            while (predictor.callCount.get() < 2)
+                Thread.sleep(1);
+
+            predictor.release.countDown();
+
+            assertEquals(10, future1.get(10, TimeUnit.SECONDS).size());
+            assertEquals(10, future2.get(10, TimeUnit.SECONDS).size());
+
+            assertEquals(2, predictor.callCount.get());
+            assertEquals(15, predictor.peptideCount.get());
+
+            // Everything is now cached...
+            cache.require(peptides.subList(0, 15));
+            assertEquals(2, predictor.callCount.get());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<AffinityRecord> records(Collection<Peptide> peptides) {
+        List<AffinityRecord> records = new ArrayList<AffinityRecord>(peptides.size());
+
+        for (Peptide peptide : peptides)
+            records.add(new AffinityRecord(peptide, Affinity.valueOf(50.0)));
+
+        return records;
+    }
+
+    @Test public void testClaim() throws Exception {
+        BlockingPredictor predictor = new BlockingPredictor();
+        TestCache cache = new TestCache(predictor);
+
+        Set<Peptide> claimed1 = cache.claimMissing(peptides.subList(0, 10));
+        Set<Peptide> claimed2 = cache.claimMissing(peptides.subList(5, 15));
+
+        // Claimed peptides are not claimed again...
+        assertEquals(10, claimed1.size());
+        assertEquals(5, claimed2.size());
+        assertFalse(claimed2.contains(peptides.get(5)));
+
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        AtomicReference<Thread> waiter = new AtomicReference<Thread>();
+
+        try {
+            // A request for claimed peptides waits for the claimant...
+            Future<List<AffinityRecord>> future = executor.submit(() -> {
+                    waiter.set(Thread.currentThread());
+                    return cache.require(peptides.subList(0, 10));
+                });
+
+            while (waiter.get() == null)
+                Thread.sleep(1);
+
+            awaitWaiting(waiter.get());
+
+            List<AffinityRecord> computed = records(claimed1);
+            cache.complete(claimed1, computed);
+
+            List<AffinityRecord> received = future.get(10, TimeUnit.SECONDS);
+
+            for (int index = 0; index < 10; ++index)
+                assertSame(computed.get(index), received.get(index));
+
+            assertEquals(0, predictor.callCount.get());
+
+            // The remaining claims are resolved by the predictor...
+            predictor.release.countDown();
+            cache.resolve(claimed2);
+
+            assertEquals(1, predictor.callCount.get());
+            assertEquals(5, predictor.peptideCount.get());
+
+            cache.require(peptides.subList(0, 15));
+            assertEquals(1, predictor.callCount.get());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test public void testAbandon() throws Exception {
+        BlockingPredictor predictor = new BlockingPredictor();
+        TestCache cache = new TestCache(predictor);
+
+        Set<Peptide> claimed = cache.claimMissing(peptides.subList(0, 10));
+
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        AtomicReference<Thread> waiter = new AtomicReference<Thread>();
+
+        try {
+            Future<List<AffinityRecord>> future = executor.submit(() -> {
+                    waiter.set(Thread.currentThread());
+                    return cache.require(peptides.subList(0, 10));
+                });
+
+            while (waiter.get() == null)
+                Thread.sleep(1);
+
+            awaitWaiting(waiter.get());
+
+            IllegalStateException cause = new IllegalStateException("Prediction failed.");
+            cache.abandon(claimed, cause);
+
+            // The waiting request fails with the same cause...
+            try {
+                future.get(10, TimeUnit.SECONDS);
+                fail("Expected a failure.");
+            }
+            catch (ExecutionException ex) {
+                assertSame(cause, ex.getCause());
+            }
+
+            // ...and the abandoned peptides may be claimed again...
+            assertEquals(claimed, cache.claimMissing(peptides.subList(0, 10)));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test public void testIncompleteClaim() {
+        BlockingPredictor predictor = new BlockingPredictor();
+        TestCache cache = new TestCache(predictor);
+
+        Set<Peptide> claimed = cache.claimMissing(peptides.subList(0, 10));
+
+        try {
+            cache.complete(claimed, records(peptides.subList(0, 5)));
+            fail("Expected a failure.");
+        }
+        catch (RuntimeException ex) {
+            // Expected...
+        }
+
+        // The peptides without records were released...
+        assertEquals(5, cache.claimMissing(peptides.subList(0, 10)).size());
+    }
+
+    @Test public void testScanSingleFlight() throws Exception {
+        BlockingPredictor predictor = new BlockingPredictor();
+        TestCache cache = new TestCache(predictor);
+
+        Peptide protein = Peptide.instance("ACDEFGHIKLMNPQRSTVWY");
+        List<Peptide> fragments = new ArrayList<Peptide>(protein.nativeFragments(9));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        AtomicReference<Thread> second = new AtomicReference<Thread>();
+
+        try {
+            Future<List<AffinityRecord>> future1 = executor.submit(() -> cache.scan(List.of(protein), 9));
+            assertTrue(predictor.entered.await(10, TimeUnit.SECONDS));
+
+            // A request for fragments being scanned waits for the scan...
+            Future<List<AffinityRecord>> future2 = executor.submit(() -> {
+                    second.set(Thread.currentThread());
+                    return cache.require(fragments.subList(0, 3));
+                });
+
+            while (second.get() == null)
+                Thread.sleep(1);
+
+            awaitWaiting(second.get());
+            predictor.release.countDown();
+
+            List<AffinityRecord> records1 = future1.get(10, TimeUnit.SECONDS);
+            List<AffinityRecord> records2 = future2.get(10, TimeUnit.SECONDS);
+
+            assertEquals(1, predictor.callCount.get());
+            assertEquals(fragments.size(), predictor.peptideCount.get());
+
+            for (int index = 0; index < 3; ++index)
+                assertSame(records1.get(index), records2.get(index));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test public void testUnencodable() {
+        // A 12-mer cannot be packed into a key...
+        Peptide peptide = Peptide.instance("ACDEFGHIKLMN");
+        TextTable table = new TextTable();
+
+        BlockingPredictor predictor1 = new BlockingPredictor();
+        predictor1.release.countDown();
+
+        TestCache cache1 = new TestCache(table, predictor1);
+        assertEquals(peptide, cache1.require(peptide).getPeptide());
+        assertEquals(1, predictor1.callCount.get());
+
+        // The record was persisted, so a new cache does not compute
+        // it again...
+        assertTrue(table.textRecords.containsKey(peptide));
+
+        BlockingPredictor predictor2 = new BlockingPredictor();
+        TestCache cache2 = new TestCache(table, predictor2);
+
+        assertSame(table.textRecords.get(peptide), cache2.require(peptide));
+        assertEquals(0, predictor2.callCount.get());
+
+        // ...and the in-memory copy may be evicted...
+        assertEquals(1, cache2.size());
+        assertEquals(1, cache2.evict(1));
+        assertEquals(0, cache2.size());
+    }
+
+    public static void main(String[] args) {
+        org.junit.runner.JUnitCore.main("pepmhc.junit.BindCacheTest");
+    }
+}
@@ -0,0 +1,54 @@
+
+package pepmhc.junit;
+
+import pepmhc.metrics.BindMetrics;
+import pepmhc.metrics.Log2Histogram;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class BindMetricsTest {
+    @Test public void testHistogram() {
+        Log2Histogram histogram = new Log2Histogram();
+
+        assertEquals(0L, histogram.count());
+        assertEquals(0L, histogram.quantile(0.5));
+
+        for (long value = 1; value <= 1000; ++value)
+            histogram.record(value);
+
+        assertEquals(1000L, histogram.count());
+        assertEquals(500500L, histogram.sum());
+        assertEquals(1000L, histogram.max());
+        assertEquals(500.5, histogram.mean(), 1.0E-12);
+
+        // The median (500) lies in the bucket [256, 512)...
+        assertEquals(511L, histogram.quantile(0.5));
+
+        // The upper quantiles are clipped at the maximum...
+        assertEquals(1000L, histogram.quantile(0.99));
+        assertEquals(1000L, histogram.quantile(1.0));
+    }
+
+    @Test public void testCounters() {
+        BindMetrics metrics = BindMetrics.instance("BindMetricsTest");
+
+        assertSame(metrics, BindMetrics.instance("BindMetricsTest"));
+        assertTrue(BindMetrics.viewAll().contains(metrics));
+
+        metrics.hits(10);
+        metrics.misses(3);
+        metrics.predict(BindMetrics.start(), 3);
+        metrics.predict(BindMetrics.start(), 5);
+
+        assertEquals(10L, metrics.getHits());
+        assertEquals(3L, metrics.getMisses());
+        assertEquals(2L, metrics.getPredictorCalls());
+        assertEquals(8L, metrics.getPredictedPeptides());
+        assertEquals(4.0, metrics.getPredictorBatch().mean(), 1.0E-12);
+    }
+
+    public static void main(String[] args) {
+        org.junit.runner.JUnitCore.main("pepmhc.junit.BindMetricsTest");
+    }
+}
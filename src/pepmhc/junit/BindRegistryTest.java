@@ -0,0 +1,103 @@
+
+package pepmhc.junit;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jene.hla.Allele;
+
+import pepmhc.affy.AffinityMethod;
+import pepmhc.bind.BindRegistry;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class BindRegistryTest {
+    private static final Allele A0101 = Allele.instance("HLA-A*01:01");
+    private static final Allele A0201 = Allele.instance("HLA-A*02:01");
+
+    @Test public void testSlowFactory() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger callCount = new AtomicInteger();
+
+        BindRegistry<AffinityMethod, String> registry = BindRegistry.create((method, allele) -> {
+                callCount.incrementAndGet();
+
+                if (allele.equals(A0101)) {
+                    entered.countDown();
+
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+
+                return method + ":" + allele;
+            });
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            Future<String> future1 = executor.submit(() -> registry.instance(AffinityMethod.SMM, A0101));
+            assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+            // Another allele is created while the first is blocked...
+            assertEquals(AffinityMethod.SMM + ":" + A0201, registry.instance(AffinityMethod.SMM, A0201));
+
+            // ...and the blocked instance is not yet visible...
+            assertNull(registry.get(AffinityMethod.SMM, A0101));
+
+            Future<String> future2 = executor.submit(() -> registry.instance(AffinityMethod.SMM, A0101));
+            release.countDown();
+
+            // ...but concurrent requests receive the same instance...
+            String instance = future1.get(10, TimeUnit.SECONDS);
+            assertSame(instance, future2.get(10, TimeUnit.SECONDS));
+            assertSame(instance, registry.get(AffinityMethod.SMM, A0101));
+            assertEquals(2, callCount.get());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test public void testFactoryFailure() {
+        AtomicInteger callCount = new AtomicInteger();
+
+        BindRegistry<AffinityMethod, String> registry = BindRegistry.create((method, allele) -> {
+                if (callCount.incrementAndGet() == 1)
+                    throw new IllegalStateException("Creation failed.");
+
+                return method + ":" + allele;
+            });
+
+        try {
+            registry.instance(AffinityMethod.SMM, A0101);
+            fail("Expected a failure.");
+        }
+        catch (IllegalStateException ex) {
+            // Expected...
+        }
+
+        // The next request tries again...
+        assertNull(registry.get(AffinityMethod.SMM, A0101));
+        assertNotNull(registry.instance(AffinityMethod.SMM, A0101));
+        assertEquals(2, callCount.get());
+
+        String instance = registry.get(AffinityMethod.SMM, A0101);
+        assertFalse(registry.remove(AffinityMethod.SMM, A0101, "other"));
+        assertTrue(registry.remove(AffinityMethod.SMM, A0101, instance));
+        assertNull(registry.get(AffinityMethod.SMM, A0101));
+    }
+
+    public static void main(String[] args) {
+        org.junit.runner.JUnitCore.main("pepmhc.junit.BindRegistryTest");
+    }
+}
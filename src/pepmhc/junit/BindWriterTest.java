@@ -0,0 +1,236 @@
+
+package pepmhc.junit;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import jam.sql.SQLColumn;
+
+import jene.peptide.Peptide;
+
+import pepmhc.affy.Affinity;
+import pepmhc.affy.AffinityRecord;
+import pepmhc.affy.AffinityTable;
+import pepmhc.bind.BindTable;
+import pepmhc.bind.BindWriter;
+import pepmhc.bind.PeptideKey;
+import pepmhc.metrics.BindMetrics;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class BindWriterTest {
+    private static final List<Peptide> peptides = Peptide.newNative(9, 100);
+    private static final BindMetrics metrics = BindMetrics.instance("BindWriterTest");
+
+    //
+    // An in-memory table that may be told to fail or to wait for a
+    // permit before each store...
+    //
+    private static final class TestTable extends BindTable<AffinityRecord> {
+        private final List<AffinityRecord> stored = new ArrayList<AffinityRecord>();
+        private final Semaphore permits;
+        private int failures;
+
+        private TestTable(int failures, Semaphore permits) {
+            super(null);
+            this.failures = failures;
+            this.permits = permits;
+        }
+
+        @Override public void store(Collection<AffinityRecord> records) {
+            if (permits != null)
+                permits.acquireUninterruptibly();
+
+            synchronized (this) {
+                if (failures > 0) {
+                    --failures;
+                    throw new IllegalStateException("Write failed.");
+                }
+
+                stored.addAll(records);
+            }
+        }
+
+        private synchronized int countStored() {
+            return stored.size();
+        }
+
+        @Override public List<SQLColumn> getColumns() {
+            return AffinityTable.COLUMN_LIST;
+        }
+
+        @Override public AffinityRecord getRow(ResultSet resultSet) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override protected AffinityRecord getTextRow(ResultSet resultSet) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override protected String getLegacyTableName() {
+            return AffinityTable.LEGACY_TABLE_NAME;
+        }
+
+        @Override public String getTableName() {
+            return AffinityTable.TABLE_NAME;
+        }
+
+        @Override public void prepareColumn(PreparedStatement statement, int index,
+                                            AffinityRecord record, String columnName) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static List<AffinityRecord> records(int start, int end, double affinity) {
+        List<AffinityRecord> records = new ArrayList<AffinityRecord>();
+
+        for (int index = start; index < end; ++index)
+            records.add(new AffinityRecord(peptides.get(index), Affinity.valueOf(affinity)));
+
+        return records;
+    }
+
+    private static long key(int index) {
+        return PeptideKey.encode(peptides.get(index));
+    }
+
+    @Test public void testWrite() throws Exception {
+        TestTable table = new TestTable(0, null);
+        BindWriter writer = BindWriter.create(1000);
+
+        CompletableFuture<Void> future1 = writer.submit(table, records(0, 10, 1.0), metrics);
+        CompletableFuture<Void> future2 = writer.submit(table, records(10, 20, 1.0), metrics);
+
+        writer.flush();
+
+        assertTrue(future1.isDone() && !future1.isCompletedExceptionally());
+        assertTrue(future2.isDone() && !future2.isCompletedExceptionally());
+        assertEquals(20, table.countStored());
+        assertEquals(0, writer.countUnwritten());
+        assertNull(writer.pending(table, key(0)));
+    }
+
+    @Test public void testFailure() throws Exception {
+        TestTable table = new TestTable(1, null);
+        BindWriter writer = BindWriter.create(1000);
+
+        CompletableFuture<Void> future = writer.submit(table, records(0, 10, 1.0), metrics);
+
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("Expected a failure.");
+        }
+        catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+
+        // The failed records are released...
+        assertEquals(0, writer.countUnwritten());
+        assertNull(writer.pending(table, key(0)));
+
+        // The failure is reported by the next flush, once...
+        try {
+            writer.flush();
+            fail("Expected a failure.");
+        }
+        catch (IllegalStateException ex) {
+            // Expected...
+        }
+
+        writer.flush();
+
+        // ...and later batches are written normally...
+        writer.submit(table, records(10, 20, 1.0), metrics);
+        writer.flush();
+
+        assertEquals(10, table.countStored());
+    }
+
+    @Test public void testIsolation() throws Exception {
+        TestTable failing = new TestTable(1, null);
+        TestTable working = new TestTable(0, null);
+        BindWriter writer = BindWriter.create(1000);
+
+        CompletableFuture<Void> future1 = writer.submit(failing, records(0, 10, 1.0), metrics);
+        CompletableFuture<Void> future2 = writer.submit(working, records(0, 10, 1.0), metrics);
+
+        try {
+            writer.flush();
+            fail("Expected a failure.");
+        }
+        catch (IllegalStateException ex) {
+            // Expected...
+        }
+
+        assertTrue(future1.isCompletedExceptionally());
+        assertFalse(future2.isCompletedExceptionally());
+        assertEquals(10, working.countStored());
+    }
+
+    @Test public void testNewerPending() throws Exception {
+        Semaphore permits = new Semaphore(0);
+        TestTable table = new TestTable(0, permits);
+        BindWriter writer = BindWriter.create(1000);
+
+        List<AffinityRecord> older = records(0, 1, 1.0);
+        List<AffinityRecord> newer = records(0, 1, 2.0);
+
+        CompletableFuture<Void> future1 = writer.submit(table, older, metrics);
+
+        // Wait for the writer to take the first batch...
+        while (!permits.hasQueuedThreads())
+            Thread.sleep(1);
+
+        CompletableFuture<Void> future2 = writer.submit(table, newer, metrics);
+        assertSame(newer.get(0), writer.pending(table, key(0)));
+
+        // Releasing the first batch must not release the newer
+        // record for the same peptide...
+        permits.release();
+        future1.get(10, TimeUnit.SECONDS);
+
+        assertSame(newer.get(0), writer.pending(table, key(0)));
+
+        permits.release();
+        future2.get(10, TimeUnit.SECONDS);
+
+        assertNull(writer.pending(table, key(0)));
+    }
+
+    @Test public void testCapacity() throws Exception {
+        Semaphore permits = new Semaphore(0);
+        TestTable table = new TestTable(0, permits);
+        BindWriter writer = BindWriter.create(15);
+
+        writer.submit(table, records(0, 10, 1.0), metrics);
+
+        // The second submission exceeds the capacity and must wait
+        // until the first batch is written...
+        Thread submitter = new Thread(() -> writer.submit(table, records(10, 20, 1.0), metrics));
+        submitter.start();
+        submitter.join(200);
+
+        assertTrue(submitter.isAlive());
+        assertEquals(10, writer.countUnwritten());
+
+        permits.release(2);
+        submitter.join(10000);
+
+        assertFalse(submitter.isAlive());
+        writer.flush();
+
+        assertEquals(20, table.countStored());
+    }
+
+    public static void main(String[] args) {
+        org.junit.runner.JUnitCore.main("pepmhc.junit.BindWriterTest");
+    }
+}
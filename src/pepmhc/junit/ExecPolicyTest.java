@@ -0,0 +1,103 @@
+
+package pepmhc.junit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import jene.peptide.Peptide;
+
+import pepmhc.proc.ExecPolicy;
+import pepmhc.proc.Quarantine;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class ExecPolicyTest {
+    private static final Peptide BAD1 = Peptide.instance("AAAWYLWEV");
+    private static final Peptide BAD2 = Peptide.instance("AEFGPWQTV");
+
+    private int callCount = 0;
+
+    private List<Peptide> peptides(int count) {
+        List<Peptide> peptides = new ArrayList<Peptide>(Peptide.newNative(9, count));
+
+        peptides.removeAll(List.of(BAD1, BAD2));
+        return peptides;
+    }
+
+    private List<String> process(List<Peptide> batch) {
+        ++callCount;
+
+        if (batch.contains(BAD1) || batch.contains(BAD2))
+            throw new IllegalStateException("Bad peptide.");
+
+        List<String> results = new ArrayList<String>(batch.size());
+
+        for (Peptide peptide : batch)
+            results.add(peptide.formatString());
+
+        return results;
+    }
+
+    @Test public void testBisect() {
+        List<Peptide> peptides = peptides(100);
+
+        peptides.add(17, BAD1);
+        peptides.add(64, BAD2);
+
+        ExecPolicy policy = ExecPolicy.instance(0, 1, 4);
+        List<String> results = policy.bisect("testBisect", peptides, this::process);
+
+        assertEquals(peptides.size() - 2, results.size());
+        assertFalse(results.contains(BAD1.formatString()));
+        assertFalse(results.contains(BAD2.formatString()));
+        assertEquals(Set.of(BAD1, BAD2), Quarantine.get("testBisect"));
+
+        // Quarantined peptides are skipped in later batches...
+        callCount = 0;
+        assertEquals(peptides.size() - 2, policy.bisect("testBisect", peptides, this::process).size());
+        assertEquals(1, callCount);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testQuarantineLimit() {
+        List<Peptide> peptides = peptides(10);
+
+        peptides.add(BAD1);
+        peptides.add(BAD2);
+
+        ExecPolicy.instance(0, 0, 1).bisect("testQuarantineLimit", peptides, this::process);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testNegativeQuarantineLimit() {
+        ExecPolicy.instance(0, 1, -1);
+    }
+
+    @Test public void testRetry() {
+        ExecPolicy policy = ExecPolicy.instance(0, 2, 4);
+
+        callCount = 0;
+        assertEquals("OK", policy.retry("testRetry", () -> (++callCount < 3) ? transientFailure() : "OK"));
+        assertEquals(3, callCount);
+
+        callCount = 0;
+
+        try {
+            ExecPolicy.instance(0, 1, 4).retry("testRetry", () -> { ++callCount; return transientFailure(); });
+            Assert.fail("Expected a failure.");
+        }
+        catch (IllegalStateException ex) {
+            assertEquals(2, callCount);
+        }
+    }
+
+    private static String transientFailure() {
+        throw new IllegalStateException("Transient failure.");
+    }
+
+    public static void main(String[] args) {
+        org.junit.runner.JUnitCore.main("pepmhc.junit.ExecPolicyTest");
+    }
+}
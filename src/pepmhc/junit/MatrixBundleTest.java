@@ -0,0 +1,93 @@
+
+package pepmhc.junit;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import jene.hla.Allele;
+import jene.peptide.Peptide;
+import jene.peptide.Residue;
+
+import pepmhc.affy.AffinityMethod;
+import pepmhc.affy.smm.MatrixBundle;
+import pepmhc.affy.smm.StabilizedMatrix;
+import pepmhc.bind.PeptideKey;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class MatrixBundleTest {
+    private static final List<Allele> alleles =
+        List.of(Allele.instance("HLA-A*01:01"), Allele.instance("HLA-A*02:01"));
+
+    private static void assertSameMatrix(StabilizedMatrix expected, StabilizedMatrix actual) {
+        assertEquals(expected.getPeptideLength(), actual.getPeptideLength());
+        assertEquals(expected.getIntercept(), actual.getIntercept(), 0.0);
+
+        for (int position = 0; position < expected.getPeptideLength(); ++position) {
+            for (int code = 0; code < PeptideKey.CODE_COUNT; ++code) {
+                Residue residue = PeptideKey.residue(code);
+                assertEquals(expected.getElement(residue, position), actual.getElement(residue, position), 0.0);
+            }
+        }
+
+        for (Peptide peptide : Peptide.newNative(expected.getPeptideLength(), 100))
+            assertEquals(expected.computeLog10IC50(peptide), actual.computeLog10IC50(peptide), 0.0);
+    }
+
+    @Test public void testRoundTrip() {
+        //
+        // Read the text matrices before any bundle exists...
+        //
+        File file = new File(MatrixBundle.fileName(AffinityMethod.SMM));
+        file.delete();
+        MatrixBundle.reset(AffinityMethod.SMM);
+
+        assertNull(MatrixBundle.instance(AffinityMethod.SMM));
+
+        List<StabilizedMatrix> textMatrices = new ArrayList<StabilizedMatrix>();
+
+        for (Allele allele : alleles)
+            for (int length = 8; length <= 11; ++length)
+                textMatrices.add(StabilizedMatrix.instance(AffinityMethod.SMM, allele, length));
+
+        try {
+            assertEquals(file, MatrixBundle.write(AffinityMethod.SMM));
+
+            MatrixBundle bundle = MatrixBundle.instance(AffinityMethod.SMM);
+            assertNotNull(bundle);
+            assertTrue(bundle.size() >= textMatrices.size());
+
+            int index = 0;
+
+            for (Allele allele : alleles) {
+                for (int length = 8; length <= 11; ++length) {
+                    StabilizedMatrix textMatrix = textMatrices.get(index++);
+
+                    // Every matrix is found in the bundle under the
+                    // name used to look it up...
+                    StabilizedMatrix bundleMatrix = bundle.get(allele, length);
+                    assertNotNull(bundleMatrix);
+
+                    assertSameMatrix(textMatrix, bundleMatrix);
+                    assertSameMatrix(textMatrix, StabilizedMatrix.instance(AffinityMethod.SMM, allele, length));
+                }
+            }
+
+            assertNull(bundle.get(Allele.instance("HLA-A*01:01"), 15));
+
+            // No temporary files are left behind...
+            for (String name : file.getAbsoluteFile().getParentFile().list())
+                assertFalse(name.startsWith(file.getName()) && name.endsWith(".tmp"));
+        }
+        finally {
+            file.delete();
+            MatrixBundle.reset(AffinityMethod.SMM);
+        }
+    }
+
+    public static void main(String[] args) {
+        org.junit.runner.JUnitCore.main("pepmhc.junit.MatrixBundleTest");
+    }
+}
@@ -1,8 +1,15 @@
 
 package pepmhc.junit;
 
+import java.io.BufferedReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import jam.io.IOUtil;
+
+import jene.hla.Allele;
 import jene.peptide.Peptide;
 
 import pepmhc.affy.AffinityRecord;
@@ -14,6 +21,7 @@ import static org.junit.Assert.*;
 public class NetMHCParserTest {
     private static final String NET_MHC_FILE = "data/test/netMHC.out";
     private static final String NET_MHC_PAN_FILE = "data/test/netMHCpan.out";
+    private static final String NET_MHC_PAN_MULTI_FILE = "data/test/netMHCpan-multi.out";
 
     @Test public void testNetMHC() {
         List<AffinityRecord> records = NetMHCParser.parse(NET_MHC_FILE);
@@ -45,6 +53,30 @@ public class NetMHCParserTest {
         assertEquals(13.2114, records.get(9).getPercentile().doubleValue(), 0.0001);
     }
 
+    @Test public void testNetMHCPanMulti() {
+        Map<Allele, List<AffinityRecord>> recordMap = new LinkedHashMap<Allele, List<AffinityRecord>>();
+        BufferedReader reader = IOUtil.openReader(NET_MHC_PAN_MULTI_FILE);
+
+        NetMHCParser.parse(reader, (allele, record) ->
+                           recordMap.computeIfAbsent(allele, key -> new ArrayList<AffinityRecord>()).add(record));
+
+        Allele A0201 = Allele.instance("HLA-A*02:01");
+        Allele B0702 = Allele.instance("HLA-B*07:02");
+
+        assertEquals(List.of(A0201, B0702), new ArrayList<Allele>(recordMap.keySet()));
+        assertEquals(10, recordMap.get(A0201).size());
+        assertEquals(10, recordMap.get(B0702).size());
+
+        assertEquals(Peptide.instance("AEFGPWQTV"), recordMap.get(A0201).get(9).getPeptide());
+        assertEquals(Peptide.instance("AEFGPWQTV"), recordMap.get(B0702).get(9).getPeptide());
+
+        assertEquals(8706.7, recordMap.get(A0201).get(9).getAffinity().doubleValue(), 0.1);
+        assertEquals(4321.0, recordMap.get(B0702).get(9).getAffinity().doubleValue(), 0.1);
+
+        // Single-allele parsing still stops after the first block...
+        assertEquals(10, NetMHCParser.parse(NET_MHC_PAN_MULTI_FILE).size());
+    }
+
     public static void main(String[] args) {
         org.junit.runner.JUnitCore.main("pepmhc.junit.NetMHCParserTest");
     }
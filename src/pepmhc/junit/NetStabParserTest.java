@@ -1,8 +1,12 @@
 
 package pepmhc.junit;
 
+import java.util.ArrayList;
 import java.util.List;
 
+import jam.io.IOUtil;
+
+import jene.hla.Allele;
 import jene.peptide.Peptide;
 
 import pepmhc.stab.net.NetStabParser;
@@ -13,6 +17,7 @@ import static org.junit.Assert.*;
 
 public class NetStabParserTest {
     private static final String FILE_NAME = "data/test/netMHCstabpan.out";
+    private static final String SCAN_FILE_NAME = "data/test/netMHCstabpan-scan.out";
 
     @Test public void testParse() {
         List<StabilityRecord> records = NetStabParser.parse(FILE_NAME);
@@ -29,6 +34,34 @@ public class NetStabParserTest {
         assertEquals(9.00, records.get(9).getPercentile().doubleValue(), 0.01);
     }
 
+    @Test public void testStream() {
+        List<Allele> alleles = new ArrayList<Allele>();
+        List<StabilityRecord> records = new ArrayList<StabilityRecord>();
+
+        NetStabParser.parse(IOUtil.openReader(FILE_NAME), (allele, record) -> {
+                alleles.add(allele);
+                records.add(record);
+            });
+
+        assertEquals(10, records.size());
+        assertEquals(Allele.instance("HLA-A*02:01"), alleles.get(0));
+        assertEquals(Peptide.instance("AEFGPWQTV"), records.get(9).getPeptide());
+    }
+
+    @Test public void testScan() {
+        List<StabilityRecord> records = new ArrayList<StabilityRecord>();
+
+        NetStabParser.parse(IOUtil.openReader(SCAN_FILE_NAME), (allele, record) -> records.add(record));
+
+        assertEquals(5, records.size());
+        assertEquals(Peptide.instance("AAAWYLWEV"), records.get(0).getPeptide());
+        assertEquals(Peptide.instance("EFGPWQTVL"), records.get(4).getPeptide());
+        assertEquals(0.26, records.get(4).getHalfLife().doubleValue(), 0.01);
+
+        // The list parser reads only the first block...
+        assertEquals(3, NetStabParser.parse(SCAN_FILE_NAME).size());
+    }
+
     public static void main(String[] args) {
         org.junit.runner.JUnitCore.main("pepmhc.junit.NetStabParserTest");
     }
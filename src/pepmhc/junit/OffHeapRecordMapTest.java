@@ -0,0 +1,63 @@
+
+package pepmhc.junit;
+
+import pepmhc.bind.OffHeapRecordMap;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class OffHeapRecordMapTest {
+    private static double strength(long key) {
+        // Values that are not exactly representable as floats...
+        return 1.0 / 3.0 + 0.1 * key;
+    }
+
+    private static double percentile(long key) {
+        return (key % 7 == 0) ? Double.NaN : 100.0 / (key + 3.0);
+    }
+
+    @Test public void testExactRoundTrip() {
+        OffHeapRecordMap map = new OffHeapRecordMap();
+
+        // Enough entries to force several rehashes...
+        for (long key = 1; key <= 10000; ++key)
+            map.put(key, strength(key), percentile(key));
+
+        assertEquals(10000, map.size());
+
+        for (long key = 1; key <= 10000; ++key) {
+            int slot = map.find(key);
+
+            assertTrue(slot >= 0);
+            assertEquals(Double.doubleToLongBits(strength(key)), Double.doubleToLongBits(map.strength(slot)));
+            assertEquals(Double.doubleToLongBits(percentile(key)), Double.doubleToLongBits(map.percentile(slot)));
+        }
+
+        assertFalse(map.containsKey(10001L));
+        assertTrue(map.find(0L) < 0);
+    }
+
+    @Test public void testEvict() {
+        OffHeapRecordMap map = new OffHeapRecordMap();
+
+        for (long key = 1; key <= 1000; ++key)
+            map.put(key, strength(key), percentile(key));
+
+        // Recently found entries must survive eviction...
+        for (long key = 501; key <= 1000; ++key)
+            map.find(key);
+
+        assertEquals(300, map.evict(300));
+        assertEquals(700, map.size());
+
+        for (long key = 501; key <= 1000; ++key)
+            assertEquals(strength(key), map.strength(map.find(key)), 0.0);
+
+        map.clear();
+        assertEquals(0, map.size());
+    }
+
+    public static void main(String[] args) {
+        org.junit.runner.JUnitCore.main("pepmhc.junit.OffHeapRecordMapTest");
+    }
+}
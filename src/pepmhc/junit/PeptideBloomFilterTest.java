@@ -0,0 +1,86 @@
+
+package pepmhc.junit;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import pepmhc.bind.PeptideBloomFilter;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class PeptideBloomFilterTest {
+    private static PeptideBloomFilter fill(int count) {
+        PeptideBloomFilter filter = PeptideBloomFilter.create(count);
+
+        for (long key = 1; key <= count; ++key)
+            filter.add(key);
+
+        return filter;
+    }
+
+    @Test public void testMembership() {
+        PeptideBloomFilter filter = fill(10000);
+
+        for (long key = 1; key <= 10000; ++key)
+            assertTrue(filter.mightContain(key));
+
+        int falsePositives = 0;
+
+        for (long key = 10001; key <= 20000; ++key)
+            if (filter.mightContain(key))
+                ++falsePositives;
+
+        assertTrue(falsePositives < 200);
+    }
+
+    @Test public void testDistinctCount() {
+        PeptideBloomFilter filter = fill(10000);
+        long count = filter.count();
+
+        // Nearly every key is counted...
+        assertTrue(count > 9900 && count <= 10000);
+
+        // ...and repeated additions are not counted at all...
+        for (long key = 1; key <= 10000; ++key)
+            assertFalse(filter.add(key));
+
+        assertEquals(count, filter.count());
+        assertFalse(filter.isSaturated());
+    }
+
+    @Test public void testSaveLoad() throws Exception {
+        PeptideBloomFilter filter = fill(10000);
+
+        File dir = Files.createTempDirectory("bloom").toFile();
+        File file = new File(dir, "table.db.bloom");
+
+        filter.save(file, 12345L);
+        PeptideBloomFilter loaded = PeptideBloomFilter.load(file);
+
+        assertEquals(filter.count(), loaded.count());
+        assertEquals(filter.capacity(), loaded.capacity());
+        assertEquals(12345L, loaded.rowCount());
+        assertEquals(-1L, filter.rowCount());
+
+        for (long key = 1; key <= 20000; ++key)
+            assertEquals(filter.mightContain(key), loaded.mightContain(key));
+
+        // Saving again replaces the file and leaves no temporary
+        // files behind...
+        filter.save(file, 54321L);
+        assertEquals(54321L, PeptideBloomFilter.load(file).rowCount());
+        assertEquals(1, dir.list().length);
+
+        file.delete();
+        dir.delete();
+    }
+
+    @Test public void testLoadMissing() {
+        assertNull(PeptideBloomFilter.load(new File("no/such/file.bloom")));
+    }
+
+    public static void main(String[] args) {
+        org.junit.runner.JUnitCore.main("pepmhc.junit.PeptideBloomFilterTest");
+    }
+}
@@ -0,0 +1,86 @@
+
+package pepmhc.junit;
+
+import jene.peptide.Peptide;
+
+import pepmhc.bind.PeptideKey;
+import pepmhc.bind.PeptideKeyMap;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class PeptideKeyTest {
+    @Test public void testRoundTrip() {
+        for (String seq : new String[] { "A", "YYYYYYYYYYY", "AEFGPWQTV", "SIINFEKL", "KLNEPVLLL" }) {
+            Peptide peptide = Peptide.instance(seq);
+            long key = PeptideKey.encode(peptide);
+
+            assertTrue(key > 0);
+            assertEquals(seq.length(), PeptideKey.length(key));
+            assertEquals(peptide, PeptideKey.decode(key));
+        }
+    }
+
+    @Test public void testDistinct() {
+        assertNotEquals(PeptideKey.encode(Peptide.instance("AAAAAAAA")),
+                        PeptideKey.encode(Peptide.instance("AAAAAAAAA")));
+
+        assertNotEquals(PeptideKey.encode(Peptide.instance("AEFGPWQTV")),
+                        PeptideKey.encode(Peptide.instance("VEFGPWQTA")));
+    }
+
+    @Test public void testUnencodable() {
+        assertFalse(PeptideKey.isEncodable(Peptide.instance("AEFGPWQTVAEF")));
+        assertEquals(PeptideKey.NONE, PeptideKey.encodeOrNone(Peptide.instance("AEFGPWQTVAEF")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncodeInvalid() {
+        PeptideKey.encode(Peptide.instance("AEFGPWQTVAEF"));
+    }
+
+    @Test public void testMap() {
+        PeptideKeyMap<String> map = new PeptideKeyMap<String>();
+
+        for (long key = 1; key <= 1000; ++key)
+            assertNull(map.put(key, Long.toString(key)));
+
+        assertEquals(1000, map.size());
+        assertEquals("500", map.get(500L));
+        assertEquals("500", map.put(500L, "five hundred"));
+        assertEquals("five hundred", map.get(500L));
+        assertNull(map.get(1001L));
+
+        for (long key = 1; key <= 1000; key += 2)
+            assertNotNull(map.remove(key));
+
+        assertEquals(500, map.size());
+
+        for (long key = 1; key <= 1000; ++key)
+            assertEquals(key % 2 == 0, map.containsKey(key));
+
+        map.clear();
+        assertTrue(map.isEmpty());
+    }
+
+    @Test public void testEvict() {
+        PeptideKeyMap<String> map = new PeptideKeyMap<String>();
+
+        for (long key = 1; key <= 1000; ++key)
+            map.put(key, Long.toString(key));
+
+        // Recently retrieved entries must survive eviction...
+        for (long key = 501; key <= 1000; ++key)
+            map.get(key);
+
+        assertEquals(300, map.evict(300));
+        assertEquals(700, map.size());
+
+        for (long key = 501; key <= 1000; ++key)
+            assertEquals(Long.toString(key), map.get(key));
+    }
+
+    public static void main(String[] args) {
+        org.junit.runner.JUnitCore.main("pepmhc.junit.PeptideKeyTest");
+    }
+}
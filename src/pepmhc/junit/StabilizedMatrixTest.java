@@ -1,12 +1,27 @@
 
 package pepmhc.junit;
 
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 import jene.hla.Allele;
 import jene.peptide.Peptide;
 import jene.peptide.Residue;
 
+import pepmhc.affy.Affinity;
+import pepmhc.affy.AffinityCache;
 import pepmhc.affy.AffinityMethod;
+import pepmhc.affy.AffinityRecord;
+import pepmhc.affy.smm.FusedMatrixScorer;
+import pepmhc.affy.smm.MatrixCalibration;
+import pepmhc.affy.smm.MatrixKernel;
+import pepmhc.affy.smm.MatrixPredictor;
+import pepmhc.affy.smm.SMMPredictor;
 import pepmhc.affy.smm.StabilizedMatrix;
+import pepmhc.bind.PeptideKey;
 
 import org.junit.*;
 import static org.junit.Assert.*;
@@ -28,6 +43,206 @@ public class StabilizedMatrixTest {
         assertEquals(11656.012379, mat.computeIC50(Peptide.instance("TSAFNKKTF")).doubleValue(), 1.0E-06);
     }
 
+    @Test public void testKernels() {
+        StabilizedMatrix mat = StabilizedMatrix.instance(AffinityMethod.SMM, Allele.instance("HLA-A*01:01"), 9);
+
+        List<Peptide> peptides =
+            List.of(Peptide.instance("YWDRNTQIY"),
+                    Peptide.instance("QTSYQYLII"),
+                    Peptide.instance("TSAFNKKTF"));
+
+        double[] batch = new double[peptides.size()];
+        mat.computeLog10IC50(peptides, batch);
+
+        for (int index = 0; index < peptides.size(); ++index) {
+            Peptide peptide = peptides.get(index);
+            int[] codes = new int[peptide.length() + 2];
+
+            for (int position = 0; position < peptide.length(); ++position)
+                codes[position + 2] = PeptideKey.code(peptide.get(position));
+
+            assertEquals(mat.computeLog10IC50(peptide), batch[index], 1.0E-12);
+            assertEquals(mat.computeLog10IC50(peptide), mat.computeLog10IC50(codes, 2), 1.0E-12);
+            assertEquals(Math.log10(mat.computeIC50(peptide).doubleValue()), batch[index], 1.0E-12);
+        }
+    }
+
+    @Test public void testKernelAgreement() {
+        StabilizedMatrix mat = StabilizedMatrix.instance(AffinityMethod.SMM, Allele.instance("HLA-A*01:01"), 9);
+
+        // A block size that is not a multiple of any vector length...
+        int count = 1003;
+        int[] codes = new int[count * 9];
+        Random random = new Random(20190601L);
+
+        for (int index = 0; index < codes.length; ++index)
+            codes[index] = random.nextInt(PeptideKey.CODE_COUNT);
+
+        double[] expected = new double[count];
+        mat.computeLog10IC50(codes, count, expected, MatrixKernel.SCALAR);
+
+        // Every kernel (or its scalar fallback) sums the elements in
+        // the same order, so the scores are identical...
+        for (MatrixKernel kernel : MatrixKernel.values()) {
+            double[] actual = new double[count];
+            mat.computeLog10IC50(codes, count, actual, kernel);
+
+            for (int index = 0; index < count; ++index)
+                assertEquals(expected[index], actual[index], 0.0);
+        }
+    }
+
+    @Test public void testScan() {
+        StabilizedMatrix mat = StabilizedMatrix.instance(AffinityMethod.SMM, Allele.instance("HLA-A*01:01"), 9);
+        Peptide protein = Peptide.instance("AYWDRNTQIYTSAFNKKTF");
+
+        List<Integer> offsets = new ArrayList<Integer>();
+        List<Double> scores = new ArrayList<Double>();
+
+        mat.scan(PeptideKey.codes(protein), (offset, length, log10IC50) -> {
+                assertEquals(9, length);
+                offsets.add(offset);
+                scores.add(log10IC50);
+            });
+
+        List<Peptide> fragments = protein.nativeFragments(9);
+        assertEquals(fragments.size(), offsets.size());
+
+        for (int index = 0; index < offsets.size(); ++index) {
+            assertEquals(index, offsets.get(index).intValue());
+            assertEquals(mat.computeLog10IC50(fragments.get(index)), scores.get(index), 1.0E-12);
+        }
+    }
+
+    @Test public void testBinders() {
+        StabilizedMatrix mat = StabilizedMatrix.instance(AffinityMethod.SMM, Allele.instance("HLA-A*01:01"), 9);
+        Peptide protein = Peptide.instance("AYWDRNTQIYTSAFNKKTFQTSYQYLII");
+
+        List<Peptide> expected = new ArrayList<Peptide>();
+
+        for (Peptide fragment : protein.nativeFragments(9))
+            if (mat.computeIC50(fragment).doubleValue() <= 2000.0)
+                expected.add(fragment);
+
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, mat.enumerateBinders(protein, Affinity.valueOf(2000.0)));
+        assertEquals(expected.size(), mat.countBinders(PeptideKey.codes(protein), Math.log10(2000.0)));
+
+        assertTrue(mat.enumerateBinders(protein, Affinity.valueOf(Math.pow(10.0, mat.getMinLog10IC50() - 0.1))).isEmpty());
+        assertEquals(protein.nativeFragments(9).size(),
+                     mat.enumerateBinders(protein, Affinity.valueOf(Math.pow(10.0, mat.getMaxLog10IC50() + 0.1))).size());
+    }
+
+    @Test public void testFused() {
+        List<Allele> alleles =
+            List.of(Allele.instance("HLA-A*01:01"),
+                    Allele.instance("HLA-A*02:01"),
+                    Allele.instance("HLA-A*02:02"));
+
+        List<Peptide> peptides =
+            List.of(Peptide.instance("YWDRNTQIY"),
+                    Peptide.instance("QTSYQYLII"),
+                    Peptide.instance("TSAFNKKTF"));
+
+        FusedMatrixScorer scorer = FusedMatrixScorer.instance(SMMPredictor.INSTANCE, alleles, 9);
+        double[][] scores = scorer.score(peptides);
+
+        assertEquals(3, scorer.countAlleles());
+        assertEquals(alleles, scorer.viewAlleles());
+
+        for (int allele = 0; allele < alleles.size(); ++allele) {
+            StabilizedMatrix mat = SMMPredictor.INSTANCE.getMatrix(alleles.get(allele), 9);
+
+            for (int peptide = 0; peptide < peptides.size(); ++peptide)
+                assertEquals(mat.computeLog10IC50(peptides.get(peptide)), scores[allele][peptide], 1.0E-12);
+        }
+    }
+
+    @Test public void testParallel() {
+        Allele allele = Allele.instance("HLA-A*02:01");
+        List<Peptide> peptides = Peptide.newNative(9, 2 * MatrixPredictor.parallelThreshold());
+        List<AffinityRecord> records = SMMPredictor.INSTANCE.predict(allele, peptides);
+
+        assertEquals(peptides.size(), records.size());
+
+        for (int index = 0; index < peptides.size(); index += 97) {
+            AffinityRecord expected = SMMPredictor.INSTANCE.predict(allele, peptides.get(index));
+            AffinityRecord actual = records.get(index);
+
+            assertEquals(peptides.get(index), actual.getPeptide());
+            assertEquals(expected.getAffinity().doubleValue(), actual.getAffinity().doubleValue(), 0.0);
+        }
+    }
+
+    @Test public void testCalibration() {
+        StabilizedMatrix mat = StabilizedMatrix.instance(AffinityMethod.SMM, Allele.instance("HLA-A*01:01"), 9);
+
+        MatrixCalibration cal1 = MatrixCalibration.calibrate(mat, 10000);
+        MatrixCalibration cal2 = MatrixCalibration.calibrate(mat, 10000);
+
+        assertEquals(10000, cal1.size());
+
+        double strong = mat.computeLog10IC50(Peptide.instance("YWDRNTQIY"));
+        double medium = mat.computeLog10IC50(Peptide.instance("QTSYQYLII"));
+        double weak   = mat.computeLog10IC50(Peptide.instance("TSAFNKKTF"));
+
+        assertEquals(Math.log10(167.70654039), strong, 1.0E-08);
+
+        assertTrue(cal1.rank(strong) < cal1.rank(medium));
+        assertTrue(cal1.rank(medium) < cal1.rank(weak));
+
+        assertEquals(  0.0, cal1.rank(-100.0), 0.0);
+        assertEquals(100.0, cal1.rank(+100.0), 0.0);
+
+        // The fixed background seed makes calibration reproducible...
+        assertEquals(cal1.rank(medium), cal2.rank(medium), 0.0);
+    }
+
+    @Test public void testCalibrationFile() throws Exception {
+        System.setProperty(AffinityCache.CACHE_DIRECTORY_PROPERTY, "data/cache");
+        System.setProperty(MatrixCalibration.BACKGROUND_SIZE_PROPERTY, "10000");
+
+        try {
+            Allele allele = Allele.instance("HLA-A*01:01");
+            StabilizedMatrix mat = StabilizedMatrix.instance(AffinityMethod.SMM, allele, 9);
+
+            File dir = new File("data/cache/calibration/SMM");
+            File file = new File(dir, "HLA-A-01-01-9.cal");
+            file.delete();
+
+            double medium = mat.computeLog10IC50(Peptide.instance("QTSYQYLII"));
+            double expected = MatrixCalibration.calibrate(mat, 10000).rank(medium);
+
+            assertEquals(expected, MatrixCalibration.instance(AffinityMethod.SMM, allele, mat).rank(medium), 0.0);
+            assertTrue(file.exists());
+
+            // A calibration written for different matrix parameters
+            // (here, with an altered matrix hash and scores that would
+            // change the rank) is recomputed...
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(20);
+                long hash = raf.readLong();
+
+                raf.seek(20);
+                raf.writeLong(hash ^ 1L);
+
+                for (int index = 0; index < 10000; ++index)
+                    raf.writeFloat(1000.0F);
+            }
+
+            assertEquals(expected, MatrixCalibration.instance(AffinityMethod.SMM, allele, mat).rank(medium), 0.0);
+            assertEquals(expected, MatrixCalibration.instance(AffinityMethod.SMM, allele, mat).rank(medium), 0.0);
+
+            // No temporary files are left behind...
+            for (String name : dir.list())
+                assertTrue(name.endsWith(".cal"));
+        }
+        finally {
+            System.clearProperty(AffinityCache.CACHE_DIRECTORY_PROPERTY);
+            System.clearProperty(MatrixCalibration.BACKGROUND_SIZE_PROPERTY);
+        }
+    }
+
     public static void main(String[] args) {
         org.junit.runner.JUnitCore.main("pepmhc.junit.StabilizedMatrixTest");
     }
@@ -0,0 +1,136 @@
+
+package pepmhc.junit;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import pepmhc.proc.ProcessInput;
+import pepmhc.proc.Subprocess;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class SubprocessTest {
+    // Enough input to fill a pipe buffer many times over...
+    private static final int LINE_COUNT = 100000;
+    private static final long TIMEOUT = 60000L;
+
+    private static List<Integer> items() {
+        List<Integer> items = new ArrayList<Integer>(LINE_COUNT);
+
+        for (int index = 0; index < LINE_COUNT; ++index)
+            items.add(index);
+
+        return items;
+    }
+
+    private static List<String> lines() {
+        List<String> lines = new ArrayList<String>(LINE_COUNT);
+
+        for (int index = 0; index < LINE_COUNT; ++index)
+            lines.add(String.valueOf(index));
+
+        return lines;
+    }
+
+    private static Consumer<BufferedReader> collector(List<String> output) {
+        return reader -> {
+            try {
+                String line;
+
+                while ((line = reader.readLine()) != null)
+                    output.add(line);
+            }
+            catch (IOException ioex) {
+                throw new UncheckedIOException(ioex);
+            }
+        };
+    }
+
+    private static List<String> shell(String script, ProcessInput input) {
+        return List.of("sh", "-c", script, "sh", input.getFile().getPath());
+    }
+
+    private static void assertCat(ProcessInput.Mode mode) {
+        ProcessInput input = ProcessInput.open(mode, "SubprocessTest", items(), String::valueOf);
+        List<String> output = new ArrayList<String>();
+
+        assertEquals(0, Subprocess.run("cat", List.of("cat", input.getFile().getPath()), input, collector(output), TIMEOUT));
+        assertEquals(lines(), output);
+
+        // The input file and its directory are removed...
+        assertFalse(input.getFile().exists());
+        assertFalse(input.getFile().getParentFile().exists());
+    }
+
+    @Test public void testPipe() {
+        assertCat(ProcessInput.Mode.PIPE);
+    }
+
+    @Test public void testFile() {
+        assertCat(ProcessInput.Mode.FILE);
+    }
+
+    @Test public void testUnopened() {
+        //
+        // A process that exits without opening its input leaves the
+        // writer blocked in open() until the pipe is released...
+        //
+        ProcessInput input = ProcessInput.open(ProcessInput.Mode.PIPE, "SubprocessTest", items(), String::valueOf);
+        assertEquals(ProcessInput.Mode.PIPE, input.getMode());
+
+        try {
+            Subprocess.run("exit", shell("exit 0", input), input, collector(new ArrayList<String>()), TIMEOUT);
+            fail("Expected a feed failure.");
+        }
+        catch (RuntimeException ex) {
+            // Expected...
+        }
+
+        assertFalse(input.getFile().exists());
+    }
+
+    @Test public void testEarlyExit() {
+        //
+        // A process that reads only part of its input leaves the
+        // writer with a broken pipe...
+        //
+        ProcessInput input = ProcessInput.open(ProcessInput.Mode.PIPE, "SubprocessTest", items(), String::valueOf);
+        List<String> output = new ArrayList<String>();
+
+        try {
+            Subprocess.run("head", shell("head -n 1 \"$1\"", input), input, collector(output), TIMEOUT);
+            fail("Expected a feed failure.");
+        }
+        catch (RuntimeException ex) {
+            // Expected...
+        }
+
+        assertEquals(List.of("0"), output);
+    }
+
+    @Test public void testVerboseError() {
+        //
+        // A process that fills its error stream before it reads any
+        // input would deadlock unless the error stream is drained...
+        //
+        ProcessInput input = ProcessInput.open(ProcessInput.Mode.PIPE, "SubprocessTest", items(), String::valueOf);
+        List<String> output = new ArrayList<String>();
+
+        String script =
+            "i=0; while [ $i -lt 2000 ]; do "
+            + "echo 'error line ........................................................' 1>&2; "
+            + "i=$((i+1)); done; cat \"$1\"";
+
+        assertEquals(0, Subprocess.run("verbose", shell(script, input), input, collector(output), TIMEOUT));
+        assertEquals(lines(), output);
+    }
+
+    public static void main(String[] args) {
+        org.junit.runner.JUnitCore.main("pepmhc.junit.SubprocessTest");
+    }
+}
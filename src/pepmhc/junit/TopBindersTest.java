@@ -0,0 +1,98 @@
+
+package pepmhc.junit;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import jene.chem.HalfLife;
+import jene.hla.Allele;
+import jene.peptide.Peptide;
+
+import pepmhc.affy.Affinity;
+import pepmhc.affy.AffinityRecord;
+import pepmhc.affy.smm.SMMPredictor;
+import pepmhc.bind.BindRecord;
+import pepmhc.bind.TopBinders;
+import pepmhc.stab.StabilityRecord;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TopBindersTest {
+    private static AffinityRecord record(String peptide, double affinity) {
+        return new AffinityRecord(Peptide.instance(peptide), Affinity.valueOf(affinity));
+    }
+
+    private static StabilityRecord stability(String peptide, double halfLife) {
+        return new StabilityRecord(Peptide.instance(peptide), HalfLife.valueOf(halfLife));
+    }
+
+    private static List<Peptide> peptides(List<? extends BindRecord> records) {
+        List<Peptide> peptides = new ArrayList<Peptide>();
+
+        for (BindRecord record : records)
+            peptides.add(record.getPeptide());
+
+        return peptides;
+    }
+
+    @Test public void testHeap() {
+        TopBinders<AffinityRecord> top = TopBinders.affinity(3);
+
+        assertEquals(3, top.capacity());
+        assertEquals(0, top.size());
+        assertEquals(Double.NEGATIVE_INFINITY, top.threshold(), 0.0);
+
+        assertTrue(top.offer(record("AAA", 500.0)));
+        assertTrue(top.offer(record("CCC", 5000.0)));
+        assertTrue(top.offer(record("DDD", 50.0)));
+        assertEquals(3, top.size());
+        assertEquals(-Math.log10(5000.0), top.threshold(), 1.0E-12);
+
+        assertFalse(top.offer(record("EEE", 10000.0)));
+        assertFalse(top.offer(record("AAA", 500.0)));
+        assertTrue(top.offer(record("FFF", 5.0)));
+        assertTrue(top.offer(record("GGG", 100.0)));
+        assertEquals(3, top.size());
+
+        assertEquals(List.of(Peptide.instance("FFF"), Peptide.instance("DDD"), Peptide.instance("GGG")),
+                     peptides(top.toList()));
+    }
+
+    @Test public void testStability() {
+        TopBinders<StabilityRecord> top = TopBinders.stability(2);
+
+        // The longest half-lives are the strongest binders...
+        assertTrue(top.offer(stability("AAA", 1.5)));
+        assertTrue(top.offer(stability("CCC", 12.0)));
+        assertFalse(top.offer(stability("DDD", 0.2)));
+        assertTrue(top.offer(stability("EEE", 3.0)));
+
+        assertEquals(List.of(Peptide.instance("CCC"), Peptide.instance("EEE")), peptides(top.toList()));
+    }
+
+    @Test public void testMatrix() {
+        Allele allele = Allele.instance("HLA-A*02:01");
+        Peptide protein = Peptide.instance("AYWDRNTQIYTSAFNKKTFQTSYQYLIILMLAGVTFRDELNVKSHAGLW");
+
+        List<AffinityRecord> expected =
+            new ArrayList<AffinityRecord>(SMMPredictor.INSTANCE.predict(allele, protein.nativeFragments(9)));
+
+        expected.sort(Comparator.comparingDouble(AffinityRecord::getLog10Affinity));
+        expected = expected.subList(0, 5);
+
+        TopBinders<AffinityRecord> scanned = TopBinders.affinity(5);
+        SMMPredictor.INSTANCE.topBinders(allele, 9, List.of(protein), scanned);
+
+        TopBinders<AffinityRecord> streamed = TopBinders.affinity(5);
+        streamed.predict(SMMPredictor.INSTANCE, allele, protein.nativeFragments(9));
+
+        assertEquals(peptides(expected), peptides(scanned.toList()));
+        assertEquals(peptides(expected), peptides(streamed.toList()));
+    }
+
+    public static void main(String[] args) {
+        org.junit.runner.JUnitCore.main("pepmhc.junit.TopBindersTest");
+    }
+}
@@ -0,0 +1,248 @@
+
+package pepmhc.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jam.app.JamLogger;
+
+/**
+ * Collects counters and latency histograms for one allele and
+ * prediction method (named {@code allele:method}, as by {@code
+ * BindCache.getName()}) or for one command-line tool.
+ *
+ * <p>Each instance is registered with the platform MBean server
+ * under the name {@code pepmhc:type=BindMetrics,name="..."} when it
+ * is created; periodic reports are written by the {@link
+ * MetricsReporter}.  All recording methods are lock-free and
+ * thread-safe.
+ */
+public final class BindMetrics implements BindMetricsMXBean {
+    private final String name;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder dbReadKeys = new LongAdder();
+    private final LongAdder dbWriteRecords = new LongAdder();
+    private final LongAdder predictedPeptides = new LongAdder();
+
+    private final Log2Histogram dbReadTime = new Log2Histogram();
+    private final Log2Histogram dbWriteTime = new Log2Histogram();
+    private final Log2Histogram predictorTime = new Log2Histogram();
+    private final Log2Histogram predictorBatch = new Log2Histogram();
+    private final Log2Histogram processTime = new Log2Histogram();
+
+    private static final ConcurrentMap<String, BindMetrics> instances =
+        new ConcurrentHashMap<String, BindMetrics>();
+
+    private static final double NANOS_PER_MILLI = 1.0E6;
+
+    private BindMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the metrics with a given name, creating (and registering)
+     * them if necessary.
+     *
+     * @param name the name of the metrics.
+     *
+     * @return the metrics with the specified name.
+     */
+    public static BindMetrics instance(String name) {
+        return instances.computeIfAbsent(name, BindMetrics::newInstance);
+    }
+
+    private static BindMetrics newInstance(String name) {
+        BindMetrics metrics = new BindMetrics(name);
+
+        register(metrics);
+        MetricsReporter.start();
+
+        return metrics;
+    }
+
+    private static void register(BindMetrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(metrics, objectName(metrics.name));
+        }
+        catch (Exception ex) {
+            //
+            // Metrics remain available through the reporter...
+            //
+            JamLogger.warn("Could not register metrics [%s] with JMX: %s", metrics.name, ex.getMessage());
+        }
+    }
+
+    private static ObjectName objectName(String name) throws Exception {
+        return new ObjectName("pepmhc:type=BindMetrics,name=" + ObjectName.quote(name));
+    }
+
+    /**
+     * Returns all metrics created so far.
+     *
+     * @return a new list containing all metrics created so far.
+     */
+    public static List<BindMetrics> viewAll() {
+        return new ArrayList<BindMetrics>(instances.values());
+    }
+
+    /**
+     * Returns the current time for use with the timing methods.
+     *
+     * @return the current value of the system nanosecond timer.
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    private static long elapsed(long startNanos) {
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Records cache hits.
+     *
+     * @param count the number of records found in memory.
+     */
+    public void hits(long count) {
+        hits.add(count);
+    }
+
+    /**
+     * Records cache misses.
+     *
+     * @param count the number of records not found in memory.
+     */
+    public void misses(long count) {
+        misses.add(count);
+    }
+
+    /**
+     * Records a database query.
+     *
+     * @param startNanos the start time returned by {@link #start()}.
+     *
+     * @param keyCount the number of keys sent to the query.
+     */
+    public void dbRead(long startNanos, long keyCount) {
+        dbReadTime.record(elapsed(startNanos));
+        dbReadKeys.add(keyCount);
+    }
+
+    /**
+     * Records a database write.
+     *
+     * @param startNanos the start time returned by {@link #start()}.
+     *
+     * @param recordCount the number of records written.
+     */
+    public void dbWrite(long startNanos, long recordCount) {
+        dbWriteTime.record(elapsed(startNanos));
+        dbWriteRecords.add(recordCount);
+    }
+
+    /**
+     * Records a predictor call.
+     *
+     * @param startNanos the start time returned by {@link #start()}.
+     *
+     * @param peptideCount the number of peptides sent to the
+     * predictor.
+     */
+    public void predict(long startNanos, long peptideCount) {
+        predictorTime.record(elapsed(startNanos));
+        predictorBatch.record(peptideCount);
+        predictedPeptides.add(peptideCount);
+    }
+
+    /**
+     * Records the execution of a command-line process.
+     *
+     * @param startNanos the start time returned by {@link #start()}.
+     */
+    public void process(long startNanos) {
+        processTime.record(elapsed(startNanos));
+    }
+
+    /**
+     * Returns the distribution of peptides per predictor call.
+     *
+     * @return the distribution of peptides per predictor call.
+     */
+    public Log2Histogram getPredictorBatch() {
+        return predictorBatch;
+    }
+
+    @Override public String getName() {
+        return name;
+    }
+
+    @Override public long getHits() {
+        return hits.sum();
+    }
+
+    @Override public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override public long getDbReadCount() {
+        return dbReadTime.count();
+    }
+
+    @Override public long getDbReadKeys() {
+        return dbReadKeys.sum();
+    }
+
+    @Override public double getDbReadMeanMillis() {
+        return dbReadTime.mean() / NANOS_PER_MILLI;
+    }
+
+    @Override public long getDbWriteCount() {
+        return dbWriteTime.count();
+    }
+
+    @Override public long getDbWriteRecords() {
+        return dbWriteRecords.sum();
+    }
+
+    @Override public double getDbWriteMeanMillis() {
+        return dbWriteTime.mean() / NANOS_PER_MILLI;
+    }
+
+    @Override public long getPredictorCalls() {
+        return predictorTime.count();
+    }
+
+    @Override public long getPredictedPeptides() {
+        return predictedPeptides.sum();
+    }
+
+    @Override public double getPredictorMeanMillis() {
+        return predictorTime.mean() / NANOS_PER_MILLI;
+    }
+
+    @Override public double getPredictorP99Millis() {
+        return predictorTime.quantile(0.99) / NANOS_PER_MILLI;
+    }
+
+    @Override public long getProcessCount() {
+        return processTime.count();
+    }
+
+    @Override public double getProcessMeanMillis() {
+        return processTime.mean() / NANOS_PER_MILLI;
+    }
+
+    @Override public double getProcessP99Millis() {
+        return processTime.quantile(0.99) / NANOS_PER_MILLI;
+    }
+}
@@ -0,0 +1,126 @@
+
+package pepmhc.metrics;
+
+/**
+ * Publishes the binding metrics for one allele and prediction method
+ * (or one command-line tool) through JMX.
+ */
+public interface BindMetricsMXBean {
+    /**
+     * Returns the name of the metrics ({@code allele:method}).
+     *
+     * @return the name of the metrics.
+     */
+    String getName();
+
+    /**
+     * Returns the number of records found in memory.
+     *
+     * @return the number of records found in memory.
+     */
+    long getHits();
+
+    /**
+     * Returns the number of records not found in memory.
+     *
+     * @return the number of records not found in memory.
+     */
+    long getMisses();
+
+    /**
+     * Returns the number of database queries.
+     *
+     * @return the number of database queries.
+     */
+    long getDbReadCount();
+
+    /**
+     * Returns the number of peptide keys sent to database queries.
+     *
+     * @return the number of peptide keys sent to database queries.
+     */
+    long getDbReadKeys();
+
+    /**
+     * Returns the mean database query time in milliseconds.
+     *
+     * @return the mean database query time in milliseconds.
+     */
+    double getDbReadMeanMillis();
+
+    /**
+     * Returns the number of database writes.
+     *
+     * @return the number of database writes.
+     */
+    long getDbWriteCount();
+
+    /**
+     * Returns the number of records written to the database.
+     *
+     * @return the number of records written to the database.
+     */
+    long getDbWriteRecords();
+
+    /**
+     * Returns the mean database write time in milliseconds.
+     *
+     * @return the mean database write time in milliseconds.
+     */
+    double getDbWriteMeanMillis();
+
+    /**
+     * Returns the number of predictor calls.
+     *
+     * @return the number of predictor calls.
+     */
+    long getPredictorCalls();
+
+    /**
+     * Returns the number of peptides sent to the predictor.
+     *
+     * @return the number of peptides sent to the predictor.
+     */
+    long getPredictedPeptides();
+
+    /**
+     * Returns the mean predictor call time in milliseconds.
+     *
+     * @return the mean predictor call time in milliseconds.
+     */
+    double getPredictorMeanMillis();
+
+    /**
+     * Returns the (approximate) 99th percentile of the predictor call
+     * time in milliseconds.
+     *
+     * @return the 99th percentile of the predictor call time in
+     * milliseconds.
+     */
+    double getPredictorP99Millis();
+
+    /**
+     * Returns the number of command-line processes executed.
+     *
+     * @return the number of command-line processes executed.
+     */
+    long getProcessCount();
+
+    /**
+     * Returns the mean wall time of command-line processes in
+     * milliseconds.
+     *
+     * @return the mean wall time of command-line processes in
+     * milliseconds.
+     */
+    double getProcessMeanMillis();
+
+    /**
+     * Returns the (approximate) 99th percentile of the wall time of
+     * command-line processes in milliseconds.
+     *
+     * @return the 99th percentile of the wall time of command-line
+     * processes in milliseconds.
+     */
+    double getProcessP99Millis();
+}
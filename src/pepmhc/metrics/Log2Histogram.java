@@ -0,0 +1,104 @@
+
+package pepmhc.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulates a distribution of non-negative long values (latencies
+ * in nanoseconds or batch sizes) in power-of-two buckets.
+ *
+ * <p>Bucket {@code k} counts the values in {@code [2^(k-1), 2^k)}, so
+ * quantiles are resolved to within a factor of two at a fixed cost
+ * of 65 counters.  Recording is lock-free and thread-safe.
+ */
+public final class Log2Histogram {
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    private static final int BUCKET_COUNT = 65;
+
+    /**
+     * Records one value.
+     *
+     * @param value the value to record (negative values are recorded
+     * as zero).
+     */
+    public void record(long value) {
+        value = Math.max(value, 0L);
+
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return the number of recorded values.
+     */
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the sum of the recorded values.
+     *
+     * @return the sum of the recorded values.
+     */
+    public long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * Returns the largest recorded value.
+     *
+     * @return the largest recorded value ({@code 0} if no values have
+     * been recorded).
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Returns the mean of the recorded values.
+     *
+     * @return the mean of the recorded values ({@code 0.0} if no
+     * values have been recorded).
+     */
+    public double mean() {
+        long n = count();
+        return (n > 0) ? ((double) sum()) / n : 0.0;
+    }
+
+    /**
+     * Estimates a quantile of the recorded values.
+     *
+     * @param quantile the quantile of interest, in {@code [0, 1]}.
+     *
+     * @return the upper bound of the bucket containing the quantile
+     * ({@code 0} if no values have been recorded).
+     */
+    public long quantile(double quantile) {
+        long n = count();
+
+        if (n == 0)
+            return 0L;
+
+        long rank = (long) Math.ceil(quantile * n);
+        long seen = 0;
+
+        for (int k = 0; k < BUCKET_COUNT; ++k) {
+            seen += buckets.get(k);
+
+            if (seen >= rank)
+                return (k == 0) ? 0L : Math.min(max(), (k < 63) ? (1L << k) - 1 : Long.MAX_VALUE);
+        }
+
+        return max();
+    }
+}
@@ -0,0 +1,130 @@
+
+package pepmhc.metrics;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import jam.app.JamLogger;
+import jam.app.JamProperties;
+import jam.io.IOUtil;
+
+/**
+ * Writes periodic reports of all binding metrics to the log and (if
+ * a report file is specified) to a CSV file.
+ *
+ * <p>Reports are enabled by setting the system property {@code
+ * pepmhc.metricsInterval} to the reporting interval in seconds; the
+ * optional property {@code pepmhc.metricsFile} names the CSV file, to
+ * which one row per metrics name is appended at every report.  A
+ * final report is written when the JVM shuts down.
+ */
+public final class MetricsReporter {
+    private MetricsReporter() {}
+
+    private static boolean started = false;
+
+    /**
+     * Name of the system property that specifies the reporting
+     * interval in seconds.
+     */
+    public static final String INTERVAL_PROPERTY = "pepmhc.metricsInterval";
+
+    /**
+     * Name of the system property that specifies the CSV report file.
+     */
+    public static final String FILE_PROPERTY = "pepmhc.metricsFile";
+
+    private static final String CSV_HEADER =
+        "time,name,hits,misses,dbReadCount,dbReadKeys,dbReadMeanMs,"
+        + "dbWriteCount,dbWriteRecords,dbWriteMeanMs,"
+        + "predictorCalls,predictedPeptides,predictorMeanMs,predictorP99Ms,"
+        + "processCount,processMeanMs,processP99Ms";
+
+    /**
+     * Starts periodic reporting if it has been enabled by system
+     * properties (and has not already started).
+     */
+    public static synchronized void start() {
+        if (started || !JamProperties.isSet(INTERVAL_PROPERTY))
+            return;
+
+        long interval = Long.parseLong(JamProperties.getRequired(INTERVAL_PROPERTY));
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "MetricsReporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+        executor.scheduleAtFixedRate(MetricsReporter::report, interval, interval, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(MetricsReporter::report, "MetricsReporterShutdown"));
+
+        started = true;
+    }
+
+    /**
+     * Writes a report of all metrics collected so far.
+     */
+    public static synchronized void report() {
+        List<BindMetrics> metricsList = BindMetrics.viewAll();
+
+        for (BindMetrics metrics : metricsList)
+            log(metrics);
+
+        if (JamProperties.isSet(FILE_PROPERTY))
+            writeCSV(new File(JamProperties.getRequired(FILE_PROPERTY)), metricsList);
+    }
+
+    private static void log(BindMetrics metrics) {
+        JamLogger.info("%s: hits [%d], misses [%d], DB reads [%d, %.1f ms], DB writes [%d, %.1f ms], "
+                       + "predictor calls [%d, %d peptides, %.1f ms], processes [%d, %.1f ms]",
+                       metrics.getName(),
+                       metrics.getHits(),
+                       metrics.getMisses(),
+                       metrics.getDbReadCount(),
+                       metrics.getDbReadMeanMillis(),
+                       metrics.getDbWriteCount(),
+                       metrics.getDbWriteMeanMillis(),
+                       metrics.getPredictorCalls(),
+                       metrics.getPredictedPeptides(),
+                       metrics.getPredictorMeanMillis(),
+                       metrics.getProcessCount(),
+                       metrics.getProcessMeanMillis());
+    }
+
+    private static void writeCSV(File file, List<BindMetrics> metricsList) {
+        boolean header = !file.exists();
+        PrintWriter writer = IOUtil.openWriter(file.getPath(), true);
+
+        if (header)
+            writer.println(CSV_HEADER);
+
+        long time = System.currentTimeMillis();
+
+        for (BindMetrics metrics : metricsList)
+            writer.println(String.format("%d,%s,%d,%d,%d,%d,%.3f,%d,%d,%.3f,%d,%d,%.3f,%.3f,%d,%.3f,%.3f",
+                                         time,
+                                         metrics.getName(),
+                                         metrics.getHits(),
+                                         metrics.getMisses(),
+                                         metrics.getDbReadCount(),
+                                         metrics.getDbReadKeys(),
+                                         metrics.getDbReadMeanMillis(),
+                                         metrics.getDbWriteCount(),
+                                         metrics.getDbWriteRecords(),
+                                         metrics.getDbWriteMeanMillis(),
+                                         metrics.getPredictorCalls(),
+                                         metrics.getPredictedPeptides(),
+                                         metrics.getPredictorMeanMillis(),
+                                         metrics.getPredictorP99Millis(),
+                                         metrics.getProcessCount(),
+                                         metrics.getProcessMeanMillis(),
+                                         metrics.getProcessP99Millis()));
+
+        writer.close();
+    }
+}
@@ -0,0 +1,6 @@
+/**
+ * Collects counters and latency histograms for the binding caches,
+ * stores, and command-line predictors, and publishes them through
+ * JMX and periodic log or CSV reports.
+ */
+package pepmhc.metrics;
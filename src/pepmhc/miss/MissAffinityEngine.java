@@ -4,6 +4,7 @@ package pepmhc.miss;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import jam.app.JamLogger;
 import jam.math.Percentile;
@@ -19,6 +20,8 @@ import jene.tcga.TumorGenotypeTable;
 import pepmhc.affy.Affinity;
 import pepmhc.affy.AffinityMethod;
 import pepmhc.affy.AffinityPredictor;
+import pepmhc.affy.AffinityRecord;
+import pepmhc.bind.BindBatcher;
 import pepmhc.bind.BindRecord;
 import pepmhc.bind.BindRecordMap;
 
@@ -37,10 +40,12 @@ public final class MissAffinityEngine {
 
     private MissAffinityEngine(Allele allele,
                                AffinityMethod affinityMethod,
-                               Collection<MissCleavageRecord> cleavageRecords) {
+                               Collection<MissCleavageRecord> cleavageRecords,
+                               BindRecordMap bindingMap) {
         this.allele = allele;
         this.affinityMethod = affinityMethod;
         this.cleavageRecords = cleavageRecords;
+        this.bindingMap = bindingMap;
     }
 
     /**
@@ -60,8 +65,15 @@ public final class MissAffinityEngine {
     public static List<MissAffinityRecord> generate(Allele allele,
                                                     AffinityMethod affinityMethod,
                                                     Collection<MissCleavageRecord> cleavageRecords) {
+        return generate(allele, affinityMethod, cleavageRecords, null);
+    }
+
+    private static List<MissAffinityRecord> generate(Allele allele,
+                                                     AffinityMethod affinityMethod,
+                                                     Collection<MissCleavageRecord> cleavageRecords,
+                                                     BindRecordMap bindingMap) {
         MissAffinityEngine engine =
-            new MissAffinityEngine(allele, affinityMethod, cleavageRecords);
+            new MissAffinityEngine(allele, affinityMethod, cleavageRecords, bindingMap);
 
         try {
             return engine.generate();
@@ -92,12 +104,43 @@ public final class MissAffinityEngine {
         List<MissAffinityRecord> affinityRecords =
             new ArrayList<MissAffinityRecord>();
 
-        for (Allele allele : genotype.viewUniqueAlleles())
-            affinityRecords.addAll(generate(allele, affinityMethod, cleavageRecords));
+        List<Allele> alleles = new ArrayList<Allele>(genotype.viewUniqueAlleles());
+        Map<Allele, List<AffinityRecord>> alleleRecords = predictGenotype(alleles, affinityMethod, cleavageRecords);
+
+        for (Allele allele : alleles) {
+            BindRecordMap bindingMap = null;
+
+            if (alleleRecords != null)
+                bindingMap = BindRecordMap.hash(alleleRecords.get(allele));
+
+            affinityRecords.addAll(generate(allele, affinityMethod, cleavageRecords, bindingMap));
+        }
 
         return affinityRecords;
     }
 
+    private static Map<Allele, List<AffinityRecord>> predictGenotype(List<Allele> alleles,
+                                                                     AffinityMethod affinityMethod,
+                                                                     Collection<MissCleavageRecord> cleavageRecords) {
+        //
+        // Multi-allele predictors score the whole genotype in one
+        // call; if that call fails, each allele is predicted (and
+        // allowed to fail) separately...
+        //
+        AffinityPredictor predictor = affinityMethod.getPredictor();
+
+        if (!predictor.isMultiAllele() || alleles.size() < 2)
+            return null;
+
+        try {
+            return predictor.predict(alleles, MissCleavageRecord.extractPeptides(cleavageRecords));
+        }
+        catch (RuntimeException ex) {
+            JamLogger.warn(ex);
+            return null;
+        }
+    }
+
     /**
      * Computes MHC binding affinity for neo-peptide and self-peptide
      * pairs contained in cleavage records.
@@ -159,8 +202,11 @@ public final class MissAffinityEngine {
         JamLogger.info("Generating [%d] affinity records: [%s, %s]...",
                        cleavageRecords.size(), allele, affinityMethod);
 
-        collectPeptides();
-        computeAffinity();
+        if (bindingMap == null) {
+            collectPeptides();
+            computeAffinity();
+        }
+
         createRecords();
         
         return affinityRecords;
@@ -171,7 +217,12 @@ public final class MissAffinityEngine {
     }
 
     private void computeAffinity() {
-        bindingMap = affinityMethod.getPredictor().map(allele, peptides);
+        //
+        // Tumors are processed in parallel, so requests for the same
+        // allele may be coalesced into larger predictor calls (when
+        // batching is enabled)...
+        //
+        bindingMap = BindRecordMap.hash(BindBatcher.predict(affinityMethod.getPredictor(), allele, peptides));
     }
 
     private void createRecords() {
@@ -0,0 +1,303 @@
+
+package pepmhc.proc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import jam.app.JamLogger;
+import jam.app.JamProperties;
+import jam.lang.JamException;
+
+import jene.peptide.Peptide;
+
+/**
+ * Governs how failures of command-line prediction processes are
+ * handled: each process may be limited to a wall-clock timeout,
+ * failed batches may be retried a bounded number of times, and a
+ * batch that still fails may be bisected until the peptides that
+ * cause the failure are isolated and quarantined (see {@link
+ * Quarantine}), so that long batch runs finish with partial progress.
+ *
+ * <p>The global policy is specified through system properties:
+ * {@code pepmhc.processTimeout} (in seconds; no timeout by default),
+ * {@code pepmhc.processRetries}, and {@code pepmhc.quarantineLimit}.
+ */
+public final class ExecPolicy {
+    private final long timeout;
+    private final int retries;
+    private final int quarantineLimit;
+
+    private static ExecPolicy global = null;
+
+    /**
+     * Name of the system property that specifies the wall-clock
+     * timeout for each process, in seconds.
+     */
+    public static final String TIMEOUT_PROPERTY = "pepmhc.processTimeout";
+
+    /**
+     * Name of the system property that specifies the number of times
+     * that a failed batch is retried.
+     */
+    public static final String RETRIES_PROPERTY = "pepmhc.processRetries";
+
+    /**
+     * Name of the system property that specifies the largest number
+     * of peptides that may be quarantined while bisecting one batch.
+     */
+    public static final String QUARANTINE_LIMIT_PROPERTY = "pepmhc.quarantineLimit";
+
+    /**
+     * Default number of times that a failed batch is retried.
+     */
+    public static final int RETRIES_DEFAULT = 1;
+
+    /**
+     * Default largest number of peptides that may be quarantined while
+     * bisecting one batch.  A batch with more failures most likely has
+     * a systemic problem (a missing executable, a full disk) rather
+     * than a few bad peptides, and bisecting it further would only
+     * repeat the failure.
+     */
+    public static final int QUARANTINE_LIMIT_DEFAULT = 16;
+
+    private ExecPolicy(long timeout, int retries, int quarantineLimit) {
+        if (timeout < 0)
+            throw JamException.runtime("Process timeout must be non-negative.");
+
+        if (retries < 0)
+            throw JamException.runtime("Retry count must be non-negative.");
+
+        if (quarantineLimit < 0)
+            throw JamException.runtime("Quarantine limit must be non-negative.");
+
+        this.timeout = timeout;
+        this.retries = retries;
+        this.quarantineLimit = quarantineLimit;
+    }
+
+    /**
+     * Creates a new execution policy.
+     *
+     * @param timeout the wall-clock timeout for each process, in
+     * milliseconds ({@code 0} for no timeout).
+     *
+     * @param retries the number of times that a failed batch is
+     * retried.
+     *
+     * @param quarantineLimit the largest number of peptides that may
+     * be quarantined while bisecting one batch.
+     *
+     * @return the new execution policy.
+     */
+    public static ExecPolicy instance(long timeout, int retries, int quarantineLimit) {
+        return new ExecPolicy(timeout, retries, quarantineLimit);
+    }
+
+    /**
+     * Returns the global execution policy specified through system
+     * properties.
+     *
+     * @return the global execution policy.
+     */
+    public static ExecPolicy global() {
+        if (global == null)
+            global = resolveGlobal();
+
+        return global;
+    }
+
+    private static ExecPolicy resolveGlobal() {
+        return new ExecPolicy(resolveTimeout(), resolveRetries(), resolveQuarantineLimit());
+    }
+
+    private static long resolveTimeout() {
+        if (JamProperties.isSet(TIMEOUT_PROPERTY))
+            return Math.round(1000.0 * JamProperties.getRequiredDouble(TIMEOUT_PROPERTY));
+        else
+            return 0L;
+    }
+
+    private static int resolveRetries() {
+        if (JamProperties.isSet(RETRIES_PROPERTY))
+            return JamProperties.getRequiredInt(RETRIES_PROPERTY);
+        else
+            return RETRIES_DEFAULT;
+    }
+
+    private static int resolveQuarantineLimit() {
+        if (JamProperties.isSet(QUARANTINE_LIMIT_PROPERTY))
+            return JamProperties.getRequiredInt(QUARANTINE_LIMIT_PROPERTY);
+        else
+            return QUARANTINE_LIMIT_DEFAULT;
+    }
+
+    /**
+     * Returns the wall-clock timeout for each process.
+     *
+     * @return the wall-clock timeout for each process, in milliseconds
+     * ({@code 0} for no timeout).
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Returns the number of times that a failed batch is retried.
+     *
+     * @return the number of times that a failed batch is retried.
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Returns the largest number of peptides that may be quarantined
+     * while bisecting one batch.
+     *
+     * @return the largest number of peptides that may be quarantined
+     * while bisecting one batch.
+     */
+    public int getQuarantineLimit() {
+        return quarantineLimit;
+    }
+
+    /**
+     * Runs a task, retrying it after each failure up to the retry
+     * limit.  The task must have no side effects that would be
+     * repeated by a retry.
+     *
+     * @param <T> the type of the task result.
+     *
+     * @param name a short name for the task (used in log messages).
+     *
+     * @param task the task to run.
+     *
+     * @return the result of the first successful attempt.
+     *
+     * @throws RuntimeException the failure of the last attempt if
+     * every attempt fails, or immediately if the thread is interrupted.
+     */
+    public <T> T retry(String name, Supplier<T> task) {
+        for (int attempt = 0; ; ++attempt) {
+            try {
+                return task.get();
+            }
+            catch (RuntimeException ex) {
+                if (attempt >= retries || Thread.currentThread().isInterrupted())
+                    throw ex;
+
+                JamLogger.warn("Attempt [%d] of [%s] failed: %s; retrying...", attempt + 1, name, ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Processes a batch of peptides, isolating and quarantining the
+     * peptides that cause the batch to fail.
+     *
+     * <p>Peptides already quarantined for the task are skipped.  The
+     * remaining batch is attempted (with retries); if it still fails,
+     * it is split in half and each half is processed in the same way
+     * (attempted once), down to single peptides, which are retried and
+     * then quarantined if they fail.
+     *
+     * @param <R> the type of the batch results.
+     *
+     * @param name the task name (typically the prediction method and
+     * allele), used to group quarantined peptides.
+     *
+     * @param peptides the peptides to process.
+     *
+     * @param batch a function that processes a list of peptides and
+     * returns one result for each.
+     *
+     * @return the results for every peptide that was processed
+     * successfully (in input order).
+     *
+     * @throws RuntimeException if more peptides fail than the
+     * quarantine limit allows (the failure is then most likely
+     * systemic), or if the thread is interrupted.
+     */
+    public <R> List<R> bisect(String name, List<Peptide> peptides, Function<List<Peptide>, List<R>> batch) {
+        List<Peptide> admitted = new ArrayList<Peptide>(peptides.size());
+
+        for (Peptide peptide : peptides)
+            if (!Quarantine.contains(name, peptide))
+                admitted.add(peptide);
+
+        List<R> results = new ArrayList<R>(admitted.size());
+
+        if (admitted.isEmpty())
+            return results;
+
+        try {
+            results.addAll(retry(name, () -> batch.apply(admitted)));
+        }
+        catch (RuntimeException ex) {
+            if (Thread.currentThread().isInterrupted())
+                throw ex;
+
+            JamLogger.warn("Batch of [%d] peptides failed for [%s]; bisecting...", admitted.size(), name);
+            new Bisection<R>(name, batch, results).split(admitted);
+        }
+
+        return results;
+    }
+
+    private final class Bisection<R> {
+        private final String name;
+        private final Function<List<Peptide>, List<R>> batch;
+        private final List<R> results;
+
+        private int quarantineCount = 0;
+
+        private Bisection(String name, Function<List<Peptide>, List<R>> batch, List<R> results) {
+            this.name = name;
+            this.batch = batch;
+            this.results = results;
+        }
+
+        private void split(List<Peptide> peptides) {
+            if (peptides.size() == 1) {
+                isolate(peptides.get(0));
+                return;
+            }
+
+            int middle = peptides.size() / 2;
+
+            attempt(peptides.subList(0, middle));
+            attempt(peptides.subList(middle, peptides.size()));
+        }
+
+        private void attempt(List<Peptide> peptides) {
+            try {
+                results.addAll(batch.apply(peptides));
+            }
+            catch (RuntimeException ex) {
+                if (Thread.currentThread().isInterrupted())
+                    throw ex;
+
+                split(peptides);
+            }
+        }
+
+        private void isolate(Peptide peptide) {
+            try {
+                results.addAll(retry(name, () -> batch.apply(List.of(peptide))));
+            }
+            catch (RuntimeException ex) {
+                if (Thread.currentThread().isInterrupted())
+                    throw ex;
+
+                if (++quarantineCount > quarantineLimit)
+                    throw JamException.runtime("More than [%d] peptides failed for [%s]: %s",
+                                               quarantineLimit, name, ex.getMessage());
+
+                Quarantine.add(name, peptide, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+
+package pepmhc.proc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import jam.io.IOUtil;
+import jam.lang.JamException;
+import jam.util.RegexUtil;
+
+import jene.hla.Allele;
+
+/**
+ * Reads the data lines from output written by the {@code netMHC},
+ * {@code netMHCpan}, and {@code netMHCstabpan} programs and splits
+ * them into fields, so that the parser for each program only has to
+ * interpret the fields.
+ *
+ * <p>Each block of output contains a header that ends with a dashed
+ * line, column names, another dashed line, the data lines, and a final
+ * dashed line.  Runs for one allele and one peptide file write a
+ * single block; multi-allele runs and protein scans write one block
+ * per allele or protein.
+ */
+public final class NetOutputReader {
+    private final BufferedReader reader;
+    private final int alleleFieldIndex;
+    private final int fieldCount;
+
+    private String alleleField = null;
+    private Allele alleleValue = null;
+
+    private static final String DASHED_LINE_MATCH = "----------";
+
+    private static final Pattern DATA_LINE_DELIM = RegexUtil.MULTI_WHITE_SPACE;
+
+    private NetOutputReader(BufferedReader reader, int alleleFieldIndex, int fieldCount) {
+        this.reader = reader;
+        this.alleleFieldIndex = alleleFieldIndex;
+        this.fieldCount = fieldCount;
+    }
+
+    /**
+     * Wraps a reader around an open output stream.
+     *
+     * @param reader an open reader for the output stream (which is
+     * closed when it has been read).
+     *
+     * @param alleleFieldIndex the zero-offset index of the field
+     * containing the allele name.
+     *
+     * @param fieldCount the minimum number of fields on a valid data
+     * line.
+     *
+     * @return a reader for the specified output stream.
+     */
+    public static NetOutputReader create(BufferedReader reader, int alleleFieldIndex, int fieldCount) {
+        return new NetOutputReader(reader, alleleFieldIndex, fieldCount);
+    }
+
+    /**
+     * Reads the data lines in the first block of output and passes
+     * their fields to a consumer.
+     *
+     * @param consumer the consumer of the data line fields.
+     *
+     * @throws RuntimeException if any I/O errors occur or a data line
+     * has too few fields.
+     */
+    public void readBlock(Consumer<String[]> consumer) {
+        try {
+            //
+            // The header contains two dashed lines; the data begins
+            // immediately after the second dashed line and ends with
+            // the next one...
+            //
+            readToDashedLine();
+            readToDashedLine();
+
+            while (true) {
+                String line = reader.readLine();
+
+                if (line == null || isDashedLine(line))
+                    return;
+                else
+                    consumer.accept(split(line));
+            }
+        }
+        catch (IOException ioex) {
+            throw JamException.runtime(ioex);
+        }
+        finally {
+            IOUtil.close(reader);
+        }
+    }
+
+    /**
+     * Reads the data lines in every block of output and passes their
+     * fields to a consumer.
+     *
+     * @param consumer the consumer of the data line fields.
+     *
+     * @throws RuntimeException if any I/O errors occur or a data line
+     * has too few fields.
+     */
+    public void readBlocks(Consumer<String[]> consumer) {
+        try {
+            //
+            // Data lines are recognized by the position index in their
+            // first field...
+            //
+            while (true) {
+                String line = reader.readLine();
+
+                if (line == null)
+                    return;
+
+                if (isDataLine(line))
+                    consumer.accept(split(line));
+            }
+        }
+        catch (IOException ioex) {
+            throw JamException.runtime(ioex);
+        }
+        finally {
+            IOUtil.close(reader);
+        }
+    }
+
+    /**
+     * Returns the allele named in the fields of a data line.
+     *
+     * @param fields the fields of a data line.
+     *
+     * @return the allele named in the specified fields.
+     */
+    public Allele parseAllele(String[] fields) {
+        //
+        // Output lines are grouped by allele, so only parse the name
+        // when it changes...
+        //
+        String field = fields[alleleFieldIndex];
+
+        if (!field.equals(alleleField)) {
+            alleleField = field;
+            alleleValue = Allele.instance(field);
+        }
+
+        return alleleValue;
+    }
+
+    private void readToDashedLine() throws IOException {
+        while (true) {
+            String line = reader.readLine();
+
+            if (line == null || isDashedLine(line))
+                return;
+        }
+    }
+
+    private static boolean isDashedLine(String line) {
+        return line.startsWith(DASHED_LINE_MATCH);
+    }
+
+    private static boolean isDataLine(String line) {
+        String trimmed = line.trim();
+
+        if (trimmed.isEmpty() || !Character.isDigit(trimmed.charAt(0)))
+            return false;
+
+        int end = 0;
+
+        while (end < trimmed.length() && Character.isDigit(trimmed.charAt(end)))
+            ++end;
+
+        return end == trimmed.length() || Character.isWhitespace(trimmed.charAt(end));
+    }
+
+    private String[] split(String line) {
+        String[] fields = DATA_LINE_DELIM.split(line.trim());
+
+        if (fields.length < fieldCount)
+            throw JamException.runtime("Invalid data line [%s].", line);
+
+        return fields;
+    }
+}
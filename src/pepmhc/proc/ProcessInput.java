@@ -0,0 +1,280 @@
+
+package pepmhc.proc;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.function.Function;
+
+import jam.app.JamLogger;
+import jam.app.JamProperties;
+import jam.lang.JamException;
+
+import jene.peptide.Peptide;
+
+/**
+ * Supplies the input file for a command-line process.
+ *
+ * <p>In {@code PIPE} mode (the default) the input file is a named pipe
+ * (created by {@code mkfifo}) and the lines are written while the
+ * process reads them, so large batches are never staged on disk.  In
+ * {@code FILE} mode (or where named pipes are unavailable) the lines
+ * are written to a temporary file before the process starts.
+ *
+ * <p>Each input serves exactly one process: call {@link #feed()} after
+ * the process has started and {@link #close()} when it has finished.
+ */
+public final class ProcessInput implements AutoCloseable {
+    private final Mode mode;
+    private final File dir;
+    private final File file;
+    private final Iterable<String> lines;
+
+    // Set once every line has been written...
+    private volatile boolean fed = false;
+
+    private static Mode global = null;
+
+    /**
+     * Enumerates the input modes.
+     */
+    public enum Mode {
+        /**
+         * Input is streamed through a named pipe.
+         */
+        PIPE,
+
+        /**
+         * Input is written to a temporary file before the process
+         * starts.
+         */
+        FILE;
+    }
+
+    /**
+     * Name of the system property that selects the input mode.
+     */
+    public static final String MODE_PROPERTY = "pepmhc.processInput";
+
+    private ProcessInput(Mode mode, File dir, File file, Iterable<String> lines) {
+        this.mode = mode;
+        this.dir = dir;
+        this.file = file;
+        this.lines = lines;
+    }
+
+    /**
+     * Creates the input for a command-line process in the global mode.
+     *
+     * @param <T> the type of the input items.
+     *
+     * @param prefix a prefix for the input file name.
+     *
+     * @param items the items to write.
+     *
+     * @param formatter a function that formats each item as one or
+     * more lines of input.
+     *
+     * @return the process input.
+     *
+     * @throws RuntimeException if the input file cannot be created.
+     */
+    public static <T> ProcessInput open(String prefix, Iterable<T> items, Function<? super T, String> formatter) {
+        return open(global(), prefix, items, formatter);
+    }
+
+    /**
+     * Creates the input for a command-line process.
+     *
+     * @param <T> the type of the input items.
+     *
+     * @param mode the input mode.
+     *
+     * @param prefix a prefix for the input file name.
+     *
+     * @param items the items to write.
+     *
+     * @param formatter a function that formats each item as one or
+     * more lines of input.
+     *
+     * @return the process input.
+     *
+     * @throws RuntimeException if the input file cannot be created.
+     */
+    public static <T> ProcessInput open(Mode mode, String prefix, Iterable<T> items, Function<? super T, String> formatter) {
+        Iterable<String> lines = () -> new Iterator<String>() {
+            private final Iterator<T> iterator = items.iterator();
+
+            @Override public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override public String next() {
+                return formatter.apply(iterator.next());
+            }
+        };
+
+        try {
+            File dir = Files.createTempDirectory(prefix).toFile();
+            File file = new File(dir, prefix + ".in");
+
+            if (mode == Mode.PIPE && !mkfifo(file)) {
+                JamLogger.warn("Could not create a named pipe; writing [%s] input to a file.", prefix);
+                mode = Mode.FILE;
+            }
+
+            ProcessInput input = new ProcessInput(mode, dir, file, lines);
+
+            if (mode == Mode.FILE)
+                input.write();
+
+            return input;
+        }
+        catch (IOException ioex) {
+            throw JamException.runtime(ioex);
+        }
+    }
+
+    /**
+     * Creates a FASTA input file for a command-line process in the
+     * global mode.  The proteins are assigned the sequence identifiers
+     * {@code P1}, {@code P2}, ..., in iteration order.
+     *
+     * @param prefix a prefix for the input file name.
+     *
+     * @param proteins the protein sequences to write.
+     *
+     * @return the process input.
+     *
+     * @throws RuntimeException if the input file cannot be created.
+     */
+    public static ProcessInput fasta(String prefix, Iterable<Peptide> proteins) {
+        Iterable<String> records = () -> new Iterator<String>() {
+            private final Iterator<Peptide> iterator = proteins.iterator();
+            private int index = 0;
+
+            @Override public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override public String next() {
+                return ">P" + (++index) + "\n" + iterator.next().formatString();
+            }
+        };
+
+        return open(prefix, records, Function.identity());
+    }
+
+    /**
+     * Returns the global input mode specified through system properties
+     * ({@code PIPE} by default).
+     *
+     * @return the global input mode.
+     */
+    public static Mode global() {
+        if (global == null)
+            global = resolveGlobal();
+
+        return global;
+    }
+
+    private static Mode resolveGlobal() {
+        if (JamProperties.isSet(MODE_PROPERTY))
+            return JamProperties.getRequiredEnum(MODE_PROPERTY, Mode.class);
+        else
+            return Mode.PIPE;
+    }
+
+    private static boolean mkfifo(File file) {
+        try {
+            Process process = new ProcessBuilder("mkfifo", file.getAbsolutePath()).start();
+            return process.waitFor() == 0 && file.exists();
+        }
+        catch (IOException ioex) {
+            return false;
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw JamException.runtime(ex);
+        }
+    }
+
+    private void write() throws IOException {
+        try (Writer writer =
+             new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII))) {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+
+        fed = true;
+    }
+
+    /**
+     * Returns the input mode.
+     *
+     * @return the input mode.
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns the input file to pass to the process.
+     *
+     * @return the input file to pass to the process.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes the input lines to a named pipe (blocking until the
+     * process has read them all); this is a no-op for file input.
+     *
+     * @throws IOException if the process stops reading before all
+     * lines are written.
+     */
+    public void feed() throws IOException {
+        if (mode == Mode.PIPE && !fed)
+            write();
+    }
+
+    /**
+     * Unblocks a thread that is waiting in {@link #feed()} for a
+     * process that has exited without reading all of its input.
+     */
+    public void release() {
+        if (mode != Mode.PIPE || fed)
+            return;
+
+        //
+        // Opening a named pipe for reading and writing never blocks on
+        // Linux; it satisfies a writer blocked in open(), and closing
+        // it again makes every further write fail with a broken pipe...
+        //
+        try {
+            RandomAccessFile unblock = new RandomAccessFile(file, "rw");
+            unblock.close();
+        }
+        catch (IOException ioex) {
+            // The writer will fail on its own...
+        }
+    }
+
+    /**
+     * Deletes the input file and its temporary directory.
+     */
+    @Override public void close() {
+        file.delete();
+        dir.delete();
+    }
+}
@@ -0,0 +1,96 @@
+
+package pepmhc.proc;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import jam.app.JamLogger;
+import jam.app.JamProperties;
+import jam.io.IOUtil;
+
+import jene.peptide.Peptide;
+
+/**
+ * Records the peptides that could not be processed even in isolation
+ * (see {@link ExecPolicy#bisect(String, java.util.List,
+ * java.util.function.Function)}), so that long batch runs can skip
+ * them and report them at the end.
+ *
+ * <p>Peptides are quarantined by task name (typically the prediction
+ * method and allele).  If the system property {@code
+ * pepmhc.quarantineFile} is set, each quarantined peptide is also
+ * appended to that file as a tab-delimited line containing the task
+ * name, the peptide, and the failure message.
+ */
+public final class Quarantine {
+    private static final Map<String, Set<Peptide>> quarantined = new HashMap<String, Set<Peptide>>();
+
+    /**
+     * Name of the system property that specifies the file where
+     * quarantined peptides are recorded.
+     */
+    public static final String FILE_PROPERTY = "pepmhc.quarantineFile";
+
+    private Quarantine() {
+    }
+
+    /**
+     * Quarantines a peptide.
+     *
+     * @param name the name of the task that failed.
+     *
+     * @param peptide the peptide that caused the failure.
+     *
+     * @param cause the failure.
+     */
+    public static synchronized void add(String name, Peptide peptide, RuntimeException cause) {
+        JamLogger.warn("Quarantined peptide [%s] for [%s]: %s", peptide.formatString(), name, cause.getMessage());
+
+        quarantined.computeIfAbsent(name, key -> new LinkedHashSet<Peptide>()).add(peptide);
+
+        if (JamProperties.isSet(FILE_PROPERTY))
+            record(JamProperties.getRequired(FILE_PROPERTY), name, peptide, cause);
+    }
+
+    private static void record(String fileName, String name, Peptide peptide, RuntimeException cause) {
+        PrintWriter writer = IOUtil.openWriter(fileName, true);
+        writer.println(name + "\t" + peptide.formatString() + "\t" + cause.getMessage());
+        writer.close();
+    }
+
+    /**
+     * Determines whether a peptide has been quarantined for a task.
+     *
+     * @param name the name of the task.
+     *
+     * @param peptide the peptide of interest.
+     *
+     * @return {@code true} iff the peptide has been quarantined for
+     * the specified task.
+     */
+    public static synchronized boolean contains(String name, Peptide peptide) {
+        Set<Peptide> peptides = quarantined.get(name);
+        return peptides != null && peptides.contains(peptide);
+    }
+
+    /**
+     * Returns the peptides quarantined for a task.
+     *
+     * @param name the name of the task.
+     *
+     * @return a new set containing the peptides quarantined for the
+     * specified task (in the order they were quarantined).
+     */
+    public static synchronized Set<Peptide> get(String name) {
+        Set<Peptide> peptides = quarantined.get(name);
+
+        if (peptides == null)
+            return Collections.emptySet();
+        else
+            return new LinkedHashSet<Peptide>(peptides);
+    }
+}
@@ -0,0 +1,261 @@
+
+package pepmhc.proc;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import jam.app.JamLogger;
+import jam.lang.JamException;
+
+/**
+ * Runs one command-line process with concurrent input, output, and
+ * error streams.
+ *
+ * <p>The standard output is parsed on its own thread as lines arrive,
+ * so parsed records reach the caller while the process is running.
+ * The standard error is drained into the log on another thread (so a
+ * verbose tool cannot fill the pipe and deadlock), and named-pipe
+ * input is written on a third.  The calling thread waits for all of
+ * them and reports the first failure.
+ *
+ * <p>A process that runs longer than the timeout of the global {@link
+ * ExecPolicy} is killed (together with any processes it started).
+ */
+public final class Subprocess {
+    private final String name;
+    private final List<String> command;
+    private final ProcessInput input;
+    private final Consumer<BufferedReader> parser;
+    private final long timeout;
+
+    private volatile RuntimeException parseError = null;
+    private volatile IOException feedError = null;
+
+    // Interval between attempts to unblock an input writer that is
+    // waiting for a process that has already exited...
+    private static final long RELEASE_INTERVAL = 100L;
+
+    private Subprocess(String name, List<String> command, ProcessInput input, Consumer<BufferedReader> parser, long timeout) {
+        this.name = name;
+        this.command = command;
+        this.input = input;
+        this.parser = parser;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Runs a command-line process to completion.
+     *
+     * @param name a short name for the process (used in thread names
+     * and log messages).
+     *
+     * @param command the exact and complete command line.
+     *
+     * @param input the process input (fed after the process starts and
+     * closed when it finishes), or {@code null} if the process takes
+     * no input file.
+     *
+     * @param parser a consumer that parses the standard output of the
+     * process; it is called on a dedicated thread, and the reader that
+     * it receives is drained to the end of the stream after it returns.
+     *
+     * @return the exit status of the process.
+     *
+     * @throws RuntimeException if the process cannot be started, if it
+     * stops reading its input early, if it times out, or if the parser
+     * fails.
+     */
+    public static int run(String name, List<String> command, ProcessInput input, Consumer<BufferedReader> parser) {
+        return run(name, command, input, parser, ExecPolicy.global().getTimeout());
+    }
+
+    /**
+     * Runs a command-line process to completion or until a timeout
+     * expires.
+     *
+     * @param name a short name for the process (used in thread names
+     * and log messages).
+     *
+     * @param command the exact and complete command line.
+     *
+     * @param input the process input (fed after the process starts and
+     * closed when it finishes), or {@code null} if the process takes
+     * no input file.
+     *
+     * @param parser a consumer that parses the standard output of the
+     * process (see {@link #run(String, List, ProcessInput, Consumer)}).
+     *
+     * @param timeout the wall-clock timeout for the process, in
+     * milliseconds ({@code 0} for no timeout).
+     *
+     * @return the exit status of the process.
+     *
+     * @throws RuntimeException if the process cannot be started, if it
+     * stops reading its input early, if it times out, or if the parser
+     * fails.
+     */
+    public static int run(String name, List<String> command, ProcessInput input, Consumer<BufferedReader> parser, long timeout) {
+        Subprocess subprocess = new Subprocess(name, command, input, parser, timeout);
+
+        try {
+            return subprocess.run();
+        }
+        finally {
+            if (input != null)
+                input.close();
+        }
+    }
+
+    private int run() {
+        Process process;
+
+        try {
+            process = new ProcessBuilder(command).start();
+        }
+        catch (IOException ioex) {
+            JamLogger.error(ioex);
+            throw JamException.runtime(ioex);
+        }
+
+        Thread drainer = start("stderr", () -> drain(process));
+        Thread reader  = start("stdout", () -> parse(process));
+        Thread feeder  = (input != null) ? start("input", this::feed) : null;
+
+        try {
+            boolean timedOut = !await(process);
+
+            if (timedOut)
+                kill(process);
+
+            reader.join();
+            drainer.join();
+
+            if (feeder != null)
+                awaitFeeder(feeder);
+
+            if (timedOut)
+                throw JamException.runtime("Process [%s] timed out after [%d] ms.", name, timeout);
+
+            if (parseError != null)
+                throw parseError;
+
+            if (feedError != null)
+                throw JamException.runtime("Process [%s] did not read all of its input: %s", name, feedError.getMessage());
+
+            int status = process.exitValue();
+
+            if (status != 0)
+                JamLogger.warn("Process [%s] exited with status [%d].", name, status);
+
+            return status;
+        }
+        catch (InterruptedException ex) {
+            kill(process);
+            Thread.currentThread().interrupt();
+            throw JamException.runtime(ex);
+        }
+    }
+
+    private boolean await(Process process) throws InterruptedException {
+        if (timeout > 0)
+            return process.waitFor(timeout, TimeUnit.MILLISECONDS);
+
+        process.waitFor();
+        return true;
+    }
+
+    private static void kill(Process process) {
+        //
+        // Wrapper scripts (netMHCpan is a shell script) start the real
+        // program as a child process, which would otherwise survive and
+        // hold the output streams open...
+        //
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    private Thread start(String stream, Runnable runnable) {
+        Thread thread = new Thread(runnable, name + "-" + stream);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void awaitFeeder(Thread feeder) throws InterruptedException {
+        //
+        // A process that exits without opening (or reading all of)
+        // a named pipe leaves the writer blocked until the pipe is
+        // released...
+        //
+        feeder.join(RELEASE_INTERVAL);
+
+        while (feeder.isAlive()) {
+            input.release();
+            feeder.join(RELEASE_INTERVAL);
+        }
+    }
+
+    private void feed() {
+        try {
+            input.feed();
+        }
+        catch (IOException ioex) {
+            feedError = ioex;
+        }
+    }
+
+    private void parse(Process process) {
+        InputStream stream = process.getInputStream();
+
+        try {
+            parser.accept(openReader(uncloseable(stream)));
+
+            // Parsers stop at the end of their data section (and may
+            // close their reader); consume any trailing output so the
+            // process can finish normally...
+            byte[] buffer = new byte[8192];
+
+            while (stream.read(buffer) >= 0)
+                ;
+        }
+        catch (RuntimeException ex) {
+            parseError = ex;
+            kill(process);
+        }
+        catch (IOException ioex) {
+            parseError = JamException.runtime(ioex);
+            kill(process);
+        }
+    }
+
+    private void drain(Process process) {
+        try (BufferedReader reader = openReader(process.getErrorStream())) {
+            String line;
+
+            while ((line = reader.readLine()) != null)
+                if (!line.trim().isEmpty())
+                    JamLogger.warn("[%s] %s", name, line);
+        }
+        catch (IOException ioex) {
+            JamLogger.warn("Could not read the error stream of process [%s]: %s", name, ioex.getMessage());
+        }
+    }
+
+    private static BufferedReader openReader(InputStream stream) {
+        return new BufferedReader(new InputStreamReader(stream, StandardCharsets.US_ASCII));
+    }
+
+    private static InputStream uncloseable(InputStream stream) {
+        return new FilterInputStream(stream) {
+            @Override public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,7 @@
+/**
+ * Runs the external command-line predictors: feeds their input through
+ * named pipes, parses their output as it is written, drains their
+ * error streams into the log, and applies timeouts, retries, and
+ * failing-batch bisection.
+ */
+package pepmhc.proc;
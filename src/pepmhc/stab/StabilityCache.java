@@ -2,18 +2,22 @@
 package pepmhc.stab;
 
 import jam.app.JamProperties;
-import jam.util.PairKeyTable;
+import jam.math.Percentile;
 
+import jene.chem.HalfLife;
 import jene.hla.Allele;
+import jene.peptide.Peptide;
 
 import pepmhc.bind.BindCache;
+import pepmhc.bind.BindRegistry;
 
 /**
  * Provides a compute-on-demand service, in-memory caching, and
  * persistent storage for peptide-MHC stability records.
  */
 public final class StabilityCache extends BindCache<StabilityRecord> {
-    private static final PairKeyTable<StabilityMethod, Allele, StabilityCache> instances = PairKeyTable.hash();
+    private static final BindRegistry<StabilityMethod, StabilityCache> instances =
+        BindRegistry.create(StabilityCache::newInstance);
 
     private StabilityCache(StabilityTable table, StabilityPredictor predictor, Allele allele) {
         super(table, predictor, allele);
@@ -63,13 +67,11 @@ public final class StabilityCache extends BindCache<StabilityRecord> {
      *
      * @param allele the allele of the binding MHC molecule.
      */
-    public static synchronized void clear(StabilityMethod method, Allele allele) {
-        StabilityCache instance = instances.get(method, allele);
+    public static void clear(StabilityMethod method, Allele allele) {
+        StabilityCache instance = instances.remove(method, allele);
 
         if (instance != null)
             instance.clear();
-
-        instances.remove(method, allele);
     }
 
     /**
@@ -83,21 +85,12 @@ public final class StabilityCache extends BindCache<StabilityRecord> {
      * @return the stability cache for the specified allele and
      * prediction method.
      */
-    public static synchronized StabilityCache instance(StabilityMethod method, Allele allele) {
-        StabilityCache instance = instances.get(method, allele);
-
-        if (instance == null)
-            instance = newInstance(method, allele);
-
-        return instance;
+    public static StabilityCache instance(StabilityMethod method, Allele allele) {
+        return instances.instance(method, allele);
     }
 
     private static StabilityCache newInstance(StabilityMethod method, Allele allele) {
-        StabilityCache instance =
-            new StabilityCache(StabilityTable.create(method, allele), method.getPredictor(), allele);
-
-        instances.put(method, allele, instance);
-        return instance;
+        return new StabilityCache(StabilityTable.create(method, allele), method.getPredictor(), allele);
     }
 
     @Override public StabilityMethod getMethod() {
@@ -108,6 +101,10 @@ public final class StabilityCache extends BindCache<StabilityRecord> {
         return (StabilityPredictor) super.predictor;
     }
 
+    @Override protected StabilityRecord newRecord(Peptide peptide, double strength, Percentile percentile) {
+        return new StabilityRecord(peptide, HalfLife.valueOf(strength), percentile);
+    }
+
     @Override public Class getRecordClass() {
         return StabilityRecord.class;
     }
@@ -1,10 +1,9 @@
 
 package pepmhc.stab;
 
-import jam.util.PairKeyTable;
-
 import jene.hla.Allele;
 
+import pepmhc.bind.BindRegistry;
 import pepmhc.bind.BindStore;
 
 /**
@@ -12,7 +11,8 @@ import pepmhc.bind.BindStore;
  * peptide-MHC stability records.
  */
 public final class StabilityStore extends BindStore<StabilityRecord> {
-    private static final PairKeyTable<StabilityMethod, Allele, StabilityStore> instances = PairKeyTable.hash();
+    private static final BindRegistry<StabilityMethod, StabilityStore> instances =
+        BindRegistry.create(StabilityStore::newInstance);
 
     private StabilityStore(StabilityTable table, StabilityPredictor predictor, Allele allele) {
         super(table, predictor, allele);
@@ -29,21 +29,12 @@ public final class StabilityStore extends BindStore<StabilityRecord> {
      * @return the stability store for the specified allele and
      * prediction method.
      */
-    public static synchronized StabilityStore instance(StabilityMethod method, Allele allele) {
-        StabilityStore instance = instances.get(method, allele);
-
-        if (instance == null)
-            instance = newInstance(method, allele);
-
-        return instance;
+    public static StabilityStore instance(StabilityMethod method, Allele allele) {
+        return instances.instance(method, allele);
     }
 
     private static StabilityStore newInstance(StabilityMethod method, Allele allele) {
-        StabilityStore instance =
-            new StabilityStore(StabilityTable.create(method, allele), method.getPredictor(), allele);
-
-        instances.put(method, allele, instance);
-        return instance;
+        return new StabilityStore(StabilityTable.create(method, allele), method.getPredictor(), allele);
     }
 
     @Override public StabilityMethod getMethod() {
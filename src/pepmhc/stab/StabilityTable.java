@@ -20,17 +20,28 @@ import pepmhc.bind.BindTable;
 
 /**
  * Maintains a persistent database table of peptide-MHC stability
- * records indexed by peptide.
+ * records indexed by packed peptide key.
  */
 public final class StabilityTable extends BindTable<StabilityRecord> {
     private StabilityTable(SQLDb db) {
         super(db);
     }
 
+    private StabilityTable(SQLDb db, String dbFile) {
+        super(db, dbFile);
+    }
+
     /**
-     * The name of the {@code stability} table.
+     * The name of the {@code stability_key} table.
      */
-    public static final String TABLE_NAME = "stability";
+    public static final String TABLE_NAME = "stability_key";
+
+    /**
+     * The name of the {@code stability} table written by earlier
+     * versions (indexed by peptide string), which is imported into the
+     * {@code stability_key} table when a dedicated database is opened.
+     */
+    public static final String LEGACY_TABLE_NAME = "stability";
 
     /**
      * The name of the {@code half_life} column.
@@ -48,7 +59,7 @@ public final class StabilityTable extends BindTable<StabilityRecord> {
      * Meta-data for the table columns.
      */
     public static final List<SQLColumn> COLUMN_LIST =
-        List.of(PEPTIDE_COLUMN, HALF_LIFE_COLUMN, PERCENTILE_COLUMN);
+        List.of(PEPTIDE_KEY_COLUMN, HALF_LIFE_COLUMN, PERCENTILE_COLUMN);
 
     /**
      * Creates a new stability table in an existing database.
@@ -77,7 +88,10 @@ public final class StabilityTable extends BindTable<StabilityRecord> {
         String dbFile = dbFile(method, allele);
         SQLDb  sqlDb  = SQLiteDb.instance(dbFile);
 
-        return new StabilityTable(sqlDb);
+        StabilityTable table = new StabilityTable(sqlDb, dbFile);
+        table.importLegacy();
+
+        return table;
     }
 
     /**
@@ -105,6 +119,14 @@ public final class StabilityTable extends BindTable<StabilityRecord> {
     }
 
     @Override public StabilityRecord getRow(ResultSet resultSet) throws SQLException {
+        Peptide peptide = getPeptide(resultSet, 1);
+        HalfLife halfLife = HalfLife.valueOf(getDouble(resultSet, 2));
+        Percentile percentile = Percentile.valueOf(getDouble(resultSet, 3));
+
+        return new StabilityRecord(peptide, halfLife, percentile);
+    }
+
+    @Override protected StabilityRecord getTextRow(ResultSet resultSet) throws SQLException {
         Peptide peptide = Peptide.instance(resultSet.getString(1));
         HalfLife halfLife = HalfLife.valueOf(getDouble(resultSet, 2));
         Percentile percentile = Percentile.valueOf(getDouble(resultSet, 3));
@@ -112,6 +134,10 @@ public final class StabilityTable extends BindTable<StabilityRecord> {
         return new StabilityRecord(peptide, halfLife, percentile);
     }
 
+    @Override protected String getLegacyTableName() {
+        return LEGACY_TABLE_NAME;
+    }
+
     @Override public String getTableName() {
         return TABLE_NAME;
     }
@@ -119,8 +145,8 @@ public final class StabilityTable extends BindTable<StabilityRecord> {
     @Override public void prepareColumn(PreparedStatement statement, int index,
                                         StabilityRecord record, String columnName) throws SQLException {
         switch (columnName) {
-        case PEPTIDE_NAME:
-            statement.setString(index, record.getPeptide().formatString());
+        case PEPTIDE_KEY_NAME:
+            statement.setLong(index, getKey(record));
             break;
 
         case HALF_LIFE_NAME:
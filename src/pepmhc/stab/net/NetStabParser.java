@@ -2,20 +2,19 @@
 package pepmhc.stab.net;
 
 import java.io.BufferedReader;
-import java.io.IOException;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.function.BiConsumer;
 
 import jam.io.IOUtil;
-import jam.lang.JamException;
 import jam.math.Percentile;
-import jam.util.RegexUtil;
 
 import jene.chem.HalfLife;
+import jene.hla.Allele;
 import jene.peptide.Peptide;
 
+import pepmhc.proc.NetOutputReader;
 import pepmhc.stab.StabilityRecord;
 
 /**
@@ -24,12 +23,8 @@ import pepmhc.stab.StabilityRecord;
  */
 public final class NetStabParser {
     private final BufferedReader reader;
-    private final List<StabilityRecord> records = new ArrayList<StabilityRecord>();
-
-    private static final String DASHED_LINE_MATCH = "----------";
-
-    private static final Pattern DATA_LINE_DELIM = RegexUtil.MULTI_WHITE_SPACE;
 
+    private static final int ALLELE_FIELD_INDEX = 1;
     private static final int PEPTIDE_FIELD_INDEX = 2;
     private static final int HALF_LIFE_FIELD_INDEX = 5;
     private static final int PERCENTILE_FIELD_INDEX = 6;
@@ -74,71 +69,48 @@ public final class NetStabParser {
      * @throws RuntimeException if any I/O errors occur.
      */
     public static List<StabilityRecord> parse(BufferedReader reader) {
-        NetStabParser parser = new NetStabParser(reader);
-        return parser.parse();
-    }
+        List<StabilityRecord> records = new ArrayList<StabilityRecord>();
 
-    private List<StabilityRecord> parse() {
-        try {
-            skipHeader();
-            parseData();
-        }
-        catch (IOException ioex) {
-            throw JamException.runtime(ioex);
-        }
-        finally {
-            IOUtil.close(reader);
-        }
+        NetStabParser parser = new NetStabParser(reader);
+        parser.parse((allele, record) -> records.add(record), false);
 
         return records;
     }
 
-    private void skipHeader() throws IOException {
-        //
-        // The header contains two dashed lines; the data begins
-        // immediately after the second dashed line...
-        //
-        readToDashedLine();
-        readToDashedLine();
-    }
-
-    private void readToDashedLine() throws IOException {
-        while (true) {
-            String line = reader.readLine();
-
-            if (line == null || isDashedLine(line))
-                return;
-        }
+    /**
+     * Parses an output stream written by {@code netMHCstabpan} and
+     * passes each record to a consumer as soon as it is read (without
+     * collecting the records in memory).  Every data block is parsed,
+     * so the output of a protein scan (one block per protein) or a
+     * multi-allele run is read in full.
+     *
+     * @param reader an open reader for the output stream.
+     *
+     * @param sink the consumer of the allele named on each data line
+     * and the stability record parsed from that line.
+     *
+     * @throws RuntimeException if any I/O errors occur.
+     */
+    public static void parse(BufferedReader reader, BiConsumer<Allele, StabilityRecord> sink) {
+        NetStabParser parser = new NetStabParser(reader);
+        parser.parse(sink, true);
     }
 
-    private static boolean isDashedLine(String line) {
-        return line != null && line.startsWith(DASHED_LINE_MATCH);
-    }
+    private void parse(BiConsumer<Allele, StabilityRecord> sink, boolean allBlocks) {
+        NetOutputReader output =
+            NetOutputReader.create(reader, ALLELE_FIELD_INDEX, PERCENTILE_FIELD_INDEX + 1);
 
-    private void parseData() throws IOException {
-        //
-        // The data section ends with a dashed line...
-        //
-        while (true) {
-            String line = reader.readLine();
-
-            if (line == null || isDashedLine(line))
-                return;
-            else
-                parseLine(line);
-        }
+        if (allBlocks)
+            output.readBlocks(fields -> sink.accept(output.parseAllele(fields), parseRecord(fields)));
+        else
+            output.readBlock(fields -> sink.accept(null, parseRecord(fields)));
     }
 
-    private void parseLine(String line) {
-        String[] fields = DATA_LINE_DELIM.split(line.trim());
-
-        if (fields.length <= PERCENTILE_FIELD_INDEX)
-            throw JamException.runtime("Invalid data line [%s].", line);
-
+    private static StabilityRecord parseRecord(String[] fields) {
         Peptide peptide = Peptide.instance(fields[PEPTIDE_FIELD_INDEX]);
         HalfLife halfLife = HalfLife.parse(fields[HALF_LIFE_FIELD_INDEX]);
         Percentile percentile = Percentile.parse(fields[PERCENTILE_FIELD_INDEX]);
 
-        records.add(new StabilityRecord(peptide, halfLife, percentile));
+        return new StabilityRecord(peptide, halfLife, percentile);
     }
 }
@@ -3,6 +3,7 @@ package pepmhc.stab.net;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
 
 import jene.hla.Allele;
 import jene.peptide.Peptide;
@@ -32,7 +33,15 @@ public final class NetStabPredictor extends StabilityPredictor {
         return NetStab.isInstalled();
     }
 
+    @Override public boolean isExternal() {
+        return true;
+    }
+
     @Override public List<StabilityRecord> predict(Allele allele, Collection<Peptide> peptides) {
         return NetStab.run(allele, peptides);
     }
+
+    @Override public void scan(Allele allele, Collection<Peptide> proteins, int[] lengths, Consumer<? super StabilityRecord> consumer) {
+        NetStabScanner.scan(allele, proteins, lengths, consumer);
+    }
 }
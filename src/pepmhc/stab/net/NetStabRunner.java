@@ -1,20 +1,21 @@
 
 package pepmhc.stab.net;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.Collection;
 import java.util.List;
 
 import jam.app.JamLogger;
-import jam.io.IOUtil;
 import jam.lang.JamException;
 
 import jene.hla.Allele;
 import jene.peptide.Peptide;
 
+import pepmhc.metrics.BindMetrics;
+import pepmhc.proc.ExecPolicy;
+import pepmhc.proc.ProcessInput;
+import pepmhc.proc.Subprocess;
+import pepmhc.stab.StabilityMethod;
 import pepmhc.stab.StabilityRecord;
 
 /**
@@ -24,7 +25,6 @@ public final class NetStabRunner {
     private final Allele allele;
     private final Collection<Peptide> peptides;
 
-    private File peptideFile;
     private List<StabilityRecord> records;
 
     private NetStabRunner(Allele allele, Collection<Peptide> peptides) {
@@ -33,7 +33,9 @@ public final class NetStabRunner {
     }
 
     /**
-     * Executes a {@code netMHCstabpan} command-line process.
+     * Executes a {@code netMHCstabpan} command-line process (once; a
+     * failure is retried by the caller through the global {@link
+     * ExecPolicy}).
      *
      * @param allele the binding MHC allele.
      *
@@ -50,52 +52,24 @@ public final class NetStabRunner {
     private List<StabilityRecord> run() {
         JamLogger.info("Predicting the stability of [%d] peptides for allele [%s]...", peptides.size(), allele);
 
+        long start = BindMetrics.start();
+        ProcessInput input = ProcessInput.open("NetStabRunner", peptides, Peptide::formatString);
+
         try {
-            initPeptideFile();
-            writePeptideFile();
-            launchProcess();
-        }
-        catch (IOException ioex) {
-            JamLogger.error(ioex);
-            throw JamException.runtime(ioex);
+            Subprocess.run(StabilityMethod.NET_MHC_STAB_PAN.name(), formatCommand(input.getFile()), input,
+                           reader -> records = NetStabParser.parse(reader));
         }
         finally {
-            peptideFile.delete();
+            BindMetrics.instance(allele + ":" + StabilityMethod.NET_MHC_STAB_PAN).process(start);
         }
 
-        return records;
-    }
-
-    private void initPeptideFile() throws IOException {
-        peptideFile = File.createTempFile("NetStabRunner", ".pep");
-    }
-        
-    private void writePeptideFile() throws IOException {
-        PrintWriter writer = new PrintWriter(peptideFile);
-
-        for (Peptide peptide : peptides)
-            writer.println(peptide.formatString());
-
-        writer.close();
-    }
-
-    private void launchProcess() throws IOException {
-        ProcessBuilder builder = new ProcessBuilder(formatCommand());
-        Process        process = builder.start();
-        BufferedReader reader  = IOUtil.openReader(process.getInputStream());
-
-        try {
-            records = NetStabParser.parse(reader);
+        if (records == null || records.size() != peptides.size())
+            throw JamException.runtime("Affinity prediction failed for allele [%s]!", allele);
 
-            if (records.size() != peptides.size())
-                throw JamException.runtime("Affinity prediction failed for allele [%s]!", allele);
-        }
-        finally {
-            reader.close();
-        }
+        return records;
     }
 
-    private List<String>formatCommand() {
+    private List<String>formatCommand(File peptideFile) {
         return List.of(NetStab.resolveExecutableName(), 
                        "-a", formatAllele(),
                        "-p", peptideFile.getAbsolutePath());
@@ -0,0 +1,110 @@
+
+package pepmhc.stab.net;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+import jam.app.JamLogger;
+import jam.lang.JamException;
+
+import jene.hla.Allele;
+import jene.peptide.Peptide;
+
+import pepmhc.bind.BindPredictor;
+import pepmhc.metrics.BindMetrics;
+import pepmhc.proc.ProcessInput;
+import pepmhc.proc.Subprocess;
+import pepmhc.stab.StabilityMethod;
+import pepmhc.stab.StabilityRecord;
+
+/**
+ * Scans protein sequences with {@code netMHCstabpan}.
+ *
+ * <p>The proteins are written in FASTA format and the program cuts
+ * them into every window of the requested length itself (the {@code
+ * -l} option).  As in {@link NetStab}, each process is assigned a
+ * single window length.
+ */
+public final class NetStabScanner {
+    private final Allele allele;
+    private final Collection<Peptide> proteins;
+    private final int length;
+    private final Consumer<? super StabilityRecord> consumer;
+
+    private long recordCount;
+
+    private NetStabScanner(Allele allele, Collection<Peptide> proteins, int length, Consumer<? super StabilityRecord> consumer) {
+        this.allele = allele;
+        this.proteins = proteins;
+        this.length = length;
+        this.consumer = consumer;
+    }
+
+    /**
+     * Predicts the stability of every window of a collection of
+     * proteins.
+     *
+     * @param allele the binding MHC allele.
+     *
+     * @param proteins the protein sequences to scan.
+     *
+     * @param lengths the window lengths to scan.
+     *
+     * @param consumer the consumer of the stability record for each
+     * native window (called one record at a time; a window that occurs
+     * more than once is passed more than once).
+     *
+     * @throws RuntimeException unless every window is scored.
+     */
+    public static void scan(Allele allele, Collection<Peptide> proteins, int[] lengths, Consumer<? super StabilityRecord> consumer) {
+        if (proteins.isEmpty())
+            return;
+
+        for (int length : lengths) {
+            NetStabScanner scanner = new NetStabScanner(allele, proteins, length, consumer);
+            scanner.run();
+        }
+    }
+
+    private void run() {
+        JamLogger.info("Scanning [%d] proteins for the stability of [%d]-mers with allele [%s]...",
+                       proteins.size(), length, allele);
+
+        long expected = BindPredictor.countWindows(proteins, new int[] { length });
+
+        if (expected == 0)
+            return;
+
+        long start = BindMetrics.start();
+        ProcessInput input = ProcessInput.fasta("NetStabScanner", proteins);
+
+        try {
+            recordCount = 0;
+
+            Subprocess.run(StabilityMethod.NET_MHC_STAB_PAN.name(), formatCommand(input.getFile()), input,
+                           reader -> NetStabParser.parse(reader, (scanned, record) -> {
+                                   ++recordCount;
+
+                                   // Windows that span non-native residues
+                                   // are scored but not reported...
+                                   if (record.getPeptide().isNative())
+                                       consumer.accept(record);
+                               }));
+        }
+        finally {
+            BindMetrics.instance(allele + ":" + StabilityMethod.NET_MHC_STAB_PAN).process(start);
+        }
+
+        if (recordCount != expected)
+            throw JamException.runtime("Protein scan failed for allele [%s]!", allele);
+    }
+
+    private List<String> formatCommand(File fastaFile) {
+        return List.of(NetStab.resolveExecutableName(),
+                       "-a", allele.longKey().replace("*", ""),
+                       "-l", Integer.toString(length),
+                       "-f", fastaFile.getAbsolutePath());
+    }
+}
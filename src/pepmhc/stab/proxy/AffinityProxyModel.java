@@ -21,6 +21,8 @@ public final class AffinityProxyModel {
     private final double intercept;
     private final double coefficient;
 
+    private static final double LN_10 = Math.log(10.0);
+
     /**
      * Creates a new affinity-proxy model.
      *
@@ -126,12 +128,30 @@ public final class AffinityProxyModel {
      * @throws IllegalArgumentException unless the affinity is positive.
      */
     public HalfLife halfLife(Affinity affinity) {
+        return halfLifeLog(Math.log(affinity.doubleValue()));
+    }
+
+    /**
+     * Computes the dissociation half-life for a given binding affinity
+     * expressed in log space.
+     *
+     * @param log10Affinity the base-10 logarithm of the peptide-MHC
+     * binding affinity.
+     *
+     * @return the half-life corresonding to the specified affinity
+     * according to this proxy model.
+     */
+    public HalfLife halfLifeLog10(double log10Affinity) {
+        return halfLifeLog(LN_10 * log10Affinity);
+    }
+
+    private HalfLife halfLifeLog(double logAffinity) {
         //
         // Recall that the regression model is:
         //
         //     log(halfLife) = intercept + coefficient * log(affinity)
         //
-        return HalfLife.valueOf(Math.exp(intercept + coefficient * Math.log(affinity.doubleValue())));
+        return HalfLife.valueOf(Math.exp(intercept + coefficient * logAffinity));
     }
 
     /**
@@ -167,6 +187,9 @@ public final class AffinityProxyModel {
      * affinity record.
      */
     public StabilityRecord stabilityRecord(AffinityRecord affinityRecord) {
-        return new StabilityRecord(affinityRecord.getPeptide(), halfLife(affinityRecord.getAffinity()));
+        if (affinityRecord.isLogSpace())
+            return new StabilityRecord(affinityRecord.getPeptide(), halfLifeLog10(affinityRecord.getLog10Affinity()));
+        else
+            return new StabilityRecord(affinityRecord.getPeptide(), halfLife(affinityRecord.getAffinity()));
     }
 }